@@ -0,0 +1,130 @@
+package com.example.prenotazion_aule_keycloak;
+
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.repository.BookingView;
+import com.example.prenotazion_aule_keycloak.repository.WaitlistView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.format.support.DefaultFormattingConversionService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.security.web.csrf.DefaultCsrfToken;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thymeleaf.context.WebContext;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.spring6.expression.ThymeleafEvaluationContext;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import org.thymeleaf.web.IWebExchange;
+import org.thymeleaf.web.servlet.JakartaServletWebApplication;
+
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering Thymeleaf di user.html e admin.html con modelli grandi, template in cache come in produzione.
+ * size = prenotazioni dell'utente; aule = size / 10 (massimo 200), lista d'attesa = size / 10.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(2)
+public class TemplateRenderBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int size;
+
+    private SpringTemplateEngine engine;
+    private IWebExchange exchange;
+    private ThymeleafEvaluationContext evaluationContext;
+    private Map<String, Object> userModel;
+    private Map<String, Object> adminModel;
+
+    @Setup
+    public void setUp() {
+        ClassLoaderTemplateResolver resolver = new ClassLoaderTemplateResolver();
+        resolver.setPrefix("templates/");
+        resolver.setSuffix(".html");
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setCharacterEncoding("UTF-8");
+        resolver.setCacheable(true);
+        engine = new SpringTemplateEngine();
+        engine.setTemplateResolver(resolver);
+
+        // Come ThymeleafView di Spring MVC: un contesto SpEL condiviso, con le cache dei metodi già risolti
+        GenericApplicationContext applicationContext = new GenericApplicationContext();
+        applicationContext.refresh();
+        evaluationContext = new ThymeleafEvaluationContext(applicationContext, new DefaultFormattingConversionService());
+
+        MockServletContext servletContext = new MockServletContext();
+        exchange = JakartaServletWebApplication.buildApplication(servletContext)
+                .buildExchange(new MockHttpServletRequest(servletContext, "GET", "/user"), new MockHttpServletResponse());
+
+        LocalDate today = LocalDate.now();
+        List<Room> rooms = new ArrayList<>();
+        Map<Long, String> busyDays = new HashMap<>();
+        for (long id = 1; id <= Math.max(1, Math.min(size / 10, 200)); id++) {
+            Room room = new Room("Aula " + id, 20 + (int) (id % 30));
+            ReflectionTestUtils.setField(room, "id", id);
+            room.setSeatBooking(id % 3 == 0);
+            rooms.add(room);
+            busyDays.put(id, today.plusDays(id % 7) + "," + today.plusDays(id % 7 + 7));
+        }
+        List<BookingView> bookings = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int start = (i % 10) * 60 + 8 * 60;
+            bookings.add(new BookingView((long) i, today.plusDays(i % 365), i % 4 == 0 ? 0 : start,
+                    i % 4 == 0 ? 1440 : start + 90, "mario", "Aula " + (i % rooms.size() + 1), i % 5 == 0 ? i % 30 + 1 : 0));
+        }
+        List<WaitlistView> waitlist = new ArrayList<>();
+        for (int i = 0; i < size / 10; i++) {
+            waitlist.add(new WaitlistView((long) i, today.plusDays(i % 60), "Aula " + (i % rooms.size() + 1), i % 8 + 1));
+        }
+
+        Set<String> perms = Set.of("User Resource#view", "User Resource#create", "User Resource#delete",
+                "Admin Resource#view", "res-prenotazione#delete");
+        userModel = Map.of("username", "mario", "perms", perms, "rooms", rooms, "roomBusyDays", busyDays,
+                "myBookings", bookings, "myWaitlist", waitlist);
+        adminModel = Map.of("perms", perms, "totalBookings", (long) size * 100, "archivedBookings", 0L,
+                "rooms", rooms, "backupEnabled", true,
+                "_csrf", new DefaultCsrfToken("X-CSRF-TOKEN", "_csrf", "0f4e7c1a-csrf"));
+    }
+
+    @Benchmark
+    public int renderUser() {
+        return render("user", userModel);
+    }
+
+    @Benchmark
+    public int renderAdmin() {
+        return render("admin", adminModel);
+    }
+
+    private int render(String template, Map<String, Object> model) {
+        StringWriter out = new StringWriter(64 * 1024);
+        WebContext context = new WebContext(exchange, Locale.ITALIAN, model);
+        context.setVariable(ThymeleafEvaluationContext.THYMELEAF_EVALUATION_CONTEXT_CONTEXT_VARIABLE_NAME, evaluationContext);
+        engine.process(template, context, out);
+        return out.getBuffer().length();
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.prenotazion_aule_keycloak.backup;
+
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.model.Booking;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.example.prenotazion_aule_keycloak.service.BookingPartitionMaintenance;
+import com.example.prenotazion_aule_keycloak.service.NodeStateRelay;
+import com.example.prenotazion_aule_keycloak.service.OccupancyBroadcaster;
+import com.example.prenotazion_aule_keycloak.service.OccupancyIndex;
+import com.example.prenotazion_aule_keycloak.service.RoomCatalog;
+import com.example.prenotazion_aule_keycloak.service.SeatAdmission;
+import com.example.prenotazion_aule_keycloak.service.SlotIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.flyway.FlywayAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput di backup e ripristino (COPY + deflate + AES-GCM) su una tabella bookings da milioni di righe.
+ *
+ * Serve un PostgreSQL vero e un database dedicato, che viene migrato e svuotato:
+ * -Djmh.args="BookingBackup -jvmArgsAppend -Dbenchmark.postgres.url=jdbc:postgresql://localhost:5432/bench"
+ * (utente e password: -Dbenchmark.postgres.user, -Dbenchmark.postgres.password). Escluso dall'esecuzione
+ * di default del profilo.
+ *
+ * Le prenotazioni sono posti a giornata intera (20 aule da 100 posti) su un periodo che copre più
+ * partizioni mensili, i mesi più vecchi già in bookings_archive; l'ultimo 1% è inserito dopo il watermark letto durante il seed, ed è quello che
+ * l'export incrementale deve trovare. Gli indici in memoria hanno la finestra vuota: il ripristino misura
+ * la COPY e l'inserimento, non il ricaricamento degli indici.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BookingBackupBenchmark {
+
+    private static final long FIRST_ROOM = 900_001;
+    private static final int ROOMS = 20;
+    private static final int SEATS = 100;
+
+    @Param({"2000000"})
+    public int bookings;
+
+    private ConfigurableApplicationContext context;
+    private BookingBackup backup;
+    private JdbcTemplate jdbc;
+    private long since;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String url = System.getProperty("benchmark.postgres.url");
+        if (url == null) {
+            throw new IllegalStateException("Indicare un database PostgreSQL dedicato con -Dbenchmark.postgres.url");
+        }
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        context = new SpringApplicationBuilder(BenchmarkContext.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.cloud.vault.enabled=false",
+                        "--spring.config.on-not-found=ignore",
+                        "--spring.datasource.url=" + url,
+                        "--spring.datasource.driver-class-name=org.postgresql.Driver",
+                        "--spring.datasource.username=" + System.getProperty("benchmark.postgres.user", "postgres"),
+                        "--spring.datasource.password=" + System.getProperty("benchmark.postgres.password", ""),
+                        "--spring.jpa.show-sql=false",
+                        "--logging.file.name=target/jmh.log",
+                        "--logging.level.root=WARN",
+                        "--audit.file=target/jmh-audit/audit.log",
+                        "--booking.occupancy.past-days=0",
+                        "--booking.occupancy.future-days=0",
+                        "--backup.key=" + Base64.getEncoder().encodeToString(key));
+        backup = context.getBean(BookingBackup.class);
+        jdbc = context.getBean(JdbcTemplate.class);
+        seed();
+
+        // File per il ripristino, scritto una volta fuori dalla misura
+        file = Files.createTempFile("booking-backup-bench", ".pabk");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            backup.export(null, backup.currentWatermark(), out, "benchmark");
+        }
+        System.out.printf("%n%d bookings, backup %.1f MB%n", bookings, Files.size(file) / 1e6);
+    }
+
+    private void seed() {
+        jdbc.execute("truncate bookings, bookings_archive, seat_counters, seat_waitlist");
+        jdbc.update("insert into rooms (id, name, capacity, seat_booking) " +
+                "select id, 'Bench ' || id, ?, true from generate_series(?::bigint, ?::bigint) id on conflict (id) do nothing",
+                SEATS, FIRST_ROOM, FIRST_ROOM + ROOMS - 1);
+        int perDay = ROOMS * SEATS;
+        LocalDate first = LocalDate.now().withDayOfMonth(1).minusMonths(12);
+        LocalDate last = first.plusDays(bookings / perDay);
+        jdbc.query("select bookings_create_partition(m::date) from generate_series(?::date, ?::date, interval '1 month') m",
+                rs -> {}, Date.valueOf(first), Date.valueOf(last.withDayOfMonth(1)));
+        int base = bookings - bookings / 100;
+        insert(first, 0, base);
+        since = backup.currentWatermark();
+        insert(first, base, bookings);
+        // I mesi più vecchi nell'archivio, come dopo qualche giro di BookingPartitionMaintenance
+        jdbc.query("select bookings_archive_partition(m::date) from generate_series(?::date, ?::date, interval '1 month') m",
+                rs -> {}, Date.valueOf(first), Date.valueOf(LocalDate.now().withDayOfMonth(1).minusMonths(2)));
+        // Come dopo il passaggio di autovacuum: statistiche e intervalli BRIN di created_xact aggiornati
+        jdbc.execute("vacuum analyze bookings");
+        jdbc.execute("vacuum analyze bookings_archive");
+    }
+
+    // Riga i: aula i % 20, posto (i / 20) % 100 + 1, giorno i / 2000; username unico per aula e giorno
+    private void insert(LocalDate first, int from, int to) {
+        jdbc.update("insert into bookings (id, username, room_id, \"date\", start_minute, end_minute, seat) " +
+                "select 1000000 + i, 'user' || (i % ?), ? + i % ?, ?::date + i / ?, 0, 1440, (i / ?) % ? + 1 " +
+                "from generate_series(?, ?) i",
+                ROOMS * SEATS, FIRST_ROOM, ROOMS, Date.valueOf(first), ROOMS * SEATS, ROOMS, SEATS, from, to - 1);
+    }
+
+    // Ripristino di emergenza: prenotazioni svuotate prima di ogni esecuzione (le aule restano, vengono aggiornate)
+    @State(Scope.Benchmark)
+    public static class EmptyDatabase {
+
+        @Setup(Level.Invocation)
+        public void truncate(BookingBackupBenchmark benchmark) {
+            benchmark.jdbc.execute("truncate bookings, bookings_archive, seat_counters");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        context.close();
+    }
+
+    @Benchmark
+    public BookingBackup.Result exportFull() throws IOException {
+        return backup.export(null, backup.currentWatermark(), OutputStream.nullOutputStream(), "benchmark");
+    }
+
+    @Benchmark
+    public BookingBackup.Result exportIncremental() throws IOException {
+        return backup.export(since, backup.currentWatermark(), OutputStream.nullOutputStream(), "benchmark");
+    }
+
+    @Benchmark
+    public BookingBackup.Result restoreIntoEmptyDatabase(EmptyDatabase empty) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return backup.restore(in, "benchmark");
+        }
+    }
+
+    @SpringBootConfiguration
+    @ImportAutoConfiguration({DataSourceAutoConfiguration.class, DataSourceTransactionManagerAutoConfiguration.class,
+            JdbcTemplateAutoConfiguration.class, FlywayAutoConfiguration.class, HibernateJpaAutoConfiguration.class,
+            TransactionAutoConfiguration.class})
+    @EntityScan(basePackageClasses = Booking.class)
+    @EnableJpaRepositories(basePackageClasses = BookingRepository.class)
+    @Import({BookingBackup.class, AuditTrail.class, OccupancyIndex.class, SlotIndex.class, RoomCatalog.class,
+            BookingPartitionMaintenance.class, NodeStateRelay.class, SeatAdmission.class, OccupancyBroadcaster.class})
+    static class BenchmarkContext {
+    }
+}
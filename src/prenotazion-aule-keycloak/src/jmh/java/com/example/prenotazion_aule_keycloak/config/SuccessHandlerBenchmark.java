@@ -0,0 +1,72 @@
+package com.example.prenotazion_aule_keycloak.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.oidc.OidcIdToken;
+import org.springframework.security.oauth2.core.oidc.user.DefaultOidcUser;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redirect dopo il login (myAuthenticationSuccessHandler) secondo il claim landing_page:
+ * assente, stringa o lista (mapper multivalore di Keycloak).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SuccessHandlerBenchmark {
+
+    @Param({"none", "string", "list"})
+    public String landingPage;
+
+    private AuthenticationSuccessHandler handler;
+    private OAuth2AuthenticationToken authentication;
+    private MockHttpServletRequest request;
+
+    @Setup
+    public void setUp() {
+        handler = new SecurityConfig().myAuthenticationSuccessHandler();
+
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("sub", "3f1c2a9e-0000-4000-8000-000000000001");
+        claims.put("preferred_username", "mario");
+        switch (landingPage) {
+            case "string" -> claims.put("landing_page", "/admin");
+            case "list" -> claims.put("landing_page", List.of("/admin", "/user"));
+            default -> { }
+        }
+        Instant now = Instant.now();
+        DefaultOidcUser user = new DefaultOidcUser(AuthorityUtils.createAuthorityList("OIDC_USER"),
+                new OidcIdToken("id-token", now, now.plusSeconds(300), claims), "preferred_username");
+        authentication = new OAuth2AuthenticationToken(user, user.getAuthorities(), "keycloak");
+        request = new MockHttpServletRequest("GET", "/login/oauth2/code/keycloak");
+    }
+
+    @Benchmark
+    public String redirect() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        handler.onAuthenticationSuccess(request, response, authentication);
+        return response.getRedirectedUrl();
+    }
+}
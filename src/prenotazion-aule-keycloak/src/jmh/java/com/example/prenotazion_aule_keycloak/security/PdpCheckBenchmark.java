@@ -0,0 +1,150 @@
+package com.example.prenotazion_aule_keycloak.security;
+
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakCircuitBreaker;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KeycloakPdpService.check contro un endpoint UMA finto in locale (HttpServer del JDK):
+ * misura il costo del percorso applicativo, HTTP e JSON compresi, senza la latenza di Keycloak.
+ *
+ * cache = none: ogni check fa la richiesta UMA (TTL zero); cache = ttl: TTL di default,
+ * dopo il primo check le risposte arrivano da PdpDecisionCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PdpCheckBenchmark {
+
+    private static final String REALM = "bench";
+
+    @Param({"none", "ttl"})
+    public String cache;
+
+    private HttpServer keycloak;
+    private ExecutorService stubThreads;
+    private KeycloakPdpService pdp;
+    private KeycloakCircuitBreaker circuitBreaker;
+    private OAuth2AuthenticationToken authentication;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Senza TCP_NODELAY lo stub aggiunge ~40ms per risposta (Nagle + ACK ritardato), non è il costo da misurare
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        keycloak = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stubThreads = Executors.newFixedThreadPool(4);
+        keycloak.setExecutor(stubThreads);
+        String base = "http://127.0.0.1:" + keycloak.getAddress().getPort();
+        String realmUrl = base + "/realms/" + REALM;
+        keycloak.createContext("/realms/" + REALM + "/.well-known/uma2-configuration", exchange -> reply(exchange,
+                "{\"issuer\":\"" + realmUrl + "\",\"token_endpoint\":\"" + realmUrl + "/protocol/openid-connect/token\","
+                        + "\"introspection_endpoint\":\"" + realmUrl + "/protocol/openid-connect/token/introspect\","
+                        + "\"resource_registration_endpoint\":\"" + realmUrl + "/authz/protection/resource_set\","
+                        + "\"permission_endpoint\":\"" + realmUrl + "/authz/protection/permission\","
+                        + "\"policy_endpoint\":\"" + realmUrl + "/authz/protection/uma-policy\"}"));
+        // Ogni richiesta uma-ticket viene concessa con un RPT opaco
+        keycloak.createContext("/realms/" + REALM + "/protocol/openid-connect/token", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            reply(exchange, "{\"access_token\":\"rpt\",\"token_type\":\"Bearer\",\"expires_in\":300,\"upgraded\":false}");
+        });
+        keycloak.start();
+
+        ClientRegistration registration = ClientRegistration.withRegistrationId("keycloak")
+                .clientId("bench-client")
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .authorizationUri(realmUrl + "/protocol/openid-connect/auth")
+                .tokenUri(realmUrl + "/protocol/openid-connect/token")
+                .build();
+        InMemoryOAuth2AuthorizedClientService clients = new InMemoryOAuth2AuthorizedClientService(
+                new InMemoryClientRegistrationRepository(registration));
+        DefaultOAuth2User user = new DefaultOAuth2User(AuthorityUtils.createAuthorityList("OIDC_USER"),
+                Map.of("preferred_username", "mario"), "preferred_username");
+        authentication = new OAuth2AuthenticationToken(user, user.getAuthorities(), "keycloak");
+        Instant now = Instant.now();
+        clients.saveAuthorizedClient(new OAuth2AuthorizedClient(registration, "mario",
+                new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "access-token", now, now.plus(Duration.ofHours(1)))),
+                authentication);
+
+        Duration ttl = "ttl".equals(cache) ? Duration.ofSeconds(60) : Duration.ZERO;
+        circuitBreaker = new KeycloakCircuitBreaker(Duration.ofSeconds(2), Duration.ofSeconds(5), 10, 20, 50f,
+                Duration.ofSeconds(1), 20, 10, Duration.ofSeconds(30));
+        pdp = new KeycloakPdpService(clients, new PdpDecisionCache(10_000, ttl, ttl, ttl),
+                new LocalPolicyEngine(null, null), circuitBreaker, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(pdp, "authServerUrl", base);
+        ReflectionTestUtils.setField(pdp, "realm", REALM);
+        ReflectionTestUtils.setField(pdp, "clientId", "bench-client");
+        ReflectionTestUtils.setField(pdp, "clientSecret", "secret");
+        ReflectionTestUtils.setField(pdp, "poolSize", 20);
+        ReflectionTestUtils.setField(pdp, "connectTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(pdp, "readTimeout", Duration.ofSeconds(10));
+        ReflectionTestUtils.setField(pdp, "fallbackMode", "fail-closed");
+        ReflectionTestUtils.setField(pdp, "maxStale", Duration.ofMinutes(5));
+        pdp.initHttpClient();
+        pdp.parsePreflightSpec();
+
+        if (!pdp.check(authentication, "User Resource", "view")) {
+            throw new IllegalStateException("Lo stub UMA non ha concesso il permesso");
+        }
+    }
+
+    private static void reply(HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pdp.closeHttpClient();
+        circuitBreaker.shutdown();
+        keycloak.stop(0);
+        stubThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean check() {
+        return pdp.check(authentication, "User Resource", "view");
+    }
+}
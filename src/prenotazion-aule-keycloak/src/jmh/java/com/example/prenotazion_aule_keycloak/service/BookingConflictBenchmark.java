@@ -0,0 +1,180 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.model.Booking;
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.example.prenotazion_aule_keycloak.repository.RoomRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controllo dei conflitti di createBooking al crescere della tabella bookings (H2 in memoria).
+ *
+ * warm = indici in memoria caricati (percorso normale); cold = finestra degli indici vuota,
+ * ogni controllo va sulla query di sovrapposizione, che è quella che risente delle dimensioni.
+ *
+ * metrics = registry dietro BookingMetrics: noop (meter disattivati da un filtro) o prometheus
+ * (quello di produzione, con i bucket di latenza). La differenza di rejectConflict tra i due è
+ * il costo dell'instrumentazione su una creazione; isAvailable non registra metriche.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class BookingConflictBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int bookings;
+
+    @Param({"warm", "cold"})
+    public String index;
+
+    @Param({"noop", "prometheus"})
+    public String metrics;
+
+    private ConfigurableApplicationContext context;
+    private BookingService bookingService;
+    private Long roomId;
+    private LocalDate busyDay;
+    private LocalDate freeDay;
+    private final TimeSlot morning = new TimeSlot(9 * 60, 11 * 60);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean warm = "warm".equals(index);
+        // Argomenti da riga di comando: hanno la precedenza su application.properties (PostgreSQL, Vault)
+        MeterRegistry registry;
+        if ("prometheus".equals(metrics)) {
+            registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        } else {
+            registry = new SimpleMeterRegistry();
+            registry.config().meterFilter(MeterFilter.deny()); // ogni meter registrato è un noop
+        }
+        context = new SpringApplicationBuilder(BenchmarkContext.class)
+                .web(WebApplicationType.NONE)
+                .initializers(ctx -> ctx.getBeanFactory().registerSingleton("meterRegistry", registry))
+                .run("--spring.cloud.vault.enabled=false",
+                        "--spring.config.on-not-found=ignore",
+                        "--spring.datasource.url=jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1",
+                        "--spring.datasource.driver-class-name=org.h2.Driver",
+                        "--spring.datasource.username=sa",
+                        "--spring.datasource.password=",
+                        "--spring.jpa.database-platform=",
+                        "--spring.jpa.hibernate.ddl-auto=create-drop",
+                        "--spring.jpa.show-sql=false",
+                        "--logging.file.name=target/jmh.log",
+                        "--logging.level.root=WARN",
+                        "--audit.file=target/jmh-audit/audit.log",
+                        "--booking.occupancy.past-days=" + (warm ? 366 : 0),
+                        "--booking.occupancy.future-days=" + (warm ? 730 : 0));
+        bookingService = context.getBean(BookingService.class);
+        List<Long> rooms = context.getBean(RoomRepository.class).findAll().stream().map(Room::getId).toList();
+        roomId = rooms.get(0);
+
+        // Fasce di un'ora per aula e giorno a partire da 300 giorni fa, come in un anno accademico pieno
+        LocalDate first = LocalDate.now().minusDays(300);
+        seed(context.getBean(JdbcTemplate.class), rooms, first);
+        busyDay = first.plusDays(1);
+        freeDay = first.minusDays(30);
+
+        if (warm) {
+            context.getBean(OccupancyIndex.class).warmUp();
+            context.getBean(SlotIndex.class).warmUp();
+        }
+    }
+
+    private void seed(JdbcTemplate jdbc, List<Long> rooms, LocalDate first) {
+        List<Object[]> batch = new ArrayList<>(10_000);
+        for (int i = 0; i < bookings; i++) {
+            int perRoom = i / rooms.size();
+            int hour = perRoom % 24;
+            batch.add(new Object[]{1_000_000L + i, "user" + (i % 500), rooms.get(i % rooms.size()),
+                    Date.valueOf(first.plusDays(perRoom / 24)), hour * 60, hour * 60 + 60, 0});
+            if (batch.size() == 10_000) {
+                insert(jdbc, batch);
+            }
+        }
+        insert(jdbc, batch);
+    }
+
+    private static void insert(JdbcTemplate jdbc, List<Object[]> batch) {
+        jdbc.batchUpdate("insert into bookings (id, username, room_id, date, start_minute, end_minute, seat) "
+                + "values (?, ?, ?, ?, ?, ?, ?)", batch);
+        batch.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    // Giornata intera su un giorno con fasce già prenotate: rifiutata
+    @Benchmark
+    public Object rejectConflict() {
+        try {
+            return bookingService.createBooking("bench", roomId, busyDay);
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public boolean checkBusySlot() {
+        return bookingService.isAvailable(roomId, busyDay, morning);
+    }
+
+    @Benchmark
+    public boolean checkFreeDay() {
+        return bookingService.isAvailable(roomId, freeDay);
+    }
+
+    @SpringBootConfiguration
+    @ImportAutoConfiguration({DataSourceAutoConfiguration.class, DataSourceTransactionManagerAutoConfiguration.class,
+            JdbcTemplateAutoConfiguration.class, HibernateJpaAutoConfiguration.class, TransactionAutoConfiguration.class})
+    @EntityScan(basePackageClasses = Booking.class)
+    @EnableJpaRepositories(basePackageClasses = BookingRepository.class)
+    @Import({BookingService.class, AuditTrail.class, OccupancyIndex.class, SlotIndex.class, RoomCatalog.class,
+            BookingPartitionMaintenance.class, SeatBookingService.class, SeatAdmission.class, BookingMetrics.class})
+    static class BenchmarkContext {
+    }
+}
@@ -0,0 +1,386 @@
+package com.example.prenotazion_aule_keycloak.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Utenti virtuali che usano l'applicazione come un browser: login OIDC completo, poi un mix di
+ * visualizzazioni di /user, prenotazioni, cancellazioni (con token CSRF preso dalla pagina) e /admin.
+ *
+ * Con più nodi il generatore fa da bilanciatore senza sticky session: gli URL usano l'indirizzo del
+ * primo nodo come origine pubblica (X-Forwarded-Host/Port) e ogni richiesta va al nodo successivo.
+ *
+ * Ogni operazione finisce in un istogramma HdrHistogram (µs). Durante il warm-up gli utenti partono
+ * scaglionati e le operazioni vengono eseguite ma non registrate; i login sono registrati sempre.
+ */
+public class LoadGenerator {
+
+    private static final Pattern CSRF = Pattern.compile("name=\"_csrf\" value=\"([^\"]+)\"");
+    private static final Pattern ROOM = Pattern.compile("<option value=\"(\\d+)\"");
+    private static final Pattern BOOKING = Pattern.compile("action=\"/user/delete/(\\d+)\"");
+    private static final long MAX_LATENCY_US = TimeUnit.MINUTES.toMicros(2);
+
+    /** Pesi relativi delle operazioni degli utenti normali. */
+    public record Mix(int view, int book, int delete) {
+
+        static Mix parse(String spec) {
+            Map<String, Integer> weights = new HashMap<>();
+            for (String part : spec.split(",")) {
+                String[] kv = part.split(":");
+                weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+            }
+            return new Mix(weights.getOrDefault("view", 0), weights.getOrDefault("book", 0), weights.getOrDefault("delete", 0));
+        }
+
+        String pick() {
+            int roll = ThreadLocalRandom.current().nextInt(view + book + delete);
+            return roll < view ? "view" : roll < view + book ? "book" : "delete";
+        }
+
+        @Override
+        public String toString() {
+            return "view:" + view + ",book:" + book + ",delete:" + delete;
+        }
+    }
+
+    /** Esito di una singola operazione: i rifiuti applicativi (conflitto, permesso negato) non sono errori. */
+    private enum Result { OK, REJECTED, ERROR }
+
+    private static final class Operation {
+        final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_US, 3);
+        final LongAdder ok = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final URI base;
+    private final List<URI> nodes;
+    private final int users;
+    private final int admins;
+    private final Duration think;
+    private final Mix mix;
+    private final HttpClient http;
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private volatile boolean recording;
+    private volatile long deadline;
+
+    public LoadGenerator(List<URI> nodes, int users, int admins, Duration think, Mix mix) {
+        this.base = nodes.get(0);
+        this.nodes = nodes;
+        this.users = users;
+        this.admins = admins;
+        this.think = think;
+        this.mix = mix;
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        for (String name : List.of("login", "view", "book", "delete", "admin", "admin-data")) {
+            operations.put(name, new Operation());
+        }
+    }
+
+    /** Esegue warm-up e misura, poi restituisce il riepilogo per operazione. */
+    public Map<String, Object> run(Duration warmup, Duration duration) throws InterruptedException {
+        long start = System.nanoTime();
+        deadline = start + warmup.plus(duration).toNanos();
+        List<Thread> threads = new ArrayList<>();
+        // Partenze distribuite sulla prima metà del warm-up: tutti i login nello stesso istante
+        // misurerebbero la raffica iniziale (e aprirebbero il circuit breaker), non il carico a regime
+        long rampNanos = warmup.toNanos() / 2;
+        int total = users + admins;
+        for (int i = 0; i < total; i++) {
+            String username = i < users ? "user" + i : "admin" + (i - users);
+            long startAt = start + rampNanos * i / total;
+            Thread thread = new Thread(() -> {
+                long delay = startAt - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                new VirtualUser(username).run();
+            }, "vu-" + username);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(warmup.toMillis());
+        recording = true;
+        long measureStart = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 30_000));
+        }
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        return report(seconds);
+    }
+
+    private Map<String, Object> report(double seconds) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        Histogram total = new Histogram(MAX_LATENCY_US, 3);
+        long totalErrors = 0;
+        long totalRejected = 0;
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation op = entry.getValue();
+            if (op.latency.getTotalCount() == 0) {
+                continue;
+            }
+            if (!"login".equals(entry.getKey())) {
+                total.add(op.latency);
+                totalErrors += op.errors.sum();
+                totalRejected += op.rejected.sum();
+            }
+            report.put(entry.getKey(), summary(op.latency, op.rejected.sum(), op.errors.sum(), seconds));
+        }
+        report.put("total", summary(total, totalRejected, totalErrors, seconds));
+        return report;
+    }
+
+    private static Map<String, Object> summary(Histogram histogram, long rejected, long errors, double seconds) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getTotalCount());
+        summary.put("rejected", rejected);
+        summary.put("errors", errors);
+        summary.put("throughput", Math.round(histogram.getTotalCount() / seconds * 10) / 10.0);
+        summary.put("p50", millis(histogram.getValueAtPercentile(50)));
+        summary.put("p99", millis(histogram.getValueAtPercentile(99)));
+        summary.put("p999", millis(histogram.getValueAtPercentile(99.9)));
+        summary.put("max", millis(histogram.getMaxValue()));
+        return summary;
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 10.0) / 100.0;
+    }
+
+    private void record(String operation, long startNanos, Result result, boolean always) {
+        if (!recording && !always) {
+            return;
+        }
+        Operation op = operations.get(operation);
+        op.latency.recordValue(Math.min(MAX_LATENCY_US, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos)));
+        switch (result) {
+            case OK -> op.ok.increment();
+            case REJECTED -> op.rejected.increment();
+            case ERROR -> op.errors.increment();
+        }
+    }
+
+    // --- Utente virtuale: sessione e cookie propri, come un browser ---
+
+    private final class VirtualUser {
+
+        private final String username;
+        private final boolean admin;
+        private final Map<String, String> cookies = new LinkedHashMap<>();
+        private int nextNode;
+        private String csrf;
+        private List<String> rooms = List.of();
+        private List<String> bookings = List.of();
+
+        VirtualUser(String username) {
+            this.username = username;
+            this.admin = StubKeycloak.isAdmin(username);
+        }
+
+        void run() {
+            while (System.nanoTime() < deadline) {
+                try {
+                    if (csrf == null) {
+                        login();
+                    } else if (admin) {
+                        adminStep();
+                    } else {
+                        userStep();
+                    }
+                } catch (IOException e) {
+                    csrf = null;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!think.isZero()) {
+                    try {
+                        Thread.sleep(think.toMillis());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // /user -> /oauth2/authorization/keycloak -> authorize (stub) -> callback -> landing page
+        private void login() throws IOException, InterruptedException {
+            cookies.clear();
+            long start = System.nanoTime();
+            HttpResponse<String> response = get(base.resolve(admin ? "/admin" : "/user"));
+            for (int hops = 0; hops < 10 && response.statusCode() == 302; hops++) {
+                URI next = base.resolve(response.headers().firstValue("Location").orElseThrow());
+                if (next.getPath().endsWith("/protocol/openid-connect/auth")) {
+                    next = URI.create(next + "&username=" + URLEncoder.encode(username, StandardCharsets.UTF_8));
+                }
+                response = get(next);
+            }
+            boolean ok = response.statusCode() == 200 && parsePage(response.body());
+            record("login", start, ok ? Result.OK : Result.ERROR, true);
+            if (!ok) {
+                csrf = null;
+                // Login fallito: niente raffica di tentativi contro lo stub
+                Thread.sleep(1000);
+            }
+        }
+
+        private void userStep() throws IOException, InterruptedException {
+            String operation = mix.pick();
+            if (operation.equals("delete") && bookings.isEmpty()) {
+                operation = "book";
+            }
+            if (operation.equals("book") && rooms.isEmpty()) {
+                operation = "view";
+            }
+            long start = System.nanoTime();
+            switch (operation) {
+                case "view" -> {
+                    HttpResponse<String> response = get(base.resolve("/user"));
+                    boolean ok = response.statusCode() == 200 && parsePage(response.body());
+                    record("view", start, ok ? Result.OK : Result.ERROR, false);
+                }
+                case "book" -> record("book", start, post("/user/book", bookingForm()), false);
+                default -> {
+                    String id = bookings.get(ThreadLocalRandom.current().nextInt(bookings.size()));
+                    Result result = post("/user/delete/" + id, Map.of());
+                    // La prenotazione non è più nella pagina: niente doppie cancellazioni dello stesso id
+                    bookings = bookings.stream().filter(b -> !b.equals(id)).toList();
+                    record("delete", start, result, false);
+                }
+            }
+        }
+
+        private void adminStep() throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                HttpResponse<String> response = get(base.resolve("/admin"));
+                record("admin", start, response.statusCode() == 200 ? Result.OK : Result.ERROR, false);
+            } else {
+                HttpResponse<String> response = get(base.resolve("/admin/bookings/data?draw=1&start=0&length=25"));
+                record("admin-data", start, response.statusCode() == 200 ? Result.OK : Result.ERROR, false);
+            }
+        }
+
+        // Giorno intero o fascia di un'ora nei prossimi 90 giorni: i conflitti crescono con il carico
+        private Map<String, String> bookingForm() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Map<String, String> form = new LinkedHashMap<>();
+            form.put("roomId", rooms.get(random.nextInt(rooms.size())));
+            form.put("date", LocalDate.now().plusDays(1 + random.nextInt(90)).toString());
+            if (random.nextInt(4) != 0) {
+                int hour = 8 + random.nextInt(11);
+                form.put("start", String.format("%02d:00", hour));
+                form.put("end", String.format("%02d:00", hour + 1));
+            }
+            return form;
+        }
+
+        private boolean parsePage(String html) {
+            Matcher token = CSRF.matcher(html);
+            if (!token.find()) {
+                return false;
+            }
+            csrf = token.group(1);
+            if (!admin) {
+                rooms = matches(ROOM, html);
+                bookings = matches(BOOKING, html);
+            }
+            return true;
+        }
+
+        private Result post(String path, Map<String, String> form) throws IOException, InterruptedException {
+            Map<String, String> body = new LinkedHashMap<>(form);
+            body.put("_csrf", csrf);
+            String encoded = body.entrySet().stream()
+                    .map(e -> e.getKey() + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+                    .collect(Collectors.joining("&"));
+            HttpResponse<String> response = send(HttpRequest.newBuilder(base.resolve(path))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(encoded)));
+            if (response.statusCode() != 302) {
+                csrf = null;
+                return Result.ERROR;
+            }
+            String location = response.headers().firstValue("Location").orElse("");
+            if (location.contains("/oauth2/authorization/")) {
+                csrf = null;
+                return Result.ERROR;
+            }
+            return location.contains("error=") ? Result.REJECTED : Result.OK;
+        }
+
+        private HttpResponse<String> get(URI uri) throws IOException, InterruptedException {
+            return send(HttpRequest.newBuilder(uri).GET());
+        }
+
+        private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+            URI uri = request.build().uri();
+            boolean app = base.getAuthority().equals(uri.getAuthority());
+            if (app && nodes.size() > 1) {
+                URI node = nodes.get(nextNode++ % nodes.size());
+                request.uri(node.resolve(uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "")))
+                        .header("X-Forwarded-Host", base.getHost())
+                        .header("X-Forwarded-Port", String.valueOf(base.getPort()))
+                        .header("X-Forwarded-Proto", base.getScheme());
+            }
+            if (app && !cookies.isEmpty()) {
+                request.header("Cookie", cookies.entrySet().stream()
+                        .map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining("; ")));
+            }
+            HttpResponse<String> response = http.send(request.timeout(Duration.ofSeconds(30)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (app) {
+                for (String header : response.headers().allValues("Set-Cookie")) {
+                    String pair = header.split(";", 2)[0];
+                    int eq = pair.indexOf('=');
+                    String name = pair.substring(0, eq).trim();
+                    String value = pair.substring(eq + 1).trim();
+                    if (value.isEmpty() || header.contains("Max-Age=0")) {
+                        cookies.remove(name);
+                    } else {
+                        cookies.put(name, value);
+                    }
+                }
+            }
+            return response;
+        }
+    }
+
+    private static List<String> matches(Pattern pattern, String html) {
+        List<String> values = new ArrayList<>();
+        Matcher matcher = pattern.matcher(html);
+        while (matcher.find()) {
+            values.add(matcher.group(1));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.prenotazion_aule_keycloak.loadtest;
+
+import com.example.prenotazion_aule_keycloak.PrenotazionAuleKeycloakApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test di carico end-to-end senza dipendenze esterne: Keycloak finto (StubKeycloak), H2 in memoria
+ * al posto di PostgreSQL, Vault disattivato (profilo "loadtest"), applicazione completa su porta casuale.
+ *
+ * Opzioni (tutte facoltative): --users=50 --admins=5 --duration=60s --warmup=10s --think=0ms
+ * --mix=view:50,book:30,delete:20 --token-latency=10ms --uma-latency=5ms --admin-latency=10ms
+ * --fanout=false --virtual-threads=false --nodes=1 --out=target/loadtest-results.json
+ *
+ * fanout e virtual-threads accendono le modalità corrispondenti dell'applicazione (fanout.enabled,
+ * spring.threads.virtual.enabled, quest'ultima solo su Java 21) per confrontarle con il modello a pool.
+ * Con nodes maggiore di 1 partono più istanze dell'applicazione sullo stesso H2 e le richieste di ogni
+ * utente si alternano tra i nodi (sessioni condivise, nessuna affinità).
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("users", "50");
+        options.put("admins", "5");
+        options.put("duration", "60s");
+        options.put("warmup", "10s");
+        options.put("think", "0ms");
+        options.put("mix", "view:50,book:30,delete:20");
+        options.put("token-latency", "10ms");
+        options.put("uma-latency", "5ms");
+        options.put("admin-latency", "10ms");
+        options.put("fanout", "false");
+        options.put("virtual-threads", "false");
+        options.put("nodes", "1");
+        options.put("out", "target/loadtest-results.json");
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            if (!options.containsKey(kv[0]) || kv.length < 2) {
+                throw new IllegalArgumentException("Opzione sconosciuta: " + arg);
+            }
+            options.put(kv[0], kv[1]);
+        }
+
+        StubKeycloak keycloak = new StubKeycloak(duration(options, "token-latency"),
+                duration(options, "uma-latency"), duration(options, "admin-latency"));
+        keycloak.start();
+        List<ConfigurableApplicationContext> apps = new ArrayList<>();
+        try {
+            List<URI> nodes = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(options.get("nodes")); i++) {
+                // Argomenti da riga di comando: hanno la precedenza su application.properties (Vault, PostgreSQL, Keycloak)
+                ConfigurableApplicationContext app = new SpringApplicationBuilder(PrenotazionAuleKeycloakApplication.class)
+                        .profiles("loadtest")
+                        .run("--server.port=0",
+                                "--spring.cloud.vault.enabled=false",
+                                "--spring.config.on-not-found=ignore",
+                                "--spring.security.oauth2.client.provider.keycloak.issuer-uri=" + keycloak.issuer(),
+                                "--keycloak.auth-server-url=" + keycloak.baseUrl(),
+                                "--fanout.enabled=" + options.get("fanout"),
+                                "--spring.threads.virtual.enabled=" + options.get("virtual-threads"),
+                                // Lo schema lo crea il primo nodo: create-drop sugli altri cancellerebbe i suoi dati
+                                "--spring.jpa.hibernate.ddl-auto=" + (i == 0 ? "create-drop" : "none"));
+                apps.add(app);
+                nodes.add(URI.create("http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort()));
+            }
+
+            LoadGenerator.Mix mix = LoadGenerator.Mix.parse(options.get("mix"));
+            int users = Integer.parseInt(options.get("users"));
+            int admins = Integer.parseInt(options.get("admins"));
+            Duration warmup = duration(options, "warmup");
+            Duration measured = duration(options, "duration");
+            System.out.printf("%nCarico: %d utenti, %d admin, mix %s, warm-up %s, misura %s, fan-out %s, virtual thread %s, nodi %d%n",
+                    users, admins, mix, warmup, measured, options.get("fanout"), options.get("virtual-threads"), nodes.size());
+            Map<String, Object> results = new LoadGenerator(nodes,
+                    users, admins, duration(options, "think"), mix).run(warmup, measured);
+
+            print(results);
+            Map<String, Object> output = new LinkedHashMap<>();
+            output.put("options", options);
+            output.put("keycloak", keycloak.stats());
+            output.put("results", results);
+            File out = new File(options.get("out"));
+            out.getAbsoluteFile().getParentFile().mkdirs();
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, output);
+            System.out.println("Risultati in " + out.getAbsolutePath());
+        } finally {
+            for (int i = apps.size() - 1; i >= 0; i--) {
+                apps.get(i).close();
+            }
+            keycloak.stop();
+        }
+    }
+
+    private static Duration duration(Map<String, String> options, String name) {
+        return DurationStyle.detectAndParse(options.get(name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void print(Map<String, Object> results) {
+        System.out.printf("%n%-11s %9s %9s %7s %10s %9s %9s %9s %9s%n",
+                "operazione", "richieste", "rifiutate", "errori", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        results.forEach((name, value) -> {
+            Map<String, Object> s = (Map<String, Object>) value;
+            System.out.printf("%-11s %9d %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f%n", name,
+                    s.get("count"), s.get("rejected"), s.get("errors"), s.get("throughput"),
+                    s.get("p50"), s.get("p99"), s.get("p999"), s.get("max"));
+        });
+        System.out.println();
+    }
+}
@@ -0,0 +1,371 @@
+package com.example.prenotazion_aule_keycloak.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keycloak finto per i test di carico: discovery OIDC e UMA, login senza form, token endpoint
+ * (authorization_code, client_credentials, uma-ticket), userinfo, JWKS, logout e Admin API.
+ *
+ * Il login è automatico: l'utente è il parametro "username" aggiunto dal generatore di carico
+ * all'URL di autorizzazione. Gli utenti "admin*" hanno anche i permessi di amministrazione.
+ * Ogni endpoint risponde dopo la latenza configurata, per simulare un Keycloak reale in rete.
+ */
+public class StubKeycloak {
+
+    public static final String REALM = "prenotazioni-aule";
+    public static final String CLIENT_ID = "prenotazioni-app";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final Duration tokenLatency;
+    private final Duration umaLatency;
+    private final Duration adminLatency;
+
+    private final RSAKey signingKey;
+    private final HttpServer server;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final Map<String, Login> pendingCodes = new ConcurrentHashMap<>();
+    private final AtomicLong umaRequests = new AtomicLong();
+    private final AtomicLong tokenRequests = new AtomicLong();
+    private final AtomicLong adminRequests = new AtomicLong();
+
+    private record Login(String username, String nonce) {}
+
+    public StubKeycloak(Duration tokenLatency, Duration umaLatency, Duration adminLatency) throws IOException {
+        this.tokenLatency = tokenLatency;
+        this.umaLatency = umaLatency;
+        this.adminLatency = adminLatency;
+        try {
+            signingKey = new RSAKeyGenerator(2048).keyID("loadtest").generate();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+        // Senza TCP_NODELAY ogni risposta piccola attende l'ACK ritardato del client (~40ms)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(workers);
+        String realm = "/realms/" + REALM;
+        server.createContext(realm + "/.well-known/openid-configuration", this::openidConfiguration);
+        server.createContext(realm + "/.well-known/uma2-configuration", this::umaConfiguration);
+        server.createContext(realm + "/protocol/openid-connect/auth", this::authorize);
+        server.createContext(realm + "/protocol/openid-connect/token", this::token);
+        server.createContext(realm + "/protocol/openid-connect/userinfo", this::userInfo);
+        server.createContext(realm + "/protocol/openid-connect/certs", this::certs);
+        server.createContext(realm + "/protocol/openid-connect/logout", this::logout);
+        server.createContext("/admin/realms/" + REALM, this::admin);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String issuer() {
+        return baseUrl() + "/realms/" + REALM;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tokenRequests", tokenRequests.get());
+        stats.put("umaRequests", umaRequests.get());
+        stats.put("adminRequests", adminRequests.get());
+        return stats;
+    }
+
+    // --- Discovery ---
+
+    private void openidConfiguration(HttpExchange exchange) throws IOException {
+        String oidc = issuer() + "/protocol/openid-connect";
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("issuer", issuer());
+        config.put("authorization_endpoint", oidc + "/auth");
+        config.put("token_endpoint", oidc + "/token");
+        config.put("userinfo_endpoint", oidc + "/userinfo");
+        config.put("jwks_uri", oidc + "/certs");
+        config.put("end_session_endpoint", oidc + "/logout");
+        config.put("response_types_supported", List.of("code"));
+        config.put("subject_types_supported", List.of("public"));
+        config.put("id_token_signing_alg_values_supported", List.of("RS256"));
+        config.put("scopes_supported", List.of("openid", "profile", "email"));
+        config.put("token_endpoint_auth_methods_supported", List.of("client_secret_basic", "client_secret_post"));
+        config.put("grant_types_supported", List.of("authorization_code", "client_credentials",
+                "urn:ietf:params:oauth:grant-type:uma-ticket"));
+        json(exchange, 200, config);
+    }
+
+    private void umaConfiguration(HttpExchange exchange) throws IOException {
+        String oidc = issuer() + "/protocol/openid-connect";
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("issuer", issuer());
+        config.put("token_endpoint", oidc + "/token");
+        config.put("introspection_endpoint", oidc + "/token/introspect");
+        config.put("jwks_uri", oidc + "/certs");
+        config.put("resource_registration_endpoint", issuer() + "/authz/protection/resource_set");
+        config.put("permission_endpoint", issuer() + "/authz/protection/permission");
+        config.put("policy_endpoint", issuer() + "/authz/protection/uma-policy");
+        json(exchange, 200, config);
+    }
+
+    private void certs(HttpExchange exchange) throws IOException {
+        json(exchange, 200, new JWKSet(signingKey.toPublicJWK()).toJSONObject());
+    }
+
+    // --- Login ---
+
+    private void authorize(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> params = parse(exchange.getRequestURI().getRawQuery());
+        String username = first(params, "username");
+        if (username == null) {
+            json(exchange, 400, Map.of("error", "invalid_request", "error_description", "username mancante"));
+            return;
+        }
+        String code = UUID.randomUUID().toString();
+        pendingCodes.put(code, new Login(username, first(params, "nonce")));
+        String location = first(params, "redirect_uri") + "?code=" + code
+                + "&state=" + URLEncoder.encode(first(params, "state"), StandardCharsets.UTF_8);
+        redirect(exchange, location);
+    }
+
+    private void logout(HttpExchange exchange) throws IOException {
+        String target = first(parse(exchange.getRequestURI().getRawQuery()), "post_logout_redirect_uri");
+        redirect(exchange, target != null ? target : "/");
+    }
+
+    // --- Token endpoint ---
+
+    private void token(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> form = parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        String grantType = first(form, "grant_type");
+        if ("urn:ietf:params:oauth:grant-type:uma-ticket".equals(grantType)) {
+            umaRequests.incrementAndGet();
+            pause(umaLatency);
+            uma(exchange, form);
+            return;
+        }
+        tokenRequests.incrementAndGet();
+        pause(tokenLatency);
+        if ("authorization_code".equals(grantType)) {
+            Login login = pendingCodes.remove(first(form, "code"));
+            if (login == null) {
+                json(exchange, 400, Map.of("error", "invalid_grant"));
+                return;
+            }
+            Map<String, Object> tokens = tokens(login.username());
+            tokens.put("id_token", sign(idTokenClaims(login).build()));
+            json(exchange, 200, tokens);
+        } else if ("client_credentials".equals(grantType)) {
+            json(exchange, 200, tokens("service-account-" + CLIENT_ID));
+        } else {
+            json(exchange, 400, Map.of("error", "unsupported_grant_type"));
+        }
+    }
+
+    private Map<String, Object> tokens(String username) {
+        Instant now = Instant.now();
+        Map<String, Object> tokens = new LinkedHashMap<>();
+        tokens.put("access_token", sign(userClaims(username, now).audience("account").claim("typ", "Bearer").build()));
+        tokens.put("token_type", "Bearer");
+        tokens.put("expires_in", 900);
+        tokens.put("scope", "openid profile email");
+        return tokens;
+    }
+
+    private JWTClaimsSet.Builder idTokenClaims(Login login) {
+        JWTClaimsSet.Builder claims = userClaims(login.username(), Instant.now())
+                .audience(CLIENT_ID)
+                .claim("typ", "ID");
+        if (login.nonce() != null) {
+            claims.claim("nonce", login.nonce());
+        }
+        return claims;
+    }
+
+    private JWTClaimsSet.Builder userClaims(String username, Instant now) {
+        return new JWTClaimsSet.Builder()
+                .issuer(issuer())
+                .subject(subject(username))
+                .issueTime(Date.from(now))
+                .expirationTime(Date.from(now.plusSeconds(900)))
+                .claim("azp", CLIENT_ID)
+                .claim("preferred_username", username)
+                .claim("email", username + "@loadtest.local")
+                .claim("name", username)
+                .claim("landing_page", isAdmin(username) ? "/admin" : "/user");
+    }
+
+    // Permessi richiesti ("Risorsa#scope1,scope2"): un utente ha tutto tranne le risorse di amministrazione
+    private void uma(HttpExchange exchange, Map<String, List<String>> form) throws IOException {
+        String username = bearerUsername(exchange);
+        if (username == null) {
+            json(exchange, 401, Map.of("error", "invalid_grant"));
+            return;
+        }
+        List<Map<String, Object>> granted = new ArrayList<>();
+        for (String permission : form.getOrDefault("permission", List.of())) {
+            String[] parts = permission.split("#", 2);
+            if (isAdmin(username) || !(parts[0].startsWith("Admin") || parts[0].startsWith("res-"))) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("rsid", UUID.nameUUIDFromBytes(parts[0].getBytes(StandardCharsets.UTF_8)).toString());
+                entry.put("rsname", parts[0]);
+                entry.put("scopes", parts.length > 1 ? List.of(parts[1].split(",")) : List.of());
+                granted.add(entry);
+            }
+        }
+        if (granted.isEmpty()) {
+            json(exchange, 403, Map.of("error", "access_denied", "error_description", "not_authorized"));
+            return;
+        }
+        String rpt = sign(userClaims(username, Instant.now())
+                .audience(CLIENT_ID)
+                .claim("authorization", Map.of("permissions", granted))
+                .build());
+        json(exchange, 200, Map.of("access_token", rpt, "token_type", "Bearer", "upgraded", false));
+    }
+
+    private void userInfo(HttpExchange exchange) throws IOException {
+        String username = bearerUsername(exchange);
+        if (username == null) {
+            json(exchange, 401, Map.of("error", "invalid_token"));
+            return;
+        }
+        Map<String, Object> claims = new LinkedHashMap<>(userClaims(username, Instant.now()).build().getClaims());
+        claims.keySet().retainAll(List.of("sub", "preferred_username", "email", "name", "landing_page"));
+        json(exchange, 200, claims);
+    }
+
+    // --- Admin API (profilo utente): risposte vuote ma valide ---
+
+    private void admin(HttpExchange exchange) throws IOException {
+        adminRequests.incrementAndGet();
+        exchange.getRequestBody().readAllBytes();
+        pause(adminLatency);
+        String path = exchange.getRequestURI().getPath();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        } else if (path.matches(".*/users/[^/]+")) {
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            json(exchange, 200, Map.of("id", id, "username", id, "email", id + "@loadtest.local", "enabled", true));
+        } else {
+            json(exchange, 200, List.of());
+        }
+    }
+
+    // --- Utilità ---
+
+    static boolean isAdmin(String username) {
+        return username.startsWith("admin");
+    }
+
+    private static String subject(String username) {
+        return UUID.nameUUIDFromBytes(username.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private String bearerUsername(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            return null;
+        }
+        try {
+            return SignedJWT.parse(header.substring(7)).getJWTClaimsSet().getStringClaim("preferred_username");
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private String sign(JWTClaimsSet claims) {
+        try {
+            SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256)
+                    .keyID(signingKey.getKeyID()).type(JOSEObjectType.JWT).build(), claims);
+            jwt.sign(new RSASSASigner(signingKey));
+            return jwt.serialize();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void pause(Duration latency) {
+        if (latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency.toMillis(), latency.toNanosPart() % 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Map<String, List<String>> parse(String query) {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static void redirect(HttpExchange exchange, String location) throws IOException {
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    private static void json(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = JSON.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
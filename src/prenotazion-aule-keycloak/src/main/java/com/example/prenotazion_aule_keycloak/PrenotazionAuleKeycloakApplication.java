@@ -2,8 +2,10 @@ package com.example.prenotazion_aule_keycloak;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class PrenotazionAuleKeycloakApplication {
 
 	public static void main(String[] args) {
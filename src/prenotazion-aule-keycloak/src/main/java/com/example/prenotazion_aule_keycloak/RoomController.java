@@ -1,9 +1,45 @@
 package com.example.prenotazion_aule_keycloak;
 
+import com.example.prenotazion_aule_keycloak.audit.AuditEvent;
+import com.example.prenotazion_aule_keycloak.audit.AuditLogSearch;
+import com.example.prenotazion_aule_keycloak.audit.AuditQuery;
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.backup.BookingBackup;
+import com.example.prenotazion_aule_keycloak.config.RequestFanOut;
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.repository.BookingSpecifications;
+import com.example.prenotazion_aule_keycloak.repository.BookingView;
+import com.example.prenotazion_aule_keycloak.repository.WaitlistView;
 import com.example.prenotazion_aule_keycloak.security.KeycloakPdpService;
+import com.example.prenotazion_aule_keycloak.service.AvailabilityCalendar;
+import com.example.prenotazion_aule_keycloak.service.BookingPartitionMaintenance;
+import com.example.prenotazion_aule_keycloak.service.BookingPage;
+import com.example.prenotazion_aule_keycloak.service.BookingSearch;
 import com.example.prenotazion_aule_keycloak.service.BookingService;
+import com.example.prenotazion_aule_keycloak.service.BulkBookingResult;
 import com.example.prenotazion_aule_keycloak.service.KeycloakService;
+import com.example.prenotazion_aule_keycloak.service.NodeStateRelay;
+import com.example.prenotazion_aule_keycloak.service.OccupancyBroadcaster;
+import com.example.prenotazion_aule_keycloak.service.OccupancyIndex;
+import com.example.prenotazion_aule_keycloak.service.RoomCatalog;
+import com.example.prenotazion_aule_keycloak.service.RoomFullException;
+import com.example.prenotazion_aule_keycloak.service.SeatAdmission;
+import com.example.prenotazion_aule_keycloak.service.SlotIndex;
+import com.example.prenotazion_aule_keycloak.session.NearCacheAuthorizedClientService;
+import com.example.prenotazion_aule_keycloak.session.NearCacheSessionRepository;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -11,22 +47,90 @@ import org.springframework.security.oauth2.core.oidc.user.OidcUser;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Controller
 public class RoomController {
 
+    private static final int BUSY_PREVIEW_DAYS = 90;
+    private static final int MAX_ADMIN_PAGE_SIZE = 100;
+    private static final int MAX_AUDIT_RESULTS = 10_000;
+    private static final DateTimeFormatter BACKUP_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final JsonFactory NDJSON = JsonFactory.builder().disable(StreamWriteFeature.AUTO_CLOSE_TARGET).build();
+
     private final BookingService bookingService;
     private final KeycloakService keycloakService;
     private final KeycloakPdpService pdpService;
+    private final OccupancyIndex occupancyIndex;
+    private final RoomCatalog roomCatalog;
+    private final SlotIndex slotIndex;
+    private final SeatAdmission seatAdmission;
+    private final AvailabilityCalendar availabilityCalendar;
+    private final OccupancyBroadcaster occupancyBroadcaster;
+    private final AuditTrail auditTrail;
+    private final AuditLogSearch auditLogSearch;
+    private final RequestFanOut fanOut;
+    private final BookingPartitionMaintenance partitionMaintenance;
+    private final BookingBackup bookingBackup;
+    private final NodeStateRelay nodeStateRelay;
+    // Presenti solo con session.store=jdbc
+    private final ObjectProvider<NearCacheSessionRepository> sessionStore;
+    private final ObjectProvider<NearCacheAuthorizedClientService> authorizedClients;
 
     public RoomController(BookingService bookingService,
                           KeycloakService keycloakService,
-                          KeycloakPdpService pdpService) {
+                          KeycloakPdpService pdpService,
+                          OccupancyIndex occupancyIndex,
+                          RoomCatalog roomCatalog,
+                          SlotIndex slotIndex,
+                          SeatAdmission seatAdmission,
+                          AvailabilityCalendar availabilityCalendar,
+                          OccupancyBroadcaster occupancyBroadcaster,
+                          AuditTrail auditTrail,
+                          AuditLogSearch auditLogSearch,
+                          RequestFanOut fanOut,
+                          BookingPartitionMaintenance partitionMaintenance,
+                          BookingBackup bookingBackup,
+                          NodeStateRelay nodeStateRelay,
+                          ObjectProvider<NearCacheSessionRepository> sessionStore,
+                          ObjectProvider<NearCacheAuthorizedClientService> authorizedClients) {
         this.bookingService = bookingService;
         this.keycloakService = keycloakService;
         this.pdpService = pdpService;
+        this.occupancyIndex = occupancyIndex;
+        this.roomCatalog = roomCatalog;
+        this.slotIndex = slotIndex;
+        this.seatAdmission = seatAdmission;
+        this.availabilityCalendar = availabilityCalendar;
+        this.occupancyBroadcaster = occupancyBroadcaster;
+        this.auditTrail = auditTrail;
+        this.auditLogSearch = auditLogSearch;
+        this.fanOut = fanOut;
+        this.partitionMaintenance = partitionMaintenance;
+        this.bookingBackup = bookingBackup;
+        this.nodeStateRelay = nodeStateRelay;
+        this.sessionStore = sessionStore;
+        this.authorizedClients = authorizedClients;
     }
 
     @GetMapping("/")
@@ -37,22 +141,45 @@ public class RoomController {
     // =================================================================================
 
     // 1. VISUALIZZAZIONE DASHBOARD (Scope: view)
-    // Usa ancora @PreAuthorize perché è solo visualizzazione pagina
+    // Prima la decisione del PDP, poi le query in parallelo (RequestFanOut): senza accesso non si legge niente.
+    // Aule e giorni occupati sono già in memoria
     @PreAuthorize("@pdp.check(authentication, 'User Resource', 'view')")
     @GetMapping("/user")
-    public String userArea(@AuthenticationPrincipal OidcUser principal, Model model) {
+    public String userArea(@AuthenticationPrincipal OidcUser principal, Model model, Authentication authentication) {
         String username = principal.getPreferredUsername();
+        Supplier<List<BookingView>> bookings = fanOut.fork(() -> bookingService.getBookingsByUser(username));
+        Supplier<List<WaitlistView>> waitlist = fanOut.fork(() -> bookingService.getWaitlistByUser(username));
+        // Permessi del pre-flight per i template (dalla memoria della richiesta)
+        model.addAttribute("perms", pdpService.grantedPermissions(authentication));
         model.addAttribute("username", username);
-        model.addAttribute("rooms", bookingService.getAllRooms());
-        model.addAttribute("myBookings", bookingService.getBookingsByUser(username));
+        List<Room> rooms = bookingService.getAllRooms();
+        model.addAttribute("rooms", rooms);
+        model.addAttribute("roomBusyDays", busyDaysPreview(rooms));
+        model.addAttribute("openingHours", bookingService.openingHours());
+        model.addAttribute("myBookings", bookings.get());
+        model.addAttribute("myWaitlist", waitlist.get());
         return "user";
     }
 
+    // Giorni occupati per aula (dall'indice in memoria, zero query) per marcare il dropdown lato client
+    private Map<Long, String> busyDaysPreview(List<Room> rooms) {
+        LocalDate today = LocalDate.now();
+        Map<Long, String> busy = new HashMap<>();
+        for (Room room : rooms) {
+            busy.put(room.getId(), occupancyIndex.busyDays(room.getId(), today, today.plusDays(BUSY_PREVIEW_DAYS))
+                    .stream().map(LocalDate::toString).collect(Collectors.joining(",")));
+        }
+        return busy;
+    }
+
     // 2. CREAZIONE PRENOTAZIONE (Scope: create)
     @PostMapping("/user/book")
     public String bookRoom(@AuthenticationPrincipal OidcUser principal,
                            @RequestParam Long roomId,
                            @RequestParam String date,
+                           @RequestParam(required = false) String start, // fascia oraria opzionale (HH:mm),
+                           @RequestParam(required = false) String end,   // senza si prenota tutto il giorno
+                           @RequestParam(defaultValue = "false") boolean waitlist, // aula a posti piena -> lista d'attesa
                            Authentication authentication) { // <--- Serve Authentication per il PDP
 
         // --- CHECK SICUREZZA KEYCLOAK (Can I create?) ---
@@ -61,8 +188,110 @@ public class RoomController {
         }
 
         try {
-            bookingService.createBooking(principal.getPreferredUsername(), roomId, LocalDate.parse(date));
+            TimeSlot slot = start != null && !start.isBlank() && end != null && !end.isBlank()
+                    ? TimeSlot.of(LocalTime.parse(start), LocalTime.parse(end))
+                    : TimeSlot.fullDay();
+            bookingService.createBooking(principal.getPreferredUsername(), roomId, LocalDate.parse(date), slot);
             return "redirect:/user?message=Prenotazione confermata!";
+        } catch (RoomFullException e) {
+            if (!waitlist) {
+                return "redirect:/user?error=" + e.getMessage();
+            }
+            try {
+                long position = bookingService.joinWaitlist(principal.getPreferredUsername(), roomId, LocalDate.parse(date));
+                return "redirect:/user?message=Aula al completo: sei in lista d'attesa (posizione " + position + ")";
+            } catch (Exception ex) {
+                return "redirect:/user?error=" + ex.getMessage();
+            }
+        } catch (Exception e) {
+            return "redirect:/user?error=" + e.getMessage();
+        }
+    }
+
+    // 2a. RICERCA FASCE LIBERE (Scope: view): buchi di almeno minMinutes in tutte le aule per un giorno
+    @PreAuthorize("@pdp.check(authentication, 'User Resource', 'view')")
+    @GetMapping("/user/slots")
+    @ResponseBody
+    public List<Map<String, Object>> freeSlots(@RequestParam String date,
+                                               @RequestParam(defaultValue = "60") int minMinutes) {
+        List<Map<String, Object>> rooms = new ArrayList<>();
+        bookingService.findFreeSlots(LocalDate.parse(date), Math.max(1, minMinutes)).forEach((room, free) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("roomId", room.getId());
+            entry.put("roomName", room.getName());
+            entry.put("free", free.stream().map(slot -> Map.of(
+                    "start", TimeSlot.format(slot.startMinute()),
+                    "end", TimeSlot.format(slot.endMinute()))).toList());
+            rooms.add(entry);
+        });
+        return rooms;
+    }
+
+    // 2b. CALENDARIO MENSILE (Scope: view): griglia aule x giorni da una sola query aggregata.
+    // JSON scritto in streaming; con If-None-Match uguale all'ETag la risposta è un 304 senza corpo
+    @PreAuthorize("@pdp.check(authentication, 'User Resource', 'view')")
+    @GetMapping(value = "/user/calendar", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> calendar(@RequestParam String month,
+                                                          @RequestParam(required = false) Long roomId,
+                                                          WebRequest request) {
+        AvailabilityCalendar.MonthGrid grid = availabilityCalendar.month(YearMonth.parse(month), roomId);
+        if (request.checkNotModified(grid.etag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .body(grid::writeJson);
+    }
+
+    // 2c. AGGIORNAMENTI LIVE (Scope: view): stream SSE delle variazioni di occupazione dopo ogni commit.
+    // roomId e month (yyyy-MM) ripetibili per seguire solo le aule e i mesi mostrati; nessuno = tutti.
+    // 503 oltre il limite di client
+    @PreAuthorize("@pdp.check(authentication, 'User Resource', 'view')")
+    @GetMapping(value = "/user/live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> userLive(@RequestParam(required = false) Set<Long> roomId,
+                                               @RequestParam(required = false) Set<YearMonth> month) {
+        return subscribe(roomId, month);
+    }
+
+    private ResponseEntity<SseEmitter> subscribe(Set<Long> roomIds, Set<YearMonth> months) {
+        try {
+            return ResponseEntity.ok()
+                    .header("X-Accel-Buffering", "no") // niente buffering del proxy davanti
+                    .body(occupancyBroadcaster.subscribe(roomIds != null ? roomIds : Set.of(),
+                            months != null ? months : Set.of()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "30").build();
+        }
+    }
+
+    // 2d. PRENOTAZIONE RICORRENTE / IN BLOCCO (Scope: create)
+    // Intervallo + giorni della settimana, oppure elenco esplicito di date separate da virgola
+    @PostMapping("/user/book/bulk")
+    public String bookRoomBulk(@AuthenticationPrincipal OidcUser principal,
+                               @RequestParam Long roomId,
+                               @RequestParam(required = false) String from,
+                               @RequestParam(required = false) String to,
+                               @RequestParam(required = false) Set<DayOfWeek> weekdays,
+                               @RequestParam(required = false) String dates,
+                               @RequestParam(defaultValue = "false") boolean partial,
+                               Authentication authentication) {
+
+        if (!pdpService.check(authentication, "User Resource", "create")) {
+            return "redirect:/user?error=Accesso Negato: Non hai i permessi per creare prenotazioni.";
+        }
+
+        try {
+            List<LocalDate> requested = dates != null && !dates.isBlank()
+                    ? Arrays.stream(dates.split(",")).map(String::trim).filter(d -> !d.isEmpty()).map(LocalDate::parse).toList()
+                    : BookingService.recurringDates(LocalDate.parse(from), LocalDate.parse(to), weekdays);
+
+            BulkBookingResult result = bookingService.createBookings(principal.getPreferredUsername(), roomId, requested, partial);
+            String message = "Prenotate " + result.booked().size() + " date.";
+            if (!result.rejected().isEmpty()) {
+                message += " Saltate perché occupate: " + String.join(", ",
+                        result.rejected().keySet().stream().map(LocalDate::toString).toList());
+            }
+            return "redirect:/user?message=" + message;
         } catch (Exception e) {
             return "redirect:/user?error=" + e.getMessage();
         }
@@ -88,6 +317,24 @@ public class RoomController {
         }
     }
 
+    // 3a. USCITA DALLA LISTA D'ATTESA (Scope: delete + Controllo Proprietà)
+    @PostMapping("/user/waitlist/delete/{id}")
+    public String leaveWaitlist(@PathVariable Long id,
+                                @AuthenticationPrincipal OidcUser principal,
+                                Authentication authentication) {
+
+        if (!pdpService.check(authentication, "User Resource", "delete")) {
+            return "redirect:/user?error=Accesso Negato: Il tuo ruolo non permette cancellazioni.";
+        }
+
+        try {
+            bookingService.leaveWaitlist(id, principal.getPreferredUsername());
+            return "redirect:/user?message=Uscito dalla lista d'attesa.";
+        } catch (Exception e) {
+            return "redirect:/user?error=" + e.getMessage();
+        }
+    }
+
     // =================================================================================
     //  GESTIONE PROFILO
     // =================================================================================
@@ -162,13 +409,178 @@ public class RoomController {
     //  AREA AMMINISTRATORE (Admin Resource + Scope Delete)
     // =================================================================================
 
+    // Come /user: prima la decisione del PDP, poi i conteggi in parallelo (RequestFanOut)
     @PreAuthorize("@pdp.check(authentication, 'Admin Resource', 'view')")
     @GetMapping("/admin")
-    public String adminArea(Model model) {
-        model.addAttribute("bookings", bookingService.getAllBookings());
+    public String adminArea(Model model, Authentication authentication) {
+        // Le righe arrivano da /admin/bookings/data (paginazione lato server), qui solo il totale
+        Supplier<Long> totalBookings = fanOut.fork(bookingService::countBookings);
+        Supplier<Long> archivedBookings = fanOut.fork(bookingService::countArchivedBookings);
+        model.addAttribute("perms", pdpService.grantedPermissions(authentication));
+        model.addAttribute("totalBookings", totalBookings.get());
+        model.addAttribute("archivedBookings", archivedBookings.get());
+        model.addAttribute("rooms", bookingService.getAllRooms());
+        model.addAttribute("backupEnabled", bookingBackup.isEnabled());
         return "admin";
     }
 
+    // Endpoint JSON per DataTables in modalità server-side (parametri e risposta del protocollo DataTables).
+    // "cursor" non fa parte del protocollo: è il nextCursor della pagina precedente, per la paginazione keyset;
+    // "archived" sceglie la vista archivio (mesi passati spostati in bookings_archive)
+    @PreAuthorize("@pdp.check(authentication, 'Admin Resource', 'view')")
+    @GetMapping("/admin/bookings/data")
+    @ResponseBody
+    public Map<String, Object> adminBookingsData(@RequestParam(defaultValue = "0") int draw,
+                                                 @RequestParam(defaultValue = "0") int start,
+                                                 @RequestParam(defaultValue = "10") int length,
+                                                 @RequestParam(name = "search[value]", required = false) String search,
+                                                 @RequestParam(name = "order[0][column]", defaultValue = "0") int orderColumn,
+                                                 @RequestParam(name = "order[0][dir]", defaultValue = "desc") String orderDir,
+                                                 @RequestParam(name = "columns[1][search][value]", required = false) String username,
+                                                 @RequestParam(name = "columns[2][search][value]", required = false) String room,
+                                                 @RequestParam(name = "columns[3][search][value]", required = false) String date,
+                                                 @RequestParam(required = false) String cursor,
+                                                 @RequestParam(defaultValue = "false") boolean archived) {
+        BookingSpecifications.SortKey[] columns = BookingSpecifications.SortKey.values();
+        BookingSpecifications.SortKey sortKey = orderColumn >= 0 && orderColumn < columns.length
+                ? columns[orderColumn] : BookingSpecifications.SortKey.ID;
+        BookingSearch query = BookingSearch.of(search, username, room, date, sortKey, "asc".equalsIgnoreCase(orderDir));
+
+        int pageSize = Math.max(1, Math.min(length, MAX_ADMIN_PAGE_SIZE));
+        BookingPage page = archived
+                ? bookingService.findArchivedBookingsPage(query, cursor, Math.max(0, start), pageSize)
+                : bookingService.findBookingsPage(query, cursor, Math.max(0, start), pageSize);
+
+        List<Map<String, Object>> data = page.rows().stream().map(b -> {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", b.id());
+            row.put("username", b.username());
+            row.put("room", b.roomName());
+            row.put("date", b.date());
+            row.put("slot", b.seat() > 0 ? "Posto " + b.seat() : b.slot().isFullDay() ? "Tutto il giorno" : b.slot().toString());
+            return row;
+        }).collect(Collectors.toList());
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("draw", draw);
+        response.put("recordsTotal", page.recordsTotal());
+        response.put("recordsFiltered", page.recordsFiltered());
+        response.put("data", data);
+        response.put("nextCursor", page.nextCursor());
+        return response;
+    }
+
+    // Stesso stream per la tabella admin (tutte le aule; month = mese del filtro sulla data, se impostato)
+    @PreAuthorize("@pdp.check(authentication, 'Admin Resource', 'view')")
+    @GetMapping(value = "/admin/live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> adminLive(@RequestParam(required = false) Set<YearMonth> month) {
+        return subscribe(Set.of(), month);
+    }
+
+    // Statistiche delle strutture in memoria (footprint, hit rate, ...)
+    @PreAuthorize("@pdp.check(authentication, 'Admin Resource', 'view')")
+    @GetMapping("/admin/stats")
+    @ResponseBody
+    public Map<String, Object> adminStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("occupancyIndex", occupancyIndex.stats());
+        stats.put("slotIndex", slotIndex.stats());
+        stats.put("roomCatalog", roomCatalog.stats());
+        stats.put("seatAdmission", seatAdmission.stats());
+        stats.put("occupancyBroadcaster", occupancyBroadcaster.stats());
+        stats.put("auditTrail", auditTrail.stats());
+        stats.put("auditSearch", auditLogSearch.stats());
+        stats.put("pdpDecisionCache", pdpService.getDecisionCache().stats());
+        stats.put("keycloakCircuitBreaker", pdpService.getCircuitBreaker().stats());
+        stats.put("requestFanOut", fanOut.stats());
+        stats.put("bookingPartitions", partitionMaintenance.stats());
+        stats.put("backup", bookingBackup.stats());
+        stats.put("nodeStateRelay", nodeStateRelay.stats());
+        sessionStore.ifAvailable(store -> stats.put("sessionStore", store.stats()));
+        authorizedClients.ifAvailable(clients -> stats.put("authorizedClients", clients.stats()));
+        return stats;
+    }
+
+    // Ricerca negli eventi di audit (audit trail + vecchi log applicativi, anche .gz).
+    // Risultati in NDJSON, una riga per evento, scritti man mano che vengono trovati
+    @PreAuthorize("@pdp.check(authentication, 'res-prenotazione', 'delete')")
+    @GetMapping(value = "/admin/audit/search", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> searchAudit(@RequestParam(required = false) String user,
+                                                             @RequestParam(required = false) AuditEvent.Category category,
+                                                             @RequestParam(required = false) AuditEvent.Type type,
+                                                             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                                                             @RequestParam(required = false) String text,
+                                                             @RequestParam(defaultValue = "1000") int limit) {
+        AuditQuery query = new AuditQuery(user != null && !user.isBlank() ? user : null, category, type, from, to,
+                text != null && !text.isBlank() ? text : null, Math.max(1, Math.min(limit, MAX_AUDIT_RESULTS)));
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = NDJSON.createGenerator(out)) {
+                json.setRootValueSeparator(null);
+                auditLogSearch.search(query, hit -> {
+                    AuditLogSearch.Entry e = hit.entry();
+                    json.writeStartObject();
+                    json.writeStringField("file", hit.file());
+                    json.writeStringField("ts", e.ts());
+                    json.writeStringField("cat", e.category().name());
+                    json.writeStringField("type", e.type() != null ? e.type().name() : null);
+                    json.writeStringField("actor", e.actor());
+                    json.writeStringField("line", e.line());
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                });
+            }
+        };
+        return ResponseEntity.ok().cacheControl(CacheControl.noStore()).body(body);
+    }
+
+    // Backup cifrato di aule e prenotazioni, scritto man mano che la COPY legge dal DB.
+    // since = watermark di un export precedente (nel nome del file): solo le prenotazioni inserite da allora
+    @PreAuthorize("@pdp.check(authentication, 'res-prenotazione', 'delete')")
+    @GetMapping("/admin/backup/export")
+    public ResponseEntity<StreamingResponseBody> exportBackup(@RequestParam(required = false) Long since,
+                                                              @AuthenticationPrincipal OidcUser principal) {
+        if (!bookingBackup.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (since != null && since < 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        long watermark = bookingBackup.currentWatermark();
+        String name = "prenotazioni-" + LocalDateTime.now().format(BACKUP_NAME)
+                + (since != null ? "-since" + since : "") + "-w" + watermark + ".pabk";
+        String actor = principal.getPreferredUsername();
+        StreamingResponseBody body = out -> bookingBackup.export(since, watermark, out, actor);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(name).build().toString())
+                .header("X-Backup-Watermark", Long.toString(watermark))
+                .cacheControl(CacheControl.noStore())
+                .body(body);
+    }
+
+    // Ripristino di un file di /admin/backup/export: tutto o niente, le prenotazioni già presenti restano.
+    // Il file è il corpo della richiesta (application/octet-stream, inviato da admin.html con fetch): nessun
+    // multipart da analizzare, viene letto in streaming solo dopo la decisione del PDP.
+    // Stessa policy della pulizia ("Policy Only Admin"): scrive dati di tutti gli utenti
+    @PreAuthorize("@pdp.check(authentication, 'res-prenotazione', 'delete')")
+    @PostMapping(value = "/admin/backup/restore", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            produces = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<String> restoreBackup(HttpServletRequest request, @AuthenticationPrincipal OidcUser principal) {
+        if (!bookingBackup.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Backup non disponibile.");
+        }
+
+        try (InputStream in = request.getInputStream()) {
+            BookingBackup.Result result = bookingBackup.restore(in, principal.getPreferredUsername());
+            return ResponseEntity.ok("Ripristinate " + result.bookings() + " prenotazioni, " + result.rooms()
+                    + " aule e " + result.waitlist() + " iscrizioni in lista d'attesa ("
+                    + result.skipped() + " prenotazioni già presenti).");
+        } catch (IOException | RuntimeException e) {
+            return ResponseEntity.badRequest().body("Ripristino fallito: " + e.getMessage());
+        }
+    }
+
     @PostMapping("/admin/delete/{id}")
     public String deleteBookingAdmin(@PathVariable Long id, Authentication authentication) {
 
@@ -180,4 +592,42 @@ public class RoomController {
         bookingService.deleteBooking(id);
         return "redirect:/admin?message=Prenotazione eliminata con successo.";
     }
+
+    // Pulizia in blocco: tutte le prenotazioni di un'aula e/o precedenti a una data
+    @PostMapping("/admin/bookings/purge")
+    public String purgeBookings(@RequestParam(required = false) Long roomId,
+                                @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate before,
+                                Authentication authentication) {
+
+        // Stessa policy della cancellazione singola ("Policy Only Admin")
+        if (!pdpService.check(authentication, "res-prenotazione", "delete")) {
+            return "redirect:/admin?error=Accesso Negato: Non hai il permesso di eliminare prenotazioni.";
+        }
+
+        try {
+            int deleted = bookingService.purgeBookings(roomId, before);
+            return "redirect:/admin?message=Eliminate " + deleted + " prenotazioni.";
+        } catch (IllegalArgumentException e) {
+            return "redirect:/admin?error=" + e.getMessage();
+        }
+    }
+
+    // Modalità dell'aula: intera (una prenotazione per fascia) o a posti (fino alla capienza)
+    @PostMapping("/admin/rooms/{id}/seats")
+    public String setRoomSeatBooking(@PathVariable Long id,
+                                     @RequestParam boolean enabled,
+                                     Authentication authentication) {
+
+        // Stessa policy della cancellazione ("Policy Only Admin"): modifica dati di tutti gli utenti
+        if (!pdpService.check(authentication, "res-prenotazione", "delete")) {
+            return "redirect:/admin?error=Accesso Negato: Non hai il permesso di modificare le aule.";
+        }
+
+        try {
+            bookingService.setSeatBooking(id, enabled);
+            return "redirect:/admin?message=Modalità dell'aula aggiornata.";
+        } catch (Exception e) {
+            return "redirect:/admin?error=" + e.getMessage();
+        }
+    }
 }
\ No newline at end of file
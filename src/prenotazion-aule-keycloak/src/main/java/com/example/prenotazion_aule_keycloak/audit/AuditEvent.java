@@ -0,0 +1,41 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import java.time.Instant;
+
+/**
+ * Evento dell'audit trail (NIST AU-2): chi ha fatto cosa e quando.
+ * bookingId, roomId e detail sono facoltativi (null se non pertinenti).
+ */
+public record AuditEvent(Instant at, Type type, String actor, Long bookingId, Long roomId, String detail) {
+
+    public enum Category { AUDIT, SECURITY, GDPR }
+
+    public enum Type {
+        BOOKING_CREATED(Category.AUDIT),
+        BOOKINGS_CREATED(Category.AUDIT),
+        SEAT_BOOKED(Category.AUDIT),
+        WAITLIST_JOINED(Category.AUDIT),
+        WAITLIST_LEFT(Category.AUDIT),
+        WAITLIST_PROMOTED(Category.AUDIT),
+        BOOKING_DELETED(Category.AUDIT),
+        BOOKING_DELETED_BY_ADMIN(Category.AUDIT),
+        BOOKING_DELETE_NOT_FOUND(Category.AUDIT),
+        BOOKINGS_PURGED(Category.AUDIT),
+        ROOM_MODE_CHANGED(Category.AUDIT),
+        BACKUP_EXPORTED(Category.AUDIT),
+        BACKUP_RESTORED(Category.AUDIT),
+        UNKNOWN_ROOM(Category.SECURITY),
+        FOREIGN_BOOKING_DELETE(Category.SECURITY),
+        ACCOUNT_DELETED(Category.GDPR);
+
+        private final Category category;
+
+        Type(Category category) {
+            this.category = category;
+        }
+
+        public Category category() {
+            return category;
+        }
+    }
+}
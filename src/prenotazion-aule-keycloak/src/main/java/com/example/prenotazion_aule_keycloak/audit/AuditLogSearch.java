@@ -0,0 +1,483 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Ricerca negli eventi di audit: audit trail JSON-lines (audit.log, audit.log.N) e righe
+ * AUDIT/SECURITY/GDPR del log applicativo (application.log e i rotati .gz di logback).
+ *
+ * - i file rotati sono immutabili: alla prima ricerca si costruisce un indice laterale
+ *   (utenti, tipi, categorie, primo/ultimo giorno) salvato in index-dir; le ricerche
+ *   successive saltano i file che non possono contenere risultati;
+ * - i .gz vengono letti in streaming, senza decomprimerli su disco;
+ * - i file correnti, che crescono, si leggono mappati in memoria, senza indice;
+ * - prima di decodificare una riga si cercano nei byte l'utente e il testo richiesti.
+ *
+ * Il giorno di un evento è quello del timestamp della riga (UTC per l'audit trail,
+ * ora locale del server per il log applicativo).
+ */
+@Component
+public class AuditLogSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditLogSearch.class);
+
+    private static final ObjectMapper MAPPER = JsonMapper.builder()
+            .addModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .build();
+
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final int STREAM_CHUNK = 1024 * 1024;
+    private static final int KEY_PREFIX_BYTES = 4096;
+
+    // Righe del log applicativo scritte prima dell'audit trail (logback, formato di default di Spring Boot)
+    private static final Pattern LEGACY_LINE = Pattern.compile("^(\\d{4}-\\d{2}-\\d{2})T\\S*\\s.*?: (AUDIT|SECURITY ALERT|SECURITY|GDPR AUDIT): (.*)$");
+    private static final Pattern LEGACY_USER = Pattern.compile("[Uu]ser '([^']+)'");
+    private static final byte[][] LEGACY_MARKERS = {
+            ": AUDIT: ".getBytes(StandardCharsets.UTF_8),
+            ": SECURITY".getBytes(StandardCharsets.UTF_8),
+            ": GDPR AUDIT: ".getBytes(StandardCharsets.UTF_8)};
+
+    // Messaggi del vecchio log -> tipo di evento dell'audit trail
+    private static final Map<String, AuditEvent.Type> LEGACY_TYPES = new LinkedHashMap<>();
+    static {
+        LEGACY_TYPES.put("SUCCESSFULLY created booking ID", AuditEvent.Type.BOOKING_CREATED);
+        LEGACY_TYPES.put("SUCCESSFULLY booked seat", AuditEvent.Type.SEAT_BOOKED);
+        LEGACY_TYPES.put("SUCCESSFULLY created", AuditEvent.Type.BOOKINGS_CREATED);
+        LEGACY_TYPES.put("promoted from waitlist", AuditEvent.Type.WAITLIST_PROMOTED);
+        LEGACY_TYPES.put("joined the waitlist", AuditEvent.Type.WAITLIST_JOINED);
+        LEGACY_TYPES.put("left waitlist", AuditEvent.Type.WAITLIST_LEFT);
+        LEGACY_TYPES.put("ADMIN deleted booking", AuditEvent.Type.BOOKING_DELETED_BY_ADMIN);
+        LEGACY_TYPES.put("ADMIN tried to delete non-existent", AuditEvent.Type.BOOKING_DELETE_NOT_FOUND);
+        LEGACY_TYPES.put("deleted their own booking", AuditEvent.Type.BOOKING_DELETED);
+        LEGACY_TYPES.put("ADMIN set Room", AuditEvent.Type.ROOM_MODE_CHANGED);
+        LEGACY_TYPES.put("attempted to book non-existent room", AuditEvent.Type.UNKNOWN_ROOM);
+        LEGACY_TYPES.put("attempted to delete booking", AuditEvent.Type.FOREIGN_BOOKING_DELETE);
+        LEGACY_TYPES.put("Full account deletion", AuditEvent.Type.ACCOUNT_DELETED);
+    }
+
+    // Evento letto da una riga; type null per le righe SECURITY che non corrispondono a un tipo noto
+    public record Entry(LocalDate date, String ts, AuditEvent.Category category, AuditEvent.Type type,
+                        String actor, String line) {}
+
+    public record Hit(String file, Entry entry) {}
+
+    public record Result(int hits, int filesScanned, int filesSkipped, int indexesBuilt, long bytesScanned, long millis) {}
+
+    // Indice laterale di un file rotato
+    record FileIndex(long size, long modified, long entries, LocalDate firstDate, LocalDate lastDate,
+                     Set<String> actors, Set<String> categories, Set<String> types) {}
+
+    @FunctionalInterface
+    public interface HitSink {
+        void accept(Hit hit) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface LineSink {
+        // false = interrompi la lettura del file
+        boolean line(ByteBuffer buf, int start, int end) throws IOException;
+    }
+
+    private final List<Path> sources;
+    private final Path indexDir;
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong indexesBuilt = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+
+    @Autowired
+    public AuditLogSearch(@Value("${audit.search.sources:${audit.file:logs/audit.log},logs/application.log}") List<String> sources,
+                          @Value("${audit.search.index-dir:logs/.audit-index}") Path indexDir) {
+        this.sources = sources.stream().map(String::trim).filter(s -> !s.isEmpty()).map(Path::of).toList();
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * Esegue la ricerca e passa i risultati al sink man mano che li trova, dal file più vecchio
+     * al più recente. Si ferma a query.limit() risultati.
+     */
+    public Result search(AuditQuery query, HitSink sink) throws IOException {
+        long started = System.nanoTime();
+        searches.incrementAndGet();
+        Files.createDirectories(indexDir);
+
+        byte[][] needles = needles(query);
+        int[] hits = {0};
+        int scanned = 0;
+        int skipped = 0;
+        int built = 0;
+        long bytes = 0;
+        Set<String> liveKeys = new HashSet<>();
+        boolean complete = true;
+
+        for (Path file : listFiles()) {
+            if (hits[0] >= query.limit()) {
+                complete = false;
+                break;
+            }
+            String name = file.getFileName().toString();
+            if (isLive(file)) {
+                bytes += scanMapped(file, (buf, start, end) -> {
+                    if (!prefilter(buf, start, end, needles)) return true;
+                    return emit(query, sink, name, parse(buf, start, end), hits);
+                });
+                scanned++;
+                continue;
+            }
+
+            String key = indexKey(file);
+            liveKeys.add(key);
+            FileIndex index = readIndex(key);
+            if (index != null && !query.mayMatch(index)) {
+                skipped++;
+                continue;
+            }
+            scanned++;
+            if (index != null) {
+                bytes += scanRotated(file, (buf, start, end) -> {
+                    if (!prefilter(buf, start, end, needles)) return true;
+                    return emit(query, sink, name, parse(buf, start, end), hits);
+                });
+            } else {
+                // Prima lettura del file: ogni riga di audit va nell'indice, i risultati si emettono lungo la strada
+                IndexBuilder builder = new IndexBuilder();
+                bytes += scanRotated(file, (buf, start, end) -> {
+                    Entry entry = parse(buf, start, end);
+                    if (entry != null) {
+                        builder.add(entry);
+                        if (hits[0] < query.limit()) emit(query, sink, name, entry, hits);
+                    }
+                    return true;
+                });
+                writeIndex(key, builder.build(Files.size(file), Files.getLastModifiedTime(file).toMillis()));
+                built++;
+            }
+        }
+        if (complete) {
+            deleteStaleIndexes(liveKeys);
+        }
+
+        filesScanned.addAndGet(scanned);
+        filesSkipped.addAndGet(skipped);
+        indexesBuilt.addAndGet(built);
+        bytesScanned.addAndGet(bytes);
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        logger.info("SYSTEM: Audit search returned {} hits ({} files scanned, {} skipped by index, {} MB read) in {} ms",
+                hits[0], scanned, skipped, bytes / (1024 * 1024), millis);
+        return new Result(hits[0], scanned, skipped, built, bytes, millis);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("searches", searches.get());
+        stats.put("filesScanned", filesScanned.get());
+        stats.put("filesSkippedByIndex", filesSkipped.get());
+        stats.put("indexesBuilt", indexesBuilt.get());
+        stats.put("bytesScanned", bytesScanned.get());
+        return stats;
+    }
+
+    // =================================================================================
+    //  FILE
+    // =================================================================================
+
+    // File correnti e rotati di tutte le sorgenti, dal meno recente (ultima modifica)
+    private List<Path> listFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path source : sources) {
+            Path dir = source.toAbsolutePath().getParent();
+            if (dir == null || !Files.isDirectory(dir)) {
+                continue;
+            }
+            String prefix = source.getFileName() + ".";
+            try (Stream<Path> siblings = Files.list(dir)) {
+                siblings.filter(Files::isRegularFile)
+                        .filter(p -> p.getFileName().toString().equals(source.getFileName().toString())
+                                || p.getFileName().toString().startsWith(prefix))
+                        .forEach(files::add);
+            }
+        }
+        Map<Path, Long> modified = new LinkedHashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        files.sort(Comparator.comparing((Path p) -> isLive(p)).thenComparing(modified::get));
+        return files;
+    }
+
+    private boolean isLive(Path file) {
+        return sources.stream().anyMatch(s -> s.getFileName().equals(file.getFileName()));
+    }
+
+    private long scanRotated(Path file, LineSink sink) throws IOException {
+        if (!file.getFileName().toString().endsWith(".gz")) {
+            return scanMapped(file, sink);
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 64 * 1024)) {
+            return scanStream(in, sink);
+        }
+    }
+
+    // Lettura mappata a finestre che iniziano sempre a inizio riga
+    private static long scanMapped(Path file, LineSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = 0;
+            while (pos < size) {
+                int length = (int) Math.min(MAP_WINDOW, size - pos);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (map.get(i) == '\n') {
+                        if (!sink.line(map, lineStart, i)) return pos + i;
+                        lineStart = i + 1;
+                    }
+                }
+                if (pos + length >= size || lineStart == 0) {
+                    // Fine file (ultima riga senza a capo) o riga più lunga della finestra
+                    if (lineStart < length && !sink.line(map, lineStart, length)) return pos + length;
+                    lineStart = length;
+                }
+                pos += lineStart;
+            }
+            return size;
+        }
+    }
+
+    private static long scanStream(InputStream in, LineSink sink) throws IOException {
+        byte[] buf = new byte[STREAM_CHUNK];
+        ByteBuffer view = ByteBuffer.wrap(buf);
+        long total = 0;
+        int filled = 0;
+        int scanned = 0;
+        while (true) {
+            int n = in.read(buf, filled, buf.length - filled);
+            if (n < 0) {
+                if (filled > 0) sink.line(view, 0, filled);
+                return total;
+            }
+            total += n;
+            filled += n;
+            int lineStart = 0;
+            for (int i = scanned; i < filled; i++) {
+                if (buf[i] == '\n') {
+                    if (!sink.line(view, lineStart, i)) return total;
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0 && filled == buf.length) {
+                if (!sink.line(view, 0, filled)) return total; // riga più lunga del buffer
+                lineStart = filled;
+            }
+            System.arraycopy(buf, lineStart, buf, 0, filled - lineStart);
+            filled -= lineStart;
+            scanned = filled;
+        }
+    }
+
+    // =================================================================================
+    //  RIGHE
+    // =================================================================================
+
+    private static byte[][] needles(AuditQuery query) {
+        List<byte[]> needles = new ArrayList<>();
+        if (query.actor() != null && !query.actor().isEmpty()) needles.add(query.actor().getBytes(StandardCharsets.UTF_8));
+        if (query.text() != null && !query.text().isEmpty()) needles.add(query.text().getBytes(StandardCharsets.UTF_8));
+        return needles.toArray(new byte[0][]);
+    }
+
+    private static boolean prefilter(ByteBuffer buf, int start, int end, byte[][] needles) {
+        for (byte[] needle : needles) {
+            if (!contains(buf, start, end, needle)) return false;
+        }
+        return true;
+    }
+
+    private static boolean emit(AuditQuery query, HitSink sink, String file, Entry entry, int[] hits) throws IOException {
+        if (entry == null || !query.matches(entry)
+                || (query.text() != null && !query.text().isEmpty() && !entry.line().contains(query.text()))) {
+            return true;
+        }
+        sink.accept(new Hit(file, entry));
+        return ++hits[0] < query.limit();
+    }
+
+    // Riga di audit (JSON o vecchio formato testuale), null per tutte le altre
+    static Entry parse(ByteBuffer buf, int start, int end) {
+        if (end > start && buf.get(end - 1) == '\r') end--;
+        if (end - start < 12) return null;
+        boolean json = buf.get(start) == '{';
+        if (!json && !hasLegacyMarker(buf, start, end)) return null;
+
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        try {
+            return json ? parseJson(line) : parseLegacy(line);
+        } catch (RuntimeException | IOException e) {
+            return null; // riga troncata (scrittura in corso) o non di audit
+        }
+    }
+
+    private static boolean hasLegacyMarker(ByteBuffer buf, int start, int end) {
+        for (byte[] marker : LEGACY_MARKERS) {
+            if (contains(buf, start, end, marker)) return true;
+        }
+        return false;
+    }
+
+    private static Entry parseJson(String line) throws IOException {
+        JsonNode node = MAPPER.readTree(line);
+        String ts = node.get("ts").asText();
+        return new Entry(LocalDate.parse(ts.substring(0, 10)), ts,
+                AuditEvent.Category.valueOf(node.get("cat").asText()),
+                AuditEvent.Type.valueOf(node.get("type").asText()),
+                node.hasNonNull("actor") ? node.get("actor").asText() : null,
+                line);
+    }
+
+    private static Entry parseLegacy(String line) {
+        Matcher m = LEGACY_LINE.matcher(line);
+        if (!m.matches()) {
+            return null;
+        }
+        String message = m.group(3);
+        AuditEvent.Category category = switch (m.group(2)) {
+            case "AUDIT" -> AuditEvent.Category.AUDIT;
+            case "GDPR AUDIT" -> AuditEvent.Category.GDPR;
+            default -> AuditEvent.Category.SECURITY;
+        };
+        AuditEvent.Type type = null;
+        for (Map.Entry<String, AuditEvent.Type> known : LEGACY_TYPES.entrySet()) {
+            if (message.contains(known.getKey())) {
+                type = known.getValue();
+                break;
+            }
+        }
+        Matcher user = LEGACY_USER.matcher(message);
+        String actor = user.find() ? user.group(1) : message.startsWith("ADMIN") ? "ADMIN" : null;
+        return new Entry(LocalDate.parse(m.group(1)), line.substring(0, line.indexOf(' ')), category, type, actor, line);
+    }
+
+    private static boolean contains(ByteBuffer buf, int start, int end, byte[] needle) {
+        int last = end - needle.length;
+        byte first = needle[0];
+        outer:
+        for (int i = start; i <= last; i++) {
+            if (buf.get(i) != first) continue;
+            for (int j = 1; j < needle.length; j++) {
+                if (buf.get(i + j) != needle[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // =================================================================================
+    //  INDICI LATERALI
+    // =================================================================================
+
+    private static final class IndexBuilder {
+        long entries;
+        LocalDate first;
+        LocalDate last;
+        final Set<String> actors = new TreeSet<>();
+        final Set<String> categories = new TreeSet<>();
+        final Set<String> types = new TreeSet<>();
+
+        void add(Entry entry) {
+            entries++;
+            if (first == null || entry.date().isBefore(first)) first = entry.date();
+            if (last == null || entry.date().isAfter(last)) last = entry.date();
+            if (entry.actor() != null) actors.add(entry.actor());
+            categories.add(entry.category().name());
+            if (entry.type() != null) types.add(entry.type().name());
+        }
+
+        FileIndex build(long size, long modified) {
+            return new FileIndex(size, modified, entries, first, last, actors, categories, types);
+        }
+    }
+
+    /**
+     * Chiave dell'indice dal contenuto e non dal nome: audit.log.1 diventa audit.log.2 alla
+     * rotazione successiva e deve ritrovare lo stesso indice.
+     */
+    private static String indexKey(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            crc.update(in.readNBytes(KEY_PREFIX_BYTES));
+        }
+        return Long.toHexString(Files.size(file)) + "-" + Long.toHexString(crc.getValue());
+    }
+
+    private FileIndex readIndex(String key) {
+        Path path = indexDir.resolve(key + ".json");
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            return MAPPER.readValue(path.toFile(), FileIndex.class);
+        } catch (IOException e) {
+            logger.warn("SYSTEM: Unreadable audit index {}, rebuilding it: {}", path, e.toString());
+            return null;
+        }
+    }
+
+    // Scrittura su file temporaneo e rename: una ricerca concorrente non legge mai un indice a metà
+    private void writeIndex(String key, FileIndex index) throws IOException {
+        Path tmp = Files.createTempFile(indexDir, key, ".tmp");
+        MAPPER.writeValue(tmp.toFile(), index);
+        Files.move(tmp, indexDir.resolve(key + ".json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Indici di file rotati ormai eliminati
+    private void deleteStaleIndexes(Set<String> liveKeys) throws IOException {
+        try (Stream<Path> indexes = Files.list(indexDir)) {
+            for (Path path : indexes.toList()) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".json") && !liveKeys.contains(name.substring(0, name.length() - 5))) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+}
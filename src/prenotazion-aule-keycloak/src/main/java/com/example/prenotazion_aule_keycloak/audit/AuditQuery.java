@@ -0,0 +1,29 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import java.time.LocalDate;
+
+/**
+ * Filtri di una ricerca nell'audit. Ogni campo null = nessun filtro.
+ * type è il nome di {@link AuditEvent.Type}; text una sottostringa della riga originale.
+ */
+public record AuditQuery(String actor, AuditEvent.Category category, AuditEvent.Type type,
+                         LocalDate from, LocalDate to, String text, int limit) {
+
+    boolean matches(AuditLogSearch.Entry entry) {
+        return (actor == null || actor.equals(entry.actor()))
+                && (category == null || category == entry.category())
+                && (type == null || type == entry.type())
+                && (from == null || !entry.date().isBefore(from))
+                && (to == null || !entry.date().isAfter(to));
+    }
+
+    // Un file indicizzato può contenere risultati solo se l'indice non lo esclude
+    boolean mayMatch(AuditLogSearch.FileIndex index) {
+        return index.entries() > 0
+                && (actor == null || index.actors().contains(actor))
+                && (category == null || index.categories().contains(category.name()))
+                && (type == null || index.types().contains(type.name()))
+                && (from == null || index.lastDate() == null || !index.lastDate().isBefore(from))
+                && (to == null || index.firstDate() == null || !index.firstDate().isAfter(to));
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer limitato senza lock: più produttori (i thread delle richieste), un solo
+ * consumatore (il writer dell'audit).
+ *
+ * Ogni cella ha un numero di sequenza: vale pos quando è libera per il produttore che ha
+ * preso la posizione pos, pos + 1 quando contiene l'elemento pronto per il consumatore.
+ * I produttori si contendono solo il CAS sulla coda; offer non attende mai: buffer pieno = false.
+ */
+final class AuditRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    // Scritta solo dal consumatore, letta anche dalle statistiche
+    private volatile long head;
+
+    AuditRingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        items = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    boolean offer(E item) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, item);
+                    sequences.set(index, pos + 1); // pubblica l'elemento al consumatore
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // il consumatore non ha ancora liberato la cella: pieno
+            } else {
+                pos = tail.get(); // un altro produttore ha preso questa posizione
+            }
+        }
+    }
+
+    // Solo dal thread consumatore
+    E poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E item = items.get(index);
+        items.lazySet(index, null);
+        sequences.set(index, pos + mask + 1); // cella libera per il giro successivo
+        head = pos + 1;
+        return item;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit trail separato dal log applicativo.
+ *
+ * Il thread della richiesta crea l'evento e lo mette nel ring buffer, niente altro.
+ * Un unico thread di background lo svuota a lotti e li scrive in append su un file JSON-lines
+ * dedicato (una riga per evento), ruotato per dimensione, e opzionalmente sulla tabella
+ * audit_events con un INSERT in batch. Su PostgreSQL la tabella arriva dalla migrazione V4;
+ * su H2 (test, load test, benchmark: Flyway disattivato) viene creata qui all'avvio.
+ *
+ * fsync: batch = force() dopo ogni lotto, interval = al massimo ogni fsync-interval,
+ * none = lasciato al sistema operativo.
+ * Buffer pieno: il produttore attende al massimo overflow-wait (backpressure), poi l'evento
+ * viene scartato e contato. Il conteggio finisce anche nel log applicativo, dal writer.
+ */
+@Component
+public class AuditTrail {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditTrail.class);
+
+    private static final JsonFactory JSON = JsonFactory.builder().disable(StreamWriteFeature.AUTO_CLOSE_TARGET).build();
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    public enum Fsync { BATCH, INTERVAL, NONE }
+
+    record Settings(Path file, int bufferSize, int batchSize, DataSize maxFileSize, int maxHistory,
+                    Fsync fsync, Duration fsyncInterval, Duration overflowWait) {}
+
+    // Lotto serializzato: il buffer interno viene riusato tra un lotto e l'altro
+    private static final class Batch extends ByteArrayOutputStream {
+        Batch() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final Settings settings;
+    private final JdbcTemplate jdbcTemplate;
+    private final AuditRingBuffer<AuditEvent> buffer;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    // Stato del writer (solo dal thread writer)
+    private FileChannel channel;
+    private long fileSize;
+    private long lastForceNanos;
+    private long reportedDrops;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong backpressured = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private final AtomicLong jdbcErrors = new AtomicLong();
+
+    @Autowired
+    public AuditTrail(ObjectProvider<JdbcTemplate> jdbcTemplate,
+                      @Value("${audit.jdbc.enabled:false}") boolean jdbcEnabled,
+                      @Value("${audit.file:logs/audit.log}") Path file,
+                      @Value("${audit.buffer-size:8192}") int bufferSize,
+                      @Value("${audit.batch-size:256}") int batchSize,
+                      @Value("${audit.max-file-size:50MB}") DataSize maxFileSize,
+                      @Value("${audit.max-history:10}") int maxHistory,
+                      @Value("${audit.fsync:batch}") Fsync fsync,
+                      @Value("${audit.fsync-interval:1s}") Duration fsyncInterval,
+                      @Value("${audit.overflow-wait:20ms}") Duration overflowWait) {
+        this(new Settings(file, bufferSize, batchSize, maxFileSize, maxHistory, fsync, fsyncInterval, overflowWait),
+                jdbcEnabled ? jdbcTemplate.getIfAvailable() : null);
+    }
+
+    AuditTrail(Settings settings, JdbcTemplate jdbcTemplate) {
+        this.settings = settings;
+        this.jdbcTemplate = jdbcTemplate;
+        this.buffer = new AuditRingBuffer<>(settings.bufferSize());
+    }
+
+    @PostConstruct
+    public void start() throws MetaDataAccessException {
+        if (jdbcTemplate != null && !isPostgres()) {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS audit_events ("
+                    + "id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "occurred_at TIMESTAMP NOT NULL, category VARCHAR(16) NOT NULL, type VARCHAR(40) NOT NULL, "
+                    + "actor VARCHAR(255), booking_id BIGINT, room_id BIGINT, detail VARCHAR(1000))");
+        }
+        running = true;
+        writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private boolean isPostgres() throws MetaDataAccessException {
+        String product = JdbcUtils.extractDatabaseMetaData(jdbcTemplate.getDataSource(), metaData -> metaData.getDatabaseProductName());
+        return "PostgreSQL".equals(product);
+    }
+
+    // Alla chiusura il writer svuota il buffer, fa fsync e chiude il file
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void record(AuditEvent.Type type, String actor, Long bookingId, Long roomId, String detail) {
+        record(new AuditEvent(Instant.now(), type, actor, bookingId, roomId, detail));
+    }
+
+    // Unico lavoro sul thread della richiesta: un CAS sul ring buffer
+    public void record(AuditEvent event) {
+        if (buffer.offer(event)) {
+            accepted.incrementAndGet();
+            return;
+        }
+        backpressured.incrementAndGet();
+        long deadline = System.nanoTime() + settings.overflowWait().toNanos();
+        while (System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+            if (buffer.offer(event)) {
+                accepted.incrementAndGet();
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Attende che gli eventi accettati fin qui siano stati scritti (e, con fsync=batch, resi durevoli).
+     * false se il tempo scade prima.
+     */
+    public boolean flush(Duration timeout) {
+        long target = accepted.get();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (processed.get() < target) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("file", settings.file().toString());
+        stats.put("pending", buffer.size());
+        stats.put("capacity", buffer.capacity());
+        stats.put("accepted", accepted.get());
+        stats.put("written", written.get());
+        stats.put("dropped", dropped.get());
+        stats.put("backpressured", backpressured.get());
+        stats.put("batches", batches.get());
+        stats.put("fsyncs", fsyncs.get());
+        stats.put("rotations", rotations.get());
+        stats.put("writeErrors", writeErrors.get());
+        stats.put("jdbcErrors", jdbcErrors.get());
+        return stats;
+    }
+
+    // =================================================================================
+    //  WRITER (thread dedicato)
+    // =================================================================================
+
+    private void writeLoop() {
+        Batch batch = new Batch();
+        List<AuditEvent> events = new ArrayList<>(settings.batchSize());
+        try {
+            while (true) {
+                boolean stopping = !running;
+                AuditEvent event;
+                while (events.size() < settings.batchSize() && (event = buffer.poll()) != null) {
+                    events.add(event);
+                }
+                if (!events.isEmpty()) {
+                    writeBatch(events, batch);
+                    events.clear();
+                    continue;
+                }
+                reportDrops();
+                if (stopping) {
+                    break;
+                }
+                forceIfDue(false);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            forceIfDue(true);
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void writeBatch(List<AuditEvent> events, Batch batch) {
+        try {
+            batch.reset();
+            try (JsonGenerator json = JSON.createGenerator(batch, JsonEncoding.UTF8)) {
+                json.setRootValueSeparator(null);
+                for (AuditEvent event : events) {
+                    writeJson(json, sequence.incrementAndGet(), event);
+                    json.flush();
+                    batch.write('\n');
+                }
+            }
+            ByteBuffer bytes = batch.view();
+            FileChannel out = channelFor(bytes.remaining());
+            while (bytes.hasRemaining()) {
+                fileSize += out.write(bytes);
+            }
+            written.addAndGet(events.size());
+            batches.incrementAndGet();
+            if (settings.fsync() == Fsync.BATCH) {
+                force();
+            }
+        } catch (IOException e) {
+            writeErrors.incrementAndGet();
+            logger.error("SYSTEM: Unable to write {} audit events to {}: {}", events.size(), settings.file(), e.toString());
+            closeChannel(); // il prossimo lotto riapre il file
+        }
+        if (jdbcTemplate != null) {
+            insertBatch(events);
+        }
+        processed.addAndGet(events.size());
+    }
+
+    private static void writeJson(JsonGenerator json, long seq, AuditEvent event) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("ts", event.at().toString());
+        json.writeNumberField("seq", seq);
+        json.writeStringField("cat", event.type().category().name());
+        json.writeStringField("type", event.type().name());
+        if (event.actor() != null) json.writeStringField("actor", event.actor());
+        if (event.bookingId() != null) json.writeNumberField("booking", event.bookingId());
+        if (event.roomId() != null) json.writeNumberField("room", event.roomId());
+        if (event.detail() != null) json.writeStringField("detail", event.detail());
+        json.writeEndObject();
+    }
+
+    private void insertBatch(List<AuditEvent> events) {
+        try {
+            jdbcTemplate.batchUpdate(
+                    "INSERT INTO audit_events (occurred_at, category, type, actor, booking_id, room_id, detail) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                    events, events.size(), (ps, event) -> {
+                        ps.setTimestamp(1, Timestamp.from(event.at()));
+                        ps.setString(2, event.type().category().name());
+                        ps.setString(3, event.type().name());
+                        ps.setString(4, event.actor());
+                        ps.setObject(5, event.bookingId());
+                        ps.setObject(6, event.roomId());
+                        ps.setString(7, event.detail());
+                    });
+        } catch (RuntimeException e) {
+            jdbcErrors.incrementAndGet();
+            logger.error("SYSTEM: Unable to insert {} audit events into audit_events: {}", events.size(), e.toString());
+        }
+    }
+
+    // Canale aperto in append; se il lotto farebbe superare max-file-size il file viene ruotato prima
+    private FileChannel channelFor(int bytes) throws IOException {
+        if (channel != null && fileSize > 0 && fileSize + bytes > settings.maxFileSize().toBytes()) {
+            rotate();
+        }
+        if (channel == null) {
+            Path file = settings.file();
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+            if (fileSize > 0 && fileSize + bytes > settings.maxFileSize().toBytes()) {
+                rotate();
+                return channelFor(bytes);
+            }
+        }
+        return channel;
+    }
+
+    // audit.log -> audit.log.1 -> ... -> audit.log.<max-history> (il più vecchio viene eliminato)
+    private void rotate() throws IOException {
+        force();
+        closeChannel();
+        Path file = settings.file();
+        int history = Math.max(1, settings.maxHistory());
+        Files.deleteIfExists(sibling(file, history));
+        for (int i = history - 1; i >= 1; i--) {
+            Path from = sibling(file, i);
+            if (Files.exists(from)) {
+                Files.move(from, sibling(file, i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, sibling(file, 1), StandardCopyOption.REPLACE_EXISTING);
+        rotations.incrementAndGet();
+        logger.info("SYSTEM: Audit file {} rotated", file);
+    }
+
+    private static Path sibling(Path file, int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void forceIfDue(boolean always) {
+        if (settings.fsync() != Fsync.INTERVAL || channel == null) {
+            return;
+        }
+        if (always || System.nanoTime() - lastForceNanos >= settings.fsyncInterval().toNanos()) {
+            try {
+                force();
+            } catch (IOException e) {
+                writeErrors.incrementAndGet();
+                logger.error("SYSTEM: Audit fsync failed on {}: {}", settings.file(), e.toString());
+            }
+        }
+    }
+
+    private void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            fsyncs.incrementAndGet();
+            lastForceNanos = System.nanoTime();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("SYSTEM: Unable to close audit file {}: {}", settings.file(), e.toString());
+            }
+            channel = null;
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            logger.warn("SYSTEM: Audit buffer full, {} events dropped so far", drops);
+            reportedDrops = drops;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.prenotazion_aule_keycloak.backup;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Cifratura a flusso dei backup: AES-256-GCM a segmenti, così si cifra e decifra con memoria costante
+ * senza tenere il file intero (GCM in un colpo solo verificherebbe il tag solo alla fine).
+ *
+ * File: intestazione (magic, versione, dimensione dei segmenti, salt casuale) e segmenti
+ * [int lunghezza | bit alto = ultimo][testo cifrato + tag]. Ogni file ha la sua chiave, derivata dalla
+ * chiave principale con HKDF-SHA256 sul salt; il nonce è il numero del segmento più il flag "ultimo"
+ * e l'intestazione è dato autenticato di ogni segmento. Segmenti riordinati, modificati, tolti o
+ * aggiunti in coda fanno fallire la lettura; un file troncato viene riconosciuto perché manca
+ * l'ultimo segmento.
+ */
+public class BackupCipher {
+
+    static final byte[] MAGIC = {'P', 'A', 'B', 'K'};
+    static final int VERSION = 1;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private static final int KEY_BYTES = 32;
+    private static final int SALT_BYTES = 16;
+    private static final int TAG_BYTES = 16;
+    private static final int HEADER_BYTES = MAGIC.length + 1 + 4 + SALT_BYTES;
+    private static final int LAST_SEGMENT = 0x8000_0000;
+    private static final byte[] HKDF_INFO = "prenotazioni-backup v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] masterKey;
+    private final int segmentSize;
+    private final SecureRandom random = new SecureRandom();
+
+    public BackupCipher(byte[] masterKey) {
+        this(masterKey, DEFAULT_SEGMENT_SIZE);
+    }
+
+    BackupCipher(byte[] masterKey, int segmentSize) {
+        if (masterKey.length != KEY_BYTES) {
+            throw new IllegalArgumentException("La chiave di backup deve essere di " + KEY_BYTES + " byte");
+        }
+        this.masterKey = masterKey.clone();
+        this.segmentSize = segmentSize;
+    }
+
+    // Scrive l'intestazione; close() cifra l'ultimo segmento (senza close il file resta illeggibile)
+    public OutputStream encrypt(OutputStream out) throws IOException {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_BYTES);
+        DataOutputStream data = new DataOutputStream(header);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(segmentSize);
+        data.write(salt);
+        byte[] headerBytes = header.toByteArray();
+        out.write(headerBytes);
+        return new EncryptingOutputStream(out, newCipher(), fileKey(salt), headerBytes, segmentSize);
+    }
+
+    public InputStream decrypt(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] headerBytes = new byte[HEADER_BYTES];
+        try {
+            data.readFully(headerBytes);
+        } catch (EOFException e) {
+            throw new IOException("Backup troncato: intestazione incompleta");
+        }
+        if (!Arrays.equals(Arrays.copyOf(headerBytes, MAGIC.length), MAGIC)) {
+            throw new IOException("Non è un file di backup");
+        }
+        ByteBuffer header = ByteBuffer.wrap(headerBytes, MAGIC.length, HEADER_BYTES - MAGIC.length);
+        int version = header.get();
+        if (version != VERSION) {
+            throw new IOException("Versione del backup non supportata: " + version);
+        }
+        int fileSegmentSize = header.getInt();
+        if (fileSegmentSize <= 0 || fileSegmentSize > 16 * 1024 * 1024) {
+            throw new IOException("Dimensione dei segmenti non valida: " + fileSegmentSize);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        header.get(salt);
+        return new DecryptingInputStream(data, newCipher(), fileKey(salt), headerBytes, fileSegmentSize);
+    }
+
+    // HKDF-SHA256 (RFC 5869) con un solo blocco di output: 32 byte
+    private SecretKeySpec fileKey(byte[] salt) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            byte[] prk = mac.doFinal(masterKey);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(HKDF_INFO);
+            mac.update((byte) 1);
+            return new SecretKeySpec(mac.doFinal(), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Derivazione della chiave fallita", e);
+        }
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM non disponibile", e);
+        }
+    }
+
+    // Nonce di 12 byte: 3 a zero, flag dell'ultimo segmento, numero del segmento
+    private static GCMParameterSpec nonce(long segment, boolean last) {
+        ByteBuffer nonce = ByteBuffer.allocate(12);
+        nonce.put(3, (byte) (last ? 1 : 0));
+        nonce.putLong(4, segment);
+        return new GCMParameterSpec(TAG_BYTES * 8, nonce.array());
+    }
+
+    private static final class EncryptingOutputStream extends FilterOutputStream {
+
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] aad;
+        private final byte[] plain;
+        private final byte[] sealed;
+        private int buffered;
+        private long segment;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, Cipher cipher, SecretKeySpec key, byte[] aad, int segmentSize) {
+            super(out);
+            this.cipher = cipher;
+            this.key = key;
+            this.aad = aad;
+            this.plain = new byte[segmentSize];
+            this.sealed = new byte[segmentSize + TAG_BYTES];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        // Un segmento pieno si cifra solo quando arriva altro: fino a close() potrebbe essere l'ultimo
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream chiuso");
+            }
+            while (len > 0) {
+                if (buffered == plain.length) {
+                    seal(false);
+                }
+                int n = Math.min(len, plain.length - buffered);
+                System.arraycopy(b, off, plain, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // I segmenti completi sono già scritti; quello parziale resta in attesa di altri dati
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                seal(true);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            int length;
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonce(segment, last));
+                cipher.updateAAD(aad);
+                length = cipher.doFinal(plain, 0, buffered, sealed, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cifratura fallita", e);
+            }
+            segment++;
+            buffered = 0;
+            out.write(ByteBuffer.allocate(4).putInt(length | (last ? LAST_SEGMENT : 0)).array());
+            out.write(sealed, 0, length);
+        }
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] aad;
+        private final int segmentSize;
+        private final byte[] sealed;
+        private final byte[] plain;
+        private int position;
+        private int available;
+        private long segment;
+        private boolean last;
+
+        DecryptingInputStream(DataInputStream in, Cipher cipher, SecretKeySpec key, byte[] aad, int segmentSize) {
+            this.in = in;
+            this.cipher = cipher;
+            this.key = key;
+            this.aad = aad;
+            this.segmentSize = segmentSize;
+            this.sealed = new byte[segmentSize + TAG_BYTES];
+            this.plain = new byte[segmentSize + TAG_BYTES];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == available) {
+                if (last) {
+                    return -1;
+                }
+                open();
+            }
+            int n = Math.min(len, available - position);
+            System.arraycopy(plain, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        // Legge e verifica il segmento successivo: i dati escono solo dopo il controllo del tag
+        private void open() throws IOException {
+            int header;
+            try {
+                header = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Backup troncato: manca l'ultimo segmento");
+            }
+            boolean lastSegment = (header & LAST_SEGMENT) != 0;
+            int length = header & ~LAST_SEGMENT;
+            if (length < TAG_BYTES || length > segmentSize + TAG_BYTES) {
+                throw new IOException("Segmento " + segment + " non valido");
+            }
+            try {
+                in.readFully(sealed, 0, length);
+            } catch (EOFException e) {
+                throw new IOException("Backup troncato nel segmento " + segment);
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(segment, lastSegment));
+                cipher.updateAAD(aad);
+                available = cipher.doFinal(sealed, 0, length, plain, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Backup danneggiato o chiave errata (segmento " + segment + ")");
+            }
+            position = 0;
+            segment++;
+            last = lastSegment;
+            if (last && in.read() != -1) {
+                throw new IOException("Dati dopo l'ultimo segmento");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.example.prenotazion_aule_keycloak.backup;
+
+import com.example.prenotazion_aule_keycloak.audit.AuditEvent;
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.service.NodeStateRelay;
+import com.example.prenotazion_aule_keycloak.service.OccupancyIndex;
+import com.example.prenotazion_aule_keycloak.service.RoomCatalog;
+import com.example.prenotazion_aule_keycloak.service.SlotIndex;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
+
+import javax.sql.DataSource;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Backup e ripristino di aule e prenotazioni dall'applicazione, al posto di backup_db.ps1 (pg_dumpall
+ * in un file in chiaro poi cifrato con 7-Zip).
+ *
+ * Le righe escono dal DB con COPY binaria (CopyManager di PgJDBC) e attraversano in un solo passaggio
+ * deflate e {@link BackupCipher}: nessun file in chiaro, memoria costante qualunque sia la dimensione.
+ * Il contenuto è una sequenza di sezioni (nome, blocchi [int lunghezza][dati COPY], 0) precedute da
+ * un'intestazione con il watermark.
+ *
+ * Watermark: ogni prenotazione registra in created_xact la transazione che l'ha inserita (migrazione V3).
+ * L'export legge in un'unica snapshot REPEATABLE READ e annota il più vecchio xid ancora in corso:
+ * tutto ciò che è stato inserito prima è nel file. Un export con since = watermark precedente contiene
+ * le prenotazioni inserite da allora (qualcuna può ripetersi, il ripristino le salta); le aule e la lista
+ * d'attesa dei posti (seat_waitlist, poche righe) sono sempre complete. Le cancellazioni non sono
+ * incrementali: le riporta solo un export completo ripristinato su un DB vuoto.
+ *
+ * Il ripristino è una sola transazione: le righe passano da tabelle temporanee e vengono aggiunte a
+ * quelle presenti (aule aggiornate, prenotazioni e iscrizioni già presenti o in conflitto saltate). Un file
+ * danneggiato, troncato o cifrato con un'altra chiave fa fallire la lettura e annulla tutto.
+ * I contatori dei posti (seat_counters) non sono nel file: vengono ricalcolati dalle prenotazioni.
+ * Solo su PostgreSQL e con backup.key configurata.
+ */
+@Component
+public class BookingBackup {
+
+    private static final Logger logger = LoggerFactory.getLogger(BookingBackup.class);
+
+    // 2: sezione waitlist; i file di formato 1 (senza) si ripristinano ancora
+    static final int FORMAT = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String BOOKING_COLUMNS = "id, username, room_id, \"date\", start_minute, end_minute, seat";
+    private static final String ROOM_COLUMNS = "id, name, capacity, seat_booking";
+    private static final String WAITLIST_COLUMNS = "id, username, room_id, \"date\", created_at";
+
+    public record Result(Long since, long watermark, long rooms, long bookings, long waitlist, long skipped) {}
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate exportTransaction;
+    private final TransactionTemplate restoreTransaction;
+    private final RoomCatalog roomCatalog;
+    private final EntityManagerFactory entityManagerFactory;
+    private final OccupancyIndex occupancyIndex;
+    private final SlotIndex slotIndex;
+    private final NodeStateRelay nodeStateRelay;
+    private final AuditTrail auditTrail;
+    // null = backup disattivato (chiave assente)
+    private final BackupCipher cipher;
+    private boolean postgres;
+
+    private final AtomicLong exports = new AtomicLong();
+    private final AtomicLong restores = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Instant lastExportAt;
+    private volatile Long lastWatermark;
+    private volatile long lastExportRows;
+    private volatile Instant lastRestoreAt;
+    private volatile long lastRestoreRows;
+
+    public BookingBackup(DataSource dataSource, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                         RoomCatalog roomCatalog, EntityManagerFactory entityManagerFactory,
+                         OccupancyIndex occupancyIndex, SlotIndex slotIndex, NodeStateRelay nodeStateRelay,
+                         AuditTrail auditTrail, @Value("${backup.key:}") String key) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = jdbcTemplate;
+        this.exportTransaction = new TransactionTemplate(transactionManager);
+        this.exportTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.exportTransaction.setReadOnly(true);
+        this.restoreTransaction = new TransactionTemplate(transactionManager);
+        this.roomCatalog = roomCatalog;
+        this.entityManagerFactory = entityManagerFactory;
+        this.occupancyIndex = occupancyIndex;
+        this.slotIndex = slotIndex;
+        this.nodeStateRelay = nodeStateRelay;
+        this.auditTrail = auditTrail;
+        this.cipher = key == null || key.isBlank() ? null : new BackupCipher(Base64.getDecoder().decode(key.trim()));
+    }
+
+    @PostConstruct
+    void detectDatabase() throws MetaDataAccessException {
+        String product = JdbcUtils.extractDatabaseMetaData(dataSource, metaData -> metaData.getDatabaseProductName());
+        postgres = "PostgreSQL".equals(product);
+    }
+
+    public boolean isEnabled() {
+        return postgres && cipher != null;
+    }
+
+    // Watermark di un export che parte adesso: se l'export lo legge qualche istante dopo, al più ripete qualche riga
+    public long currentWatermark() {
+        requireEnabled();
+        return jdbcTemplate.queryForObject("select pg_snapshot_xmin(pg_current_snapshot())::text::bigint", Long.class);
+    }
+
+    /**
+     * Scrive su out il backup cifrato: prenotazioni inserite da since (null = tutte, archivio compreso)
+     * con tutte le aule e la lista d'attesa. actor è l'utente registrato nell'audit. out non viene chiuso.
+     */
+    public Result export(Long since, long watermark, OutputStream out, String actor) throws IOException {
+        requireEnabled();
+        if (since != null && since < 0) {
+            throw new IllegalArgumentException("Watermark non valido: " + since);
+        }
+        String scope = since == null ? "full" : "since " + since;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            Result result = inTransaction(exportTransaction, copy -> {
+                DataOutputStream plain = new DataOutputStream(new DeflaterOutputStream(
+                        cipher.encrypt(StreamUtils.nonClosing(out)), deflater, BUFFER_SIZE));
+                plain.writeInt(FORMAT);
+                plain.writeLong(System.currentTimeMillis());
+                plain.writeLong(since == null ? -1 : since);
+                plain.writeLong(watermark);
+                String filter = since == null ? "" : " where created_xact >= " + since;
+                long rooms = copyOut(copy, plain, "rooms",
+                        "copy (select " + ROOM_COLUMNS + " from rooms order by id) to stdout (format binary)");
+                long bookings = copyOut(copy, plain, "bookings",
+                        "copy (select " + BOOKING_COLUMNS + " from bookings" + filter +
+                        " union all select " + BOOKING_COLUMNS + " from bookings_archive" + filter +
+                        ") to stdout (format binary)");
+                long waitlist = copyOut(copy, plain, "waitlist",
+                        "copy (select " + WAITLIST_COLUMNS + " from seat_waitlist order by id) to stdout (format binary)");
+                plain.writeUTF("");
+                // Chiude deflate e cifratura: l'ultimo segmento marca la fine del file
+                plain.close();
+                return new Result(since, watermark, rooms, bookings, waitlist, 0);
+            });
+            exports.incrementAndGet();
+            lastExportAt = Instant.now();
+            lastWatermark = watermark;
+            lastExportRows = result.bookings();
+            auditTrail.record(AuditEvent.Type.BACKUP_EXPORTED, actor, null, null,
+                    scope + ": " + result.rooms() + " rooms, " + result.bookings() + " bookings, " +
+                    result.waitlist() + " waitlist entries, watermark " + watermark);
+            logger.info("SYSTEM: Backup exported ({}) by {}: {} rooms, {} bookings, {} waitlist entries, watermark {}",
+                    scope, actor, result.rooms(), result.bookings(), result.waitlist(), watermark);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            logger.error("SYSTEM: Backup export ({}) failed: {}", scope, e.toString());
+            throw e;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Ripristina un file scritto da export(); actor come in export(), in non viene chiuso
+    public Result restore(InputStream in, String actor) throws IOException {
+        requireEnabled();
+        Inflater inflater = new Inflater();
+        try {
+            Result result = inTransaction(restoreTransaction, copy -> {
+                InputStream decrypted = cipher.decrypt(in);
+                DataInputStream plain = new DataInputStream(new InflaterInputStream(decrypted, inflater, BUFFER_SIZE));
+                int format = plain.readInt();
+                if (format < 1 || format > FORMAT) {
+                    throw new IOException("Formato del backup non supportato: " + format);
+                }
+                plain.readLong();
+                long since = plain.readLong();
+                long watermark = plain.readLong();
+
+                jdbcTemplate.execute("create temp table restore_rooms (id bigint, name varchar(255), capacity integer, " +
+                        "seat_booking boolean) on commit drop");
+                jdbcTemplate.execute("create temp table restore_bookings (id bigint, username varchar(255), room_id bigint, " +
+                        "\"date\" date, start_minute integer, end_minute integer, seat integer) on commit drop");
+                jdbcTemplate.execute("create temp table restore_waitlist (id bigint, username varchar(255), room_id bigint, " +
+                        "\"date\" date, created_at timestamp(6) with time zone) on commit drop");
+                long rooms = 0;
+                long staged = 0;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (String section = plain.readUTF(); !section.isEmpty(); section = plain.readUTF()) {
+                    switch (section) {
+                        case "rooms" -> rooms = copyIn(copy, plain, buffer,
+                                "copy restore_rooms (" + ROOM_COLUMNS + ") from stdin (format binary)");
+                        case "bookings" -> staged = copyIn(copy, plain, buffer,
+                                "copy restore_bookings (" + BOOKING_COLUMNS + ") from stdin (format binary)");
+                        case "waitlist" -> copyIn(copy, plain, buffer,
+                                "copy restore_waitlist (" + WAITLIST_COLUMNS + ") from stdin (format binary)");
+                        default -> throw new IOException("Sezione del backup sconosciuta: " + section);
+                    }
+                }
+                // Fino all'ultimo segmento: solo così il file è verificato per intero prima del commit
+                StreamUtils.drain(decrypted);
+                long bookings = merge();
+                long waitlist = mergeWaitlist();
+                return new Result(since < 0 ? null : since, watermark, rooms, bookings, waitlist, staged - bookings);
+            });
+            afterRestore();
+            restores.incrementAndGet();
+            lastRestoreAt = Instant.now();
+            lastRestoreRows = result.bookings();
+            auditTrail.record(AuditEvent.Type.BACKUP_RESTORED, actor, null, null,
+                    (result.since() == null ? "full" : "since " + result.since()) + ", watermark " + result.watermark() +
+                    ": " + result.rooms() + " rooms, " + result.bookings() + " bookings and " + result.waitlist() +
+                    " waitlist entries restored, " + result.skipped() + " bookings already present");
+            logger.info("SYSTEM: Backup restored (watermark {}) by {}: {} rooms, {} bookings, {} waitlist entries, {} skipped",
+                    result.watermark(), actor, result.rooms(), result.bookings(), result.waitlist(), result.skipped());
+            return result;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            logger.error("SYSTEM: Backup restore failed: {}", e.toString());
+            throw e;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Dalle tabelle temporanee a quelle vere; ritorna le prenotazioni inserite
+    private long merge() {
+        jdbcTemplate.update("insert into rooms (" + ROOM_COLUMNS + ") select " + ROOM_COLUMNS + " from restore_rooms " +
+                "on conflict (id) do update set name = excluded.name, capacity = excluded.capacity, " +
+                "seat_booking = excluded.seat_booking");
+        // Partizioni mensili mancanti (i mesi passati verranno archiviati dal job di manutenzione)
+        jdbcTemplate.query("select bookings_create_partition(month) from (select distinct " +
+                "date_trunc('month', \"date\")::date as month from restore_bookings) months order by month", rs -> {});
+        jdbcTemplate.execute("create temp table restore_archived_months on commit drop as " +
+                "select to_date(substr(c.relname, 11), 'YYYY_MM') as month from pg_inherits i " +
+                "join pg_class c on c.oid = i.inhrelid where i.inhparent = 'bookings_archive'::regclass");
+        // In ordine di partizione e di indice: meno pagine toccate a caso. Le righe già presenti o in conflitto
+        // (export incrementali sovrapposti, ripristino ripetuto) vengono saltate
+        long archived = jdbcTemplate.update("insert into bookings_archive (" + BOOKING_COLUMNS + ") " +
+                "select " + BOOKING_COLUMNS + " from restore_bookings " +
+                "where date_trunc('month', \"date\")::date in (select month from restore_archived_months) " +
+                "order by \"date\", room_id on conflict do nothing");
+        long hot = jdbcTemplate.update("insert into bookings (" + BOOKING_COLUMNS + ") " +
+                "select " + BOOKING_COLUMNS + " from restore_bookings " +
+                "where date_trunc('month', \"date\")::date not in (select month from restore_archived_months) " +
+                "order by \"date\", room_id on conflict do nothing");
+        // Sequence oltre gli id ripristinati, mai indietro
+        jdbcTemplate.execute("select setval('bookings_seq', greatest((select last_value from bookings_seq), " +
+                "(select coalesce(max(id), 0) from restore_bookings) + 50))");
+        jdbcTemplate.execute("select setval('rooms_seq', greatest((select last_value from rooms_seq), " +
+                "(select coalesce(max(id), 0) from restore_rooms) + 50))");
+        // Contatori dei posti ricalcolati per i giorni toccati
+        jdbcTemplate.update("insert into seat_counters (room_id, \"date\", taken) " +
+                "select b.room_id, b.\"date\", count(*) from bookings b " +
+                "where b.seat > 0 and (b.room_id, b.\"date\") in (select room_id, \"date\" from restore_bookings where seat > 0) " +
+                "group by b.room_id, b.\"date\" " +
+                "on conflict (\"date\", room_id) do update set taken = excluded.taken");
+        return archived + hot;
+    }
+
+    // Iscrizioni in lista d'attesa: stesse regole delle prenotazioni (già presenti o stesso utente, aula e
+    // giorno: saltate). L'ordine della coda resta created_at; i posti liberi nel frattempo vanno al
+    // primo in coda al prossimo rilascio
+    private long mergeWaitlist() {
+        long inserted = jdbcTemplate.update("insert into seat_waitlist (" + WAITLIST_COLUMNS + ") " +
+                "select " + WAITLIST_COLUMNS + " from restore_waitlist order by room_id, \"date\", created_at " +
+                "on conflict do nothing");
+        jdbcTemplate.execute("select setval('seat_waitlist_seq', greatest((select last_value from seat_waitlist_seq), " +
+                "(select coalesce(max(id), 0) from restore_waitlist) + 50))");
+        return inserted;
+    }
+
+    // Le strutture in memoria di questo nodo non vedono le scritture fatte con SQL; gli altri nodi
+    // si riallineano con la verifica periodica degli indici
+    private void afterRestore() {
+        roomCatalog.invalidate();
+        entityManagerFactory.getCache().evict(Room.class);
+        occupancyIndex.verifyAgainstDatabase();
+        slotIndex.rebuild();
+        // Righe scritte con COPY, senza eventi: gli altri nodi ricaricano, le pagine aperte si riallineano
+        nodeStateRelay.reloadEverywhere();
+    }
+
+    private static long copyOut(CopyManager copy, DataOutputStream plain, String section, String sql)
+            throws IOException, SQLException {
+        plain.writeUTF(section);
+        SectionOutputStream chunks = new SectionOutputStream(plain);
+        long rows = copy.copyOut(sql, chunks);
+        chunks.finish();
+        return rows;
+    }
+
+    private static long copyIn(CopyManager copy, DataInputStream plain, byte[] buffer, String sql)
+            throws IOException, SQLException {
+        CopyIn copyIn = copy.copyIn(sql);
+        try {
+            for (int length = plain.readInt(); length > 0; length = plain.readInt()) {
+                if (length > buffer.length) {
+                    throw new IOException("Blocco del backup non valido: " + length + " byte");
+                }
+                plain.readFully(buffer, 0, length);
+                copyIn.writeToCopy(buffer, 0, length);
+            }
+            return copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    private interface CopyWork<T> {
+        T run(CopyManager copy) throws IOException, SQLException;
+    }
+
+    // COPY sulla connessione della transazione, la stessa delle query di jdbcTemplate (tabelle temporanee, snapshot)
+    private <T> T inTransaction(TransactionTemplate transaction, CopyWork<T> work) throws IOException {
+        try {
+            return transaction.execute(status -> {
+                Connection connection = DataSourceUtils.getConnection(dataSource);
+                try {
+                    return work.run(connection.unwrap(PGConnection.class).getCopyAPI());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (SQLException e) {
+                    throw new UncheckedIOException(new IOException(e.getMessage(), e));
+                } finally {
+                    DataSourceUtils.releaseConnection(connection, dataSource);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void requireEnabled() {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Backup non disponibile: serve PostgreSQL e backup.key");
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("exports", exports.get());
+        stats.put("restores", restores.get());
+        stats.put("failures", failures.get());
+        stats.put("lastExportAt", lastExportAt);
+        stats.put("lastWatermark", lastWatermark);
+        stats.put("lastExportRows", lastExportRows);
+        stats.put("lastRestoreAt", lastRestoreAt);
+        stats.put("lastRestoreRows", lastRestoreRows);
+        return stats;
+    }
+
+    // Blocchi di al più BUFFER_SIZE byte: la COPY scrive una riga alla volta, il ripristino legge a blocchi
+    private static final class SectionOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+
+        SectionOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                drain();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    drain();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void finish() throws IOException {
+            drain();
+            out.writeInt(0);
+        }
+
+        private void drain() throws IOException {
+            if (count > 0) {
+                out.writeInt(count);
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
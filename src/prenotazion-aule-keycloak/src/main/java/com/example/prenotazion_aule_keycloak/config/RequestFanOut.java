@@ -0,0 +1,153 @@
+package com.example.prenotazion_aule_keycloak.config;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Fan-out delle letture indipendenti di una richiesta (query delle dashboard, dopo la decisione del PDP):
+ * con fanout.enabled partono subito in parallelo, altrimenti vengono eseguite nel thread della
+ * richiesta al momento del get(), nello stesso ordine del codice sequenziale.
+ *
+ * Al massimo fanout.max-concurrency letture in volo per tutta l'applicazione, così il fan-out non
+ * svuota il pool di connessioni del DB: oltre il limite la lettura torna sequenziale invece di attendere.
+ * Con spring.threads.virtual.enabled su Java 21 ogni lettura gira su un virtual thread, altrimenti
+ * su un pool dedicato. Gli attributi della richiesta HTTP (memo del pre-flight PDP) seguono la lettura.
+ */
+@Component
+public class RequestFanOut {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestFanOut.class);
+
+    private final boolean enabled;
+    private final boolean virtualThreads;
+    private final Semaphore permits;
+    private final Executor executor;
+    private final ExecutorService pool;
+
+    private final AtomicLong parallel = new AtomicLong();
+    private final AtomicLong inline = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+
+    @Autowired
+    public RequestFanOut(@Value("${fanout.enabled:false}") boolean enabled,
+                         @Value("${fanout.max-concurrency:8}") int maxConcurrency,
+                         Environment environment) {
+        this(enabled, maxConcurrency, Threading.VIRTUAL.isActive(environment));
+    }
+
+    RequestFanOut(boolean enabled, int maxConcurrency, boolean virtualThreads) {
+        this.enabled = enabled;
+        this.virtualThreads = enabled && virtualThreads;
+        this.permits = new Semaphore(maxConcurrency);
+        if (!enabled) {
+            pool = null;
+            executor = null;
+        } else if (this.virtualThreads) {
+            SimpleAsyncTaskExecutor virtual = new SimpleAsyncTaskExecutor("fanout-");
+            virtual.setVirtualThreads(true);
+            pool = null;
+            executor = virtual;
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(maxConcurrency, r -> {
+                Thread thread = new Thread(r, "fanout-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor = pool;
+        }
+        if (enabled) {
+            logger.info("SYSTEM: Request fan-out enabled ({} threads, max {} concurrent reads)",
+                    this.virtualThreads ? "virtual" : "platform", maxConcurrency);
+        }
+    }
+
+    /**
+     * Avvia la lettura e restituisce il Supplier del risultato. Le eccezioni della lettura
+     * vengono rilanciate dal get() così come sono, come nel codice sequenziale.
+     */
+    public <T> Supplier<T> fork(Supplier<T> task) {
+        if (!enabled) {
+            inline.incrementAndGet();
+            return task;
+        }
+        if (!permits.tryAcquire()) {
+            saturated.incrementAndGet();
+            return task;
+        }
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        CompletableFuture<T> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> {
+                RequestAttributes previous = RequestContextHolder.getRequestAttributes();
+                RequestContextHolder.setRequestAttributes(attributes);
+                try {
+                    return task.get();
+                } finally {
+                    RequestContextHolder.setRequestAttributes(previous);
+                    permits.release();
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            // Executor chiuso (shutdown in corso): lettura nel thread della richiesta
+            permits.release();
+            saturated.incrementAndGet();
+            return task;
+        }
+        parallel.incrementAndGet();
+        return () -> join(future);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("virtualThreads", virtualThreads);
+        stats.put("parallelReads", parallel.get());
+        stats.put("inlineReads", inline.get());
+        stats.put("saturatedReads", saturated.get());
+        stats.put("availablePermits", permits.availablePermits());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.example.prenotazion_aule_keycloak.config;
 
+import com.example.prenotazion_aule_keycloak.security.KeycloakPdpService;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -18,6 +20,7 @@ import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -32,6 +35,9 @@ public class SecurityConfig {
     @Autowired
     private ClientRegistrationRepository clientRegistrationRepository;
 
+    @Autowired
+    private KeycloakPdpService pdpService;
+
     @Bean
     public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
         http
@@ -39,6 +45,10 @@ public class SecurityConfig {
                 .csrf(csrf -> csrf.csrfTokenRepository(CookieCsrfTokenRepository.withHttpOnlyFalse()))
                 .authorizeHttpRequests(auth -> auth
                         .requestMatchers("/css/**", "/js/**", "/images/**", "/webjars/**").permitAll()
+                        // Health e scrape di Prometheus: esposti solo sulla porta di gestione in loopback
+                        .requestMatchers(EndpointRequest.to("health", "prometheus")).permitAll()
+                        // Dispatch asincroni (SSE, risposte in streaming): la richiesta originale è già stata autorizzata
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                         // Qualsiasi richiesta richiede auth, ma i permessi veri li gestisce il Controller
                         .anyRequest().authenticated()
                 )
@@ -50,6 +60,8 @@ public class SecurityConfig {
                         .sessionCreationPolicy(SessionCreationPolicy.IF_REQUIRED)
                 )
                 .logout(logout -> logout
+                        // Svuota la cache delle decisioni PDP dell'utente prima di invalidare la sessione
+                        .addLogoutHandler((request, response, authentication) -> pdpService.evictDecisions(authentication))
                         .logoutSuccessHandler(oidcLogoutSuccessHandler())
                         .invalidateHttpSession(true)
                         .clearAuthentication(true)
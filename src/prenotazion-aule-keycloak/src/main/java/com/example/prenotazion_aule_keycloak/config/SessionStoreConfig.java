@@ -0,0 +1,130 @@
+package com.example.prenotazion_aule_keycloak.config;
+
+import com.example.prenotazion_aule_keycloak.session.NearCache;
+import com.example.prenotazion_aule_keycloak.session.NearCacheAuthorizedClientService;
+import com.example.prenotazion_aule_keycloak.session.NearCacheInvalidation;
+import com.example.prenotazion_aule_keycloak.session.NearCacheSessionRepository;
+import com.example.prenotazion_aule_keycloak.session.SessionAttributeSerializer;
+import com.example.prenotazion_aule_keycloak.session.SessionRevocationFilter;
+import com.example.prenotazion_aule_keycloak.session.SessionSchemaInitializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.oauth2.client.JdbcOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.session.MapSession;
+import org.springframework.session.MapSessionRepository;
+import org.springframework.session.Session;
+import org.springframework.session.config.annotation.web.http.EnableSpringHttpSession;
+import org.springframework.session.jdbc.JdbcIndexedSessionRepository;
+import org.springframework.session.web.http.SessionRepositoryFilter;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dove vivono le sessioni HTTP e i client autorizzati OAuth2 (session.store):
+ * - jdbc: nel DB condiviso, con near-cache locale; i nodi dietro al bilanciatore non hanno
+ *   bisogno di sticky session e un riavvio non fa perdere i login;
+ * - memory: nel singolo nodo, come prima.
+ * Il cookie resta JSESSIONID (server.servlet.session.cookie.*), quindi logout e proxy non cambiano.
+ */
+@Configuration(proxyBeanMethods = false)
+@EnableSpringHttpSession
+public class SessionStoreConfig {
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnProperty(name = "session.store", havingValue = "memory")
+    static class Memory {
+
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+        @Bean
+        MapSessionRepository sessionRepository(@Value("${server.servlet.session.timeout:30m}") Duration timeout) {
+            MapSessionRepository repository = new MapSessionRepository(sessions);
+            repository.setDefaultMaxInactiveInterval(timeout);
+            return repository;
+        }
+
+        // MapSessionRepository scarta le sessioni scadute solo quando vengono richieste
+        @Scheduled(fixedDelayString = "${session.cleanup-interval-ms:60000}")
+        void removeExpired() {
+            sessions.values().removeIf(Session::isExpired);
+        }
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnProperty(name = "session.store", havingValue = "jdbc", matchIfMissing = true)
+    static class Jdbc {
+
+        @Bean
+        SessionSchemaInitializer sessionSchemaInitializer(DataSource dataSource, JdbcTemplate jdbcTemplate) {
+            return new SessionSchemaInitializer(dataSource, jdbcTemplate);
+        }
+
+        @Bean
+        NearCacheInvalidation nearCacheInvalidation(SessionSchemaInitializer schema, JdbcTemplate jdbcTemplate,
+                                                    @Value("${session.near-cache.retention:10m}") Duration retention) {
+            return new NearCacheInvalidation(jdbcTemplate, retention);
+        }
+
+        @Bean
+        SessionAttributeSerializer sessionAttributeSerializer(@Value("${session.compress-threshold:512}") int compressThreshold) {
+            return new SessionAttributeSerializer(compressThreshold, SessionStoreConfig.class.getClassLoader());
+        }
+
+        // Il cleanup delle sessioni scadute resta quello di Spring Session (cron ogni minuto, idempotente tra i nodi)
+        @Bean
+        JdbcIndexedSessionRepository jdbcSessionRepository(SessionSchemaInitializer schema, JdbcTemplate jdbcTemplate,
+                                                           PlatformTransactionManager transactionManager,
+                                                           SessionAttributeSerializer serializer,
+                                                           @Value("${server.servlet.session.timeout:30m}") Duration timeout) {
+            JdbcIndexedSessionRepository repository = new JdbcIndexedSessionRepository(jdbcTemplate, new TransactionTemplate(transactionManager));
+            repository.setDefaultMaxInactiveInterval(timeout);
+            repository.setConversionService(serializer.conversionService());
+            return repository;
+        }
+
+        // Il SessionRepository usato dal filtro di Spring Session
+        @Bean
+        @Primary
+        NearCacheSessionRepository sessionRepository(JdbcIndexedSessionRepository jdbcSessionRepository,
+                                                     NearCacheInvalidation invalidation,
+                                                     SessionAttributeSerializer serializer,
+                                                     @Value("${session.near-cache.ttl:60s}") Duration ttl,
+                                                     @Value("${session.near-cache.max-entries:10000}") int maxEntries,
+                                                     @Value("${session.touch-interval:60s}") Duration touchInterval) {
+            return new NearCacheSessionRepository(jdbcSessionRepository, new NearCache<String, MapSession>(ttl, maxEntries),
+                    invalidation, touchInterval, serializer);
+        }
+
+        // Prima di SessionRepositoryFilter: scritture e /admin rileggono la sessione dal DB (logout su un altro nodo)
+        @Bean
+        FilterRegistrationBean<SessionRevocationFilter> sessionRevocationFilter(NearCacheSessionRepository sessionRepository) {
+            FilterRegistrationBean<SessionRevocationFilter> registration =
+                    new FilterRegistrationBean<>(new SessionRevocationFilter(sessionRepository));
+            registration.setOrder(SessionRepositoryFilter.DEFAULT_ORDER - 1);
+            return registration;
+        }
+
+        @Bean
+        NearCacheAuthorizedClientService authorizedClientService(SessionSchemaInitializer schema, JdbcTemplate jdbcTemplate,
+                                                                 ClientRegistrationRepository clientRegistrationRepository,
+                                                                 NearCacheInvalidation invalidation,
+                                                                 @Value("${session.near-cache.ttl:60s}") Duration ttl,
+                                                                 @Value("${session.near-cache.max-entries:10000}") int maxEntries) {
+            return new NearCacheAuthorizedClientService(
+                    new JdbcOAuth2AuthorizedClientService(jdbcTemplate, clientRegistrationRepository),
+                    new NearCache<>(ttl, maxEntries), invalidation);
+        }
+    }
+}
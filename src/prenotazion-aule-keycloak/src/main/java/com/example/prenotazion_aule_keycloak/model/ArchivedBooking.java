@@ -0,0 +1,43 @@
+package com.example.prenotazion_aule_keycloak.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.Immutable;
+
+import java.time.LocalDate;
+
+@Entity
+// Prenotazioni dei mesi passati: su PostgreSQL le partizioni mensili spostate da bookings
+// (BookingPartitionMaintenance). Sola lettura: si consultano dalla tabella admin e si cancellano
+// solo con le cancellazioni in blocco (account, pulizia admin).
+@Immutable
+@Table(name = "bookings_archive")
+public class ArchivedBooking {
+    @Id
+    private Long id;
+
+    private String username;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "room_id")
+    private Room room;
+
+    private LocalDate date;
+
+    @Column(name = "start_minute", nullable = false)
+    private int startMinute;
+
+    @Column(name = "end_minute", nullable = false)
+    private int endMinute;
+
+    @Column(name = "seat", nullable = false)
+    private int seat;
+
+    protected ArchivedBooking() {}
+
+    public Long getId() { return id; }
+    public String getUsername() { return username; }
+    public Room getRoom() { return room; }
+    public LocalDate getDate() { return date; }
+    public TimeSlot getSlot() { return new TimeSlot(startMinute, endMinute); }
+    public int getSeat() { return seat; }
+}
@@ -4,26 +4,63 @@ import jakarta.persistence.*;
 import java.time.LocalDate;
 
 @Entity
-@Table(name = "bookings")
+// Indice composito + vincolo UNIQUE: il DB è l'arbitro finale dei conflitti (niente race read-then-write).
+// Il vincolo UNIQUE copre le fasce con lo stesso inizio; su PostgreSQL le sovrapposizioni parziali
+// sono escluse dal vincolo GiST su tsrange di ogni partizione mensile (migrazioni in db/migration/postgresql:
+// su PostgreSQL bookings è partizionata per mese e i mesi passati passano in bookings_archive).
+// Nelle aule a posti ogni prenotazione ha il suo numero di posto, quindi i vincoli includono seat.
+@Table(name = "bookings",
+        uniqueConstraints = @UniqueConstraint(name = "uk_bookings_room_date_start_seat", columnNames = {"room_id", "date", "start_minute", "seat"}),
+        indexes = {
+                @Index(name = "idx_bookings_room_date", columnList = "room_id, date"),
+                // Letture per intervallo di date su tutte le aule (calendario mensile)
+                @Index(name = "idx_bookings_date_room", columnList = "date, room_id")
+        })
 public class Booking {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    // Sequence con allocazione a blocchi (pooled): a differenza di IDENTITY permette gli INSERT in batch JDBC
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "bookings_seq")
+    @SequenceGenerator(name = "bookings_seq", sequenceName = "bookings_seq", allocationSize = 50)
     private Long id;
 
     private String username;
 
-    @ManyToOne // Molte prenotazioni possono essere per una sola aula
+    // Molte prenotazioni possono essere per una sola aula. LAZY: le letture delle dashboard usano
+    // join fetch o proiezioni, l'aula non viene caricata con una select per ogni prenotazione
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "room_id")
     private Room room;
 
     private LocalDate date;
 
+    // Fascia oraria in minuti [start, end); le prenotazioni nate prima delle fasce valgono tutto il giorno
+    @Column(name = "start_minute", nullable = false, columnDefinition = "integer default 0")
+    private int startMinute;
+
+    @Column(name = "end_minute", nullable = false, columnDefinition = "integer default 1440")
+    private int endMinute = TimeSlot.DAY_MINUTES;
+
+    // Numero di posto (1..capacity) nelle aule a posti; 0 = prenotazione dell'intera aula
+    @Column(name = "seat", nullable = false, columnDefinition = "integer default 0")
+    private int seat;
+
     public Booking() {}
 
     public Booking(String username, Room room, LocalDate date) {
+        this(username, room, date, TimeSlot.fullDay());
+    }
+
+    public Booking(String username, Room room, LocalDate date, TimeSlot slot) {
+        this(username, room, date, slot, 0);
+    }
+
+    public Booking(String username, Room room, LocalDate date, TimeSlot slot, int seat) {
         this.username = username;
         this.room = room;
         this.date = date;
+        this.startMinute = slot.startMinute();
+        this.endMinute = slot.endMinute();
+        this.seat = seat;
     }
 
     // Getters...
@@ -31,6 +68,8 @@ public class Booking {
     public String getUsername() { return username; }
     public Room getRoom() { return room; }
     public LocalDate getDate() { return date; }
+    public TimeSlot getSlot() { return new TimeSlot(startMinute, endMinute); }
+    public int getSeat() { return seat; }
 
     // Aggiungi un setter per accettazione (se vuoi replicare la logica Admin)
     // private boolean accepted; ...
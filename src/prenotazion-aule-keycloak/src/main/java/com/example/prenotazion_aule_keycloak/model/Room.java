@@ -1,17 +1,29 @@
 package com.example.prenotazion_aule_keycloak.model;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity // Dice a Spring: "Questa è una tabella del database"
 @Table(name = "rooms")
+// Cache di secondo livello: findById e la risoluzione di Booking.room non vanno sul DB
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = Room.CACHE_REGION)
 public class Room {
+    public static final String CACHE_REGION = "rooms";
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "rooms_seq")
+    @SequenceGenerator(name = "rooms_seq", sequenceName = "rooms_seq", allocationSize = 50)
     private Long id;
 
     private String name;
     private int capacity;
 
+    // Modalità a posti: fino a capacity utenti per giorno invece di un'unica prenotazione esclusiva
+    @Column(name = "seat_booking", nullable = false, columnDefinition = "boolean default false")
+    private boolean seatBooking;
+
     // Costruttore vuoto obbligatorio per JPA
     public Room() {}
 
@@ -24,4 +36,6 @@ public class Room {
     public Long getId() { return id; }
     public String getName() { return name; }
     public int getCapacity() { return capacity; }
+    public boolean isSeatBooking() { return seatBooking; }
+    public void setSeatBooking(boolean seatBooking) { this.seatBooking = seatBooking; }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package com.example.prenotazion_aule_keycloak.model;
+
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * Posti occupati di un'aula a posti in un giorno. È l'arbitro tra più istanze dell'app:
+ * si occupa un posto solo con un UPDATE condizionale (taken < capacity), che blocca la
+ * riga fino al commit e serializza le prenotazioni della stessa aula/giorno.
+ */
+@Entity
+@Table(name = "seat_counters")
+public class SeatCounter {
+
+    @EmbeddedId
+    private Key id;
+
+    private int taken;
+
+    public SeatCounter() {}
+
+    public SeatCounter(Long roomId, LocalDate date) {
+        this.id = new Key(roomId, date);
+    }
+
+    public Key getId() { return id; }
+    public int getTaken() { return taken; }
+
+    @Embeddable
+    public static class Key implements Serializable {
+        @Column(name = "room_id")
+        private Long roomId;
+
+        private LocalDate date;
+
+        public Key() {}
+
+        public Key(Long roomId, LocalDate date) {
+            this.roomId = roomId;
+            this.date = date;
+        }
+
+        public Long getRoomId() { return roomId; }
+        public LocalDate getDate() { return date; }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && Objects.equals(roomId, k.roomId) && Objects.equals(date, k.date);
+        }
+
+        @Override
+        public int hashCode() { return Objects.hash(roomId, date); }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.prenotazion_aule_keycloak.model;
+
+import java.time.LocalTime;
+
+/**
+ * Fascia oraria [start, end) in minuti dall'inizio del giorno (0..1440).
+ * 1440 rappresenta la fine del giorno, che LocalTime non sa esprimere.
+ */
+public record TimeSlot(int startMinute, int endMinute) {
+
+    public static final int DAY_MINUTES = 24 * 60;
+
+    public TimeSlot {
+        if (startMinute < 0 || endMinute > DAY_MINUTES || startMinute >= endMinute) {
+            throw new IllegalArgumentException("Fascia oraria non valida");
+        }
+    }
+
+    public static TimeSlot fullDay() {
+        return new TimeSlot(0, DAY_MINUTES);
+    }
+
+    // end = 00:00 vale come fine giornata (es. 18:00-00:00)
+    public static TimeSlot of(LocalTime start, LocalTime end) {
+        int endMinute = end.equals(LocalTime.MIDNIGHT) ? DAY_MINUTES : end.getHour() * 60 + end.getMinute();
+        return new TimeSlot(start.getHour() * 60 + start.getMinute(), endMinute);
+    }
+
+    public boolean isFullDay() {
+        return startMinute == 0 && endMinute == DAY_MINUTES;
+    }
+
+    public boolean overlaps(TimeSlot other) {
+        return startMinute < other.endMinute && other.startMinute < endMinute;
+    }
+
+    public int minutes() {
+        return endMinute - startMinute;
+    }
+
+    public static String format(int minute) {
+        return String.format("%02d:%02d", minute / 60, minute % 60);
+    }
+
+    @Override
+    public String toString() {
+        return format(startMinute) + "-" + format(endMinute);
+    }
+}
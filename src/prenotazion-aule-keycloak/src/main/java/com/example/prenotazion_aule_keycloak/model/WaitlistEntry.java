@@ -0,0 +1,44 @@
+package com.example.prenotazion_aule_keycloak.model;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+@Entity
+// Lista d'attesa delle aule a posti: un'iscrizione per utente, aula e giorno, servita in ordine di arrivo
+@Table(name = "seat_waitlist",
+        uniqueConstraints = @UniqueConstraint(name = "uk_seat_waitlist_room_date_user", columnNames = {"room_id", "date", "username"}),
+        indexes = @Index(name = "idx_seat_waitlist_room_date", columnList = "room_id, date, created_at"))
+public class WaitlistEntry {
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "seat_waitlist_seq")
+    @SequenceGenerator(name = "seat_waitlist_seq", sequenceName = "seat_waitlist_seq", allocationSize = 50)
+    private Long id;
+
+    private String username;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "room_id")
+    private Room room;
+
+    private LocalDate date;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    public WaitlistEntry() {}
+
+    public WaitlistEntry(String username, Room room, LocalDate date, Instant createdAt) {
+        this.username = username;
+        this.room = room;
+        this.date = date;
+        this.createdAt = createdAt;
+    }
+
+    public Long getId() { return id; }
+    public String getUsername() { return username; }
+    public Room getRoom() { return room; }
+    public LocalDate getDate() { return date; }
+    public Instant getCreatedAt() { return createdAt; }
+}
@@ -0,0 +1,29 @@
+package com.example.prenotazion_aule_keycloak.repository;
+
+import com.example.prenotazion_aule_keycloak.model.ArchivedBooking;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+public interface ArchivedBookingRepository extends JpaRepository<ArchivedBooking, Long>, JpaSpecificationExecutor<ArchivedBooking> {
+
+    // Cancellazioni in blocco: nell'archivio non ci sono indici, posti o liste d'attesa da aggiornare,
+    // bastano gli id del blocco (le righe cancellate spariscono, quindi si rilegge sempre il primo blocco)
+    @Query("select a.id from ArchivedBooking a where a.username = :username order by a.id")
+    List<Long> findIdsByUsername(@Param("username") String username, Pageable chunk);
+
+    @Query("select a.id from ArchivedBooking a where (:roomId is null or a.room.id = :roomId) " +
+            "and (:before is null or a.date < :before) order by a.id")
+    List<Long> findIdsForPurge(@Param("roomId") Long roomId, @Param("before") LocalDate before, Pageable chunk);
+
+    @Modifying
+    @Query("delete from ArchivedBooking a where a.id in :ids")
+    int deleteByIdIn(@Param("ids") Collection<Long> ids);
+}
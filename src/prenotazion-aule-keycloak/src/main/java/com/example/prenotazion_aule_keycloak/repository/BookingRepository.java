@@ -1,10 +1,124 @@
 package com.example.prenotazion_aule_keycloak.repository;
 
 import com.example.prenotazion_aule_keycloak.model.Booking;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
-public interface BookingRepository extends JpaRepository<Booking, Long> {
+public interface BookingRepository extends JpaRepository<Booking, Long>, JpaSpecificationExecutor<Booking> {
     // Trova tutte le prenotazioni di un certo utente
     List<Booking> findByUsername(String username);
+
+    // Dashboard utente: una sola query con join sull'aula, solo le colonne mostrate
+    @Query("select new com.example.prenotazion_aule_keycloak.repository.BookingView(" +
+            "b.id, b.date, b.startMinute, b.endMinute, b.username, r.name, b.seat) " +
+            "from Booking b join b.room r where b.username = :username order by b.date, b.startMinute, b.id")
+    List<BookingView> findViewsByUsername(@Param("username") String username);
+
+    // Controllo conflitto via indice (room_id, date): nessuna entità caricata in memoria
+    boolean existsByRoomIdAndDate(Long roomId, LocalDate date);
+
+    // Sovrapposizione di fasce [start, end) nella stessa aula e giorno (indice room_id, date)
+    @Query("select count(b) > 0 from Booking b where b.room.id = :roomId and b.date = :date " +
+            "and b.startMinute < :endMinute and b.endMinute > :startMinute")
+    boolean existsOverlap(@Param("roomId") Long roomId, @Param("date") LocalDate date,
+                          @Param("startMinute") int startMinute, @Param("endMinute") int endMinute);
+
+    // Controllo conflitti in blocco: una sola query per tutte le date di una prenotazione ricorrente
+    @Query("select b.date from Booking b where b.room.id = :roomId and b.date in :dates")
+    List<LocalDate> findBookedDates(@Param("roomId") Long roomId, @Param("dates") Collection<LocalDate> dates);
+
+    // Posti già assegnati in un'aula a posti, per scegliere il primo libero
+    @Query("select b.seat from Booking b where b.room.id = :roomId and b.date = :date and b.seat > 0")
+    List<Integer> findSeats(@Param("roomId") Long roomId, @Param("date") LocalDate date);
+
+    // Un solo posto per utente, aula e giorno
+    boolean existsByRoomIdAndDateAndUsernameAndSeatGreaterThan(Long roomId, LocalDate date, String username, int seat);
+
+    // Cambio di modalità di un'aula: consentito solo senza prenotazioni da oggi in poi
+    boolean existsByRoomIdAndDateGreaterThanEqual(Long roomId, LocalDate date);
+
+    // Proiezione minima (room_id, date) usata per scaldare l'indice di occupazione in memoria.
+    // Gli indici riguardano le prenotazioni esclusive: i posti sono contati da SeatAdmission
+    @Query("select b.room.id as roomId, b.date as date from Booking b where b.seat = 0")
+    List<RoomDay> findAllRoomDays();
+
+    // Fasce orarie di un intervallo di giorni, per l'indice delle fasce in memoria e la ricerca di fasce libere
+    @Query("select b.room.id as roomId, b.date as date, b.startMinute as startMinute, b.endMinute as endMinute " +
+            "from Booking b where b.date between :from and :to and b.seat = 0")
+    List<RoomSlot> findSlotsBetween(@Param("from") LocalDate from, @Param("to") LocalDate to);
+
+    // Calendario mensile: una riga per (aula, giorno) con prenotazioni, aggregata in SQL (nessuna entità caricata).
+    // I minuti prenotati contano solo dentro l'orario di apertura [open, close): una prenotazione 00:00-08:00
+    // non occupa niente della giornata prenotabile
+    @Query("select b.room.id as roomId, b.date as date, count(b) as bookings, " +
+            "sum(case when b.endMinute > :open and b.startMinute < :close " +
+            "then least(b.endMinute, :close) - greatest(b.startMinute, :open) else 0 end) as bookedMinutes " +
+            "from Booking b where b.date between :from and :to and (:roomId is null or b.room.id = :roomId) " +
+            "group by b.room.id, b.date")
+    List<DayOccupancy> findDayOccupancy(@Param("from") LocalDate from, @Param("to") LocalDate to, @Param("roomId") Long roomId,
+                                        @Param("open") int open, @Param("close") int close);
+
+    // Cancellazioni senza entità: prima le colonne che servono a indici, contatori dei posti e audit,
+    // poi una DELETE che restituisce le righe toccate (0 = già cancellata da una richiesta concorrente)
+    @Query("select b.id as id, b.room.id as roomId, b.date as date, b.startMinute as startMinute, " +
+            "b.endMinute as endMinute, b.seat as seat, b.username as username from Booking b where b.id = :id")
+    Optional<DeletedRow> findDeletedRow(@Param("id") Long id);
+
+    @Modifying
+    @Query("delete from Booking b where b.id = :id")
+    int deleteRowById(@Param("id") Long id);
+
+    @Modifying
+    @Query("delete from Booking b where b.id = :id and b.username = :username")
+    int deleteByIdAndUsername(@Param("id") Long id, @Param("username") String username);
+
+    // Cancellazioni in blocco a blocchi di id crescenti (keyset): ogni blocco nella sua transazione
+    @Query("select b.id as id, b.room.id as roomId, b.date as date, b.startMinute as startMinute, " +
+            "b.endMinute as endMinute, b.seat as seat, b.username as username from Booking b " +
+            "where b.username = :username and b.id > :afterId order by b.id")
+    List<DeletedRow> findDeletedRowsByUsername(@Param("username") String username, @Param("afterId") long afterId, Pageable chunk);
+
+    @Query("select b.id as id, b.room.id as roomId, b.date as date, b.startMinute as startMinute, " +
+            "b.endMinute as endMinute, b.seat as seat, b.username as username from Booking b " +
+            "where (:roomId is null or b.room.id = :roomId) and (:before is null or b.date < :before) " +
+            "and b.id > :afterId order by b.id")
+    List<DeletedRow> findDeletedRowsForPurge(@Param("roomId") Long roomId, @Param("before") LocalDate before,
+                                             @Param("afterId") long afterId, Pageable chunk);
+
+    @Modifying
+    @Query("delete from Booking b where b.id in :ids")
+    int deleteByIdIn(@Param("ids") Collection<Long> ids);
+
+    interface DeletedRow {
+        Long getId();
+        Long getRoomId();
+        LocalDate getDate();
+        int getStartMinute();
+        int getEndMinute();
+        int getSeat();
+        String getUsername();
+    }
+
+    interface RoomDay {
+        Long getRoomId();
+        LocalDate getDate();
+    }
+
+    interface DayOccupancy extends RoomDay {
+        long getBookings();
+        long getBookedMinutes();
+    }
+
+    interface RoomSlot extends RoomDay {
+        int getStartMinute();
+        int getEndMinute();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+package com.example.prenotazion_aule_keycloak.repository;
+
+import jakarta.persistence.criteria.JoinType;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.time.LocalDate;
+
+/**
+ * Filtri, ordinamento e condizione keyset per la tabella admin delle prenotazioni. Valgono sia per
+ * Booking sia per ArchivedBooking (stessi attributi), così la vista archivio usa le stesse condizioni.
+ *
+ * L'ordinamento ha sempre l'id come secondo criterio, così (colonna, id) identifica
+ * univocamente la posizione e la pagina successiva si legge con un WHERE invece che con OFFSET.
+ */
+public final class BookingSpecifications {
+
+    // Colonne ordinabili della tabella (nell'ordine delle colonne di admin.html)
+    public enum SortKey {
+        ID("id"), USERNAME("username"), ROOM("room.name"), DATE("date");
+
+        private final String property;
+
+        SortKey(String property) {
+            this.property = property;
+        }
+
+        public String property() {
+            return property;
+        }
+
+        <T> Path<T> path(Root<?> root) {
+            return this == ROOM ? root.get("room").get("name") : root.get(property);
+        }
+    }
+
+    private BookingSpecifications() {
+    }
+
+    public static Sort sort(SortKey key, boolean ascending) {
+        Sort.Direction direction = ascending ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Sort sort = Sort.by(direction, key.property());
+        return key == SortKey.ID ? sort : sort.and(Sort.by(direction, "id"));
+    }
+
+    // Carica l'aula nella stessa query della pagina (niente select per riga); non nelle count
+    public static <E> Specification<E> fetchRoom() {
+        return (root, query, cb) -> {
+            if (query.getResultType() != Long.class && query.getResultType() != long.class) {
+                root.fetch("room", JoinType.INNER);
+            }
+            return null;
+        };
+    }
+
+    public static <E> Specification<E> usernameContains(String text) {
+        if (text == null || text.isBlank()) return null;
+        return (root, query, cb) -> cb.like(cb.lower(root.get("username")), likePattern(text));
+    }
+
+    public static <E> Specification<E> roomNameContains(String text) {
+        if (text == null || text.isBlank()) return null;
+        return (root, query, cb) -> cb.like(cb.lower(root.get("room").get("name")), likePattern(text));
+    }
+
+    public static <E> Specification<E> onDate(LocalDate date) {
+        if (date == null) return null;
+        return (root, query, cb) -> cb.equal(root.get("date"), date);
+    }
+
+    // Ricerca globale: utente o aula che contengono il testo, oppure la data esatta (yyyy-MM-dd)
+    public static <E> Specification<E> matches(String text, LocalDate date) {
+        if (text == null || text.isBlank()) return null;
+        Specification<E> spec = Specification.anyOf(usernameContains(text), roomNameContains(text));
+        return date == null ? spec : spec.or(onDate(date));
+    }
+
+    // Righe che vengono dopo (value, id) nell'ordinamento scelto
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <E> Specification<E> after(SortKey key, boolean ascending, Comparable value, Long id) {
+        return (root, query, cb) -> {
+            Path<Long> idPath = root.get("id");
+            Predicate idAfter = ascending ? cb.greaterThan(idPath, id) : cb.lessThan(idPath, id);
+            if (key == SortKey.ID) {
+                return idAfter;
+            }
+            Path<Comparable> column = key.path(root);
+            Predicate columnAfter = ascending ? cb.greaterThan(column, value) : cb.lessThan(column, value);
+            return cb.or(columnAfter, cb.and(cb.equal(column, value), idAfter));
+        };
+    }
+
+    private static String likePattern(String text) {
+        String escaped = text.trim().toLowerCase()
+                .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return "%" + escaped + "%";
+    }
+}
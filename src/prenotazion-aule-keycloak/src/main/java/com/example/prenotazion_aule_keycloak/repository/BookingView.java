@@ -0,0 +1,14 @@
+package com.example.prenotazion_aule_keycloak.repository;
+
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+
+import java.time.LocalDate;
+
+// Proiezione in sola lettura per le dashboard: solo le colonne mostrate, nessuna entità gestita
+public record BookingView(Long id, LocalDate date, int startMinute, int endMinute, String username, String roomName,
+                          int seat) {
+
+    public TimeSlot slot() {
+        return new TimeSlot(startMinute, endMinute);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.prenotazion_aule_keycloak.repository;
+
+import com.example.prenotazion_aule_keycloak.model.SeatCounter;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+public interface SeatCounterRepository extends JpaRepository<SeatCounter, SeatCounter.Key> {
+
+    // Lettura senza lock, per riallineare il contatore in memoria
+    @Query("select c.taken from SeatCounter c where c.id.roomId = :roomId and c.id.date = :date")
+    Optional<Integer> findTaken(@Param("roomId") Long roomId, @Param("date") LocalDate date);
+
+    // Crea la riga del giorno se manca. Due istanze possono tentarlo insieme: chi arriva
+    // seconda riceve una violazione di chiave, da ignorare (la riga esiste comunque)
+    @Modifying
+    @Transactional
+    @Query(value = "insert into seat_counters (room_id, date, taken) select :roomId, :date, 0 " +
+            "where not exists (select 1 from seat_counters where room_id = :roomId and date = :date)", nativeQuery = true)
+    int createIfAbsent(@Param("roomId") Long roomId, @Param("date") LocalDate date);
+
+    // Occupa un posto solo se ne resta uno libero: 1 = preso, 0 = aula piena (o riga assente).
+    // La riga resta bloccata fino al commit: le prenotazioni della stessa aula/giorno si serializzano qui
+    @Modifying
+    @Query("update SeatCounter c set c.taken = c.taken + 1 " +
+            "where c.id.roomId = :roomId and c.id.date = :date and c.taken < :capacity")
+    int tryTake(@Param("roomId") Long roomId, @Param("date") LocalDate date, @Param("capacity") int capacity);
+
+    @Modifying
+    @Query("update SeatCounter c set c.taken = c.taken - 1 " +
+            "where c.id.roomId = :roomId and c.id.date = :date and c.taken > 0")
+    int release(@Param("roomId") Long roomId, @Param("date") LocalDate date);
+
+    // Blocca la riga senza modificarla (iscrizione in lista d'attesa contro promozione concorrente)
+    @Modifying
+    @Query("update SeatCounter c set c.taken = c.taken where c.id.roomId = :roomId and c.id.date = :date")
+    int lock(@Param("roomId") Long roomId, @Param("date") LocalDate date);
+}
@@ -0,0 +1,41 @@
+package com.example.prenotazion_aule_keycloak.repository;
+
+import com.example.prenotazion_aule_keycloak.model.WaitlistEntry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface WaitlistRepository extends JpaRepository<WaitlistEntry, Long> {
+
+    // Iscritti di un'aula/giorno in ordine di arrivo (id come spareggio a parità di istante)
+    List<WaitlistEntry> findByRoomIdAndDateOrderByCreatedAtAscIdAsc(Long roomId, LocalDate date);
+
+    boolean existsByRoomIdAndDateAndUsername(Long roomId, LocalDate date, String username);
+
+    // Dashboard utente: iscrizioni con nome dell'aula e posizione in coda, in una sola query
+    @Query("select new com.example.prenotazion_aule_keycloak.repository.WaitlistView(w.id, w.date, r.name, " +
+            "(select count(o) + 1 from WaitlistEntry o where o.room = w.room and o.date = w.date " +
+            "and (o.createdAt < w.createdAt or (o.createdAt = w.createdAt and o.id < w.id)))) " +
+            "from WaitlistEntry w join w.room r where w.username = :username order by w.date, w.id")
+    List<WaitlistView> findViewsByUsername(@Param("username") String username);
+
+    long countByRoomIdAndDate(Long roomId, LocalDate date);
+
+    @Modifying
+    @Query("delete from WaitlistEntry w where w.id = :id and w.username = :username")
+    int deleteByIdAndUsername(@Param("id") Long id, @Param("username") String username);
+
+    @Modifying
+    @Query("delete from WaitlistEntry w where w.username = :username")
+    int deleteByUsername(@Param("username") String username);
+
+    // Pulizia admin: le iscrizioni dell'aula e/o dei giorni eliminati, prima delle prenotazioni
+    // (i posti liberati dalla pulizia non devono essere riassegnati)
+    @Modifying
+    @Query("delete from WaitlistEntry w where (:roomId is null or w.room.id = :roomId) and (:before is null or w.date < :before)")
+    int deleteForPurge(@Param("roomId") Long roomId, @Param("before") LocalDate before);
+}
@@ -0,0 +1,6 @@
+package com.example.prenotazion_aule_keycloak.repository;
+
+import java.time.LocalDate;
+
+// Iscrizione in lista d'attesa vista dall'utente: position = 1 è il prossimo a ricevere un posto
+public record WaitlistView(Long id, LocalDate date, String roomName, long position) {}
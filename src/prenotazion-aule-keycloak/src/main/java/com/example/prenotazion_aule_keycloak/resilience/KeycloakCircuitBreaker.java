@@ -0,0 +1,185 @@
+package com.example.prenotazion_aule_keycloak.resilience;
+
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkheadConfig;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.timelimiter.TimeLimiter;
+import io.github.resilience4j.timelimiter.TimeLimiterConfig;
+import jakarta.annotation.PreDestroy;
+import jakarta.ws.rs.ClientErrorException;
+import org.keycloak.authorization.client.util.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Protezione di tutte le chiamate verso Keycloak (PDP e Admin API):
+ *
+ * - bulkhead: al massimo N chiamate all'IdP in parallelo, eseguite su un pool dedicato
+ *   così i thread Tomcat non restano bloccati sulla rete;
+ * - deadline per chiamata (TimeLimiter): oltre il limite il chiamante riceve subito il fallback;
+ * - circuit breaker per destinazione ("pdp", "admin"): con troppi errori o chiamate lente
+ *   si apre e le richieste falliscono immediatamente fino al periodo di prova (half-open).
+ *   Le risposte 4xx (utente o email duplicati, password fuori policy, token non valido) sono
+ *   errori della richiesta, non dell'IdP: non contano per il circuito.
+ *
+ * Le transizioni di stato vengono loggate e contate.
+ */
+@Component
+public class KeycloakCircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeycloakCircuitBreaker.class);
+
+    public static final String PDP = "pdp";
+    public static final String ADMIN = "admin";
+
+    private final ThreadPoolBulkhead bulkhead;
+    private final Map<String, CircuitBreaker> breakers = new LinkedHashMap<>();
+    private final Map<String, TimeLimiter> timeLimiters = new LinkedHashMap<>();
+
+    private final Map<String, AtomicLong> transitions = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedByBulkhead = new AtomicLong();
+    private final AtomicLong rejectedByBreaker = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    @Autowired
+    public KeycloakCircuitBreaker(@Value("${keycloak.resilience.pdp-timeout:2s}") Duration pdpTimeout,
+                                  @Value("${keycloak.resilience.admin-timeout:5s}") Duration adminTimeout,
+                                  @Value("${keycloak.resilience.max-concurrent-calls:10}") int maxConcurrentCalls,
+                                  @Value("${keycloak.resilience.queue-capacity:20}") int queueCapacity,
+                                  @Value("${keycloak.resilience.failure-rate-threshold:50}") float failureRateThreshold,
+                                  @Value("${keycloak.resilience.slow-call-threshold:1s}") Duration slowCallThreshold,
+                                  @Value("${keycloak.resilience.sliding-window-size:20}") int slidingWindowSize,
+                                  @Value("${keycloak.resilience.minimum-calls:10}") int minimumCalls,
+                                  @Value("${keycloak.resilience.wait-in-open-state:30s}") Duration waitInOpenState) {
+        this.bulkhead = ThreadPoolBulkhead.of("keycloak", ThreadPoolBulkheadConfig.custom()
+                .coreThreadPoolSize(maxConcurrentCalls)
+                .maxThreadPoolSize(maxConcurrentCalls)
+                .queueCapacity(queueCapacity)
+                .build());
+        this.bulkhead.getEventPublisher().onCallRejected(e -> rejectedByBulkhead.incrementAndGet());
+
+        CircuitBreakerConfig breakerConfig = CircuitBreakerConfig.custom()
+                .failureRateThreshold(failureRateThreshold)
+                .slowCallRateThreshold(failureRateThreshold)
+                .slowCallDurationThreshold(slowCallThreshold)
+                .slidingWindowSize(slidingWindowSize)
+                .minimumNumberOfCalls(minimumCalls)
+                .waitDurationInOpenState(waitInOpenState)
+                .permittedNumberOfCallsInHalfOpenState(3)
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                // Saturazione locale del bulkhead e risposte 4xx: non è colpa di Keycloak
+                .ignoreExceptions(BulkheadFullException.class)
+                .ignoreException(KeycloakCircuitBreaker::isClientError)
+                .build();
+
+        for (String name : new String[]{PDP, ADMIN}) {
+            CircuitBreaker breaker = CircuitBreaker.of("keycloak-" + name, breakerConfig);
+            breaker.getEventPublisher().onStateTransition(e -> {
+                transitions.computeIfAbsent(e.getStateTransition().name(), k -> new AtomicLong()).incrementAndGet();
+                logger.warn("SECURITY: Keycloak circuit breaker '{}' {}", name, e.getStateTransition());
+            });
+            breaker.getEventPublisher().onCallNotPermitted(e -> rejectedByBreaker.incrementAndGet());
+            breakers.put(name, breaker);
+        }
+
+        timeLimiters.put(PDP, TimeLimiter.of(TimeLimiterConfig.custom().timeoutDuration(pdpTimeout).cancelRunningFuture(true).build()));
+        timeLimiters.put(ADMIN, TimeLimiter.of(TimeLimiterConfig.custom().timeoutDuration(adminTimeout).cancelRunningFuture(true).build()));
+    }
+
+    /**
+     * Esegue la chiamata sul pool del bulkhead, entro la deadline e sotto il circuit breaker
+     * della destinazione indicata. Qualunque fallimento (errore, timeout, circuito aperto,
+     * bulkhead pieno) viene passato al fallback.
+     */
+    public <T> T call(String target, Supplier<T> remoteCall, Function<Throwable, T> fallback) {
+        CircuitBreaker breaker = breakers.get(target);
+        TimeLimiter timeLimiter = timeLimiters.get(target);
+
+        Callable<T> timed = TimeLimiter.decorateFutureSupplier(timeLimiter,
+                () -> bulkhead.executeSupplier(remoteCall).toCompletableFuture());
+        Callable<T> guarded = CircuitBreaker.decorateCallable(breaker, timed);
+        try {
+            return guarded.call();
+        } catch (Exception e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof TimeoutException) {
+                timeouts.incrementAndGet();
+                logger.warn("SECURITY: Keycloak {} call exceeded its deadline", target);
+            } else if (!(cause instanceof CallNotPermittedException) && !(cause instanceof BulkheadFullException)
+                    && !isClientError(cause)) {
+                logger.error("SECURITY: Keycloak {} call failed: {}", target, cause.toString());
+            }
+            return fallback.apply(cause);
+        }
+    }
+
+    // Risposta 4xx di Keycloak, dall'Admin API (JAX-RS) o dall'AuthzClient, anche se incapsulata
+    public static boolean isClientError(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ClientErrorException) {
+                return true;
+            }
+            if (t instanceof HttpResponseException http) {
+                return http.getStatusCode() >= 400 && http.getStatusCode() < 500;
+            }
+        }
+        return false;
+    }
+
+    public CircuitBreaker.State state(String target) {
+        return breakers.get(target).getState();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        breakers.forEach((name, breaker) -> {
+            Map<String, Object> b = new LinkedHashMap<>();
+            b.put("state", breaker.getState());
+            b.put("failureRate", breaker.getMetrics().getFailureRate());
+            b.put("slowCallRate", breaker.getMetrics().getSlowCallRate());
+            b.put("bufferedCalls", breaker.getMetrics().getNumberOfBufferedCalls());
+            stats.put(name, b);
+        });
+        Map<String, Long> transitionCounts = new LinkedHashMap<>();
+        transitions.forEach((transition, count) -> transitionCounts.put(transition, count.get()));
+        stats.put("transitions", transitionCounts);
+        stats.put("bulkheadActiveThreads", bulkhead.getMetrics().getActiveThreadCount());
+        stats.put("bulkheadRemainingQueue", bulkhead.getMetrics().getRemainingQueueCapacity());
+        stats.put("rejectedByBulkhead", rejectedByBulkhead.get());
+        stats.put("rejectedByBreaker", rejectedByBreaker.get());
+        stats.put("timeouts", timeouts.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() throws Exception {
+        bulkhead.close();
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        Throwable t = e;
+        while ((t instanceof ExecutionException || t instanceof CompletionException)
+                && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
@@ -1,19 +1,51 @@
 package com.example.prenotazion_aule_keycloak.security;
 
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakCircuitBreaker;
+import com.example.prenotazion_aule_keycloak.session.NearCacheInvalidation;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.keycloak.authorization.client.AuthorizationDeniedException;
 import org.keycloak.authorization.client.AuthzClient;
 import org.keycloak.authorization.client.Configuration;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.idm.authorization.AuthorizationRequest;
 import org.keycloak.representations.idm.authorization.AuthorizationResponse;
+import org.keycloak.representations.idm.authorization.Permission;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @Service("pdp")
 public class KeycloakPdpService {
@@ -30,29 +62,160 @@ public class KeycloakPdpService {
     @Value("${keycloak.credentials.secret}")
     private String clientSecret;
 
+    // Permessi chiesti in blocco al primo check di ogni richiesta HTTP.
+    // Formato: "Risorsa:scope1,scope2;AltraRisorsa:scope"
+    @Value("${keycloak.pdp.preflight:}")
+    private String preflightSpec;
+
+    private Map<String, List<String>> preflightPermissions = Map.of();
+
+    private static final String PREFLIGHT_ATTRIBUTE = KeycloakPdpService.class.getName() + ".PREFLIGHT";
+
+    @Value("${keycloak.http.pool-size:20}")
+    private int poolSize;
+
+    @Value("${keycloak.http.connect-timeout:5s}")
+    private Duration connectTimeout;
+
+    @Value("${keycloak.http.read-timeout:10s}")
+    private Duration readTimeout;
+
+    // Con il circuito aperto: "fail-closed" nega sempre, "cached" riusa l'ultima decisione reale
+    @Value("${keycloak.resilience.pdp-fallback:fail-closed}")
+    private String fallbackMode;
+
+    @Value("${keycloak.resilience.max-stale:5m}")
+    private Duration maxStale;
+
+    private static final Logger logger = LoggerFactory.getLogger(KeycloakPdpService.class);
+
     private final OAuth2AuthorizedClientService authorizedClientService;
-    private AuthzClient authzClient;
+    private final PdpDecisionCache decisionCache;
+    private final LocalPolicyEngine localPolicyEngine;
+    private final KeycloakCircuitBreaker circuitBreaker;
+    private final MeterRegistry meterRegistry;
+
+    // Logout propagato agli altri nodi (session.store=jdbc); null = nodo singolo
+    private static final String LOGOUT_CHANNEL = "pdp";
+    private final NearCacheInvalidation invalidation;
+
+    // Da dove arriva la decisione: il tag "source" di pdp.check
+    enum Source { LOCAL, REQUEST, CACHE, PREFLIGHT, REMOTE, NONE, FAILURE }
 
-    public KeycloakPdpService(OAuth2AuthorizedClientService authorizedClientService) {
+    private record Verdict(boolean granted, boolean error, Source source) {}
+
+    // Bucket sotto il millisecondo: le decisioni locali e in cache sono di ordini di grandezza più veloci del round trip
+    private static final Duration[] LATENCY_BUCKETS = {
+            Duration.ofNanos(50_000), Duration.ofNanos(250_000), Duration.ofMillis(1), Duration.ofMillis(5),
+            Duration.ofMillis(25), Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500),
+            Duration.ofSeconds(1), Duration.ofSeconds(5)};
+
+    // Risorse e scope sono quelli scritti nelle @PreAuthorize e nel pre-flight: poche combinazioni fisse
+    private final Map<String, Timer> checkTimers = new ConcurrentHashMap<>();
+
+    private CloseableHttpClient httpClient;
+    private volatile AuthzClient authzClient;
+
+    public KeycloakPdpService(OAuth2AuthorizedClientService authorizedClientService,
+                              PdpDecisionCache decisionCache,
+                              LocalPolicyEngine localPolicyEngine,
+                              KeycloakCircuitBreaker circuitBreaker,
+                              MeterRegistry meterRegistry) {
+        this(authorizedClientService, decisionCache, localPolicyEngine, circuitBreaker, meterRegistry, null);
+    }
+
+    @Autowired
+    public KeycloakPdpService(OAuth2AuthorizedClientService authorizedClientService,
+                              PdpDecisionCache decisionCache,
+                              LocalPolicyEngine localPolicyEngine,
+                              KeycloakCircuitBreaker circuitBreaker,
+                              MeterRegistry meterRegistry,
+                              ObjectProvider<NearCacheInvalidation> invalidation) {
         this.authorizedClientService = authorizedClientService;
+        this.decisionCache = decisionCache;
+        this.localPolicyEngine = localPolicyEngine;
+        this.circuitBreaker = circuitBreaker;
+        this.meterRegistry = meterRegistry;
+        this.invalidation = invalidation == null ? null : invalidation.getIfAvailable();
+        if (this.invalidation != null) {
+            this.invalidation.register(LOGOUT_CHANNEL, decisionCache::invalidate);
+        }
+    }
+
+    // Pool di connessioni condiviso da tutte le richieste UMA (keep-alive, niente handshake TLS ripetuti)
+    @PostConstruct
+    void initHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSize);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setConnectionRequestTimeout((int) connectTimeout.toMillis())
+                .setSocketTimeout((int) readTimeout.toMillis())
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                .build();
     }
 
+    @PreDestroy
+    void closeHttpClient() throws IOException {
+        httpClient.close();
+    }
+
+    // Creazione lazy (scarica la configurazione UMA dal server) ma thread-safe: double-checked locking
     private AuthzClient getAuthzClient() {
-        if (authzClient == null) {
-            Map<String, Object> credentials = new HashMap<>();
-            credentials.put("secret", clientSecret);
-            Configuration configuration = new Configuration(
-                    authServerUrl, realm, clientId, credentials, null
-            );
-            authzClient = AuthzClient.create(configuration);
+        AuthzClient client = authzClient;
+        if (client == null) {
+            synchronized (this) {
+                client = authzClient;
+                if (client == null) {
+                    Map<String, Object> credentials = new HashMap<>();
+                    credentials.put("secret", clientSecret);
+                    Configuration configuration = new Configuration(
+                            authServerUrl, realm, clientId, credentials, httpClient
+                    );
+                    client = AuthzClient.create(configuration);
+                    authzClient = client;
+                }
+            }
         }
-        return authzClient;
+        return client;
     }
 
     public boolean check(Authentication authentication, String resourceName, String scope) {
+        long start = System.nanoTime();
+        Verdict verdict = decide(authentication, resourceName, scope);
+        checkTimer(resourceName, scope, verdict).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return verdict.granted();
+    }
+
+    private Timer checkTimer(String resourceName, String scope, Verdict verdict) {
+        String decision = verdict.error() ? "error" : verdict.granted() ? "allow" : "deny";
+        String source = verdict.source().name().toLowerCase(Locale.ROOT);
+        return checkTimers.computeIfAbsent(resourceName + '#' + scope + '#' + decision + '#' + source,
+                k -> Timer.builder("pdp.check")
+                        .description("Decisioni del PDP Keycloak")
+                        .tag("resource", resourceName)
+                        .tag("scope", scope)
+                        .tag("decision", decision)
+                        .tag("source", source)
+                        .serviceLevelObjectives(LATENCY_BUCKETS)
+                        .register(meterRegistry));
+    }
+
+    private static Verdict verdict(PdpDecisionCache.Decision decision, Source source) {
+        return new Verdict(decision == PdpDecisionCache.Decision.GRANT, decision == PdpDecisionCache.Decision.ERROR, source);
+    }
+
+    private Verdict decide(Authentication authentication, String resourceName, String scope) {
         if (!(authentication instanceof OAuth2AuthenticationToken)) {
             // Se è un login classico o anonimo, restituisce false subito.
-            return false;
+            return new Verdict(false, false, Source.NONE);
         }
 
         OAuth2AuthenticationToken oauthToken = (OAuth2AuthenticationToken) authentication;
@@ -64,24 +227,228 @@ public class KeycloakPdpService {
                     oauthToken.getName());
 
             if (client == null || client.getAccessToken() == null) {
-                return false;
+                return new Verdict(false, false, Source.NONE);
             }
 
-            String accessToken = client.getAccessToken().getTokenValue();
+            OAuth2AccessToken accessToken = client.getAccessToken();
 
-            // Preparazione della Domanda
-            AuthorizationRequest request = new AuthorizationRequest();
+            // Modalità locale: decisione in-process; il server viene interpellato solo
+            // per le policy che il motore locale non sa valutare (UNKNOWN)
+            if (localPolicyEngine.isEnabled()) {
+                LocalPolicyEngine.Decision local = localPolicyEngine.evaluate(accessToken.getTokenValue(), resourceName, scope);
+                if (local != LocalPolicyEngine.Decision.UNKNOWN) {
+                    return new Verdict(local == LocalPolicyEngine.Decision.GRANT, false, Source.LOCAL);
+                }
+            }
 
-            request.addPermission(resourceName, scope);
+            // Già deciso in questa richiesta HTTP (pre-flight)? Risposta dalla memoria
+            String permission = permissionKey(resourceName, scope);
+            Map<String, PdpDecisionCache.Decision> memo = requestMemo();
+            if (memo != null && memo.containsKey(permission)) {
+                return verdict(memo.get(permission), Source.REQUEST);
+            }
+
+            // Decisione già nota per questo token? Niente round trip verso Keycloak. Anche un ERROR in cache
+            // passa dal fallback: in modalità "cached" ogni check del disservizio riusa l'ultima decisione reale
+            PdpDecisionCache.Key key = new PdpDecisionCache.Key(
+                    oauthToken.getName(), accessToken.getIssuedAt(), resourceName, scope);
+            PdpDecisionCache.Decision cached = decisionCache.get(key);
+            if (cached != null) {
+                return verdict(withFallback(key, cached), Source.CACHE);
+            }
+
+            // Pre-flight: una sola richiesta UMA per tutti i permessi configurati,
+            // i check successivi della stessa richiesta HTTP non vanno più in rete
+            Map<String, List<String>> preflight = preflightPermissions();
+            if (memo != null && preflight.getOrDefault(resourceName, List.of()).contains(scope)) {
+                Map<String, PdpDecisionCache.Decision> batch = askKeycloakBatch(accessToken.getTokenValue(), preflight);
+                batch.forEach((perm, decision) -> {
+                    String[] parts = perm.split("#", 2);
+                    PdpDecisionCache.Key permKey = new PdpDecisionCache.Key(oauthToken.getName(), accessToken.getIssuedAt(), parts[0], parts[1]);
+                    PdpDecisionCache.Decision resolved = withFallback(permKey, decision);
+                    decisionCache.put(permKey, decision, accessToken.getExpiresAt());
+                    memo.put(perm, resolved);
+                });
+                return verdict(memo.get(permission), Source.PREFLIGHT);
+            }
 
-            AuthorizationResponse response = getAuthzClient().authorization(accessToken).authorize(request);
-            return response.getToken() != null;
+            PdpDecisionCache.Decision decision = askKeycloak(accessToken.getTokenValue(), resourceName, scope);
+            PdpDecisionCache.Decision resolved = withFallback(key, decision);
+            decisionCache.put(key, decision, accessToken.getExpiresAt());
+            return verdict(resolved, Source.REMOTE);
 
         } catch (Exception e) {
-            System.out.println("❌ ERRORE PDP KEYCLOAK: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("SECURITY: PDP check failed for {} on '{}' ({})", oauthToken.getName(), resourceName, scope, e);
+            return new Verdict(false, true, Source.FAILURE);
+        }
+    }
+
+    // Keycloak non raggiungibile (errore, timeout, circuito aperto): fail-closed oppure ultima decisione reale
+    private PdpDecisionCache.Decision withFallback(PdpDecisionCache.Key key, PdpDecisionCache.Decision decision) {
+        if (decision != PdpDecisionCache.Decision.ERROR || !"cached".equalsIgnoreCase(fallbackMode)) {
+            return decision;
+        }
+        PdpDecisionCache.Decision stale = decisionCache.getStale(key, maxStale);
+        if (stale != null) {
+            logger.warn("SECURITY: Keycloak unavailable, reusing last known decision {} for {} on '{}' ({})",
+                    stale, key.principal(), key.resource(), key.scope());
+            return stale;
+        }
+        return decision;
+    }
+
+    private PdpDecisionCache.Decision askKeycloak(String accessToken, String resourceName, String scope) {
+        return circuitBreaker.call(KeycloakCircuitBreaker.PDP, () -> {
+            try {
+                // Preparazione della Domanda
+                AuthorizationRequest request = new AuthorizationRequest();
+
+                request.addPermission(resourceName, scope);
+
+                AuthorizationResponse response = getAuthzClient().authorization(accessToken).authorize(request);
+                return response.getToken() != null ? PdpDecisionCache.Decision.GRANT : PdpDecisionCache.Decision.DENY;
+
+            } catch (RuntimeException e) {
+                // Un 403 di Keycloak è un DENY legittimo (e non conta come errore per il circuit breaker);
+                // anche gli altri 4xx (token scaduto o non valido) negano, senza fallback sull'ultima
+                // decisione. Tutto il resto (rete, 5xx, ...) risale al circuit breaker
+                if (isDenied(e) || isRejected(e)) {
+                    return PdpDecisionCache.Decision.DENY;
+                }
+                throw e;
+            }
+        }, error -> PdpDecisionCache.Decision.ERROR);
+    }
+
+    // Chiede tutti i permessi in un'unica AuthorizationRequest e legge quelli concessi dal claim
+    // "authorization.permissions" dell'RPT. Keycloak risponde 403 solo se non ne concede nessuno.
+    private Map<String, PdpDecisionCache.Decision> askKeycloakBatch(String accessToken, Map<String, List<String>> permissions) {
+        Map<String, PdpDecisionCache.Decision> denied = new HashMap<>();
+        permissions.forEach((resource, scopes) ->
+                scopes.forEach(scope -> denied.put(permissionKey(resource, scope), PdpDecisionCache.Decision.DENY)));
+
+        return circuitBreaker.call(KeycloakCircuitBreaker.PDP, () -> {
+            Map<String, PdpDecisionCache.Decision> result = new HashMap<>(denied);
+            try {
+                AuthorizationRequest request = new AuthorizationRequest();
+                permissions.forEach(request::addPermission);
+
+                AuthorizationResponse response = getAuthzClient().authorization(accessToken).authorize(request);
+                AccessToken rpt = new JWSInput(response.getToken()).readJsonContent(AccessToken.class);
+                if (rpt.getAuthorization() != null && rpt.getAuthorization().getPermissions() != null) {
+                    for (Permission granted : rpt.getAuthorization().getPermissions()) {
+                        if (granted.getScopes() == null) continue;
+                        for (String scope : granted.getScopes()) {
+                            result.computeIfPresent(permissionKey(granted.getResourceName(), scope),
+                                    (k, v) -> PdpDecisionCache.Decision.GRANT);
+                        }
+                    }
+                }
+            } catch (JWSInputException e) {
+                throw new IllegalStateException("RPT non leggibile", e);
+            } catch (RuntimeException e) {
+                if (!isDenied(e) && !isRejected(e)) {
+                    throw e;
+                }
+            }
+            return result;
+        }, error -> {
+            Map<String, PdpDecisionCache.Decision> errors = new HashMap<>(denied);
+            errors.replaceAll((k, v) -> PdpDecisionCache.Decision.ERROR);
+            return errors;
+        });
+    }
+
+    /**
+     * Permessi concessi all'utente tra quelli del pre-flight ("Risorsa#scope").
+     * Nella stessa richiesta HTTP costa al massimo una chiamata a Keycloak: i template
+     * lo usano per nascondere i pulsanti che l'utente non può usare.
+     */
+    public Set<String> grantedPermissions(Authentication authentication) {
+        Set<String> granted = new HashSet<>();
+        preflightPermissions().forEach((resource, scopes) -> scopes.forEach(scope -> {
+            if (check(authentication, resource, scope)) {
+                granted.add(permissionKey(resource, scope));
+            }
+        }));
+        return granted;
+    }
+
+    @PostConstruct
+    void parsePreflightSpec() {
+        Map<String, List<String>> permissions = new LinkedHashMap<>();
+        if (preflightSpec != null && !preflightSpec.isBlank()) {
+            for (String entry : preflightSpec.split(";")) {
+                String[] parts = entry.split(":", 2);
+                if (parts.length == 2) {
+                    permissions.put(parts[0].trim(), Arrays.stream(parts[1].split(",")).map(String::trim).toList());
+                }
+            }
+        }
+        preflightPermissions = Map.copyOf(permissions);
+    }
+
+    private Map<String, List<String>> preflightPermissions() {
+        return preflightPermissions;
+    }
+
+    // Memo delle decisioni legato alla richiesta HTTP corrente (null fuori da una richiesta)
+    @SuppressWarnings("unchecked")
+    private static Map<String, PdpDecisionCache.Decision> requestMemo() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Object memo = attributes.getAttribute(PREFLIGHT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (memo == null) {
+            memo = new HashMap<String, PdpDecisionCache.Decision>();
+            attributes.setAttribute(PREFLIGHT_ATTRIBUTE, memo, RequestAttributes.SCOPE_REQUEST);
+        }
+        return (Map<String, PdpDecisionCache.Decision>) memo;
+    }
+
+    private static String permissionKey(String resourceName, String scope) {
+        return resourceName + "#" + scope;
+    }
+
+    private static boolean isRejected(Throwable e) {
+        if (!KeycloakCircuitBreaker.isClientError(e)) {
             return false;
         }
+        logger.warn("SECURITY: Keycloak rejected the UMA request, treated as deny ({})", e.getMessage());
+        return true;
+    }
+
+    private static boolean isDenied(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof AuthorizationDeniedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Invocato al logout: le decisioni dell'utente non devono sopravvivere alla sessione, su nessun nodo
+    public void evictDecisions(Authentication authentication) {
+        if (authentication != null) {
+            decisionCache.invalidate(authentication.getName());
+            if (invalidation != null) {
+                try {
+                    invalidation.publish(LOGOUT_CHANNEL, authentication.getName());
+                } catch (RuntimeException e) {
+                    // Il logout va avanti: sugli altri nodi le decisioni scadono comunque con il loro TTL
+                    logger.warn("SYSTEM: PDP logout not propagated to other nodes ({})", e.getMessage());
+                }
+            }
+        }
+    }
+
+    public PdpDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    public KeycloakCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
     }
 
     /**
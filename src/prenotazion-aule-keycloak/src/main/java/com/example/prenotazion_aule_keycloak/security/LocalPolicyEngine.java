@@ -0,0 +1,346 @@
+package com.example.prenotazion_aule_keycloak.security;
+
+import com.example.prenotazion_aule_keycloak.service.KeycloakService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * PDP locale: replica in-process il modello di autorizzazione del client Keycloak
+ * (risorse, scope, permission e policy) e lo valuta contro i claim dell'access token.
+ *
+ * Il modello arriva dall'export del realm (config/keycloak/realm-export.json) oppure
+ * da una sincronizzazione periodica con l'Admin API. Le policy che non sappiamo valutare
+ * localmente (js, time, ...) producono {@link Decision#UNKNOWN}: in quel caso il chiamante
+ * deve chiedere al server Keycloak.
+ *
+ * La firma dell'access token non viene riverificata: arriva dall'OAuth2AuthorizedClientService,
+ * cioè direttamente dal token endpoint di Keycloak su TLS. La validità temporale sì: con exp
+ * passato o nbf futuro il server rifiuterebbe il token, quindi la decisione torna a lui (UNKNOWN).
+ */
+@Component
+public class LocalPolicyEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalPolicyEngine.class);
+
+    public enum Decision { GRANT, DENY, UNKNOWN }
+
+    record ResourceDef(String name, String type, Set<String> scopes) {}
+
+    record PolicyDef(String name, String type, boolean negative, String decisionStrategy, JsonNode config) {
+
+        List<String> listConfig(String key) {
+            return parseJsonArray(config.path(key).asText(null));
+        }
+    }
+
+    record Model(String enforcementMode, String decisionStrategy,
+                 Map<String, ResourceDef> resources, Map<String, PolicyDef> policies) {}
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ResourceLoader resourceLoader;
+    private final KeycloakService keycloakService;
+
+    @Value("${keycloak.pdp.mode:remote}")
+    private String mode;
+
+    @Value("${keycloak.pdp.local.source:file}")
+    private String source;
+
+    @Value("${keycloak.pdp.local.model-location:file:../../config/keycloak/realm-export.json}")
+    private String modelLocation;
+
+    @Value("${keycloak.resource}")
+    private String clientId;
+
+    private volatile Model model;
+
+    public LocalPolicyEngine(ResourceLoader resourceLoader, KeycloakService keycloakService) {
+        this.resourceLoader = resourceLoader;
+        this.keycloakService = keycloakService;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (isEnabled()) {
+            reload();
+        }
+    }
+
+    public boolean isEnabled() {
+        return "local".equalsIgnoreCase(mode);
+    }
+
+    // Sincronizzazione periodica con l'Admin API (solo se è la sorgente configurata)
+    @Scheduled(fixedDelayString = "${keycloak.pdp.local.sync-interval-ms:300000}",
+            initialDelayString = "${keycloak.pdp.local.sync-interval-ms:300000}")
+    public void scheduledSync() {
+        if (isEnabled() && "admin-api".equalsIgnoreCase(source)) {
+            reload();
+        }
+    }
+
+    public void reload() {
+        try {
+            JsonNode settings = "admin-api".equalsIgnoreCase(source)
+                    ? MAPPER.valueToTree(keycloakService.exportAuthorizationSettings(clientId))
+                    : readExport(resourceLoader.getResource(modelLocation), clientId);
+            model = parse(settings);
+            logger.info("SECURITY: Local PDP model loaded from {} ({} resources, {} policies)",
+                    source, model.resources().size(), model.policies().size());
+        } catch (Exception e) {
+            // Senza modello valido ogni decisione diventa UNKNOWN -> PDP remoto
+            logger.error("SECURITY: Unable to load local PDP model from {}: {}", source, e.getMessage());
+        }
+    }
+
+    void load(JsonNode authorizationSettings) {
+        model = parse(authorizationSettings);
+    }
+
+    // --- Valutazione ---
+
+    public Decision evaluate(String accessToken, String resourceName, String scope) {
+        JsonNode claims;
+        try {
+            claims = decodeClaims(accessToken);
+        } catch (IllegalArgumentException e) {
+            return Decision.UNKNOWN; // token opaco: decide il server
+        }
+        return evaluate(claims, resourceName, scope);
+    }
+
+    // Coppie (risorsa, scope) del modello caricato; risorse senza scope -> scope null
+    public List<String[]> resourceScopePairs() {
+        List<String[]> pairs = new ArrayList<>();
+        Model m = model;
+        if (m != null) {
+            for (ResourceDef r : m.resources().values()) {
+                if (r.scopes().isEmpty()) {
+                    pairs.add(new String[]{r.name(), null});
+                }
+                r.scopes().forEach(scope -> pairs.add(new String[]{r.name(), scope}));
+            }
+        }
+        return pairs;
+    }
+
+    public Decision evaluate(JsonNode claims, String resourceName, String scope) {
+        Model m = model;
+        if (m == null || !isCurrent(claims)) {
+            return Decision.UNKNOWN;
+        }
+        if ("DISABLED".equals(m.enforcementMode())) {
+            return Decision.GRANT;
+        }
+        ResourceDef resource = m.resources().get(resourceName);
+        if (resource == null || (scope != null && !resource.scopes().isEmpty() && !resource.scopes().contains(scope))) {
+            // Keycloak risponde con un errore: lasciamo che sia lui a deciderlo
+            return Decision.UNKNOWN;
+        }
+
+        List<PolicyDef> permissions = applicablePermissions(m, resource, scope);
+        if (permissions.isEmpty()) {
+            return "PERMISSIVE".equals(m.enforcementMode()) ? Decision.GRANT : Decision.DENY;
+        }
+
+        List<Decision> results = new ArrayList<>();
+        for (PolicyDef permission : permissions) {
+            results.add(evaluatePolicy(m, permission, claims, new HashSet<>()));
+        }
+        return combine(m.decisionStrategy(), results);
+    }
+
+    // exp e nbf in secondi epoch (RFC 7519); se mancano non limitano nulla
+    private boolean isCurrent(JsonNode claims) {
+        long now = Instant.now().getEpochSecond();
+        JsonNode exp = claims.path("exp");
+        JsonNode nbf = claims.path("nbf");
+        return (!exp.isNumber() || now < exp.asLong()) && (!nbf.isNumber() || now >= nbf.asLong());
+    }
+
+    private List<PolicyDef> applicablePermissions(Model m, ResourceDef resource, String scope) {
+        List<PolicyDef> result = new ArrayList<>();
+        for (PolicyDef p : m.policies().values()) {
+            if ("resource".equals(p.type())) {
+                String resourceType = p.config().path("defaultResourceType").asText(p.config().path("resourceType").asText(null));
+                if (p.listConfig("resources").contains(resource.name())
+                        || (resourceType != null && resourceType.equals(resource.type()))) {
+                    result.add(p);
+                }
+            } else if ("scope".equals(p.type())) {
+                List<String> resources = p.listConfig("resources");
+                if (scope != null && p.listConfig("scopes").contains(scope)
+                        && (resources.isEmpty() || resources.contains(resource.name()))) {
+                    result.add(p);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Decision evaluatePolicy(Model m, PolicyDef policy, JsonNode claims, Set<String> visiting) {
+        if (!visiting.add(policy.name())) {
+            return Decision.UNKNOWN; // ciclo tra policy aggregate
+        }
+        Decision raw = switch (policy.type()) {
+            case "resource", "scope", "aggregate" -> {
+                List<Decision> nested = new ArrayList<>();
+                for (String name : policy.listConfig("applyPolicies")) {
+                    PolicyDef applied = m.policies().get(name);
+                    nested.add(applied == null ? Decision.UNKNOWN : evaluatePolicy(m, applied, claims, visiting));
+                }
+                yield nested.isEmpty() ? Decision.DENY : combine(policy.decisionStrategy(), nested);
+            }
+            case "role" -> evaluateRolePolicy(policy, claims);
+            case "user" -> grantIf(policy.listConfig("users").contains(claims.path("sub").asText()));
+            case "client" -> grantIf(policy.listConfig("clients").contains(claims.path("azp").asText()));
+            case "regex" -> evaluateRegexPolicy(policy, claims);
+            default -> Decision.UNKNOWN; // js, time, group, ...
+        };
+        visiting.remove(policy.name());
+        if (policy.negative() && raw != Decision.UNKNOWN) {
+            return raw == Decision.GRANT ? Decision.DENY : Decision.GRANT;
+        }
+        return raw;
+    }
+
+    // Role policy: almeno uno dei ruoli, e tutti quelli marcati "required"
+    private Decision evaluateRolePolicy(PolicyDef policy, JsonNode claims) {
+        Set<String> userRoles = rolesOf(claims);
+        JsonNode roles = readTree(policy.config().path("roles").asText("[]"));
+        boolean anyMatch = false;
+        for (JsonNode role : roles) {
+            boolean has = userRoles.contains(role.path("id").asText());
+            if (role.path("required").asBoolean(false) && !has) {
+                return Decision.DENY;
+            }
+            anyMatch |= has;
+        }
+        return grantIf(anyMatch);
+    }
+
+    // Regex policy (attribute-based): il claim indicato deve rispettare il pattern
+    private Decision evaluateRegexPolicy(PolicyDef policy, JsonNode claims) {
+        if (policy.config().path("targetContextAttributes").asBoolean(false)) {
+            return Decision.UNKNOWN;
+        }
+        JsonNode value = claims;
+        for (String part : policy.config().path("targetClaim").asText("").split("\\.")) {
+            value = value.path(part);
+        }
+        if (value.isMissingNode() || value.isNull()) {
+            return Decision.DENY;
+        }
+        return grantIf(Pattern.compile(policy.config().path("pattern").asText()).matcher(value.asText()).matches());
+    }
+
+    private static Decision combine(String strategy, List<Decision> results) {
+        if (results.contains(Decision.UNKNOWN)) {
+            return Decision.UNKNOWN;
+        }
+        long grants = results.stream().filter(d -> d == Decision.GRANT).count();
+        long denies = results.size() - grants;
+        return switch (strategy == null ? "UNANIMOUS" : strategy) {
+            case "AFFIRMATIVE" -> grantIf(grants > 0);
+            case "CONSENSUS" -> grantIf(grants > denies);
+            default -> grantIf(denies == 0);
+        };
+    }
+
+    private static Decision grantIf(boolean condition) {
+        return condition ? Decision.GRANT : Decision.DENY;
+    }
+
+    // Ruoli di realm ("ADMIN") e di client ("prenotazioni-app/uma_protection") presenti nel token
+    private static Set<String> rolesOf(JsonNode claims) {
+        Set<String> roles = new HashSet<>();
+        claims.path("realm_access").path("roles").forEach(r -> roles.add(r.asText()));
+        claims.path("resource_access").fields().forEachRemaining(client ->
+                client.getValue().path("roles").forEach(r -> roles.add(client.getKey() + "/" + r.asText())));
+        return roles;
+    }
+
+    // --- Parsing ---
+
+    static JsonNode decodeClaims(String jwt) {
+        String[] parts = jwt.split("\\.");
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Access token non in formato JWT");
+        }
+        return readTree(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+    }
+
+    // Accetta sia l'export completo del realm sia le sole authorizationSettings del client
+    static JsonNode readExport(Resource resource, String clientId) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            JsonNode root = MAPPER.readTree(in);
+            if (root.has("policies")) {
+                return root;
+            }
+            for (JsonNode client : root.path("clients")) {
+                if (clientId.equals(client.path("clientId").asText()) && client.has("authorizationSettings")) {
+                    return client.get("authorizationSettings");
+                }
+            }
+            throw new IllegalStateException("Nessuna authorizationSettings per il client " + clientId);
+        }
+    }
+
+    static Model parse(JsonNode settings) {
+        Map<String, ResourceDef> resources = new HashMap<>();
+        for (JsonNode r : settings.path("resources")) {
+            Set<String> scopes = new HashSet<>();
+            r.path("scopes").forEach(s -> scopes.add(s.path("name").asText()));
+            resources.put(r.path("name").asText(), new ResourceDef(r.path("name").asText(), r.path("type").asText(null), scopes));
+        }
+        Map<String, PolicyDef> policies = new HashMap<>();
+        for (JsonNode p : settings.path("policies")) {
+            policies.put(p.path("name").asText(), new PolicyDef(
+                    p.path("name").asText(),
+                    p.path("type").asText(),
+                    "NEGATIVE".equals(p.path("logic").asText()),
+                    p.path("decisionStrategy").asText("UNANIMOUS"),
+                    p.path("config")));
+        }
+        return new Model(settings.path("policyEnforcementMode").asText("ENFORCING"),
+                settings.path("decisionStrategy").asText("UNANIMOUS"), resources, policies);
+    }
+
+    private static List<String> parseJsonArray(String json) {
+        List<String> values = new ArrayList<>();
+        if (json != null) {
+            readTree(json).forEach(v -> values.add(v.asText()));
+        }
+        return values;
+    }
+
+    private static JsonNode readTree(String json) {
+        try {
+            return MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("JSON non valido nel modello di autorizzazione", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.prenotazion_aule_keycloak.security;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache delle decisioni del PDP Keycloak, chiave = (identità del token, risorsa, scope).
+ *
+ * - GRANT resta valido per grant-ttl, mai oltre la scadenza dell'access token;
+ * - DENY ed ERROR hanno TTL brevi e separati, così un disservizio di Keycloak
+ *   non congela risposte sbagliate a lungo;
+ * - dimensione massima con eviction LRU;
+ * - invalidazione esplicita per utente (logout);
+ * - ultima decisione "buona" (GRANT/DENY) conservata anche dopo la scadenza, per il
+ *   fallback quando il circuit breaker verso Keycloak è aperto.
+ */
+@Component
+public class PdpDecisionCache {
+
+    public enum Decision { GRANT, DENY, ERROR }
+
+    // L'identità del token è (utente, istante di emissione): un refresh produce nuove chiavi
+    public record Key(String principal, Instant tokenIssuedAt, String resource, String scope) {}
+
+    // lastGood/lastGoodAt: ultima risposta reale di Keycloak, sopravvive agli ERROR successivi
+    private record Entry(Decision decision, Instant expiresAt, Decision lastGood, Instant lastGoodAt) {}
+
+    private final int maxEntries;
+    private final Duration grantTtl;
+    private final Duration denyTtl;
+    private final Duration errorTtl;
+    private final Clock clock;
+
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Autowired
+    public PdpDecisionCache(@Value("${keycloak.pdp.cache.max-entries:10000}") int maxEntries,
+                            @Value("${keycloak.pdp.cache.grant-ttl:PT60S}") Duration grantTtl,
+                            @Value("${keycloak.pdp.cache.deny-ttl:PT5S}") Duration denyTtl,
+                            @Value("${keycloak.pdp.cache.error-ttl:PT2S}") Duration errorTtl) {
+        this(maxEntries, grantTtl, denyTtl, errorTtl, Clock.systemUTC());
+    }
+
+    PdpDecisionCache(int maxEntries, Duration grantTtl, Duration denyTtl, Duration errorTtl, Clock clock) {
+        this.maxEntries = maxEntries;
+        this.grantTtl = grantTtl;
+        this.denyTtl = denyTtl;
+        this.errorTtl = errorTtl;
+        this.clock = clock;
+        // accessOrder = true -> l'elemento più vecchio è il meno usato di recente (LRU)
+        this.entries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > PdpDecisionCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Restituisce la decisione in cache, oppure null se assente/scaduta
+    public Decision get(Key key) {
+        Instant now = clock.instant();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && now.isBefore(entry.expiresAt())) {
+                hits.incrementAndGet();
+                return entry.decision();
+            }
+            // Le entry scadute restano (fino all'eviction LRU) come riserva per getStale
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Ultima decisione reale, anche se scaduta, purché non più vecchia di maxStale
+    public Decision getStale(Key key, Duration maxStale) {
+        Instant now = clock.instant();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastGood() != null && now.isBefore(entry.lastGoodAt().plus(maxStale))) {
+                return entry.lastGood();
+            }
+        }
+        return null;
+    }
+
+    public void put(Key key, Decision decision, Instant tokenExpiresAt) {
+        Instant now = clock.instant();
+        Instant expiresAt = now.plus(switch (decision) {
+            case GRANT -> grantTtl;
+            case DENY -> denyTtl;
+            case ERROR -> errorTtl;
+        });
+        if (tokenExpiresAt != null && tokenExpiresAt.isBefore(expiresAt)) {
+            expiresAt = tokenExpiresAt;
+        }
+        if (!now.isBefore(expiresAt)) {
+            return; // token già scaduto: niente da cachare
+        }
+        synchronized (entries) {
+            if (decision == Decision.ERROR) {
+                Entry previous = entries.get(key);
+                entries.put(key, new Entry(decision, expiresAt,
+                        previous == null ? null : previous.lastGood(), previous == null ? null : previous.lastGoodAt()));
+            } else {
+                entries.put(key, new Entry(decision, expiresAt, decision, now));
+            }
+        }
+    }
+
+    // Logout: rimuove tutte le decisioni dell'utente, qualunque token le abbia prodotte
+    public int invalidate(String principal) {
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().principal().equals(principal)) {
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("evictions", getEvictions());
+        return stats;
+    }
+}
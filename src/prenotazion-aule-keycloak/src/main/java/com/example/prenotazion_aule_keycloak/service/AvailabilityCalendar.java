@@ -0,0 +1,164 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Calendario mensile di disponibilità: griglia aule x giorni calcolata da una sola query
+ * aggregata su bookings (GROUP BY aula, giorno), senza caricare entità Booking.
+ *
+ * Stato di ogni cella: 0 = libera, 1 = parzialmente occupata, 2 = piena.
+ * Aule intere: piena quando i minuti prenotati dentro l'orario di apertura lo coprono tutto (o c'è
+ * una prenotazione di tutto il giorno); le prenotazioni fuori orario non contano. Aule a posti: piena quando i posti presi arrivano alla capienza.
+ * Con i minuti prenotati (aule intere) e i posti presi (aule a posti) di ogni giorno la pagina
+ * applica sul posto le variazioni di /user/live, senza richiedere di nuovo la griglia.
+ */
+@Component
+public class AvailabilityCalendar {
+
+    public static final byte FREE = 0;
+    public static final byte PARTIAL = 1;
+    public static final byte FULL = 2;
+
+    // Lo stream della risposta lo chiude il container, non il generatore
+    private static final JsonFactory JSON = JsonFactory.builder().disable(StreamWriteFeature.AUTO_CLOSE_TARGET).build();
+
+    private final BookingRepository bookingRepository;
+    private final RoomCatalog roomCatalog;
+
+    @Value("${booking.slots.opening-time:08:00}")
+    private String openingTime;
+
+    @Value("${booking.slots.closing-time:20:00}")
+    private String closingTime;
+
+    public AvailabilityCalendar(BookingRepository bookingRepository, RoomCatalog roomCatalog) {
+        this.bookingRepository = bookingRepository;
+        this.roomCatalog = roomCatalog;
+    }
+
+    // Una riga della griglia: taken (posti presi per giorno) solo per le aule a posti, minutes (minuti
+    // prenotati per giorno) solo per le aule intere
+    public record RoomRow(Room room, byte[] states, int[] taken, int[] minutes) {}
+
+    public record MonthGrid(YearMonth month, int openMinutes, List<RoomRow> rows, String etag) {
+
+        public byte state(Long roomId, LocalDate date) {
+            return rows.stream().filter(r -> r.room().getId().equals(roomId)).findFirst()
+                    .map(r -> r.states()[date.getDayOfMonth() - 1]).orElseThrow();
+        }
+
+        /**
+         * JSON compatto scritto in streaming: gli stati di un'aula sono una stringa di cifre,
+         * un carattere per giorno (es. "0012000...").
+         */
+        public void writeJson(OutputStream out) throws IOException {
+            try (JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+                json.writeStartObject();
+                json.writeStringField("month", month.toString());
+                json.writeNumberField("days", month.lengthOfMonth());
+                json.writeNumberField("openMinutes", openMinutes);
+                json.writeArrayFieldStart("rooms");
+                for (RoomRow row : rows) {
+                    json.writeStartObject();
+                    json.writeNumberField("id", row.room().getId());
+                    json.writeStringField("name", row.room().getName());
+                    json.writeNumberField("capacity", row.room().getCapacity());
+                    json.writeStringField("states", encode(row.states()));
+                    if (row.taken() != null) {
+                        json.writeArrayFieldStart("taken");
+                        for (int t : row.taken()) json.writeNumber(t);
+                        json.writeEndArray();
+                    }
+                    if (row.minutes() != null) {
+                        json.writeArrayFieldStart("minutes");
+                        for (int m : row.minutes()) json.writeNumber(m);
+                        json.writeEndArray();
+                    }
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public MonthGrid month(YearMonth month, Long roomId) {
+        List<Room> rooms = roomCatalog.all().stream()
+                .filter(r -> roomId == null || r.getId().equals(roomId))
+                .toList();
+        int days = month.lengthOfMonth();
+        TimeSlot opening = TimeSlot.of(LocalTime.parse(openingTime), LocalTime.parse(closingTime));
+        int openMinutes = opening.minutes();
+
+        Map<Long, RoomRow> byRoom = new HashMap<>();
+        List<RoomRow> rows = new ArrayList<>(rooms.size());
+        for (Room room : rooms) {
+            RoomRow row = room.isSeatBooking()
+                    ? new RoomRow(room, new byte[days], new int[days], null)
+                    : new RoomRow(room, new byte[days], null, new int[days]);
+            byRoom.put(room.getId(), row);
+            rows.add(row);
+        }
+
+        for (BookingRepository.DayOccupancy cell : bookingRepository.findDayOccupancy(month.atDay(1), month.atEndOfMonth(), roomId,
+                opening.startMinute(), opening.endMinute())) {
+            RoomRow row = byRoom.get(cell.getRoomId());
+            if (row == null) {
+                continue; // aula creata dopo lo snapshot del catalogo
+            }
+            int day = cell.getDate().getDayOfMonth() - 1;
+            if (row.taken() != null) {
+                row.taken()[day] = (int) cell.getBookings();
+                row.states()[day] = cell.getBookings() >= row.room().getCapacity() ? FULL : PARTIAL;
+            } else {
+                row.minutes()[day] = (int) cell.getBookedMinutes();
+                row.states()[day] = cell.getBookedMinutes() >= openMinutes ? FULL : cell.getBookedMinutes() > 0 ? PARTIAL : FREE;
+            }
+        }
+        return new MonthGrid(month, openMinutes, rows, etag(month, rows));
+    }
+
+    // ETag debole dal contenuto della griglia: stessa risposta, stesso tag (anche tra istanze diverse)
+    private static String etag(YearMonth month, List<RoomRow> rows) {
+        CRC32 crc = new CRC32();
+        crc.update(month.toString().getBytes(StandardCharsets.UTF_8));
+        for (RoomRow row : rows) {
+            crc.update((row.room().getId() + "|" + row.room().getName() + "|" + row.room().getCapacity() + "|")
+                    .getBytes(StandardCharsets.UTF_8));
+            crc.update(row.states());
+            crc.update(Arrays.toString(row.taken() != null ? row.taken() : row.minutes()).getBytes(StandardCharsets.UTF_8));
+        }
+        return "W/\"" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    private static String encode(byte[] states) {
+        char[] chars = new char[states.length];
+        for (int i = 0; i < states.length; i++) {
+            chars[i] = (char) ('0' + states[i]);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+
+import java.time.LocalDate;
+
+/**
+ * Evento pubblicato da {@link BookingService} dopo ogni creazione/cancellazione.
+ * I listener transazionali lo ricevono solo a commit avvenuto.
+ * seat > 0: posto in un'aula a posti, che non rende occupata l'aula.
+ */
+public record BookingChangedEvent(Type type, Long bookingId, Long roomId, LocalDate date, TimeSlot slot, int seat) {
+
+    public enum Type { CREATED, DELETED }
+
+    public static BookingChangedEvent created(Long bookingId, Long roomId, LocalDate date, TimeSlot slot) {
+        return new BookingChangedEvent(Type.CREATED, bookingId, roomId, date, slot, 0);
+    }
+
+    public static BookingChangedEvent deleted(Long bookingId, Long roomId, LocalDate date, TimeSlot slot) {
+        return new BookingChangedEvent(Type.DELETED, bookingId, roomId, date, slot, 0);
+    }
+
+    public static BookingChangedEvent seatCreated(Long bookingId, Long roomId, LocalDate date, int seat) {
+        return new BookingChangedEvent(Type.CREATED, bookingId, roomId, date, TimeSlot.fullDay(), seat);
+    }
+
+    public static BookingChangedEvent seatDeleted(Long bookingId, Long roomId, LocalDate date, int seat) {
+        return new BookingChangedEvent(Type.DELETED, bookingId, roomId, date, TimeSlot.fullDay(), seat);
+    }
+
+    public boolean isSeat() {
+        return seat > 0;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Metriche delle prenotazioni (Micrometer, esposte su /actuator/prometheus).
+ *
+ * Tutti i meter sono registrati all'avvio e tenuti in array indicizzati dagli enum:
+ * sul percorso della richiesta c'è solo un System.nanoTime() e un record sul timer,
+ * nessuna ricerca nel registry. I tag hanno pochi valori fissi: mai username, aule o date.
+ */
+@Component
+public class BookingMetrics {
+
+    public enum Kind { FULL_DAY, SLOT, SEAT, BULK }
+
+    public enum Outcome { CREATED, CONFLICT, FULL, INVALID, ERROR }
+
+    // precheck = indici/query di sovrapposizione, constraint = vincolo del DB (richiesta concorrente)
+    public enum ConflictStage { PRECHECK, CONSTRAINT, BULK_PRECHECK, BULK_CONSTRAINT }
+
+    public enum DeletedBy { OWNER, ADMIN, ACCOUNT, PURGE }
+
+    public enum DeleteOutcome { DELETED, NOT_FOUND, FORBIDDEN, ERROR }
+
+    // Bucket fissi invece dell'istogramma percentile completo: poche serie per timer
+    static final Duration[] LATENCY_BUCKETS = {
+            Duration.ofMillis(1), Duration.ofMillis(5), Duration.ofMillis(10), Duration.ofMillis(25),
+            Duration.ofMillis(50), Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500),
+            Duration.ofSeconds(1), Duration.ofMillis(2500)};
+
+    private final MeterRegistry registry;
+    private final Timer[][] createTimers = new Timer[Kind.values().length][Outcome.values().length];
+    private final Counter[] conflicts = new Counter[ConflictStage.values().length];
+    private final Timer[][] deleteTimers = new Timer[DeletedBy.values().length][DeleteOutcome.values().length];
+
+    public BookingMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Kind kind : Kind.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                createTimers[kind.ordinal()][outcome.ordinal()] = Timer.builder("booking.create")
+                        .description("Creazione di prenotazioni")
+                        .tag("kind", tag(kind))
+                        .tag("outcome", tag(outcome))
+                        .serviceLevelObjectives(LATENCY_BUCKETS)
+                        .register(registry);
+            }
+        }
+        for (ConflictStage stage : ConflictStage.values()) {
+            conflicts[stage.ordinal()] = Counter.builder("booking.conflicts")
+                    .description("Prenotazioni rifiutate per aula già occupata")
+                    .tag("stage", tag(stage))
+                    .register(registry);
+        }
+        for (DeletedBy by : DeletedBy.values()) {
+            for (DeleteOutcome outcome : DeleteOutcome.values()) {
+                deleteTimers[by.ordinal()][outcome.ordinal()] = Timer.builder("booking.delete")
+                        .description("Cancellazione di prenotazioni")
+                        .tag("by", tag(by))
+                        .tag("outcome", tag(outcome))
+                        .serviceLevelObjectives(LATENCY_BUCKETS)
+                        .register(registry);
+            }
+        }
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    public void created(Timer.Sample sample, Kind kind, Outcome outcome) {
+        sample.stop(createTimers[kind.ordinal()][outcome.ordinal()]);
+    }
+
+    public void conflict(ConflictStage stage) {
+        conflicts[stage.ordinal()].increment();
+    }
+
+    public void deleted(Timer.Sample sample, DeletedBy by, DeleteOutcome outcome) {
+        sample.stop(deleteTimers[by.ordinal()][outcome.ordinal()]);
+    }
+
+    // Esito di una creazione dall'eccezione che l'ha interrotta
+    public static Outcome outcomeOf(RuntimeException e) {
+        if (e instanceof RoomFullException) return Outcome.FULL;
+        if (e instanceof IllegalStateException) return Outcome.CONFLICT;
+        if (e instanceof IllegalArgumentException) return Outcome.INVALID;
+        return Outcome.ERROR;
+    }
+
+    static String tag(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,9 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.repository.BookingView;
+
+import java.util.List;
+
+// Una pagina della tabella admin: righe, conteggi calcolati in SQL e cursore per la pagina successiva
+public record BookingPage(List<BookingView> rows, long recordsTotal, long recordsFiltered, String nextCursor) {
+}
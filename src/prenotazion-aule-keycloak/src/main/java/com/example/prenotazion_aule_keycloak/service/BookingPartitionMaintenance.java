@@ -0,0 +1,138 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Date;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Partizioni mensili di bookings su PostgreSQL (migrazione V2): crea in anticipo quelle dei mesi
+ * futuri e sposta in bookings_archive quelle dei mesi passati, così la tabella calda contiene solo
+ * il mese corrente, i precedenti ancora trattenuti e i futuri. Il lavoro sul DB lo fanno le funzioni
+ * bookings_create_partition e bookings_archive_partition (idempotenti e serializzate da un advisory
+ * lock: più nodi possono eseguire il job insieme). Sugli altri DB (H2) non fa nulla.
+ */
+@Component
+public class BookingPartitionMaintenance {
+
+    private static final Logger logger = LoggerFactory.getLogger(BookingPartitionMaintenance.class);
+
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'bookings_p'yyyy_MM");
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private boolean postgres;
+
+    // Mesi futuri con la partizione già pronta (oltre finiscono nella partizione di default)
+    @Value("${booking.partitions.months-ahead:13}")
+    private int monthsAhead;
+
+    // Mesi passati che restano in bookings prima di essere archiviati
+    @Value("${booking.partitions.retain-months:1}")
+    private int retainMonths;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Instant lastRun;
+
+    public BookingPartitionMaintenance(DataSource dataSource, JdbcTemplate jdbcTemplate) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    void detectDatabase() throws MetaDataAccessException {
+        String product = JdbcUtils.extractDatabaseMetaData(dataSource, metaData -> metaData.getDatabaseProductName());
+        postgres = "PostgreSQL".equals(product);
+    }
+
+    @Scheduled(fixedDelayString = "${booking.partitions.maintenance-interval-ms:3600000}")
+    public void maintain() {
+        if (!postgres) {
+            return;
+        }
+        YearMonth current = YearMonth.now();
+        try {
+            for (int i = 0; i <= monthsAhead; i++) {
+                YearMonth month = current.plusMonths(i);
+                if (Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                        "select bookings_create_partition(?)", Boolean.class, Date.valueOf(month.atDay(1))))) {
+                    created.incrementAndGet();
+                    logger.info("SYSTEM: Created bookings partition {}", month.format(PARTITION_NAME));
+                }
+            }
+            YearMonth archiveBefore = firstHotMonth(current);
+            for (YearMonth month : hotMonths()) {
+                if (month.isBefore(archiveBefore) && Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                        "select bookings_archive_partition(?)", Boolean.class, Date.valueOf(month.atDay(1))))) {
+                    archived.incrementAndGet();
+                    logger.info("SYSTEM: Moved bookings partition {} to bookings_archive", month.format(PARTITION_NAME));
+                }
+            }
+            lastRun = Instant.now();
+        } catch (RuntimeException e) {
+            // Riprova al giro successivo; le prenotazioni senza partizione finiscono in quella di default
+            failures.incrementAndGet();
+            logger.error("SYSTEM: Bookings partition maintenance failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * Primo giorno che resta in bookings: i mesi precedenti sono (o stanno per essere) in bookings_archive,
+     * dove non c'è controllo dei conflitti. Le prenotazioni e gli indici in memoria partono da qui.
+     * null sugli altri DB (nessun archivio).
+     */
+    public LocalDate firstHotDate() {
+        return postgres ? firstHotMonth(YearMonth.now()).atDay(1) : null;
+    }
+
+    private YearMonth firstHotMonth(YearMonth current) {
+        return current.minusMonths(retainMonths);
+    }
+
+    // Mesi con una partizione attaccata a bookings (la partizione di default esclusa)
+    private List<YearMonth> hotMonths() {
+        return partitionsOf("bookings").stream().map(name -> YearMonth.parse(name, PARTITION_NAME)).sorted().toList();
+    }
+
+    private List<String> partitionsOf(String table) {
+        return jdbcTemplate.queryForList("select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid " +
+                "where i.inhparent = to_regclass(?) and c.relname ~ '^bookings_p[0-9]{4}_[0-9]{2}$' order by c.relname",
+                String.class, table);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", postgres);
+        if (postgres) {
+            List<String> hot = partitionsOf("bookings");
+            List<String> archive = partitionsOf("bookings_archive");
+            stats.put("hotPartitions", hot.size());
+            stats.put("hotRange", hot.isEmpty() ? null : hot.get(0) + ".." + hot.get(hot.size() - 1));
+            stats.put("archivedPartitions", archive.size());
+            stats.put("defaultPartitionRows", jdbcTemplate.queryForObject("select count(*) from bookings_default", Long.class));
+        }
+        stats.put("created", created.get());
+        stats.put("archived", archived.get());
+        stats.put("failures", failures.get());
+        stats.put("lastRun", lastRun);
+        return stats;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.repository.BookingSpecifications;
+import com.example.prenotazion_aule_keycloak.repository.BookingSpecifications.SortKey;
+import com.example.prenotazion_aule_keycloak.repository.BookingView;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Filtri e ordinamento richiesti dalla tabella admin (protocollo server-side di DataTables).
+ *
+ * Il cursore della pagina successiva è opaco per il client: codifica ordinamento, valore
+ * della colonna e id dell'ultima riga. Un cursore prodotto con un altro ordinamento viene ignorato.
+ */
+public record BookingSearch(String text, String username, String room, LocalDate date,
+                            SortKey sortKey, boolean ascending) {
+
+    public static BookingSearch of(String text, String username, String room, String date,
+                                   SortKey sortKey, boolean ascending) {
+        return new BookingSearch(text, username, room, parseDate(date), sortKey, ascending);
+    }
+
+    public boolean isFiltered() {
+        return !isBlank(text) || !isBlank(username) || !isBlank(room) || date != null;
+    }
+
+    public Sort sort() {
+        return BookingSpecifications.sort(sortKey, ascending);
+    }
+
+    public <E> Specification<E> toSpecification() {
+        return Specification.allOf(
+                BookingSpecifications.matches(text, parseDate(text)),
+                BookingSpecifications.usernameContains(username),
+                BookingSpecifications.roomNameContains(room),
+                BookingSpecifications.onDate(date));
+    }
+
+    // --- Cursore keyset ---
+
+    public String cursorAfter(BookingView last) {
+        String value = switch (sortKey) {
+            case ID -> String.valueOf(last.id());
+            case USERNAME -> last.username();
+            case ROOM -> last.roomName();
+            case DATE -> last.date().toString();
+        };
+        String raw = sortKey + "|" + (ascending ? "asc" : "desc") + "|" + last.id() + "|" + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Condizione "dopo il cursore", oppure null se il cursore manca o non corrisponde all'ordinamento
+    public <E> Specification<E> afterCursor(String cursor) {
+        if (isBlank(cursor)) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", 4);
+            if (parts.length != 4 || !parts[0].equals(sortKey.name())
+                    || !parts[1].equals(ascending ? "asc" : "desc")) {
+                return null;
+            }
+            Long id = Long.valueOf(parts[2]);
+            Comparable<?> value = switch (sortKey) {
+                case ID -> id;
+                case USERNAME, ROOM -> parts[3];
+                case DATE -> LocalDate.parse(parts[3]);
+            };
+            return BookingSpecifications.after(sortKey, ascending, value, id);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static LocalDate parseDate(String text) {
+        if (isBlank(text)) return null;
+        try {
+            return LocalDate.parse(text.trim());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.isBlank();
+    }
+}
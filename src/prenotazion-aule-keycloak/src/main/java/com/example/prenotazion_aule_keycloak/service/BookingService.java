@@ -1,30 +1,107 @@
 package com.example.prenotazion_aule_keycloak.service;
 
+import com.example.prenotazion_aule_keycloak.audit.AuditEvent;
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
 import com.example.prenotazion_aule_keycloak.model.Booking;
 import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.repository.ArchivedBookingRepository;
 import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository.DeletedRow;
+import com.example.prenotazion_aule_keycloak.repository.BookingSpecifications;
+import com.example.prenotazion_aule_keycloak.repository.BookingView;
 import com.example.prenotazion_aule_keycloak.repository.RoomRepository;
+import com.example.prenotazion_aule_keycloak.repository.WaitlistView;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import jakarta.annotation.PostConstruct;
 
+import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Service
 public class BookingService {
 
-    // 1. Inizializzazione del Logger per l'Audit Trail (NIST AU-2)
+    // Log applicativo; gli eventi di audit (NIST AU-2) vanno su AuditTrail
     private static final Logger logger = LoggerFactory.getLogger(BookingService.class);
 
     private final RoomRepository roomRepository;
+    private final RoomCatalog roomCatalog;
     private final BookingRepository bookingRepository;
+    private final ArchivedBookingRepository archivedBookingRepository;
+    private final OccupancyIndex occupancyIndex;
+    private final SlotIndex slotIndex;
+    private final SeatBookingService seatBookingService;
+    private final BookingPartitionMaintenance partitionMaintenance;
+    private final ApplicationEventPublisher eventPublisher;
+    private final AuditTrail auditTrail;
+    private final BookingMetrics metrics;
+    private final TransactionTemplate chunkTransaction;
 
-    public BookingService(RoomRepository roomRepository, BookingRepository bookingRepository) {
+    // Blocchi riletti al massimo di seguito quando una cancellazione concorrente li tocca
+    private static final int MAX_CHUNK_RETRIES = 3;
+
+    // Righe per transazione nelle cancellazioni in blocco (account, pulizia admin)
+    @Value("${booking.delete.chunk-size:500}")
+    private int deleteChunkSize;
+
+    // Limite di date per una singola prenotazione in blocco
+    @Value("${booking.bulk.max-dates:366}")
+    private int maxBulkDates;
+
+    // Orario di apertura delle aule, usato dalla ricerca di fasce libere
+    @Value("${booking.slots.opening-time:08:00}")
+    private String openingTime;
+
+    @Value("${booking.slots.closing-time:20:00}")
+    private String closingTime;
+
+    public BookingService(RoomRepository roomRepository, RoomCatalog roomCatalog, BookingRepository bookingRepository,
+                          ArchivedBookingRepository archivedBookingRepository, OccupancyIndex occupancyIndex, SlotIndex slotIndex,
+                          SeatBookingService seatBookingService, BookingPartitionMaintenance partitionMaintenance,
+                          ApplicationEventPublisher eventPublisher, AuditTrail auditTrail, BookingMetrics metrics,
+                          PlatformTransactionManager transactionManager) {
         this.roomRepository = roomRepository;
+        this.roomCatalog = roomCatalog;
         this.bookingRepository = bookingRepository;
+        this.archivedBookingRepository = archivedBookingRepository;
+        this.occupancyIndex = occupancyIndex;
+        this.slotIndex = slotIndex;
+        this.seatBookingService = seatBookingService;
+        this.partitionMaintenance = partitionMaintenance;
+        this.eventPublisher = eventPublisher;
+        this.auditTrail = auditTrail;
+        this.metrics = metrics;
+        this.chunkTransaction = new TransactionTemplate(transactionManager);
     }
 
     @PostConstruct
@@ -39,72 +116,502 @@ public class BookingService {
         }
     }
 
-    public List<Room> getAllRooms() { return roomRepository.findAll(); }
-    public List<Booking> getAllBookings() { return bookingRepository.findAll(); }
-    public List<Booking> getBookingsByUser(String username) { return bookingRepository.findByUsername(username); }
+    public List<Room> getAllRooms() { return roomCatalog.all(); }
+    public long countBookings() { return bookingRepository.count(); }
+    public long countArchivedBookings() { return archivedBookingRepository.count(); }
+
+    /**
+     * Pagina della tabella admin. Con un cursore valido la pagina successiva si legge per keyset
+     * (WHERE (colonna, id) > ultimo valore, LIMIT n): il costo non cresce con la profondità.
+     * Senza cursore (prima pagina, salto diretto a una pagina) si usa l'offset.
+     */
+    @Transactional(readOnly = true)
+    public BookingPage findBookingsPage(BookingSearch search, String cursor, int start, int length) {
+        return findPage(bookingRepository, search, cursor, start, length, b -> new BookingView(b.getId(), b.getDate(),
+                b.getSlot().startMinute(), b.getSlot().endMinute(), b.getUsername(), b.getRoom().getName(), b.getSeat()));
+    }
+
+    // Vista archivio della tabella admin: stessi filtri e stesso cursore, righe dei mesi archiviati
+    @Transactional(readOnly = true)
+    public BookingPage findArchivedBookingsPage(BookingSearch search, String cursor, int start, int length) {
+        return findPage(archivedBookingRepository, search, cursor, start, length, b -> new BookingView(b.getId(), b.getDate(),
+                b.getSlot().startMinute(), b.getSlot().endMinute(), b.getUsername(), b.getRoom().getName(), b.getSeat()));
+    }
+
+    private <E> BookingPage findPage(JpaSpecificationExecutor<E> repository, BookingSearch search, String cursor,
+                                     int start, int length, Function<E, BookingView> toView) {
+        Specification<E> filter = search.toSpecification();
+        Specification<E> after = search.afterCursor(cursor);
+
+        List<E> rows;
+        long filtered;
+        if (after != null) {
+            rows = repository.findBy(filter.and(after).and(BookingSpecifications.fetchRoom()),
+                    q -> q.sortBy(search.sort()).limit(length).all());
+            filtered = repository.count(filter);
+        } else {
+            Page<E> page = repository.findAll(filter.and(BookingSpecifications.fetchRoom()),
+                    PageRequest.of(start / length, length, search.sort()));
+            rows = page.getContent();
+            filtered = page.getTotalElements();
+        }
+        // Senza filtri il totale coincide con il filtrato: una count in meno
+        long total = search.isFiltered() ? repository.count(Specification.where(null)) : filtered;
+
+        List<BookingView> views = rows.stream().map(toView).toList();
+        String nextCursor = views.size() == length ? search.cursorAfter(views.get(views.size() - 1)) : null;
+        return new BookingPage(views, total, filtered, nextCursor);
+    }
+
+    @Transactional(readOnly = true)
+    public List<BookingView> getBookingsByUser(String username) { return bookingRepository.findViewsByUsername(username); }
+
+    // Disponibilità per l'intera giornata
+    public boolean isAvailable(Long roomId, LocalDate date) {
+        return isAvailable(roomId, date, TimeSlot.fullDay());
+    }
+
+    // Disponibilità dagli indici in memoria; solo se non coprono il giorno si va sul DB
+    public boolean isAvailable(Long roomId, LocalDate date, TimeSlot slot) {
+        if (isArchived(date)) {
+            return false;
+        }
+        return switch (occupancyIndex.lookup(roomId, date)) {
+            case FREE -> true;
+            case BUSY -> !slot.isFullDay() && switch (slotIndex.lookup(roomId, date, slot)) {
+                case FREE -> true;
+                case BUSY -> false;
+                case UNKNOWN -> !bookingRepository.existsOverlap(roomId, date, slot.startMinute(), slot.endMinute());
+            };
+            case UNKNOWN -> !bookingRepository.existsOverlap(roomId, date, slot.startMinute(), slot.endMinute());
+        };
+    }
 
     public Booking createBooking(String username, Long roomId, LocalDate date) {
-        Room room = roomRepository.findById(roomId)
+        return createBooking(username, roomId, date, TimeSlot.fullDay());
+    }
+
+    public Booking createBooking(String username, Long roomId, LocalDate date, TimeSlot slot) {
+        Timer.Sample sample = metrics.start();
+        BookingMetrics.Kind kind = slot.isFullDay() ? BookingMetrics.Kind.FULL_DAY : BookingMetrics.Kind.SLOT;
+        try {
+            requireHotDate(date);
+            Room room = findRoom(username, roomId);
+            Booking saved;
+            if (room.isSeatBooking()) {
+                // Aula a posti: un posto per l'intera giornata, fino alla capienza
+                kind = BookingMetrics.Kind.SEAT;
+                if (!slot.isFullDay()) {
+                    throw new IllegalArgumentException("Le aule a posti si prenotano per l'intera giornata");
+                }
+                seatBookingService.ensureCounter(roomId, date);
+                saved = seatBookingService.book(username, room, date);
+            } else {
+                saved = bookRoom(username, room, date, slot);
+            }
+            metrics.created(sample, kind, BookingMetrics.Outcome.CREATED);
+            return saved;
+        } catch (RuntimeException e) {
+            metrics.created(sample, kind, BookingMetrics.outcomeOf(e));
+            throw e;
+        }
+    }
+
+    private Booking bookRoom(String username, Room room, LocalDate date, TimeSlot slot) {
+        Long roomId = room.getId();
+
+        // Fast-path: indici in memoria, altrimenti query di sovrapposizione sull'indice (room_id, date)
+        if (!isAvailable(roomId, date, slot)) {
+            metrics.conflict(BookingMetrics.ConflictStage.PRECHECK);
+            throw roomAlreadyOccupied(username, room, date);
+        }
+
+        Booking savedBooking;
+        try {
+            // saveAndFlush: la violazione del vincolo (UNIQUE o esclusione) emerge qui e non al commit
+            savedBooking = bookingRepository.saveAndFlush(new Booking(username, room, date, slot));
+        } catch (DataIntegrityViolationException e) {
+            // Due richieste concorrenti hanno superato il fast-path: vince chi inserisce per primo
+            occupancyIndex.markBusy(roomId, date);
+            metrics.conflict(BookingMetrics.ConflictStage.CONSTRAINT);
+            throw roomAlreadyOccupied(username, room, date);
+        }
+        eventPublisher.publishEvent(BookingChangedEvent.created(savedBooking.getId(), roomId, date, slot));
+
+        // 2. AUDIT (Successo): Traccia CHI ha fatto COSA e QUANDO
+        auditTrail.record(AuditEvent.Type.BOOKING_CREATED, username, savedBooking.getId(), roomId, date + " " + slot);
+
+        return savedBooking;
+    }
+
+    /**
+     * Fasce libere di almeno minMinutes in tutte le aule per il giorno indicato, dentro l'orario
+     * di apertura. Dall'indice in memoria se copre il giorno, altrimenti con una sola query.
+     */
+    public TimeSlot openingHours() {
+        return TimeSlot.of(LocalTime.parse(openingTime), LocalTime.parse(closingTime));
+    }
+
+    public Map<Room, List<TimeSlot>> findFreeSlots(LocalDate date, int minMinutes) {
+        // Le aule a posti non hanno fasce orarie
+        List<Room> rooms = roomCatalog.all().stream().filter(r -> !r.isSeatBooking()).toList();
+        List<Long> roomIds = rooms.stream().map(Room::getId).toList();
+        TimeSlot opening = openingHours();
+
+        Map<Long, List<TimeSlot>> free = slotIndex.freeSlots(roomIds, date, opening, minMinutes);
+        if (free == null) {
+            Map<Long, NavigableMap<Integer, Integer>> booked = new HashMap<>();
+            for (BookingRepository.RoomSlot rs : bookingRepository.findSlotsBetween(date, date)) {
+                booked.computeIfAbsent(rs.getRoomId(), id -> new TreeMap<>()).put(rs.getStartMinute(), rs.getEndMinute());
+            }
+            free = new HashMap<>();
+            for (Long roomId : roomIds) {
+                free.put(roomId, SlotIndex.gaps(booked.getOrDefault(roomId, new TreeMap<>()), opening, minMinutes));
+            }
+        }
+
+        Map<Room, List<TimeSlot>> result = new LinkedHashMap<>();
+        for (Room room : rooms) {
+            result.put(room, free.get(room.getId()));
+        }
+        return result;
+    }
+
+    /**
+     * Prenotazione in blocco (es. la stessa aula per un semestre): una sola query per tutti i
+     * conflitti e un'unica transazione con INSERT in batch JDBC.
+     * Con partial=false basta un conflitto per non prenotare nulla; con partial=true si
+     * prenotano le date libere e le altre vengono riportate nell'esito.
+     */
+    @Transactional
+    public BulkBookingResult createBookings(String username, Long roomId, Collection<LocalDate> dates, boolean partial) {
+        Timer.Sample sample = metrics.start();
+        try {
+            BulkBookingResult result = bookDates(username, roomId, dates, partial);
+            metrics.created(sample, BookingMetrics.Kind.BULK, BookingMetrics.Outcome.CREATED);
+            return result;
+        } catch (RuntimeException e) {
+            metrics.created(sample, BookingMetrics.Kind.BULK, BookingMetrics.outcomeOf(e));
+            throw e;
+        }
+    }
+
+    private BulkBookingResult bookDates(String username, Long roomId, Collection<LocalDate> dates, boolean partial) {
+        SortedSet<LocalDate> requested = new TreeSet<>(dates);
+        if (requested.isEmpty()) {
+            throw new IllegalArgumentException("Nessuna data selezionata");
+        }
+        if (requested.size() > maxBulkDates) {
+            throw new IllegalArgumentException("Troppe date in una sola richiesta (massimo " + maxBulkDates + ")");
+        }
+        requireHotDate(requested.first());
+        Room room = findRoom(username, roomId);
+        if (room.isSeatBooking()) {
+            throw new IllegalArgumentException("La prenotazione ricorrente non è disponibile per le aule a posti");
+        }
+
+        Map<LocalDate, String> rejected = new TreeMap<>();
+        for (LocalDate busy : bookingRepository.findBookedDates(roomId, requested)) {
+            rejected.put(busy, "Aula già occupata");
+        }
+        if (!rejected.isEmpty() && !partial) {
+            metrics.conflict(BookingMetrics.ConflictStage.BULK_PRECHECK);
+            logger.warn("BUSINESS: User '{}' failed bulk booking of Room {} ({} dates, {} already occupied)",
+                    username, room.getName(), requested.size(), rejected.size());
+            throw new IllegalStateException("Aula già occupata il " + summarize(rejected.keySet())
+                    + ": nessuna prenotazione creata.");
+        }
+
+        List<Booking> toSave = requested.stream()
+                .filter(d -> !rejected.containsKey(d))
+                .map(d -> new Booking(username, room, d))
+                .toList();
+        List<Booking> saved;
+        try {
+            // Un solo flush: gli INSERT partono in batch (id dalla sequence, non IDENTITY)
+            saved = bookingRepository.saveAllAndFlush(toSave);
+        } catch (DataIntegrityViolationException e) {
+            // Una prenotazione concorrente è entrata tra il controllo e l'INSERT: rollback di tutto il blocco
+            metrics.conflict(BookingMetrics.ConflictStage.BULK_CONSTRAINT);
+            logger.warn("BUSINESS: User '{}' bulk booking of Room {} lost a race, rolled back", username, room.getName());
+            throw new IllegalStateException("Aula già occupata in una delle date richieste: nessuna prenotazione creata.");
+        }
+        saved.forEach(b -> eventPublisher.publishEvent(BookingChangedEvent.created(b.getId(), roomId, b.getDate(), b.getSlot())));
+
+        auditTrail.record(AuditEvent.Type.BOOKINGS_CREATED, username, null, roomId,
+                saved.size() + " bookings between " + requested.first() + " and " + requested.last() + " (" + rejected.size() + " skipped)");
+
+        return new BulkBookingResult(saved.stream().map(Booking::getDate).toList(), rejected);
+    }
+
+    // Date di una ricorrenza settimanale: tutti i giorni in [from, to] che cadono in uno dei weekdays
+    public static List<LocalDate> recurringDates(LocalDate from, LocalDate to, Set<DayOfWeek> weekdays) {
+        if (from == null || to == null || to.isBefore(from)) {
+            throw new IllegalArgumentException("Intervallo di date non valido");
+        }
+        if (weekdays == null || weekdays.isEmpty()) {
+            throw new IllegalArgumentException("Seleziona almeno un giorno della settimana");
+        }
+        return from.datesUntil(to.plusDays(1))
+                .filter(d -> weekdays.contains(d.getDayOfWeek()))
+                .toList();
+    }
+
+    // Aula a posti al completo: iscrizione in lista d'attesa, restituisce la posizione
+    public long joinWaitlist(String username, Long roomId, LocalDate date) {
+        requireHotDate(date);
+        Room room = findRoom(username, roomId);
+        seatBookingService.ensureCounter(roomId, date);
+        return seatBookingService.joinWaitlist(username, room, date);
+    }
+
+    public List<WaitlistView> getWaitlistByUser(String username) { return seatBookingService.getWaitlistByUser(username); }
+
+    public void leaveWaitlist(Long entryId, String username) { seatBookingService.leaveWaitlist(entryId, username); }
+
+    /**
+     * Cambio di modalità di un'aula (intera / a posti). Solo senza prenotazioni da oggi in poi:
+     * i due tipi di prenotazione non convivono nello stesso giorno.
+     */
+    @Transactional
+    public void setSeatBooking(Long roomId, boolean seatBooking) {
+        Room room = roomRepository.findById(roomId).orElseThrow(() -> new IllegalArgumentException("Aula non trovata"));
+        if (room.isSeatBooking() == seatBooking) {
+            return;
+        }
+        if (bookingRepository.existsByRoomIdAndDateGreaterThanEqual(roomId, LocalDate.now())) {
+            throw new IllegalStateException("L'aula ha prenotazioni future: impossibile cambiare modalità");
+        }
+        room.setSeatBooking(seatBooking);
+        auditTrail.record(AuditEvent.Type.ROOM_MODE_CHANGED, "ADMIN", null, roomId, seatBooking ? "seat" : "whole-room");
+    }
+
+    private Room findRoom(String username, Long roomId) {
+        return roomRepository.findById(roomId)
                 .orElseThrow(() -> {
-                    logger.warn("SECURITY: User '{}' attempted to book non-existent room ID {}", username, roomId);
+                    auditTrail.record(AuditEvent.Type.UNKNOWN_ROOM, username, null, roomId, null);
                     return new IllegalArgumentException("Aula non trovata");
                 });
+    }
 
-        boolean occupata = bookingRepository.findAll().stream()
-                .anyMatch(b -> b.getRoom().getId().equals(roomId) && b.getDate().equals(date));
+    // Mesi già spostati in bookings_archive: lì non c'è controllo dei conflitti, non si prenotano più
+    private boolean isArchived(LocalDate date) {
+        LocalDate firstHot = partitionMaintenance.firstHotDate();
+        return firstHot != null && date.isBefore(firstHot);
+    }
 
-        if (occupata) {
-            logger.warn("BUSINESS: User '{}' failed to book Room {} on {} (Already Occupied)", username, room.getName(), date);
-            throw new IllegalStateException("Aula già occupata!");
+    private void requireHotDate(LocalDate date) {
+        if (isArchived(date)) {
+            throw new IllegalArgumentException("Il " + date + " è in un mese archiviato: non si può più prenotare");
         }
+    }
 
-        Booking savedBooking = bookingRepository.save(new Booking(username, room, date));
-
-        // 2. LOG DI AUDIT (Successo): Traccia CHI ha fatto COSA e QUANDO
-        logger.info("AUDIT: User '{}' SUCCESSFULLY created booking ID {} for Room '{}' on {}",
-                username, savedBooking.getId(), room.getName(), date);
+    private static String summarize(Collection<LocalDate> dates) {
+        String shown = dates.stream().limit(5).map(LocalDate::toString).collect(Collectors.joining(", "));
+        return dates.size() > 5 ? shown + " (+" + (dates.size() - 5) + ")" : shown;
+    }
 
-        return savedBooking;
+    private IllegalStateException roomAlreadyOccupied(String username, Room room, LocalDate date) {
+        logger.warn("BUSINESS: User '{}' failed to book Room {} on {} (Already Occupied)", username, room.getName(), date);
+        return new IllegalStateException("Aula già occupata!");
     }
 
     // Cancellazione da parte dell'Admin
+    @Transactional
     public void deleteBooking(Long id) {
-        if (bookingRepository.existsById(id)) {
-            bookingRepository.deleteById(id);
-            logger.info("AUDIT: ADMIN deleted booking ID {}", id);
-        } else {
-            logger.warn("AUDIT: ADMIN tried to delete non-existent booking ID {}", id);
+        Timer.Sample sample = metrics.start();
+        try {
+            DeletedRow row = bookingRepository.findDeletedRow(id).orElse(null);
+            if (row == null || bookingRepository.deleteRowById(id) == 0) {
+                auditTrail.record(AuditEvent.Type.BOOKING_DELETE_NOT_FOUND, "ADMIN", id, null, null);
+                metrics.deleted(sample, BookingMetrics.DeletedBy.ADMIN, BookingMetrics.DeleteOutcome.NOT_FOUND);
+                return;
+            }
+            afterDelete(row);
+            auditTrail.record(AuditEvent.Type.BOOKING_DELETED_BY_ADMIN, "ADMIN", id, row.getRoomId(), null);
+            metrics.deleted(sample, BookingMetrics.DeletedBy.ADMIN, BookingMetrics.DeleteOutcome.DELETED);
+        } catch (RuntimeException e) {
+            metrics.deleted(sample, BookingMetrics.DeletedBy.ADMIN, BookingMetrics.DeleteOutcome.ERROR);
+            throw e;
         }
     }
 
     // Cancellazione da parte dell'Utente (con controllo proprietà)
+    @Transactional
     public void deleteBookingIfOwner(Long bookingId, String username) {
-        Booking booking = bookingRepository.findById(bookingId)
-                .orElseThrow(() -> new IllegalArgumentException("Prenotazione non trovata"));
+        Timer.Sample sample = metrics.start();
+        BookingMetrics.DeleteOutcome outcome;
+        try {
+            outcome = deleteOwned(bookingId, username);
+        } catch (RuntimeException e) {
+            metrics.deleted(sample, BookingMetrics.DeletedBy.OWNER, BookingMetrics.DeleteOutcome.ERROR);
+            throw e;
+        }
+        metrics.deleted(sample, BookingMetrics.DeletedBy.OWNER, outcome);
+        switch (outcome) {
+            case NOT_FOUND -> throw new IllegalArgumentException("Prenotazione non trovata");
+            case FORBIDDEN -> throw new IllegalArgumentException("Non puoi cancellare questa prenotazione.");
+            default -> { }
+        }
+    }
 
-        if (!booking.getUsername().equals(username)) {
+    private BookingMetrics.DeleteOutcome deleteOwned(Long bookingId, String username) {
+        DeletedRow row = bookingRepository.findDeletedRow(bookingId).orElse(null);
+        if (row == null) {
+            return BookingMetrics.DeleteOutcome.NOT_FOUND;
+        }
+
+        if (!row.getUsername().equals(username)) {
             // Log di sicurezza critico: tentativo di cancellare dati altrui (IDOR attempt)
-            logger.error("SECURITY ALERT: User '{}' attempted to delete booking ID {} owned by '{}'",
-                    username, bookingId, booking.getUsername());
-            throw new IllegalArgumentException("Non puoi cancellare questa prenotazione.");
+            auditTrail.record(AuditEvent.Type.FOREIGN_BOOKING_DELETE, username, bookingId, row.getRoomId(),
+                    "owner " + row.getUsername());
+            return BookingMetrics.DeleteOutcome.FORBIDDEN;
         }
 
-        bookingRepository.delete(booking);
+        // La condizione sul proprietario resta anche nella DELETE
+        if (bookingRepository.deleteByIdAndUsername(bookingId, username) == 0) {
+            return BookingMetrics.DeleteOutcome.NOT_FOUND;
+        }
+        afterDelete(row); // un posto liberato passa al primo in lista d'attesa
 
-        // Log di Audit standard
-        logger.info("AUDIT: User '{}' deleted their own booking ID {}", username, bookingId);
+        auditTrail.record(AuditEvent.Type.BOOKING_DELETED, username, bookingId, row.getRoomId(), null);
+        return BookingMetrics.DeleteOutcome.DELETED;
     }
 
-    @Transactional
-    public void deleteUserData(String username) {
-        List<Booking> userBookings = bookingRepository.findByUsername(username);
-        int count = userBookings.size();
+    /**
+     * Diritto all'oblio: lista d'attesa e prenotazioni dell'utente, archiviate comprese, a blocchi.
+     * Restituisce le prenotazioni eliminate; la riga di audit riporta le righe davvero cancellate, anche se
+     * la cancellazione si interrompe a metà.
+     */
+    public int deleteUserData(String username) {
+        Timer.Sample sample = metrics.start();
+        try {
+            int deleted = eraseUserData(username);
+            metrics.deleted(sample, BookingMetrics.DeletedBy.ACCOUNT, BookingMetrics.DeleteOutcome.DELETED);
+            return deleted;
+        } catch (RuntimeException e) {
+            metrics.deleted(sample, BookingMetrics.DeletedBy.ACCOUNT, BookingMetrics.DeleteOutcome.ERROR);
+            throw e;
+        }
+    }
+
+    private int eraseUserData(String username) {
+        // Prima la lista d'attesa: i posti liberati qui sotto non devono tornare a questo utente
+        int waiting = seatBookingService.deleteWaitlistOf(username);
+        AtomicInteger deleted = new AtomicInteger();
+        try {
+            deleteInChunks(afterId -> bookingRepository.findDeletedRowsByUsername(username, afterId, PageRequest.of(0, deleteChunkSize)),
+                    deleted);
+            deleteArchivedInChunks(() -> archivedBookingRepository.findIdsByUsername(username, PageRequest.of(0, deleteChunkSize)),
+                    deleted);
+        } catch (RuntimeException e) {
+            auditTrail.record(AuditEvent.Type.ACCOUNT_DELETED, username, null, null,
+                    "removed " + deleted.get() + " bookings and " + waiting + " waitlist entries, interrupted: " + e.getMessage());
+            throw e;
+        }
+
+        // Conformità GDPR (Diritto all'Oblio)
+        auditTrail.record(AuditEvent.Type.ACCOUNT_DELETED, username, null, null,
+                "removed " + deleted.get() + " bookings and " + waiting + " waitlist entries");
+        return deleted.get();
+    }
 
-        if (!userBookings.isEmpty()) {
-            bookingRepository.deleteAll(userBookings);
+    /**
+     * Pulizia admin: le prenotazioni di un'aula, quelle precedenti a una data, o quelle che
+     * soddisfano entrambe le condizioni, anche nell'archivio. Le iscrizioni in lista d'attesa dello stesso ambito
+     * vengono eliminate prima, così i posti liberati non vengono riassegnati. Restituisce le
+     * prenotazioni eliminate.
+     */
+    public int purgeBookings(Long roomId, LocalDate before) {
+        if (roomId == null && before == null) {
+            throw new IllegalArgumentException("Indica un'aula o una data");
+        }
+        if (roomId != null) {
+            findRoom("ADMIN", roomId);
         }
+        Timer.Sample sample = metrics.start();
+        String scope = (roomId != null ? "room " + roomId : "all rooms") + (before != null ? " before " + before : "");
+        int waiting = seatBookingService.deleteWaitlistForPurge(roomId, before);
+        AtomicInteger deleted = new AtomicInteger();
+        try {
+            deleteInChunks(afterId -> bookingRepository.findDeletedRowsForPurge(roomId, before, afterId, PageRequest.of(0, deleteChunkSize)),
+                    deleted);
+            deleteArchivedInChunks(() -> archivedBookingRepository.findIdsForPurge(roomId, before, PageRequest.of(0, deleteChunkSize)),
+                    deleted);
+        } catch (RuntimeException e) {
+            auditTrail.record(AuditEvent.Type.BOOKINGS_PURGED, "ADMIN", null, roomId,
+                    scope + ": removed " + deleted.get() + " bookings and " + waiting + " waitlist entries, interrupted: " + e.getMessage());
+            metrics.deleted(sample, BookingMetrics.DeletedBy.PURGE, BookingMetrics.DeleteOutcome.ERROR);
+            throw e;
+        }
+        auditTrail.record(AuditEvent.Type.BOOKINGS_PURGED, "ADMIN", null, roomId,
+                scope + ": removed " + deleted.get() + " bookings and " + waiting + " waitlist entries");
+        metrics.deleted(sample, BookingMetrics.DeletedBy.PURGE, BookingMetrics.DeleteOutcome.DELETED);
+        return deleted.get();
+    }
 
-        // Log per conformità GDPR (Diritto all'Oblio)
-        logger.info("GDPR AUDIT: Full account deletion requested for user '{}'. Removed {} bookings associated with this identity.", username, count);
+    /**
+     * Cancellazione a blocchi di booking.delete.chunk-size righe, ognuno nella sua transazione:
+     * una cancellazione enorme non tiene i lock fino alla fine e i blocchi già confermati restano
+     * cancellati se uno successivo fallisce. Ogni blocco è una SELECT delle colonne (keyset sull'id)
+     * e una sola DELETE ... WHERE id IN; se una richiesta concorrente ha già cancellato una delle
+     * righe il blocco viene annullato e riletto, così eventi e contatori dei posti non partono due volte.
+     */
+    private void deleteInChunks(LongFunction<List<DeletedRow>> nextChunk, AtomicInteger deleted) {
+        long afterId = 0;
+        int retries = 0;
+        while (true) {
+            long from = afterId;
+            List<DeletedRow> chunk = chunkTransaction.execute(status -> {
+                List<DeletedRow> rows = nextChunk.apply(from);
+                if (rows.isEmpty()) {
+                    return rows;
+                }
+                if (bookingRepository.deleteByIdIn(rows.stream().map(DeletedRow::getId).toList()) != rows.size()) {
+                    status.setRollbackOnly();
+                    return null;
+                }
+                rows.forEach(this::afterDelete);
+                return rows;
+            });
+            if (chunk == null) {
+                if (++retries > MAX_CHUNK_RETRIES) {
+                    throw new ConcurrencyFailureException("Prenotazioni modificate durante la cancellazione, riprova");
+                }
+                continue;
+            }
+            if (chunk.isEmpty()) {
+                return;
+            }
+            retries = 0;
+            deleted.addAndGet(chunk.size());
+            afterId = chunk.get(chunk.size() - 1).getId();
+        }
+    }
+
+    // Archivio: stessi blocchi, ma nessun evento né contatore da aggiornare (sono giorni passati)
+    private void deleteArchivedInChunks(Supplier<List<Long>> nextChunk, AtomicInteger deleted) {
+        while (true) {
+            Integer count = chunkTransaction.execute(status -> {
+                List<Long> ids = nextChunk.get();
+                return ids.isEmpty() ? null : archivedBookingRepository.deleteByIdIn(ids);
+            });
+            if (count == null) {
+                return;
+            }
+            deleted.addAndGet(count);
+        }
+    }
+
+    // Dopo la DELETE: indici in memoria (a commit avvenuto) e, per i posti, contatore e lista d'attesa
+    private void afterDelete(DeletedRow row) {
+        TimeSlot slot = new TimeSlot(row.getStartMinute(), row.getEndMinute());
+        eventPublisher.publishEvent(row.getSeat() > 0
+                ? BookingChangedEvent.seatDeleted(row.getId(), row.getRoomId(), row.getDate(), row.getSeat())
+                : BookingChangedEvent.deleted(row.getId(), row.getRoomId(), row.getDate(), slot));
+        if (row.getSeat() > 0) {
+            Room room = roomRepository.findById(row.getRoomId()).orElseThrow();
+            seatBookingService.seatFreed(room, row.getDate(), row.getSeat());
+        }
     }
-}
\ No newline at end of file
+}
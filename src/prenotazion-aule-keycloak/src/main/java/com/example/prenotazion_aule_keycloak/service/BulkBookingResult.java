@@ -0,0 +1,9 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+// Esito di una prenotazione in blocco: date prenotate e date scartate con il motivo
+public record BulkBookingResult(List<LocalDate> booked, Map<LocalDate, String> rejected) {
+}
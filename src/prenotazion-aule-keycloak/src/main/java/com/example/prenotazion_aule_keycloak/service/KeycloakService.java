@@ -1,14 +1,30 @@
 package com.example.prenotazion_aule_keycloak.service;
 
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakCircuitBreaker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.ws.rs.client.ClientBuilder;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.keycloak.admin.client.Keycloak;
 import org.keycloak.admin.client.KeycloakBuilder;
+import org.keycloak.admin.client.resource.RealmResource;
 import org.keycloak.admin.client.resource.UserResource;
 import org.keycloak.OAuth2Constants;
+import org.keycloak.representations.idm.ClientRepresentation;
 import org.keycloak.representations.idm.CredentialRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.representations.idm.authorization.ResourceServerRepresentation;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 @Service
 public class KeycloakService {
 
@@ -21,25 +37,108 @@ public class KeycloakService {
     @Value("${spring.security.oauth2.client.registration.keycloak.client-secret}")
     private String clientSecret;
 
-    // Metodo helper per ottenere la risorsa utente
-    private UserResource getUserResource(String userId) {
+    @Value("${keycloak.http.pool-size:20}")
+    private int poolSize;
+
+    @Value("${keycloak.http.connect-timeout:5s}")
+    private Duration connectTimeout;
+
+    @Value("${keycloak.http.read-timeout:10s}")
+    private Duration readTimeout;
+
+    // Il token del service account viene rinnovato quando gli restano meno di N secondi
+    @Value("${keycloak.admin.min-token-validity:30s}")
+    private Duration minTokenValidity;
+
+    private final KeycloakCircuitBreaker circuitBreaker;
+    private final MeterRegistry meterRegistry;
+
+    private Keycloak keycloak;
+    private String realmName;
+
+    public KeycloakService(KeycloakCircuitBreaker circuitBreaker, MeterRegistry meterRegistry) {
+        this.circuitBreaker = circuitBreaker;
+        this.meterRegistry = meterRegistry;
+    }
+
+    // Un solo client Admin per tutta l'applicazione: pool di connessioni HTTP condiviso
+    // e token client-credentials in cache (TokenManager) invece di un nuovo grant per ogni chiamata.
+    // Il build non contatta Keycloak: il primo token viene chiesto alla prima operazione.
+    @PostConstruct
+    void init() {
         String serverUrl = issuerUri.substring(0, issuerUri.indexOf("/realms"));
-        String realmName = issuerUri.substring(issuerUri.lastIndexOf("/") + 1);
+        realmName = issuerUri.substring(issuerUri.lastIndexOf("/") + 1);
+
+        ResteasyClient httpClient = ((ResteasyClientBuilder) ClientBuilder.newBuilder())
+                .connectionPoolSize(poolSize)
+                .maxPooledPerRoute(poolSize)
+                .connectionCheckoutTimeout(connectTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .connectTimeout(connectTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .build();
 
-        Keycloak keycloak = KeycloakBuilder.builder()
+        keycloak = KeycloakBuilder.builder()
                 .serverUrl(serverUrl)
                 .realm(realmName)
                 .grantType(OAuth2Constants.CLIENT_CREDENTIALS)
                 .clientId(clientId)
                 .clientSecret(clientSecret)
+                .resteasyClient(httpClient)
                 .build();
+        keycloak.tokenManager().setMinTokenValidity(minTokenValidity.toSeconds());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (keycloak != null && !keycloak.isClosed()) {
+            keycloak.close();
+        }
+    }
 
-        return keycloak.realm(realmName).users().get(userId);
+    // Metodo helper per ottenere il realm tramite l'Admin API
+    private RealmResource getRealmResource() {
+        return keycloak.realm(realmName);
+    }
+
+    // Metodo helper per ottenere la risorsa utente
+    private UserResource getUserResource(String userId) {
+        return getRealmResource().users().get(userId);
+    }
+
+    // Ogni operazione passa dal circuit breaker "admin": deadline, bulkhead e fail-fast se Keycloak è giù.
+    // Un 4xx (email già usata, password fuori policy, ...) arriva al chiamante così com'è: è un errore
+    // di validazione, non un disservizio. La durata finisce nel timer keycloak.admin{operation, outcome}.
+    private <T> T guarded(String name, Supplier<T> operation) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = circuitBreaker.call(KeycloakCircuitBreaker.ADMIN, operation, error -> {
+                if (KeycloakCircuitBreaker.isClientError(error) && error instanceof RuntimeException rejected) {
+                    throw rejected;
+                }
+                throw new IllegalStateException("Keycloak non disponibile, riprova più tardi", error);
+            });
+            outcome = "success";
+            return result;
+        } finally {
+            sample.stop(Timer.builder("keycloak.admin")
+                    .description("Operazioni sull'Admin API di Keycloak")
+                    .tag("operation", name)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+        }
+    }
+
+    private void guarded(String name, Runnable operation) {
+        guarded(name, () -> {
+            operation.run();
+            return null;
+        });
     }
 
     // 1. Elimina utente
     public void deleteUserFromKeycloak(String userId) {
-        getUserResource(userId).remove();
+        guarded("delete-user", () -> getUserResource(userId).remove());
     }
 
     // 2. Cambia Password
@@ -49,18 +148,33 @@ public class KeycloakService {
         credential.setValue(newPassword);
         credential.setTemporary(false);
 
-        getUserResource(userId).resetPassword(credential);
+        guarded("change-password", () -> getUserResource(userId).resetPassword(credential));
     }
 
     // 3. Cambia Email (NUOVO)
     public void updateEmail(String userId, String newEmail) {
-        UserResource userResource = getUserResource(userId);
+        guarded("update-email", () -> {
+            UserResource userResource = getUserResource(userId);
+
+            // Recuperiamo i dati attuali e modifichiamo solo l'email
+            UserRepresentation user = userResource.toRepresentation();
+            user.setEmail(newEmail);
 
-        // Recuperiamo i dati attuali e modifichiamo solo l'email
-        UserRepresentation user = userResource.toRepresentation();
-        user.setEmail(newEmail);
+            // Inviamo l'aggiornamento
+            userResource.update(user);
+        });
+    }
 
-        // Inviamo l'aggiornamento
-        userResource.update(user);
+    // 4. Export del modello di autorizzazione (risorse, scope, policy) per il PDP locale.
+    //    Richiede al service account i ruoli view-clients e view-authorization.
+    public ResourceServerRepresentation exportAuthorizationSettings(String resourceServerClientId) {
+        return guarded("export-authorization", () -> {
+            RealmResource realm = getRealmResource();
+            List<ClientRepresentation> clients = realm.clients().findByClientId(resourceServerClientId);
+            if (clients.isEmpty()) {
+                throw new IllegalArgumentException("Client non trovato: " + resourceServerClientId);
+            }
+            return realm.clients().get(clients.get(0).getId()).authorization().exportSettings();
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.session.NearCacheInvalidation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stato in memoria di ogni nodo allineato con le scritture fatte sugli altri, attraverso il canale delle
+ * invalidazioni delle near-cache (tabella near_cache_invalidation, solo con session.store=jdbc):
+ *
+ * - prenotazioni create/cancellate: applicate a OccupancyIndex, SlotIndex, ai contatori di SeatAdmission
+ *   e ai client SSE collegati a questo nodo, come se fossero locali;
+ * - aule modificate: snapshot di RoomCatalog e cache di secondo livello di Room scartati;
+ * - variazioni in blocco (ripristino di un backup, più di max-pending variazioni tra due flush): gli altri
+ *   nodi ricaricano gli indici dal DB, azzerano i contatori e mandano resync ai client SSE.
+ *
+ * Le variazioni vengono accodate dopo il commit e scritte in un solo batch ogni poll-interval, fuori dalla
+ * transazione che le ha prodotte; arrivano agli altri nodi con lo stesso ritardo delle sessioni.
+ * Se la scrittura fallisce, al flush successivo si chiede una ricarica completa. Senza il canale
+ * (session.store=memory) il nodo è uno solo e non c'è niente da propagare.
+ */
+@Component
+public class NodeStateRelay {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeStateRelay.class);
+
+    static final String BOOKINGS = "bookings";
+    static final String ROOMS = "rooms";
+    private static final String RELOAD = "reload";
+
+    private final NearCacheInvalidation invalidation;
+    private final OccupancyIndex occupancyIndex;
+    private final SlotIndex slotIndex;
+    private final SeatAdmission seatAdmission;
+    private final OccupancyBroadcaster occupancyBroadcaster;
+    private final RoomCatalog roomCatalog;
+    private final int maxPending;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong reloadsPublished = new AtomicLong();
+    private final AtomicLong reloadsReceived = new AtomicLong();
+    private final AtomicLong publishFailures = new AtomicLong();
+
+    public NodeStateRelay(ObjectProvider<NearCacheInvalidation> invalidation, OccupancyIndex occupancyIndex,
+                          SlotIndex slotIndex, SeatAdmission seatAdmission, OccupancyBroadcaster occupancyBroadcaster,
+                          RoomCatalog roomCatalog, @Value("${booking.relay.max-pending:10000}") int maxPending) {
+        this.invalidation = invalidation.getIfAvailable();
+        this.occupancyIndex = occupancyIndex;
+        this.slotIndex = slotIndex;
+        this.seatAdmission = seatAdmission;
+        this.occupancyBroadcaster = occupancyBroadcaster;
+        this.roomCatalog = roomCatalog;
+        this.maxPending = maxPending;
+        if (this.invalidation != null) {
+            this.invalidation.register(BOOKINGS, this::onRemoteBooking);
+            this.invalidation.register(ROOMS, key -> roomCatalog.invalidateFromElsewhere());
+        }
+    }
+
+    // Dopo il commit: solo in coda, la scrittura sul DB avviene nel flush
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookingChanged(BookingChangedEvent event) {
+        if (invalidation == null) {
+            return;
+        }
+        if (pendingCount.get() >= maxPending) {
+            // Cancellazioni in blocco: una ricarica costa meno di migliaia di righe
+            reloadPending.set(true);
+            return;
+        }
+        pending.add(encode(event));
+        pendingCount.incrementAndGet();
+    }
+
+    // Scritture fatte con SQL, fuori dagli eventi (ripristino di un backup)
+    public void reloadEverywhere() {
+        occupancyBroadcaster.resync();
+        if (invalidation != null) {
+            reloadPending.set(true);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${session.near-cache.poll-interval-ms:250}")
+    public void flush() {
+        if (invalidation == null) {
+            return;
+        }
+        boolean rooms = roomCatalog.takeLocalChange();
+        boolean reload = reloadPending.getAndSet(false);
+        List<String> keys = new ArrayList<>();
+        for (String key; (key = pending.poll()) != null; ) {
+            keys.add(key);
+        }
+        pendingCount.addAndGet(-keys.size());
+        if (reload) {
+            // La ricarica rilegge tutto dal DB: le singole variazioni non servono più
+            keys = List.of(RELOAD);
+        }
+        try {
+            if (rooms) {
+                invalidation.publish(ROOMS, "*");
+            }
+            invalidation.publishAll(BOOKINGS, keys);
+            if (reload) {
+                reloadsPublished.incrementAndGet();
+            } else {
+                published.addAndGet(keys.size());
+            }
+        } catch (RuntimeException e) {
+            // DB non raggiungibile: gli altri nodi si riallineano con una ricarica al prossimo flush riuscito
+            publishFailures.incrementAndGet();
+            if (!keys.isEmpty()) {
+                reloadPending.set(true);
+            }
+            if (rooms) {
+                roomCatalog.retryLocalChange();
+            }
+            logger.warn("SYSTEM: Node state relay publish failed ({})", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", invalidation != null);
+        stats.put("pending", pendingCount.get());
+        stats.put("published", published.get());
+        stats.put("received", received.get());
+        stats.put("reloadsPublished", reloadsPublished.get());
+        stats.put("reloadsReceived", reloadsReceived.get());
+        stats.put("publishFailures", publishFailures.get());
+        return stats;
+    }
+
+    // Sul thread del poll delle invalidazioni
+    private void onRemoteBooking(String key) {
+        if (RELOAD.equals(key)) {
+            reloadsReceived.incrementAndGet();
+            seatAdmission.clear();
+            occupancyIndex.verifyAgainstDatabase();
+            slotIndex.rebuild();
+            occupancyBroadcaster.resync();
+            return;
+        }
+        BookingChangedEvent event = decode(key);
+        received.incrementAndGet();
+        occupancyIndex.onBookingChanged(event);
+        slotIndex.onBookingChanged(event);
+        occupancyBroadcaster.onBookingChanged(event);
+        if (event.isSeat()) {
+            seatAdmission.changedElsewhere(event.roomId(), event.date(),
+                    event.type() == BookingChangedEvent.Type.CREATED ? 1 : -1);
+        }
+    }
+
+    // "C|id|aula|giorno|inizio|fine|posto": ben sotto i 255 caratteri di cache_key
+    static String encode(BookingChangedEvent event) {
+        return (event.type() == BookingChangedEvent.Type.CREATED ? "C" : "D") + "|" + event.bookingId() + "|"
+                + event.roomId() + "|" + event.date() + "|" + event.slot().startMinute() + "|"
+                + event.slot().endMinute() + "|" + event.seat();
+    }
+
+    static BookingChangedEvent decode(String key) {
+        String[] f = key.split("\\|");
+        return new BookingChangedEvent(f[0].equals("C") ? BookingChangedEvent.Type.CREATED : BookingChangedEvent.Type.DELETED,
+                Long.valueOf(f[1]), Long.valueOf(f[2]), LocalDate.parse(f[3]),
+                new TimeSlot(Integer.parseInt(f[4]), Integer.parseInt(f[5])), Integer.parseInt(f[6]));
+    }
+}
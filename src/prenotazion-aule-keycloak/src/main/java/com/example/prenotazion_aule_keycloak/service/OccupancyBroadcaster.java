@@ -0,0 +1,309 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Canale Server-Sent Events con le variazioni di occupazione, pubblicate dopo il commit di
+ * ogni creazione/cancellazione. Le dashboard si aggiornano senza ricaricare la pagina.
+ *
+ * - sottoscrizione per aula e per mese (nessuna aula = tutte, nessun mese = tutti): una pagina
+ *   riceve solo le variazioni di ciò che mostra e le applica sul posto, senza ricaricare;
+ * - ogni client ha un buffer limitato: il listener accoda e torna subito, l'invio avviene
+ *   su un pool dedicato, quindi un client lento non rallenta il commit né gli altri client;
+ * - buffer pieno = client lento: la connessione viene chiusa (EventSource si ricollega
+ *   e ricarica lo stato);
+ * - un invio per client alla volta, con scadenza: send() è bloccante, quindi un client che non
+ *   legge terrebbe occupato un thread del pool. Oltre send-timeout il client viene tolto, il pool
+ *   riceve un thread in più finché quell'invio non torna (timeout di scrittura del container)
+ *   e solo allora l'emitter viene chiuso: complete() aspetterebbe lo stesso invio bloccato;
+ * - heartbeat periodico per tenere aperti proxy/load balancer e scoprire i client spariti;
+ * - evento resync dopo le variazioni in blocco: la pagina ricarica lo stato.
+ * Con più nodi le variazioni degli altri arrivano da {@link NodeStateRelay}.
+ */
+@Component
+public class OccupancyBroadcaster {
+
+    private static final Logger logger = LoggerFactory.getLogger(OccupancyBroadcaster.class);
+
+    private static final Object HEARTBEAT = new Object();
+    // Variazioni in blocco non elencabili (ripristino di un backup): le pagine ricaricano lo stato
+    private static final Object RESYNC = new Object();
+
+    // Variazione già serializzata una volta sola, condivisa da tutti i client
+    private record Delta(long id, String json) {}
+
+    private final class Client {
+        final SseEmitter emitter;
+        final Set<Long> rooms;
+        final Set<YearMonth> months;
+        final ArrayBlockingQueue<Object> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        private boolean sending;
+        private long sendingSince;
+        private boolean stalled;
+
+        Client(SseEmitter emitter, Set<Long> rooms, Set<YearMonth> months) {
+            this.emitter = emitter;
+            this.rooms = rooms;
+            this.months = months;
+            this.queue = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        boolean wants(Long roomId, LocalDate date) {
+            return (rooms.isEmpty() || rooms.contains(roomId))
+                    && (months.isEmpty() || months.contains(YearMonth.from(date)));
+        }
+
+        synchronized void startSend() {
+            sending = true;
+            sendingSince = System.nanoTime();
+        }
+
+        // true se durante l'invio il client è stato dichiarato fermo
+        synchronized boolean endSend() {
+            sending = false;
+            return stalled;
+        }
+
+        synchronized boolean markStalled(long now) {
+            if (sending && !stalled && now - sendingSince > sendTimeoutNanos) {
+                stalled = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized long sendingForMs(long now) {
+            return (now - sendingSince) / 1_000_000;
+        }
+    }
+
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final Executor sender;
+    private final int maxClients;
+    private final int bufferSize;
+    private final long timeoutMs;
+    private final long sendTimeoutNanos;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong droppedSlow = new AtomicLong();
+    private final AtomicLong droppedStalled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    @Autowired
+    public OccupancyBroadcaster(@Value("${booking.live.max-clients:2000}") int maxClients,
+                                @Value("${booking.live.client-buffer:64}") int bufferSize,
+                                @Value("${booking.live.timeout:30m}") Duration timeout,
+                                @Value("${booking.live.sender-threads:4}") int senderThreads,
+                                @Value("${booking.live.send-timeout:10s}") Duration sendTimeout) {
+        this(newSenderPool(senderThreads), maxClients, bufferSize, timeout, sendTimeout);
+    }
+
+    OccupancyBroadcaster(Executor sender, int maxClients, int bufferSize, Duration timeout, Duration sendTimeout) {
+        this.sender = sender;
+        this.maxClients = maxClients;
+        this.bufferSize = bufferSize;
+        this.timeoutMs = timeout.toMillis();
+        this.sendTimeoutNanos = sendTimeout.toNanos();
+    }
+
+    /**
+     * Nuovo client. rooms vuoto = tutte le aule, months vuoto = tutti i mesi.
+     * Oltre max-clients la sottoscrizione è rifiutata (IllegalStateException).
+     */
+    public SseEmitter subscribe(Set<Long> rooms, Set<YearMonth> months) {
+        return subscribe(new SseEmitter(timeoutMs), rooms, months);
+    }
+
+    SseEmitter subscribe(SseEmitter emitter, Set<Long> rooms, Set<YearMonth> months) {
+        if (clients.size() >= maxClients) {
+            rejected.incrementAndGet();
+            throw new IllegalStateException("Troppi client collegati, riprova più tardi");
+        }
+        Client client = new Client(emitter, Set.copyOf(rooms), Set.copyOf(months));
+        emitter.onCompletion(() -> clients.remove(client));
+        emitter.onTimeout(() -> clients.remove(client));
+        emitter.onError(e -> clients.remove(client));
+        clients.add(client);
+        enqueue(client, HEARTBEAT); // primo byte subito: il browser considera aperta la connessione
+        return emitter;
+    }
+
+    // Dopo il commit (o subito senza transazione): accoda e basta, nessun I/O su questo thread
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookingChanged(BookingChangedEvent event) {
+        long id = sequence.incrementAndGet();
+        // Formato compatto: t=tipo (C/D), b=prenotazione, r=aula, d=giorno, s/e=fascia in minuti, p=posto
+        String json = "{\"t\":\"" + (event.type() == BookingChangedEvent.Type.CREATED ? "C" : "D") + "\""
+                + ",\"b\":" + event.bookingId()
+                + ",\"r\":" + event.roomId()
+                + ",\"d\":\"" + event.date() + "\""
+                + ",\"s\":" + event.slot().startMinute()
+                + ",\"e\":" + event.slot().endMinute()
+                + ",\"p\":" + event.seat() + "}";
+        Delta delta = new Delta(id, json);
+        for (Client client : clients) {
+            if (client.wants(event.roomId(), event.date())) {
+                enqueue(client, delta);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${booking.live.heartbeat-interval-ms:15000}",
+            initialDelayString = "${booking.live.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        clients.forEach(client -> enqueue(client, HEARTBEAT));
+    }
+
+    // Client fermi in un invio oltre send-timeout: tolti subito, l'emitter si chiude quando l'invio torna
+    @Scheduled(fixedDelayString = "${booking.live.stall-check-interval-ms:1000}",
+            initialDelayString = "${booking.live.stall-check-interval-ms:1000}")
+    public void dropStalledClients() {
+        long now = System.nanoTime();
+        for (Client client : clients) {
+            if (client.markStalled(now)) {
+                clients.remove(client);
+                client.queue.clear();
+                droppedStalled.incrementAndGet();
+                resizeSenderPool(1);
+                logger.warn("SYSTEM: Dropped stalled SSE client (send blocked for {} ms)", client.sendingForMs(now));
+            }
+        }
+    }
+
+    public void resync() {
+        clients.forEach(client -> enqueue(client, RESYNC));
+    }
+
+    public int clientCount() {
+        return clients.size();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("clients", clients.size());
+        stats.put("maxClients", maxClients);
+        stats.put("events", sequence.get());
+        stats.put("delivered", delivered.get());
+        stats.put("droppedSlowClients", droppedSlow.get());
+        stats.put("droppedStalledClients", droppedStalled.get());
+        stats.put("rejectedSubscriptions", rejected.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        clients.forEach(client -> client.emitter.complete());
+        clients.clear();
+        if (sender instanceof ExecutorService pool) {
+            pool.shutdownNow();
+        }
+    }
+
+    private void enqueue(Client client, Object item) {
+        if (!client.queue.offer(item)) {
+            // Buffer pieno: il client non tiene il passo, meglio chiuderlo che accumulare memoria
+            if (clients.remove(client)) {
+                droppedSlow.incrementAndGet();
+                logger.warn("SYSTEM: Dropped slow SSE client ({} pending events)", client.queue.size());
+                client.emitter.complete();
+            }
+            return;
+        }
+        if (client.scheduled.compareAndSet(false, true)) {
+            sender.execute(() -> drain(client));
+        }
+    }
+
+    private void drain(Client client) {
+        boolean stalled = false;
+        try {
+            Object item;
+            while (!stalled && (item = client.queue.poll()) != null) {
+                client.startSend();
+                try {
+                    send(client, item);
+                } finally {
+                    stalled = client.endSend();
+                }
+            }
+        } catch (Exception e) {
+            // Connessione chiusa dal client o emitter già completato
+            clients.remove(client);
+            client.queue.clear();
+        } finally {
+            if (stalled) {
+                // L'invio bloccato è tornato: si chiude l'emitter e il thread in più non serve più
+                client.emitter.complete();
+                resizeSenderPool(-1);
+            } else {
+                client.scheduled.set(false);
+                // Un elemento arrivato tra l'ultimo poll e il reset del flag non deve restare in coda
+                if (!client.queue.isEmpty() && clients.contains(client) && client.scheduled.compareAndSet(false, true)) {
+                    sender.execute(() -> drain(client));
+                }
+            }
+        }
+    }
+
+    private void send(Client client, Object item) throws Exception {
+        if (item == HEARTBEAT) {
+            client.emitter.send(SseEmitter.event().comment("hb"));
+        } else if (item == RESYNC) {
+            client.emitter.send(SseEmitter.event().name("resync").data(""));
+        } else {
+            Delta delta = (Delta) item;
+            client.emitter.send(SseEmitter.event().id(Long.toString(delta.id())).name("occupancy").data(delta.json()));
+            delivered.incrementAndGet();
+        }
+    }
+
+    // Un thread bloccato su un client fermo non deve togliere capacità agli altri
+    private void resizeSenderPool(int delta) {
+        if (sender instanceof ThreadPoolExecutor pool) {
+            synchronized (pool) {
+                if (delta > 0) {
+                    pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                    pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                } else {
+                    pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                    pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                }
+            }
+        }
+    }
+
+    static ExecutorService newSenderPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sse-sender-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Indice di occupazione in memoria: per ogni aula una bitmap di giorni (1 bit = 1 giorno)
+ * su una finestra [oggi - pastDays, oggi + futureDays], che su PostgreSQL non risale oltre i mesi
+ * ancora in bookings ({@link BookingPartitionMaintenance#firstHotDate()}). Il bit è acceso se l'aula ha almeno
+ * una prenotazione quel giorno; il dettaglio delle fasce orarie è in {@link SlotIndex}.
+ *
+ * L'indice è solo un acceleratore: il vincolo UNIQUE su bookings(room_id, date) resta
+ * l'arbitro finale. Fuori finestra o per aule non ancora indicizzate la risposta è
+ * {@link Occupancy#UNKNOWN} e il chiamante deve interrogare il DB.
+ *
+ * Mentre uno snapshot nuovo si carica dal DB le modifiche (markBusy/markFree) vanno sullo snapshot
+ * corrente e vengono anche registrate: prima dello scambio si riapplicano, in ordine, a quello nuovo.
+ * Senza, una prenotazione confermata durante la lettura andrebbe persa fino alla verifica successiva.
+ */
+@Component
+public class OccupancyIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(OccupancyIndex.class);
+
+    public enum Occupancy { FREE, BUSY, UNKNOWN }
+
+    private final BookingRepository bookingRepository;
+    private final BookingPartitionMaintenance partitionMaintenance;
+    private final int pastDays;
+    private final int futureDays;
+
+    // Snapshot sostituito in blocco a ogni (ri)costruzione
+    private volatile Snapshot snapshot = new Snapshot(0, 0, new ConcurrentHashMap<>());
+
+    // Modifiche arrivate durante un caricamento (null se non ce n'è uno in corso); protette da changeLock
+    private final Object changeLock = new Object();
+    private List<Consumer<Snapshot>> pendingChanges;
+    // Un caricamento alla volta (avvio, verifica periodica, ripristino di un backup)
+    private final Object reloadLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public OccupancyIndex(BookingRepository bookingRepository, BookingPartitionMaintenance partitionMaintenance,
+                          @Value("${booking.occupancy.past-days:366}") int pastDays,
+                          @Value("${booking.occupancy.future-days:730}") int futureDays) {
+        this.bookingRepository = bookingRepository;
+        this.partitionMaintenance = partitionMaintenance;
+        this.pastDays = pastDays;
+        this.futureDays = futureDays;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        reload();
+        logger.info("SYSTEM: Occupancy index warmed for {} rooms ({} bytes)", snapshot.rooms.size(), footprintBytes());
+    }
+
+    // --- Lettura ---
+
+    public Occupancy lookup(Long roomId, LocalDate date) {
+        Snapshot s = snapshot;
+        AtomicLongArray bits = s.rooms.get(roomId);
+        int offset = s.offset(date);
+        if (bits == null || offset < 0) {
+            misses.incrementAndGet();
+            return Occupancy.UNKNOWN;
+        }
+        hits.incrementAndGet();
+        return isSet(bits, offset) ? Occupancy.BUSY : Occupancy.FREE;
+    }
+
+    // Giorni occupati di un'aula nell'intervallo [from, to], limitati alla finestra indicizzata
+    public List<LocalDate> busyDays(Long roomId, LocalDate from, LocalDate to) {
+        Snapshot s = snapshot;
+        AtomicLongArray bits = s.rooms.get(roomId);
+        List<LocalDate> result = new ArrayList<>();
+        if (bits == null) {
+            return result;
+        }
+        for (LocalDate d = from; !d.isAfter(to); d = d.plusDays(1)) {
+            int offset = s.offset(d);
+            if (offset >= 0 && isSet(bits, offset)) {
+                result.add(d);
+            }
+        }
+        return result;
+    }
+
+    // --- Sincronizzazione (dopo il commit, o subito se non c'è transazione) ---
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookingChanged(BookingChangedEvent event) {
+        if (event.isSeat()) {
+            return; // un posto non occupa l'aula
+        }
+        if (event.type() == BookingChangedEvent.Type.CREATED) {
+            markBusy(event.roomId(), event.date());
+        } else if (event.slot().isFullDay()
+                || !bookingRepository.existsByRoomIdAndDate(event.roomId(), event.date())) {
+            // Con le fasce orarie il giorno torna libero solo se non restano altre prenotazioni
+            markFree(event.roomId(), event.date());
+        }
+    }
+
+    public void markBusy(Long roomId, LocalDate date) {
+        apply(s -> {
+            int offset = s.offset(date);
+            if (offset >= 0) {
+                AtomicLongArray bits = s.rooms.computeIfAbsent(roomId, id -> new AtomicLongArray(s.words()));
+                bits.getAndUpdate(offset >>> 6, w -> w | (1L << offset));
+            }
+        });
+    }
+
+    public void markFree(Long roomId, LocalDate date) {
+        apply(s -> {
+            AtomicLongArray bits = s.rooms.get(roomId);
+            int offset = s.offset(date);
+            if (bits != null && offset >= 0) {
+                bits.getAndUpdate(offset >>> 6, w -> w & ~(1L << offset));
+            }
+        });
+    }
+
+    private void apply(Consumer<Snapshot> change) {
+        synchronized (changeLock) {
+            change.accept(snapshot);
+            if (pendingChanges != null) {
+                pendingChanges.add(change);
+            }
+        }
+    }
+
+    // --- Consistenza ---
+
+    /**
+     * Ricostruisce l'indice dal DB e conta i giorni divergenti rispetto alla versione in memoria.
+     * Fa anche scorrere la finestra in avanti man mano che passano i giorni.
+     */
+    @Scheduled(fixedDelayString = "${booking.occupancy.verify-interval-ms:600000}",
+            initialDelayString = "${booking.occupancy.verify-interval-ms:600000}")
+    public long verifyAgainstDatabase() {
+        Snapshot current = reload();
+        Snapshot fresh = snapshot;
+
+        long mismatches = 0;
+        for (Map.Entry<Long, AtomicLongArray> entry : fresh.rooms.entrySet()) {
+            AtomicLongArray mine = current.rooms.get(entry.getKey());
+            for (LocalDate d : fresh.datesSet(entry.getValue())) {
+                if (mine == null || current.offset(d) < 0 || !isSet(mine, current.offset(d))) mismatches++;
+            }
+        }
+        for (Map.Entry<Long, AtomicLongArray> entry : current.rooms.entrySet()) {
+            AtomicLongArray theirs = fresh.rooms.get(entry.getKey());
+            for (LocalDate d : current.datesSet(entry.getValue())) {
+                int offset = fresh.offset(d);
+                if (offset >= 0 && (theirs == null || !isSet(theirs, offset))) mismatches++;
+            }
+        }
+
+        if (mismatches > 0) {
+            logger.warn("SYSTEM: Occupancy index diverged from database on {} room-days, rebuilt", mismatches);
+        }
+        return mismatches;
+    }
+
+    // --- Statistiche ---
+
+    public long footprintBytes() {
+        Snapshot s = snapshot;
+        // long[] interno + header array/AtomicLongArray + entry della mappa (stima)
+        long perRoom = s.words() * 8L + 16 + 16 + 48;
+        return s.rooms.size() * perRoom;
+    }
+
+    public double hitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Snapshot s = snapshot;
+        stats.put("rooms", s.rooms.size());
+        stats.put("windowStart", LocalDate.ofEpochDay(s.baseEpochDay));
+        stats.put("windowDays", s.days);
+        stats.put("footprintBytes", footprintBytes());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRate", hitRate());
+        return stats;
+    }
+
+    // --- Interni ---
+
+    // Carica uno snapshot nuovo, gli riapplica le modifiche arrivate nel frattempo e lo sostituisce
+    // al corrente. Restituisce lo snapshot sostituito
+    private Snapshot reload() {
+        synchronized (reloadLock) {
+            synchronized (changeLock) {
+                pendingChanges = new ArrayList<>();
+            }
+            Snapshot fresh;
+            try {
+                fresh = loadFromDatabase();
+            } catch (RuntimeException e) {
+                synchronized (changeLock) {
+                    pendingChanges = null;
+                }
+                throw e;
+            }
+            synchronized (changeLock) {
+                pendingChanges.forEach(change -> change.accept(fresh));
+                pendingChanges = null;
+                Snapshot previous = snapshot;
+                snapshot = fresh;
+                return previous;
+            }
+        }
+    }
+
+    private Snapshot loadFromDatabase() {
+        LocalDate today = LocalDate.now();
+        LocalDate from = windowStart(today);
+        Snapshot fresh = new Snapshot(from.toEpochDay(), (int) (today.plusDays(futureDays).toEpochDay() - from.toEpochDay()) + 1,
+                new ConcurrentHashMap<>());
+        for (BookingRepository.RoomDay rd : bookingRepository.findAllRoomDays()) {
+            int offset = fresh.offset(rd.getDate());
+            if (offset >= 0) {
+                AtomicLongArray bits = fresh.rooms.computeIfAbsent(rd.getRoomId(), id -> new AtomicLongArray(fresh.words()));
+                bits.getAndUpdate(offset >>> 6, w -> w | (1L << offset));
+            }
+        }
+        return fresh;
+    }
+
+    // I giorni dei mesi archiviati restano fuori finestra: bookings non li contiene più
+    private LocalDate windowStart(LocalDate today) {
+        LocalDate from = today.minusDays(pastDays);
+        LocalDate firstHot = partitionMaintenance.firstHotDate();
+        return firstHot != null && firstHot.isAfter(from) ? firstHot : from;
+    }
+
+    private static boolean isSet(AtomicLongArray bits, int offset) {
+        return (bits.get(offset >>> 6) & (1L << offset)) != 0;
+    }
+
+    private record Snapshot(long baseEpochDay, int days, ConcurrentHashMap<Long, AtomicLongArray> rooms) {
+
+        int words() {
+            return (days + 63) >>> 6;
+        }
+
+        // Offset del giorno nella bitmap, -1 se fuori finestra
+        int offset(LocalDate date) {
+            long offset = date.toEpochDay() - baseEpochDay;
+            return offset >= 0 && offset < days ? (int) offset : -1;
+        }
+
+        List<LocalDate> datesSet(AtomicLongArray bits) {
+            List<LocalDate> dates = new ArrayList<>();
+            for (int i = 0; i < days; i++) {
+                if (isSet(bits, i)) dates.add(LocalDate.ofEpochDay(baseEpochDay + i));
+            }
+            return dates;
+        }
+    }
+}
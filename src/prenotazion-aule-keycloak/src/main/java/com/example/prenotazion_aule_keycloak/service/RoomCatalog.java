@@ -0,0 +1,186 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.repository.RoomRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Catalogo delle aule in memoria: snapshot immutabile caricato alla prima lettura
+ * (read-through) e scartato dopo il commit di qualunque scrittura su Room.
+ *
+ * L'invalidazione si aggancia agli eventi post-commit di Hibernate, quindi copre ogni
+ * save/delete passato dall'EntityManager; gli UPDATE/DELETE JPQL in blocco non generano
+ * eventi e devono chiamare {@link #invalidate()} esplicitamente. Le invalidazioni nate qui
+ * vengono propagate agli altri nodi da {@link NodeStateRelay}, che scartano snapshot e
+ * regione di secondo livello di Room.
+ */
+@Component
+public class RoomCatalog {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoomCatalog.class);
+
+    private final RoomRepository roomRepository;
+    private final EntityManagerFactory entityManagerFactory;
+    private final boolean warmUpEnabled;
+
+    // null = da ricaricare alla prossima lettura
+    private volatile List<Room> snapshot;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong remoteInvalidations = new AtomicLong();
+
+    // Scritture di questo nodo non ancora comunicate agli altri
+    private final AtomicBoolean changedLocally = new AtomicBoolean();
+
+    public RoomCatalog(RoomRepository roomRepository, EntityManagerFactory entityManagerFactory,
+                       @Value("${booking.rooms.warm-up:true}") boolean warmUpEnabled) {
+        this.roomRepository = roomRepository;
+        this.entityManagerFactory = entityManagerFactory;
+        this.warmUpEnabled = warmUpEnabled;
+    }
+
+    @PostConstruct
+    void registerInvalidation() {
+        RoomWriteListener listener = new RoomWriteListener();
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, listener);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, listener);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, listener);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (warmUpEnabled) {
+            logger.info("SYSTEM: Room catalog warmed with {} rooms", all().size());
+        }
+    }
+
+    public List<Room> all() {
+        List<Room> current = snapshot;
+        if (current != null) {
+            hits.incrementAndGet();
+            return current;
+        }
+        misses.incrementAndGet();
+        long generation = invalidations.get();
+        List<Room> fresh = List.copyOf(roomRepository.findAll());
+        // Un'invalidazione arrivata durante la lettura rende fresh già vecchio: non lo pubblichiamo
+        if (invalidations.get() == generation) {
+            snapshot = fresh;
+        }
+        return fresh;
+    }
+
+    public void invalidate() {
+        invalidations.incrementAndGet();
+        snapshot = null;
+        changedLocally.set(true);
+    }
+
+    // Aule modificate su un altro nodo: anche la cache di secondo livello di questo nodo è vecchia
+    public void invalidateFromElsewhere() {
+        remoteInvalidations.incrementAndGet();
+        invalidations.incrementAndGet();
+        snapshot = null;
+        entityManagerFactory.getCache().evict(Room.class);
+    }
+
+    // true una volta sola per ogni gruppo di invalidazioni locali
+    boolean takeLocalChange() {
+        return changedLocally.getAndSet(false);
+    }
+
+    void retryLocalChange() {
+        changedLocally.set(true);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        List<Room> current = snapshot;
+        stats.put("rooms", current == null ? null : current.size());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        long total = hits.get() + misses.get();
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hits.get() / total);
+        stats.put("invalidations", invalidations.get());
+        stats.put("remoteInvalidations", remoteInvalidations.get());
+
+        // Regione di secondo livello Hibernate (richiede hibernate.generate_statistics)
+        Statistics hibernate = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getStatistics();
+        if (hibernate.isStatisticsEnabled()) {
+            CacheRegionStatistics region = hibernate.getDomainDataRegionStatistics(Room.CACHE_REGION);
+            Map<String, Object> l2 = new LinkedHashMap<>();
+            l2.put("hits", region.getHitCount());
+            l2.put("misses", region.getMissCount());
+            l2.put("puts", region.getPutCount());
+            l2.put("elementsInMemory", region.getElementCountInMemory());
+            stats.put("secondLevelCache", l2);
+        }
+        return stats;
+    }
+
+    // Dopo il commit di una scrittura su Room lo snapshot non è più valido
+    private class RoomWriteListener implements PostCommitInsertEventListener,
+            PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            if (event.getEntity() instanceof Room) invalidate();
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            if (event.getEntity() instanceof Room) invalidate();
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            if (event.getEntity() instanceof Room) invalidate();
+        }
+
+        @Override
+        public void onPostInsertCommitFailed(PostInsertEvent event) {
+        }
+
+        @Override
+        public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+        }
+
+        @Override
+        public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+        }
+
+        @Override
+        public boolean requiresPostCommitHandling(EntityPersister persister) {
+            return persister.getMappedClass() == Room.class;
+        }
+    }
+}
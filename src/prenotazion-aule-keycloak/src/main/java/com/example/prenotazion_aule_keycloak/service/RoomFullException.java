@@ -0,0 +1,9 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+// Aula a posti al completo: il chiamante può proporre la lista d'attesa
+public class RoomFullException extends IllegalStateException {
+
+    public RoomFullException(String message) {
+        super(message);
+    }
+}
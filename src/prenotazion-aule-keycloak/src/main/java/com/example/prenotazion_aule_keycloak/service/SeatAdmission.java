@@ -0,0 +1,194 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.repository.SeatCounterRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ammissione ai posti in memoria: un contatore atomico per (aula, giorno) con i posti
+ * occupati noti a questa istanza, prenotazioni in corso comprese.
+ *
+ * Serve a tenere lontane dal DB le richieste per un'aula già piena: senza, centinaia di
+ * richieste concorrenti si metterebbero in coda sul lock della riga di seat_counters.
+ * Non è l'arbitro: chi passa deve comunque superare l'UPDATE condizionale sul DB.
+ * Un conteggio troppo basso manda solo qualche richiesta in più al DB; uno troppo alto
+ * (posti liberati da altre istanze) viene corretto rileggendo il DB, al massimo una
+ * volta per refresh-interval per ogni aula/giorno. Con più nodi le variazioni degli altri
+ * arrivano anche da {@link NodeStateRelay}, con il ritardo del poll delle invalidazioni.
+ */
+@Component
+public class SeatAdmission {
+
+    private static final Logger logger = LoggerFactory.getLogger(SeatAdmission.class);
+
+    private record RoomDayKey(Long roomId, LocalDate date) {}
+
+    private static final class Counter {
+        final AtomicInteger taken;
+        final AtomicLong refreshedAt = new AtomicLong(System.nanoTime());
+
+        Counter(int taken) {
+            this.taken = new AtomicInteger(taken);
+        }
+    }
+
+    private final SeatCounterRepository seatCounterRepository;
+    private final long refreshIntervalNanos;
+
+    private final ConcurrentHashMap<RoomDayKey, Counter> counters = new ConcurrentHashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedInMemory = new AtomicLong();
+    private final AtomicLong rejectedByDatabase = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public SeatAdmission(SeatCounterRepository seatCounterRepository,
+                         @Value("${booking.seats.refresh-interval:1s}") Duration refreshInterval) {
+        this.seatCounterRepository = seatCounterRepository;
+        this.refreshIntervalNanos = refreshInterval.toNanos();
+    }
+
+    // true se il giorno è già tracciato: la riga di seat_counters esiste di sicuro
+    public boolean isTracked(Long roomId, LocalDate date) {
+        return counters.containsKey(new RoomDayKey(roomId, date));
+    }
+
+    /**
+     * Riserva un posto in memoria; false = aula piena secondo l'ultimo conteggio noto.
+     * Dentro una transazione il posto viene restituito da sé al rollback.
+     */
+    public boolean tryAcquire(Long roomId, LocalDate date, int capacity) {
+        RoomDayKey key = new RoomDayKey(roomId, date);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            // Lettura fuori da computeIfAbsent: niente query con il lock della mappa
+            Counter fresh = new Counter(readTaken(key));
+            counter = counters.putIfAbsent(key, fresh);
+            if (counter == null) counter = fresh;
+        }
+
+        boolean acquired = acquire(counter.taken, capacity);
+        if (!acquired) {
+            // Pieno in memoria: se il conteggio è vecchio si rilegge il DB (una richiesta per intervallo)
+            long last = counter.refreshedAt.get();
+            long now = System.nanoTime();
+            if (now - last >= refreshIntervalNanos && counter.refreshedAt.compareAndSet(last, now)) {
+                refreshes.incrementAndGet();
+                counter.taken.set(readTaken(key));
+                acquired = acquire(counter.taken, capacity);
+            }
+        }
+
+        if (!acquired) {
+            rejectedInMemory.incrementAndGet();
+            return false;
+        }
+        admitted.incrementAndGet();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) release(roomId, date);
+                }
+            });
+        }
+        return true;
+    }
+
+    // Il DB ha rifiutato un posto ammesso in memoria: il giorno è pieno anche per questa istanza
+    public void markFull(Long roomId, LocalDate date, int capacity) {
+        rejectedByDatabase.incrementAndGet();
+        Counter counter = counters.get(new RoomDayKey(roomId, date));
+        if (counter != null) {
+            // +1: il posto riservato da questa richiesta viene restituito al rollback
+            counter.taken.set(capacity + 1);
+            counter.refreshedAt.set(System.nanoTime());
+        }
+    }
+
+    public void release(Long roomId, LocalDate date) {
+        Counter counter = counters.get(new RoomDayKey(roomId, date));
+        if (counter != null) {
+            counter.taken.getAndUpdate(t -> t > 0 ? t - 1 : 0);
+        }
+    }
+
+    // Posto preso o liberato su un altro nodo (NodeStateRelay): solo i giorni già tracciati
+    public void changedElsewhere(Long roomId, LocalDate date, int delta) {
+        Counter counter = counters.get(new RoomDayKey(roomId, date));
+        if (counter != null) {
+            counter.taken.getAndUpdate(t -> Math.max(0, t + delta));
+        }
+    }
+
+    // Ricarica chiesta da un altro nodo: i contatori vengono riletti dal DB alla prossima richiesta
+    public void clear() {
+        counters.clear();
+    }
+
+    // Posto liberato da una cancellazione: visibile alle altre richieste solo dopo il commit
+    public void releaseAfterCommit(Long roomId, LocalDate date) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    release(roomId, date);
+                }
+            });
+        } else {
+            release(roomId, date);
+        }
+    }
+
+    // I giorni passati non ricevono più prenotazioni
+    @Scheduled(fixedDelayString = "${booking.seats.cleanup-interval-ms:3600000}",
+            initialDelayString = "${booking.seats.cleanup-interval-ms:3600000}")
+    public void evictPastDays() {
+        LocalDate today = LocalDate.now();
+        int before = counters.size();
+        counters.keySet().removeIf(key -> key.date().isBefore(today));
+        if (before != counters.size()) {
+            logger.info("SYSTEM: Seat admission evicted {} past room-days", before - counters.size());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("roomDays", counters.size());
+        stats.put("admitted", admitted.get());
+        stats.put("rejectedInMemory", rejectedInMemory.get());
+        stats.put("rejectedByDatabase", rejectedByDatabase.get());
+        stats.put("refreshes", refreshes.get());
+        return stats;
+    }
+
+    private int readTaken(RoomDayKey key) {
+        return seatCounterRepository.findTaken(key.roomId(), key.date()).orElse(0);
+    }
+
+    // CAS senza lock: incrementa solo se resta almeno un posto
+    private static boolean acquire(AtomicInteger taken, int capacity) {
+        while (true) {
+            int current = taken.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (taken.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
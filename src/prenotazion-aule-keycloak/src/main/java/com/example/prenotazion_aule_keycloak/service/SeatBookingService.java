@@ -0,0 +1,210 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.audit.AuditEvent;
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.model.Booking;
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.model.WaitlistEntry;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.example.prenotazion_aule_keycloak.repository.SeatCounterRepository;
+import com.example.prenotazion_aule_keycloak.repository.WaitlistRepository;
+import com.example.prenotazion_aule_keycloak.repository.WaitlistView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Prenotazione a posti: fino a capacity utenti per aula e giorno.
+ *
+ * L'ammissione passa da due livelli: il contatore atomico in memoria ({@link SeatAdmission})
+ * scarta subito le richieste per un'aula piena, l'UPDATE condizionale su seat_counters decide
+ * davvero e vale anche tra più istanze. Quando un posto si libera va al primo della lista
+ * d'attesa nella stessa transazione della cancellazione.
+ */
+@Service
+public class SeatBookingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SeatBookingService.class);
+
+    private final BookingRepository bookingRepository;
+    private final SeatCounterRepository seatCounterRepository;
+    private final WaitlistRepository waitlistRepository;
+    private final SeatAdmission seatAdmission;
+    private final ApplicationEventPublisher eventPublisher;
+    private final AuditTrail auditTrail;
+
+    public SeatBookingService(BookingRepository bookingRepository, SeatCounterRepository seatCounterRepository,
+                              WaitlistRepository waitlistRepository, SeatAdmission seatAdmission,
+                              ApplicationEventPublisher eventPublisher, AuditTrail auditTrail) {
+        this.bookingRepository = bookingRepository;
+        this.seatCounterRepository = seatCounterRepository;
+        this.waitlistRepository = waitlistRepository;
+        this.seatAdmission = seatAdmission;
+        this.eventPublisher = eventPublisher;
+        this.auditTrail = auditTrail;
+    }
+
+    /**
+     * Crea la riga di seat_counters del giorno se manca. Va chiamato fuori dalla transazione
+     * della prenotazione: una chiave duplicata (creazione concorrente) non deve annullarla.
+     */
+    public void ensureCounter(Long roomId, LocalDate date) {
+        if (seatAdmission.isTracked(roomId, date)) {
+            return;
+        }
+        try {
+            seatCounterRepository.createIfAbsent(roomId, date);
+        } catch (DataIntegrityViolationException e) {
+            // Creata nel frattempo da un'altra richiesta
+        }
+    }
+
+    @Transactional
+    public Booking book(String username, Room room, LocalDate date) {
+        Long roomId = room.getId();
+        if (bookingRepository.existsByRoomIdAndDateAndUsernameAndSeatGreaterThan(roomId, date, username, 0)) {
+            throw new IllegalStateException("Hai già un posto in quest'aula per il " + date);
+        }
+
+        // 1. Memoria: un'aula piena non arriva al DB
+        if (!seatAdmission.tryAcquire(roomId, date, room.getCapacity())) {
+            throw roomFull(username, room, date);
+        }
+        // 2. DB: UPDATE condizionale, la riga resta bloccata fino al commit
+        if (seatCounterRepository.tryTake(roomId, date, room.getCapacity()) == 0) {
+            seatAdmission.markFull(roomId, date, room.getCapacity());
+            throw roomFull(username, room, date);
+        }
+
+        int seat = firstFreeSeat(bookingRepository.findSeats(roomId, date), room.getCapacity());
+        if (seat == 0) {
+            throw roomFull(username, room, date); // capienza ridotta sotto i posti assegnati
+        }
+        Booking saved;
+        try {
+            saved = bookingRepository.saveAndFlush(new Booking(username, room, date, TimeSlot.fullDay(), seat));
+        } catch (DataIntegrityViolationException e) {
+            // Su PostgreSQL l'indice unico parziale (room_id, date, username) ferma il doppio posto concorrente
+            throw new IllegalStateException("Hai già un posto in quest'aula per il " + date);
+        }
+        eventPublisher.publishEvent(BookingChangedEvent.seatCreated(saved.getId(), roomId, date, seat));
+
+        auditTrail.record(AuditEvent.Type.SEAT_BOOKED, username, saved.getId(), roomId, date + " seat " + seat);
+        return saved;
+    }
+
+    /**
+     * Posto liberato da una cancellazione (già eseguita dal chiamante nella stessa transazione):
+     * passa al primo in lista d'attesa, altrimenti torna disponibile.
+     */
+    @Transactional
+    public void seatFreed(Room room, LocalDate date, int seat) {
+        Long roomId = room.getId();
+
+        // La DELETE deve arrivare al DB prima dell'eventuale INSERT dello stesso posto
+        bookingRepository.flush();
+        seatCounterRepository.release(roomId, date);
+
+        if (!date.isBefore(LocalDate.now())) {
+            for (WaitlistEntry next : waitlistRepository.findByRoomIdAndDateOrderByCreatedAtAscIdAsc(roomId, date)) {
+                if (bookingRepository.existsByRoomIdAndDateAndUsernameAndSeatGreaterThan(roomId, date, next.getUsername(), 0)) {
+                    // Ha già un posto: l'iscrizione non serve più
+                    waitlistRepository.delete(next);
+                    continue;
+                }
+                if (seatCounterRepository.tryTake(roomId, date, room.getCapacity()) == 0) {
+                    break; // posto preso da un'altra richiesta: l'iscrizione resta in coda
+                }
+                waitlistRepository.delete(next);
+                Booking promoted = bookingRepository.saveAndFlush(
+                        new Booking(next.getUsername(), room, date, TimeSlot.fullDay(), seat));
+                eventPublisher.publishEvent(BookingChangedEvent.seatCreated(promoted.getId(), roomId, date, seat));
+                auditTrail.record(AuditEvent.Type.WAITLIST_PROMOTED, next.getUsername(), promoted.getId(), roomId,
+                        date + " seat " + seat);
+                return; // il posto resta occupato: il contatore in memoria non cambia
+            }
+        }
+        seatAdmission.releaseAfterCommit(roomId, date);
+    }
+
+    /**
+     * Iscrizione in lista d'attesa. Restituisce la posizione in coda.
+     * Il lock sulla riga del contatore la serializza con le cancellazioni: non si può finire
+     * in attesa mentre un posto appena liberato resta vuoto.
+     */
+    @Transactional
+    public long joinWaitlist(String username, Room room, LocalDate date) {
+        Long roomId = room.getId();
+        if (!room.isSeatBooking()) {
+            throw new IllegalArgumentException("La lista d'attesa è disponibile solo per le aule a posti");
+        }
+        if (date.isBefore(LocalDate.now())) {
+            throw new IllegalArgumentException("Data non valida");
+        }
+        if (bookingRepository.existsByRoomIdAndDateAndUsernameAndSeatGreaterThan(roomId, date, username, 0)) {
+            throw new IllegalStateException("Hai già un posto in quest'aula per il " + date);
+        }
+        if (waitlistRepository.existsByRoomIdAndDateAndUsername(roomId, date, username)) {
+            throw new IllegalStateException("Sei già in lista d'attesa per quest'aula il " + date);
+        }
+
+        seatCounterRepository.lock(roomId, date);
+        if (seatCounterRepository.findTaken(roomId, date).orElse(0) < room.getCapacity()) {
+            throw new IllegalStateException("Si è appena liberato un posto: riprova a prenotare");
+        }
+        waitlistRepository.saveAndFlush(new WaitlistEntry(username, room, date, Instant.now()));
+        long position = waitlistRepository.countByRoomIdAndDate(roomId, date);
+
+        auditTrail.record(AuditEvent.Type.WAITLIST_JOINED, username, null, roomId, date + " position " + position);
+        return position;
+    }
+
+    @Transactional
+    public void leaveWaitlist(Long entryId, String username) {
+        if (waitlistRepository.deleteByIdAndUsername(entryId, username) == 0) {
+            throw new IllegalArgumentException("Iscrizione non trovata");
+        }
+        auditTrail.record(AuditEvent.Type.WAITLIST_LEFT, username, null, null, "entry " + entryId);
+    }
+
+    @Transactional
+    public int deleteWaitlistOf(String username) {
+        return waitlistRepository.deleteByUsername(username);
+    }
+
+    @Transactional
+    public int deleteWaitlistForPurge(Long roomId, LocalDate before) {
+        return waitlistRepository.deleteForPurge(roomId, before);
+    }
+
+    @Transactional(readOnly = true)
+    public List<WaitlistView> getWaitlistByUser(String username) {
+        return waitlistRepository.findViewsByUsername(username);
+    }
+
+    // Primo numero di posto libero in 1..capacity, 0 se non ce ne sono
+    static int firstFreeSeat(List<Integer> assigned, int capacity) {
+        Set<Integer> used = new HashSet<>(assigned);
+        for (int seat = 1; seat <= capacity; seat++) {
+            if (!used.contains(seat)) {
+                return seat;
+            }
+        }
+        return 0;
+    }
+
+    private RoomFullException roomFull(String username, Room room, LocalDate date) {
+        logger.warn("BUSINESS: User '{}' failed to book a seat in Room {} on {} (Full)", username, room.getName(), date);
+        return new RoomFullException("Aula al completo!");
+    }
+}
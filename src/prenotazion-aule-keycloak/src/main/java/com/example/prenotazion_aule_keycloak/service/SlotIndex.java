@@ -0,0 +1,219 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Indice in memoria delle fasce orarie prenotate, per aula e giorno.
+ *
+ * Le fasce di una stessa aula non si sovrappongono mai (lo garantisce il vincolo di esclusione),
+ * quindi una mappa ordinata start -> end basta come albero di intervalli: la sovrapposizione
+ * con [s, e) si decide guardando solo la fascia che inizia prima di s e la prima che inizia dopo.
+ *
+ * Copre la stessa finestra di giorni di {@link OccupancyIndex} (mesi archiviati esclusi); fuori finestra la risposta
+ * è UNKNOWN e il chiamante interroga il DB. Come lì, le modifiche arrivate durante un caricamento dal DB
+ * vengono riapplicate allo snapshot nuovo prima di sostituirlo.
+ */
+@Component
+public class SlotIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlotIndex.class);
+
+    private record RoomDayKey(Long roomId, LocalDate date) {}
+
+    private record Snapshot(LocalDate from, LocalDate to,
+                            ConcurrentHashMap<RoomDayKey, ConcurrentSkipListMap<Integer, Integer>> slots) {
+
+        boolean covers(LocalDate date) {
+            return !date.isBefore(from) && !date.isAfter(to);
+        }
+    }
+
+    private final BookingRepository bookingRepository;
+    private final BookingPartitionMaintenance partitionMaintenance;
+    private final int pastDays;
+    private final int futureDays;
+
+    private volatile Snapshot snapshot = new Snapshot(LocalDate.MAX, LocalDate.MIN, new ConcurrentHashMap<>());
+
+    private final Object changeLock = new Object();
+    private List<Consumer<Snapshot>> pendingChanges;
+    private final Object reloadLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SlotIndex(BookingRepository bookingRepository, BookingPartitionMaintenance partitionMaintenance,
+                     @Value("${booking.occupancy.past-days:366}") int pastDays,
+                     @Value("${booking.occupancy.future-days:730}") int futureDays) {
+        this.bookingRepository = bookingRepository;
+        this.partitionMaintenance = partitionMaintenance;
+        this.pastDays = pastDays;
+        this.futureDays = futureDays;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        rebuild();
+        logger.info("SYSTEM: Slot index warmed with {} room-days", snapshot.slots.size());
+    }
+
+    // Fa scorrere la finestra e riallinea l'indice al DB
+    @Scheduled(fixedDelayString = "${booking.occupancy.verify-interval-ms:600000}",
+            initialDelayString = "${booking.occupancy.verify-interval-ms:600000}")
+    public void rebuild() {
+        synchronized (reloadLock) {
+            synchronized (changeLock) {
+                pendingChanges = new ArrayList<>();
+            }
+            Snapshot fresh;
+            try {
+                fresh = loadFromDatabase();
+            } catch (RuntimeException e) {
+                synchronized (changeLock) {
+                    pendingChanges = null;
+                }
+                throw e;
+            }
+            synchronized (changeLock) {
+                pendingChanges.forEach(change -> change.accept(fresh));
+                pendingChanges = null;
+                snapshot = fresh;
+            }
+        }
+    }
+
+    public boolean covers(LocalDate date) {
+        return snapshot.covers(date);
+    }
+
+    public OccupancyIndex.Occupancy lookup(Long roomId, LocalDate date, TimeSlot slot) {
+        Snapshot s = snapshot;
+        if (!s.covers(date)) {
+            misses.incrementAndGet();
+            return OccupancyIndex.Occupancy.UNKNOWN;
+        }
+        hits.incrementAndGet();
+        NavigableMap<Integer, Integer> day = s.slots.get(new RoomDayKey(roomId, date));
+        return day != null && overlaps(day, slot) ? OccupancyIndex.Occupancy.BUSY : OccupancyIndex.Occupancy.FREE;
+    }
+
+    /**
+     * Fasce libere di almeno minMinutes dentro l'orario di apertura, per ogni aula indicata,
+     * con un solo passaggio ordinato sulle fasce prenotate di ciascuna aula.
+     * Restituisce null se il giorno è fuori finestra.
+     */
+    public Map<Long, List<TimeSlot>> freeSlots(Collection<Long> roomIds, LocalDate date, TimeSlot opening, int minMinutes) {
+        Snapshot s = snapshot;
+        if (!s.covers(date)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Map<Long, List<TimeSlot>> result = new LinkedHashMap<>();
+        for (Long roomId : roomIds) {
+            NavigableMap<Integer, Integer> day = s.slots.get(new RoomDayKey(roomId, date));
+            result.put(roomId, gaps(day == null ? new ConcurrentSkipListMap<>() : day, opening, minMinutes));
+        }
+        return result;
+    }
+
+    // Buchi tra le fasce prenotate (ordinate per inizio) dentro opening, lunghi almeno minMinutes
+    public static List<TimeSlot> gaps(NavigableMap<Integer, Integer> booked, TimeSlot opening, int minMinutes) {
+        List<TimeSlot> free = new ArrayList<>();
+        int cursor = opening.startMinute();
+        for (Map.Entry<Integer, Integer> slot : booked.entrySet()) {
+            if (slot.getKey() >= opening.endMinute()) break;
+            if (slot.getKey() - cursor >= minMinutes) {
+                free.add(new TimeSlot(cursor, slot.getKey()));
+            }
+            cursor = Math.max(cursor, slot.getValue());
+        }
+        if (opening.endMinute() - cursor >= minMinutes) {
+            free.add(new TimeSlot(cursor, opening.endMinute()));
+        }
+        return free;
+    }
+
+    // --- Sincronizzazione (dopo il commit, o subito se non c'è transazione) ---
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookingChanged(BookingChangedEvent event) {
+        if (event.isSeat()) {
+            return;
+        }
+        RoomDayKey key = new RoomDayKey(event.roomId(), event.date());
+        Consumer<Snapshot> change = s -> {
+            if (!s.covers(event.date())) {
+                return;
+            }
+            if (event.type() == BookingChangedEvent.Type.CREATED) {
+                s.slots.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>())
+                        .put(event.slot().startMinute(), event.slot().endMinute());
+            } else {
+                ConcurrentSkipListMap<Integer, Integer> day = s.slots.get(key);
+                if (day != null) {
+                    day.remove(event.slot().startMinute(), event.slot().endMinute());
+                }
+            }
+        };
+        synchronized (changeLock) {
+            change.accept(snapshot);
+            if (pendingChanges != null) {
+                pendingChanges.add(change);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Snapshot s = snapshot;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("roomDays", s.slots.size());
+        stats.put("slots", s.slots.values().stream().mapToInt(Map::size).sum());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        return stats;
+    }
+
+    private static boolean overlaps(NavigableMap<Integer, Integer> day, TimeSlot slot) {
+        Map.Entry<Integer, Integer> before = day.floorEntry(slot.startMinute());
+        if (before != null && before.getValue() > slot.startMinute()) {
+            return true;
+        }
+        Integer next = day.higherKey(slot.startMinute());
+        return next != null && next < slot.endMinute();
+    }
+
+    private Snapshot loadFromDatabase() {
+        LocalDate today = LocalDate.now();
+        LocalDate from = today.minusDays(pastDays);
+        LocalDate firstHot = partitionMaintenance.firstHotDate();
+        Snapshot fresh = new Snapshot(firstHot != null && firstHot.isAfter(from) ? firstHot : from, today.plusDays(futureDays),
+                new ConcurrentHashMap<>());
+        for (BookingRepository.RoomSlot rs : bookingRepository.findSlotsBetween(fresh.from, fresh.to)) {
+            fresh.slots.computeIfAbsent(new RoomDayKey(rs.getRoomId(), rs.getDate()), k -> new ConcurrentSkipListMap<>())
+                    .put(rs.getStartMinute(), rs.getEndMinute());
+        }
+        return fresh;
+    }
+}
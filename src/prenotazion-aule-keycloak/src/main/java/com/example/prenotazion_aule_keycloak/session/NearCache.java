@@ -0,0 +1,100 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Copia locale (per nodo) di dati che vivono nel DB condiviso: le letture frequenti non vanno
+ * sul DB finché la voce è più giovane del TTL. Le scritture degli altri nodi arrivano come
+ * invalidazioni (NearCacheInvalidation); il TTL limita comunque quanto una voce può restare vecchia.
+ *
+ * Oltre max-entries vengono scartate prima le voci scadute, poi le più vecchie.
+ */
+public class NearCache<K, V> {
+
+    private record Entry<V>(V value, long loadedAt) {}
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final LongSupplier nanoTime;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public NearCache(Duration ttl, int maxEntries) {
+        this(ttl, maxEntries, System::nanoTime);
+    }
+
+    NearCache(Duration ttl, int maxEntries, LongSupplier nanoTime) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxEntries = maxEntries;
+        this.nanoTime = nanoTime;
+    }
+
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || nanoTime.getAsLong() - entry.loadedAt() >= ttlNanos) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value();
+    }
+
+    public void put(K key, V value) {
+        if (ttlNanos <= 0) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, nanoTime.getAsLong()));
+        if (entries.size() > maxEntries) {
+            shrink();
+        }
+    }
+
+    public void invalidate(K key) {
+        if (entries.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private synchronized void shrink() {
+        long now = nanoTime.getAsLong();
+        int before = entries.size();
+        entries.values().removeIf(e -> now - e.loadedAt() >= ttlNanos);
+        int excess = entries.size() - maxEntries * 9 / 10;
+        if (excess > 0) {
+            entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().loadedAt()))
+                    .limit(excess)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(entries::remove);
+        }
+        evictions.addAndGet(before - entries.size());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long h = hits.get();
+        long m = misses.get();
+        stats.put("size", entries.size());
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRatio", h + m == 0 ? 0.0 : Math.round(h * 1000.0 / (h + m)) / 1000.0);
+        stats.put("invalidations", invalidations.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+}
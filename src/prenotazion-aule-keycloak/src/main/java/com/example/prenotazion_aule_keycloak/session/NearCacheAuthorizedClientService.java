@@ -0,0 +1,81 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client autorizzati (access/refresh token dell'utente) condivisi tra i nodi tramite il delegate JDBC,
+ * con near-cache locale: il PDP li legge a ogni decisione. Un client con access token scaduto viene
+ * riletto dal DB, dove un altro nodo può averlo già rinnovato; salvataggi e rimozioni invalidano
+ * la copia sugli altri nodi.
+ */
+public class NearCacheAuthorizedClientService implements OAuth2AuthorizedClientService {
+
+    public static final String CACHE = "authorized-client";
+
+    private final OAuth2AuthorizedClientService delegate;
+    private final NearCache<String, OAuth2AuthorizedClient> cache;
+    private final NearCacheInvalidation invalidation;
+
+    public NearCacheAuthorizedClientService(OAuth2AuthorizedClientService delegate,
+                                            NearCache<String, OAuth2AuthorizedClient> cache,
+                                            NearCacheInvalidation invalidation) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.invalidation = invalidation;
+        invalidation.register(CACHE, cache::invalidate);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId, String principalName) {
+        String key = key(clientRegistrationId, principalName);
+        OAuth2AuthorizedClient client = cache.get(key);
+        if (client != null && !expired(client)) {
+            return (T) client;
+        }
+        client = delegate.loadAuthorizedClient(clientRegistrationId, principalName);
+        if (client != null) {
+            cache.put(key, client);
+        } else {
+            cache.invalidate(key);
+        }
+        return (T) client;
+    }
+
+    @Override
+    public void saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
+        delegate.saveAuthorizedClient(authorizedClient, principal);
+        String key = key(authorizedClient.getClientRegistration().getRegistrationId(), principal.getName());
+        cache.put(key, authorizedClient);
+        invalidation.publish(CACHE, key);
+    }
+
+    @Override
+    public void removeAuthorizedClient(String clientRegistrationId, String principalName) {
+        delegate.removeAuthorizedClient(clientRegistrationId, principalName);
+        String key = key(clientRegistrationId, principalName);
+        cache.invalidate(key);
+        invalidation.publish(CACHE, key);
+    }
+
+    private static boolean expired(OAuth2AuthorizedClient client) {
+        Instant expiresAt = client.getAccessToken().getExpiresAt();
+        return expiresAt != null && !expiresAt.isAfter(Instant.now());
+    }
+
+    private static String key(String clientRegistrationId, String principalName) {
+        return clientRegistrationId + "|" + principalName;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nearCache", cache.stats());
+        return stats;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Invalidazioni delle near-cache tra i nodi, attraverso il DB già condiviso (tabella near_cache_invalidation):
+ * chi modifica o cancella una voce inserisce una riga, gli altri nodi leggono le righe nuove ogni
+ * poll-interval e scartano la propria copia. Nessun broker in più e funziona su qualsiasi DB (anche H2).
+ *
+ * Le righe vengono lette per id crescente con una finestra di sovrapposizione: una transazione con id più
+ * basso che fa commit dopo una più alta non va persa. Scartare due volte la stessa voce è innocuo.
+ */
+public class NearCacheInvalidation {
+
+    private static final Logger logger = LoggerFactory.getLogger(NearCacheInvalidation.class);
+
+    // Id riletti a ogni poll oltre l'ultimo visto (commit fuori ordine tra scritture concorrenti)
+    private static final int OVERLAP = 256;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Duration retention;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, Consumer<String>> listeners = new ConcurrentHashMap<>();
+
+    private final Set<Long> seen = new HashSet<>();
+    private long watermark = -1;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong pollFailures = new AtomicLong();
+
+    public NearCacheInvalidation(JdbcTemplate jdbcTemplate, Duration retention) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.retention = retention;
+    }
+
+    public void register(String cache, Consumer<String> invalidate) {
+        listeners.put(cache, invalidate);
+    }
+
+    public void publish(String cache, String key) {
+        jdbcTemplate.update("insert into near_cache_invalidation (cache_name, cache_key, node_id, created_at) values (?, ?, ?, ?)",
+                cache, key, nodeId, Timestamp.from(Instant.now()));
+        published.incrementAndGet();
+    }
+
+    // Più chiavi dello stesso canale in un solo batch JDBC
+    public void publishAll(String cache, List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.from(Instant.now());
+        jdbcTemplate.batchUpdate("insert into near_cache_invalidation (cache_name, cache_key, node_id, created_at) values (?, ?, ?, ?)",
+                keys, keys.size(), (ps, key) -> {
+                    ps.setString(1, cache);
+                    ps.setString(2, key);
+                    ps.setString(3, nodeId);
+                    ps.setTimestamp(4, now);
+                });
+        published.addAndGet(keys.size());
+    }
+
+    @Scheduled(fixedDelayString = "${session.near-cache.poll-interval-ms:250}",
+            initialDelayString = "${session.near-cache.poll-interval-ms:250}")
+    public synchronized void poll() {
+        try {
+            if (watermark < 0) {
+                // Avvio: le cache sono vuote, contano solo le invalidazioni da qui in poi
+                Long max = jdbcTemplate.queryForObject("select max(id) from near_cache_invalidation", Long.class);
+                watermark = max != null ? max : 0;
+                return;
+            }
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                    "select id, cache_name, cache_key from near_cache_invalidation where id > ? and node_id <> ? order by id",
+                    watermark - OVERLAP, nodeId);
+            for (Map<String, Object> row : rows) {
+                long id = ((Number) row.get("id")).longValue();
+                watermark = Math.max(watermark, id);
+                if (!seen.add(id)) {
+                    continue;
+                }
+                Consumer<String> listener = listeners.get((String) row.get("cache_name"));
+                if (listener != null) {
+                    listener.accept((String) row.get("cache_key"));
+                    received.incrementAndGet();
+                }
+            }
+            seen.removeIf(id -> id <= watermark - OVERLAP);
+        } catch (RuntimeException e) {
+            // DB non raggiungibile: le righe restano in tabella e verranno lette al prossimo poll
+            pollFailures.incrementAndGet();
+            logger.warn("SYSTEM: Near-cache invalidation poll failed ({})", e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${session.near-cache.cleanup-interval-ms:60000}")
+    public void purge() {
+        try {
+            jdbcTemplate.update("delete from near_cache_invalidation where created_at < ?",
+                    Timestamp.from(Instant.now().minus(retention)));
+        } catch (RuntimeException e) {
+            logger.warn("SYSTEM: Near-cache invalidation cleanup failed ({})", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nodeId", nodeId);
+        stats.put("published", published.get());
+        stats.put("received", received.get());
+        stats.put("pollFailures", pollFailures.get());
+        return stats;
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import org.springframework.session.MapSession;
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sessioni HTTP condivise tra i nodi (delegate JDBC) con una near-cache locale davanti.
+ *
+ * Ogni richiesta riceve una copia della sessione in cache, quindi la sessione arriva dal DB solo alla
+ * prima richiesta sul nodo o dopo un'invalidazione. Per non servire una copia vecchia a chi ha appena
+ * scritto su un altro nodo, ogni scrittura di attributi cambia l'id di sessione (il nuovo cookie parte con
+ * la stessa risposta): la richiesta successiva, su qualunque nodo, cerca un id mai visto e lo legge dal DB.
+ * L'id vecchio viene invalidato sugli altri nodi. Gli attributi cambiano solo al login, al logout e nel
+ * giro OAuth2, non nelle richieste normali.
+ *
+ * Il solo accesso (lastAccessedTime) viene scritto al più ogni touch-interval: la sessione può scadere
+ * fino a touch-interval prima del timeout configurato.
+ *
+ * Un logout su un altro nodo arriva qui al più un poll-interval dopo; nel frattempo la copia in cache
+ * resterebbe valida. Per le richieste sensibili ({@link SessionRevocationFilter}: scritture e /admin) la
+ * sessione viene quindi sempre riletta dal DB, e una sessione cancellata non viene servita.
+ */
+public class NearCacheSessionRepository implements SessionRepository<NearCacheSessionRepository.CachedSession> {
+
+    public static final String CACHE = "session";
+
+    private final SessionRepository<Session> delegate;
+    private final NearCache<String, MapSession> cache;
+    private final NearCacheInvalidation invalidation;
+    private final Duration touchInterval;
+    private final SessionAttributeSerializer serializer;
+
+    // Impostato da SessionRevocationFilter per la durata di una richiesta sensibile
+    private final ThreadLocal<Boolean> verifyStored = new ThreadLocal<>();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong verifiedLoads = new AtomicLong();
+    private final AtomicLong attributeWrites = new AtomicLong();
+    private final AtomicLong touches = new AtomicLong();
+    private final AtomicLong skippedTouches = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public NearCacheSessionRepository(SessionRepository<? extends Session> delegate, NearCache<String, MapSession> cache,
+                                      NearCacheInvalidation invalidation, Duration touchInterval,
+                                      SessionAttributeSerializer serializer) {
+        this.delegate = (SessionRepository<Session>) delegate;
+        this.cache = cache;
+        this.invalidation = invalidation;
+        this.touchInterval = touchInterval;
+        this.serializer = serializer;
+        invalidation.register(CACHE, cache::invalidate);
+    }
+
+    @Override
+    public CachedSession createSession() {
+        Session target = delegate.createSession();
+        return new CachedSession(new MapSession(target), target, true, target.getLastAccessedTime());
+    }
+
+    @Override
+    public CachedSession findById(String id) {
+        MapSession snapshot = cache.get(id);
+        boolean verify = verifyStored.get() != null;
+        if (snapshot == null || snapshot.isExpired() || verify) {
+            Session stored = delegate.findById(id);
+            loads.incrementAndGet();
+            if (verify && snapshot != null) {
+                verifiedLoads.incrementAndGet();
+            }
+            if (stored == null) {
+                cache.invalidate(id);
+                return null;
+            }
+            snapshot = new MapSession(stored);
+            cache.put(id, snapshot);
+        }
+        return new CachedSession(new MapSession(snapshot), null, false, snapshot.getLastAccessedTime());
+    }
+
+    @Override
+    public void save(CachedSession session) {
+        if (session.isNew) {
+            Session target = session.target;
+            session.applyTo(target, session.local.getAttributeNames());
+            delegate.save(target);
+            attributeWrites.incrementAndGet();
+            session.persisted(target);
+            return;
+        }
+        if (!session.changed.isEmpty() || session.maxInactiveChanged || session.rotated) {
+            Session target = session.target();
+            if (target == null) {
+                // Cancellata o già ruotata nel frattempo (logout da un altro nodo, richiesta concorrente):
+                // come JdbcSession, il salvataggio non la ricrea
+                cache.invalidate(session.originalId);
+                return;
+            }
+            session.applyTo(target, session.changed);
+            if (!session.rotated) {
+                session.local.setId(target.changeSessionId());
+            }
+            delegate.save(target);
+            attributeWrites.incrementAndGet();
+            cache.invalidate(session.originalId);
+            invalidation.publish(CACHE, session.originalId);
+            session.persisted(target);
+            return;
+        }
+        if (Duration.between(session.persistedLastAccess, session.getLastAccessedTime()).compareTo(touchInterval) < 0) {
+            skippedTouches.incrementAndGet();
+            return;
+        }
+        Session target = session.target();
+        if (target == null) {
+            cache.invalidate(session.originalId);
+            return;
+        }
+        target.setLastAccessedTime(session.getLastAccessedTime());
+        delegate.save(target);
+        touches.incrementAndGet();
+        session.persisted(target);
+    }
+
+    @Override
+    public void deleteById(String id) {
+        delegate.deleteById(id);
+        cache.invalidate(id);
+        invalidation.publish(CACHE, id);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nearCache", cache.stats());
+        stats.put("loads", loads.get());
+        stats.put("verifiedLoads", verifiedLoads.get());
+        stats.put("attributeWrites", attributeWrites.get());
+        stats.put("touches", touches.get());
+        stats.put("skippedTouches", skippedTouches.get());
+        stats.put("invalidation", invalidation.stats());
+        stats.put("serializer", serializer.stats());
+        return stats;
+    }
+
+    void beginVerification() {
+        verifyStored.set(Boolean.TRUE);
+    }
+
+    void endVerification() {
+        verifyStored.remove();
+    }
+
+    /**
+     * Copia della sessione per una richiesta: letture dalla copia locale, modifiche registrate e
+     * applicate alla sessione JDBC solo al save().
+     */
+    public final class CachedSession implements Session {
+
+        private final MapSession local;
+        private final String originalId;
+        private final boolean isNew;
+        private final Set<String> changed = new HashSet<>();
+        private Session target;
+        private Instant persistedLastAccess;
+        private boolean maxInactiveChanged;
+        private boolean rotated;
+
+        private CachedSession(MapSession local, Session target, boolean isNew, Instant persistedLastAccess) {
+            this.local = local;
+            this.originalId = local.getId();
+            this.target = target;
+            this.isNew = isNew;
+            this.persistedLastAccess = persistedLastAccess;
+        }
+
+        private Session target() {
+            if (target == null) {
+                target = delegate.findById(originalId);
+            }
+            return target;
+        }
+
+        private void applyTo(Session target, Set<String> names) {
+            for (String name : names) {
+                Object value = local.getAttribute(name);
+                if (value == null) {
+                    target.removeAttribute(name);
+                } else {
+                    target.setAttribute(name, value);
+                }
+            }
+            target.setMaxInactiveInterval(local.getMaxInactiveInterval());
+            target.setLastAccessedTime(local.getLastAccessedTime());
+        }
+
+        private void persisted(Session target) {
+            persistedLastAccess = target.getLastAccessedTime();
+            changed.clear();
+            maxInactiveChanged = false;
+            rotated = false;
+            cache.put(local.getId(), new MapSession(local));
+        }
+
+        @Override
+        public String getId() {
+            return local.getId();
+        }
+
+        @Override
+        public String changeSessionId() {
+            Session session = isNew ? target : target();
+            if (session == null) {
+                return local.getId();
+            }
+            local.setId(session.changeSessionId());
+            rotated = !isNew;
+            return local.getId();
+        }
+
+        @Override
+        public <T> T getAttribute(String attributeName) {
+            return local.getAttribute(attributeName);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return local.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            local.setAttribute(attributeName, attributeValue);
+            changed.add(attributeName);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            local.removeAttribute(attributeName);
+            changed.add(attributeName);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return local.getCreationTime();
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            local.setLastAccessedTime(lastAccessedTime);
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return local.getLastAccessedTime();
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            if (!interval.equals(local.getMaxInactiveInterval())) {
+                local.setMaxInactiveInterval(interval);
+                maxInactiveChanged = true;
+            }
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return local.getMaxInactiveInterval();
+        }
+
+        @Override
+        public boolean isExpired() {
+            return local.isExpired();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.core.convert.support.GenericConversionService;
+import org.springframework.core.serializer.DefaultDeserializer;
+import org.springframework.core.serializer.DefaultSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serializzazione degli attributi di sessione in SPRING_SESSION_ATTRIBUTES: Java serialization come
+ * Spring Session, compressa con deflate oltre compress-threshold byte. Il SecurityContext con i token
+ * OIDC pesa qualche KB ed è quasi tutto testo ripetuto, compresso scende a circa un terzo.
+ *
+ * Il formato si riconosce dal primo byte (0x78 header zlib, 0xAC stream Java): le righe scritte
+ * prima della compressione, o sotto soglia, restano leggibili.
+ */
+public class SessionAttributeSerializer {
+
+    private static final byte ZLIB_HEADER = 0x78;
+
+    private final int compressThreshold;
+    private final DefaultSerializer serializer = new DefaultSerializer();
+    private final DefaultDeserializer deserializer;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    public SessionAttributeSerializer(int compressThreshold, ClassLoader classLoader) {
+        this.compressThreshold = compressThreshold;
+        this.deserializer = new DefaultDeserializer(classLoader);
+    }
+
+    public byte[] serialize(Object value) {
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(256);
+            serializer.serialize(value, raw);
+            byte[] bytes = raw.toByteArray();
+            byte[] stored = bytes;
+            if (compressThreshold >= 0 && bytes.length > compressThreshold) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+                try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED))) {
+                    deflate.write(bytes);
+                }
+                if (out.size() < bytes.length) {
+                    stored = out.toByteArray();
+                    compressed.incrementAndGet();
+                }
+            }
+            written.incrementAndGet();
+            rawBytes.addAndGet(bytes.length);
+            storedBytes.addAndGet(stored.length);
+            return stored;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot serialize session attribute " + value.getClass().getName(), e);
+        }
+    }
+
+    public Object deserialize(byte[] bytes) {
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (bytes.length > 0 && bytes[0] == ZLIB_HEADER) {
+            in = new InflaterInputStream(in);
+        }
+        try (InputStream source = in) {
+            return deserializer.deserialize(source);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot deserialize session attribute", e);
+        }
+    }
+
+    /** ConversionService nel formato atteso da JdbcIndexedSessionRepository. */
+    public GenericConversionService conversionService() {
+        GenericConversionService conversionService = new GenericConversionService();
+        conversionService.addConverter(Object.class, byte[].class, (Converter<Object, byte[]>) this::serialize);
+        conversionService.addConverter(byte[].class, Object.class, (Converter<byte[], Object>) this::deserialize);
+        return conversionService;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long raw = rawBytes.get();
+        stats.put("attributesWritten", written.get());
+        stats.put("attributesCompressed", compressed.get());
+        stats.put("rawBytes", raw);
+        stats.put("storedBytes", storedBytes.get());
+        stats.put("compressionRatio", raw == 0 ? 1.0 : Math.round(storedBytes.get() * 1000.0 / raw) / 1000.0);
+        return stats;
+    }
+}
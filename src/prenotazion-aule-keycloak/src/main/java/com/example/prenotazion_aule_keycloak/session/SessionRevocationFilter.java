@@ -0,0 +1,47 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Davanti al filtro di Spring Session: nelle richieste sensibili la sessione non arriva dalla near-cache
+ * ma dal DB, così una sessione chiusa con il logout su un altro nodo viene rifiutata subito e non dopo
+ * il poll delle invalidazioni. Sensibili: tutto ciò che non è GET/HEAD/OPTIONS (prenotazioni,
+ * cancellazioni, profilo, ripristino) e ogni richiesta sotto /admin. Le altre letture restano sulla cache.
+ */
+public class SessionRevocationFilter extends OncePerRequestFilter {
+
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS");
+
+    private final NearCacheSessionRepository repository;
+
+    public SessionRevocationFilter(NearCacheSessionRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!isSensitive(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        repository.beginVerification();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            repository.endVerification();
+        }
+    }
+
+    static boolean isSensitive(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !SAFE_METHODS.contains(request.getMethod()) || path.equals("/admin") || path.startsWith("/admin/");
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+import javax.sql.DataSource;
+
+/**
+ * Tabelle dello store condiviso, create all'avvio se mancano: SPRING_SESSION e
+ * SPRING_SESSION_ATTRIBUTES (script di Spring Session), oauth2_authorized_client (script di
+ * Spring Security) e near_cache_invalidation. Gli script ufficiali non sono idempotenti,
+ * quindi si esegue ognuno solo se la sua tabella non esiste ancora.
+ */
+public class SessionSchemaInitializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionSchemaInitializer.class);
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+
+    public SessionSchemaInitializer(DataSource dataSource, JdbcTemplate jdbcTemplate) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    void apply() throws MetaDataAccessException {
+        String product = JdbcUtils.extractDatabaseMetaData(dataSource, metaData -> metaData.getDatabaseProductName());
+        boolean postgres = "PostgreSQL".equals(product);
+        createIfMissing("spring_session", postgres
+                ? "org/springframework/session/jdbc/schema-postgresql.sql"
+                : "org/springframework/session/jdbc/schema-h2.sql");
+        createIfMissing("oauth2_authorized_client", postgres
+                ? "org/springframework/security/oauth2/client/oauth2-client-schema-postgres.sql"
+                : "org/springframework/security/oauth2/client/oauth2-client-schema.sql");
+        jdbcTemplate.execute("create table if not exists near_cache_invalidation (" +
+                "id bigint generated by default as identity primary key, " +
+                "cache_name varchar(32) not null, " +
+                "cache_key varchar(255) not null, " +
+                "node_id varchar(64) not null, " +
+                "created_at timestamp not null)");
+    }
+
+    private void createIfMissing(String table, String script) {
+        try {
+            jdbcTemplate.queryForObject("select count(*) from " + table + " where 1 = 0", Integer.class);
+        } catch (DataAccessException missing) {
+            ResourceDatabasePopulator populator = new ResourceDatabasePopulator(new ClassPathResource(script));
+            // Due nodi avviati insieme: il secondo trova la tabella appena creata dal primo
+            populator.setContinueOnError(true);
+            populator.execute(dataSource);
+            logger.info("SYSTEM: Created table {} ({})", table, script);
+        }
+    }
+}
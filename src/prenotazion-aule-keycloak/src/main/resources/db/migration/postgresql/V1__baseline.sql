@@ -0,0 +1,82 @@
+-- Schema di partenza, rieseguibile. Porta allo stesso schema sia un database vuoto sia quelli nati
+-- prima delle migrazioni con ddl-auto=update: le sole tabelle rooms e bookings con id IDENTITY delle
+-- prime versioni, oppure quelle arricchite poi da ddl-auto=update e PostgresSchemaInitializer (fasce,
+-- posti, sequence, vincolo di esclusione, contatori e lista d'attesa). Sui database esistenti viene
+-- eseguito anche lui (baseline-on-migrate con baseline-version=0): ogni istruzione salta ciò che c'è già.
+
+create extension if not exists btree_gist;
+
+create sequence if not exists bookings_seq start with 1 increment by 50;
+create sequence if not exists rooms_seq start with 1 increment by 50;
+create sequence if not exists seat_waitlist_seq start with 1 increment by 50;
+
+create table if not exists rooms (
+    id bigint not null,
+    name varchar(255),
+    capacity integer not null,
+    primary key (id)
+);
+-- Gli id vengono dalla sequence (pooled): l'IDENTITY delle prime versioni non serve più
+alter table rooms alter column id drop identity if exists;
+alter table rooms add column if not exists seat_booking boolean default false not null;
+
+create table if not exists bookings (
+    id bigint not null,
+    username varchar(255),
+    room_id bigint,
+    "date" date,
+    primary key (id)
+);
+alter table bookings alter column id drop identity if exists;
+alter table bookings add column if not exists start_minute integer default 0 not null;
+alter table bookings add column if not exists end_minute integer default 1440 not null;
+alter table bookings add column if not exists seat integer default 0 not null;
+alter table bookings add column if not exists slot tsrange generated always as
+    (tsrange("date" + make_interval(mins => start_minute), "date" + make_interval(mins => end_minute))) stored;
+
+-- Vincoli delle versioni intermedie (una prenotazione per aula e giorno, poi per inizio fascia, poi
+-- esclusione senza posti): ricreati nella forma finale
+alter table bookings drop constraint if exists uk_bookings_room_date;
+alter table bookings drop constraint if exists uk_bookings_room_date_start;
+alter table bookings drop constraint if exists ex_bookings_room_slot;
+alter table bookings drop constraint if exists uk_bookings_room_date_start_seat;
+alter table bookings add constraint uk_bookings_room_date_start_seat unique (room_id, "date", start_minute, seat);
+-- Nessuna sovrapposizione di fasce per aula e posto (seat = 0: aula intera)
+alter table bookings drop constraint if exists ex_bookings_room_seat_slot;
+alter table bookings add constraint ex_bookings_room_seat_slot exclude using gist (room_id with =, seat with =, slot with &&);
+create index if not exists idx_bookings_room_date on bookings (room_id, "date");
+create index if not exists idx_bookings_date_room on bookings ("date", room_id);
+-- Aule a posti: un solo posto per utente, aula e giorno
+create unique index if not exists uq_bookings_seat_user on bookings (room_id, "date", username) where seat > 0;
+
+create table if not exists seat_counters (
+    room_id bigint not null,
+    "date" date not null,
+    taken integer not null,
+    primary key ("date", room_id)
+);
+
+create table if not exists seat_waitlist (
+    id bigint not null,
+    username varchar(255),
+    room_id bigint,
+    "date" date,
+    created_at timestamp(6) with time zone not null,
+    primary key (id)
+);
+alter table seat_waitlist drop constraint if exists uk_seat_waitlist_room_date_user;
+alter table seat_waitlist add constraint uk_seat_waitlist_room_date_user unique (room_id, "date", username);
+create index if not exists idx_seat_waitlist_room_date on seat_waitlist (room_id, "date", created_at);
+
+-- Chiavi esterne: quelle create da ddl-auto=update hanno nomi generati da Hibernate (FK...), si
+-- aggiungono solo se la tabella non ne ha già una
+do $$
+begin
+    if not exists (select 1 from pg_constraint where conrelid = 'bookings'::regclass and contype = 'f') then
+        alter table bookings add constraint fk_bookings_room foreign key (room_id) references rooms;
+    end if;
+    if not exists (select 1 from pg_constraint where conrelid = 'seat_waitlist'::regclass and contype = 'f') then
+        alter table seat_waitlist add constraint fk_seat_waitlist_room foreign key (room_id) references rooms;
+    end if;
+end $$;
+
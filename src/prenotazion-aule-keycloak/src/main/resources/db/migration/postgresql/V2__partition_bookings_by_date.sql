@@ -0,0 +1,123 @@
+-- Prenotazioni partizionate per mese (RANGE su "date").
+-- Il controllo dei conflitti e le letture per giorno o mese toccano una sola partizione; le partizioni
+-- dei mesi passati vengono spostate in bookings_archive (BookingPartitionMaintenance), quindi bookings
+-- contiene solo il mese corrente, quelli futuri e la partizione di default.
+--
+-- Vincoli e partizionamento:
+-- - chiave primaria e vincoli UNIQUE devono contenere la chiave di partizione: PK (id, "date");
+-- - PostgreSQL 14 non ammette vincoli di esclusione sulla tabella partizionata: il vincolo GiST
+--   sulle fasce è definito su ogni partizione (una prenotazione cade sempre in una sola partizione,
+--   quindi il controllo per partizione equivale a quello sull'intera tabella);
+-- - la partizione di default raccoglie le date senza partizione mensile (oltre l'orizzonte creato).
+
+-- Partizione mensile di bookings che inizia a month_start (primo del mese). Le righe dello stesso mese
+-- finite nel frattempo nella partizione di default vengono spostate nella nuova partizione.
+create or replace function bookings_create_partition(month_start date) returns boolean
+language plpgsql as $$
+declare
+    part text := 'bookings_p' || to_char(month_start, 'YYYY_MM');
+    month_end date := (month_start + interval '1 month')::date;
+begin
+    -- Più nodi possono eseguire la manutenzione nello stesso momento
+    perform pg_advisory_xact_lock(hashtext('bookings_partitions'));
+    if to_regclass(part) is not null then
+        return false;
+    end if;
+    execute format('create table %I (like bookings including defaults including generated)', part);
+    -- CHECK equivalente al vincolo di partizione: ATTACH (anche su bookings_archive) non scansiona le righe
+    execute format('alter table %I add constraint %I check ("date" is not null and "date" >= %L and "date" < %L)',
+                   part, part || '_date', month_start, month_end);
+    execute format('alter table %I add constraint %I exclude using gist (room_id with =, seat with =, slot with &&)',
+                   part, part || '_room_seat_slot');
+    execute format('insert into %I (id, username, room_id, "date", start_minute, end_minute, seat) ' ||
+                   'select id, username, room_id, "date", start_minute, end_minute, seat from bookings_default ' ||
+                   'where "date" >= $1 and "date" < $2', part) using month_start, month_end;
+    delete from bookings_default where "date" >= month_start and "date" < month_end;
+    execute format('alter table bookings attach partition %I for values from (%L) to (%L)', part, month_start, month_end);
+    return true;
+end $$;
+
+-- Sposta la partizione del mese da bookings a bookings_archive: cambiano solo i metadati, nessuna riga
+-- viene copiata. DETACH prende un lock esclusivo breve su bookings.
+create or replace function bookings_archive_partition(month_start date) returns boolean
+language plpgsql as $$
+declare
+    part text := 'bookings_p' || to_char(month_start, 'YYYY_MM');
+    month_end date := (month_start + interval '1 month')::date;
+begin
+    perform pg_advisory_xact_lock(hashtext('bookings_partitions'));
+    if not exists (select 1 from pg_inherits where inhrelid = to_regclass(part) and inhparent = 'bookings'::regclass) then
+        return false;
+    end if;
+    execute format('alter table bookings detach partition %I', part);
+    execute format('alter table bookings_archive attach partition %I for values from (%L) to (%L)', part, month_start, month_end);
+    return true;
+end $$;
+
+alter table bookings rename to bookings_unpartitioned;
+-- I nomi di indici e vincoli servono alla nuova tabella
+alter table bookings_unpartitioned drop constraint if exists ex_bookings_room_seat_slot;
+alter table bookings_unpartitioned drop constraint if exists uk_bookings_room_date_start_seat;
+alter table bookings_unpartitioned drop constraint if exists bookings_pkey;
+drop index if exists idx_bookings_room_date;
+drop index if exists idx_bookings_date_room;
+drop index if exists uq_bookings_seat_user;
+
+create table bookings (
+    id bigint not null,
+    username varchar(255),
+    room_id bigint,
+    "date" date not null,
+    start_minute integer default 0 not null,
+    end_minute integer default 1440 not null,
+    seat integer default 0 not null,
+    slot tsrange generated always as
+        (tsrange("date" + make_interval(mins => start_minute), "date" + make_interval(mins => end_minute))) stored,
+    primary key (id, "date"),
+    constraint uk_bookings_room_date_start_seat unique (room_id, "date", start_minute, seat),
+    constraint fk_bookings_room foreign key (room_id) references rooms
+) partition by range ("date");
+create index idx_bookings_room_date on bookings (room_id, "date");
+create index idx_bookings_date_room on bookings ("date", room_id);
+create unique index uq_bookings_seat_user on bookings (room_id, "date", username) where seat > 0;
+
+create table bookings_default partition of bookings default;
+alter table bookings_default add constraint bookings_default_room_seat_slot
+    exclude using gist (room_id with =, seat with =, slot with &&);
+
+-- Storico: stesse colonne, partizioni mensili spostate da bookings. Letto dalla tabella admin
+-- (vista archivio) e dalle cancellazioni GDPR e admin; nessuna chiave esterna, così l'ATTACH
+-- non deve verificare le righe.
+create table bookings_archive (
+    id bigint not null,
+    username varchar(255),
+    room_id bigint,
+    "date" date not null,
+    start_minute integer default 0 not null,
+    end_minute integer default 1440 not null,
+    seat integer default 0 not null,
+    slot tsrange generated always as
+        (tsrange("date" + make_interval(mins => start_minute), "date" + make_interval(mins => end_minute))) stored,
+    primary key (id, "date")
+) partition by range ("date");
+create index idx_bookings_archive_username on bookings_archive (username);
+create index idx_bookings_archive_room_date on bookings_archive (room_id, "date");
+
+-- Una partizione per ogni mese con prenotazioni e per i prossimi 12 mesi; i mesi passati vengono
+-- archiviati dal job al primo avvio
+select bookings_create_partition(month_start::date)
+from (select date_trunc('month', "date") as month_start from bookings_unpartitioned where "date" is not null
+      union
+      select generate_series(date_trunc('month', current_date), date_trunc('month', current_date) + interval '12 months',
+                             interval '1 month')) months
+order by month_start;
+
+insert into bookings (id, username, room_id, "date", start_minute, end_minute, seat)
+select id, username, room_id, "date", start_minute, end_minute, seat from bookings_unpartitioned;
+
+drop table bookings_unpartitioned;
+
+-- Sequence allineate ai dati nati con IDENTITY (prima lo faceva PostgresSchemaInitializer a ogni avvio):
+-- portate oltre il massimo id esistente, mai indietro
+select setval('bookings_seq', greatest((select last_value from bookings_seq), (select coalesce(max(id), 0) from bookings) + 50));
+select setval('rooms_seq', greatest((select last_value from rooms_seq), (select coalesce(max(id), 0) from rooms) + 50));
@@ -0,0 +1,42 @@
+-- Watermark per i backup incrementali (BookingBackup): ogni prenotazione registra la transazione che
+-- l'ha inserita. Gli xid crescono con il tempo, quindi "inserite dopo l'ultimo export" è
+-- created_xact >= watermark. Le righe esistenti restano a null (non vengono riscritte): fanno parte
+-- solo degli export completi.
+-- pg_current_xact_id: PostgreSQL 13 o successivo.
+
+alter table bookings add column created_xact bigint;
+alter table bookings alter column created_xact set default (pg_current_xact_id()::text::bigint);
+-- Stesse colonne anche nell'archivio, altrimenti le partizioni non si possono più attaccare; il default
+-- serve alle righe scritte direttamente nell'archivio (ripristino di un backup)
+alter table bookings_archive add column created_xact bigint;
+alter table bookings_archive alter column created_xact set default (pg_current_xact_id()::text::bigint);
+
+-- BRIN: created_xact segue l'ordine di inserimento, l'indice occupa pochi KB e un export
+-- incrementale legge solo i blocchi delle righe recenti. I blocchi non ancora riassunti vengono letti
+-- sempre: autosummarize li fa riassumere da autovacuum appena un intervallo è pieno
+create index idx_bookings_created_xact on bookings using brin (created_xact) with (autosummarize = on);
+create index idx_bookings_archive_created_xact on bookings_archive using brin (created_xact) with (autosummarize = on);
+
+-- Come in V2, ma le righe spostate dalla partizione di default conservano created_xact
+create or replace function bookings_create_partition(month_start date) returns boolean
+language plpgsql as $$
+declare
+    part text := 'bookings_p' || to_char(month_start, 'YYYY_MM');
+    month_end date := (month_start + interval '1 month')::date;
+begin
+    perform pg_advisory_xact_lock(hashtext('bookings_partitions'));
+    if to_regclass(part) is not null then
+        return false;
+    end if;
+    execute format('create table %I (like bookings including defaults including generated)', part);
+    execute format('alter table %I add constraint %I check ("date" is not null and "date" >= %L and "date" < %L)',
+                   part, part || '_date', month_start, month_end);
+    execute format('alter table %I add constraint %I exclude using gist (room_id with =, seat with =, slot with &&)',
+                   part, part || '_room_seat_slot');
+    execute format('insert into %I (id, username, room_id, "date", start_minute, end_minute, seat, created_xact) ' ||
+                   'select id, username, room_id, "date", start_minute, end_minute, seat, created_xact from bookings_default ' ||
+                   'where "date" >= $1 and "date" < $2', part) using month_start, month_end;
+    delete from bookings_default where "date" >= month_start and "date" < month_end;
+    execute format('alter table bookings attach partition %I for values from (%L) to (%L)', part, month_start, month_end);
+    return true;
+end $$;
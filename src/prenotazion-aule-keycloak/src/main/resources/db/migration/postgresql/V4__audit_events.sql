@@ -0,0 +1,14 @@
+-- Copia degli eventi di audit (AuditTrail, audit.jdbc.enabled=true), scritta in batch dal thread writer.
+-- Prima di questa migrazione la tabella veniva creata dall'applicazione all'avvio: su quei database
+-- esiste già con la stessa struttura, da qui "if not exists".
+
+create table if not exists audit_events (
+    id bigint generated by default as identity primary key,
+    occurred_at timestamp not null,
+    category varchar(16) not null,
+    type varchar(40) not null,
+    actor varchar(255),
+    booking_id bigint,
+    room_id bigint,
+    detail varchar(1000)
+);
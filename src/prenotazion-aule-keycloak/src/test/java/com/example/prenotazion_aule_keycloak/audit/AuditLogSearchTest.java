@@ -0,0 +1,110 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditLogSearchTest {
+
+    @TempDir
+    Path dir;
+
+    private AuditLogSearch search;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Vecchio log applicativo rotato da logback (gzip), con righe di audit tra quelle di debug
+        gzip(dir.resolve("application.log.2026-01-01.0.gz"),
+                "2026-01-01T10:00:00.000+01:00 DEBUG 1 --- [app] [exec-1] o.s.security.web.FilterChainProxy        : Securing GET /user\n"
+                        + "2026-01-01T10:00:01.000+01:00  INFO 1 --- [app] [exec-1] c.e.p.service.BookingService             : AUDIT: User 'mario' SUCCESSFULLY created booking ID 7 for Room 'Aula 1' on 2026-01-05\n"
+                        + "2026-01-01T10:00:02.000+01:00 ERROR 1 --- [app] [exec-2] c.e.p.service.BookingService             : SECURITY ALERT: User 'luigi' attempted to delete booking ID 7 owned by 'mario'\n");
+        touch("application.log.2026-01-01.0.gz", "2026-01-02T00:00:00Z");
+
+        // Audit trail: un file rotato e quello corrente
+        Files.writeString(dir.resolve("audit.log.1"),
+                "{\"ts\":\"2026-02-01T09:00:00Z\",\"seq\":1,\"cat\":\"AUDIT\",\"type\":\"BOOKING_CREATED\",\"actor\":\"peach\",\"booking\":20,\"room\":1}\n"
+                        + "{\"ts\":\"2026-02-02T09:00:00Z\",\"seq\":2,\"cat\":\"GDPR\",\"type\":\"ACCOUNT_DELETED\",\"actor\":\"toad\",\"detail\":\"removed 1 bookings\"}\n");
+        touch("audit.log.1", "2026-02-03T00:00:00Z");
+        Files.writeString(dir.resolve("audit.log"),
+                "{\"ts\":\"2026-03-01T09:00:00Z\",\"seq\":3,\"cat\":\"AUDIT\",\"type\":\"BOOKING_DELETED\",\"actor\":\"mario\",\"booking\":7,\"room\":1}\n"
+                        + "{\"ts\":\"2026-03-01T09:00:01Z\",\"seq\":4,\"cat\":\"SECURITY\",\"type\":\"FOREIGN_BOOKING_DELETE\",\"actor\":\"luigi\",\"book");
+        Files.writeString(dir.resolve("application.log"),
+                "2026-03-01T10:00:00.000+01:00 DEBUG 1 --- [app] [exec-1] o.s.web.servlet.DispatcherServlet        : Completed 200 OK\n");
+
+        search = new AuditLogSearch(List.of(dir.resolve("audit.log").toString(), dir.resolve("application.log").toString()),
+                dir.resolve(".audit-index"));
+    }
+
+    @Test
+    void findsEventsAcrossGzippedLegacyAndJsonFiles() throws IOException {
+        List<AuditLogSearch.Hit> hits = run(new AuditQuery("mario", null, null, null, null, null, 100));
+        assertEquals(List.of("application.log.2026-01-01.0.gz", "audit.log"), hits.stream().map(AuditLogSearch.Hit::file).toList());
+        assertEquals(AuditEvent.Type.BOOKING_CREATED, hits.get(0).entry().type());
+        assertEquals(LocalDate.of(2026, 1, 1), hits.get(0).entry().date());
+        assertEquals(AuditEvent.Type.BOOKING_DELETED, hits.get(1).entry().type());
+
+        // I tentativi IDOR del vecchio log hanno lo stesso tipo degli eventi nuovi; la riga troncata è ignorata
+        List<AuditLogSearch.Hit> idor = run(new AuditQuery(null, AuditEvent.Category.SECURITY,
+                AuditEvent.Type.FOREIGN_BOOKING_DELETE, null, null, null, 100));
+        assertEquals(1, idor.size());
+        assertEquals("luigi", idor.get(0).entry().actor());
+    }
+
+    @Test
+    void rotatedFilesAreIndexedOnceAndSkippedWhenTheyCannotMatch() throws IOException {
+        AuditLogSearch.Result first = search.search(new AuditQuery("toad", null, null, null, null, null, 100), hit -> {});
+        assertEquals(1, first.hits());
+        assertEquals(2, first.indexesBuilt());
+
+        // Stesso filtro: il .gz non contiene "toad" e non viene più aperto
+        AuditLogSearch.Result second = search.search(new AuditQuery("toad", null, null, null, null, null, 100), hit -> {});
+        assertEquals(1, second.hits());
+        assertEquals(0, second.indexesBuilt());
+        assertEquals(1, second.filesSkipped());
+
+        // Intervallo di date fuori da entrambi i rotati: restano solo i file correnti
+        AuditLogSearch.Result march = search.search(new AuditQuery(null, null, null,
+                LocalDate.of(2026, 3, 1), LocalDate.of(2026, 3, 31), null, 100), hit -> {});
+        assertEquals(2, march.filesSkipped());
+        assertEquals(1, march.hits());
+
+        // La rotazione rinomina audit.log.1 in audit.log.2: l'indice segue il contenuto
+        Files.move(dir.resolve("audit.log.1"), dir.resolve("audit.log.2"));
+        assertEquals(0, search.search(new AuditQuery("toad", null, null, null, null, null, 100), hit -> {}).indexesBuilt());
+    }
+
+    @Test
+    void limitStopsTheScan() throws IOException {
+        assertEquals(1, run(new AuditQuery(null, null, null, null, null, null, 1)).size());
+    }
+
+    private List<AuditLogSearch.Hit> run(AuditQuery query) throws IOException {
+        List<AuditLogSearch.Hit> hits = new ArrayList<>();
+        search.search(query, hits::add);
+        return hits;
+    }
+
+    private void gzip(Path file, String content) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void touch(String name, String instant) throws IOException {
+        Files.setLastModifiedTime(dir.resolve(name), FileTime.from(Instant.parse(instant)));
+    }
+}
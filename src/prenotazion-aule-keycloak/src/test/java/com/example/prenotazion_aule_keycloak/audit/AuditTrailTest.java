@@ -0,0 +1,100 @@
+package com.example.prenotazion_aule_keycloak.audit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditTrailTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path dir;
+
+    private AuditTrail trail(int bufferSize, DataSize maxFileSize, Duration overflowWait) {
+        return new AuditTrail(new AuditTrail.Settings(dir.resolve("audit.log"), bufferSize, 64, maxFileSize, 100,
+                AuditTrail.Fsync.BATCH, Duration.ofSeconds(1), overflowWait), null);
+    }
+
+    @Test
+    void concurrentProducersEndUpInRotatedFilesWithoutLossOrDuplicates() throws Exception {
+        AuditTrail trail = trail(1024, DataSize.ofKilobytes(16), Duration.ofSeconds(5));
+        trail.start();
+        int threads = 8;
+        int perThread = 500;
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String actor = "user-" + t;
+            Thread producer = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < perThread; i++) {
+                    trail.record(AuditEvent.Type.BOOKING_CREATED, actor, i, 1L, null);
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        go.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(trail.flush(Duration.ofSeconds(10)));
+        trail.stop();
+
+        Set<Long> sequences = new HashSet<>();
+        Set<String> events = new HashSet<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                assertTrue(Files.size(file) <= DataSize.ofKilobytes(16).toBytes(), file + " oltre la dimensione massima");
+                for (String line : Files.readAllLines(file)) {
+                    JsonNode node = MAPPER.readTree(line);
+                    assertEquals("AUDIT", node.get("cat").asText());
+                    assertTrue(sequences.add(node.get("seq").asLong()));
+                    events.add(node.get("actor").asText() + "#" + node.get("booking").asLong());
+                }
+            }
+        }
+        assertEquals(threads * perThread, sequences.size());
+        assertEquals(threads * perThread, events.size());
+        assertTrue((long) trail.stats().get("rotations") > 0);
+        assertEquals(0L, trail.stats().get("dropped"));
+    }
+
+    @Test
+    void fullBufferDropsAndCountsInsteadOfBlocking() throws Exception {
+        AuditTrail trail = trail(8, DataSize.ofMegabytes(1), Duration.ZERO);
+        // Writer non ancora avviato: nessuno svuota il buffer
+        for (int i = 0; i < 10; i++) {
+            trail.record(AuditEvent.Type.ACCOUNT_DELETED, "mario", null, null, "evento " + i);
+        }
+        assertEquals(2L, trail.stats().get("dropped"));
+        assertEquals(8, trail.stats().get("pending"));
+
+        trail.start();
+        assertTrue(trail.flush(Duration.ofSeconds(5)));
+        trail.stop();
+        List<String> lines = Files.readAllLines(dir.resolve("audit.log"));
+        assertEquals(8, lines.size());
+        assertEquals("GDPR", MAPPER.readTree(lines.get(0)).get("cat").asText());
+        assertEquals("evento 0", MAPPER.readTree(lines.get(0)).get("detail").asText());
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.prenotazion_aule_keycloak.backup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BackupCipherTest {
+
+    // Segmenti piccoli: anche pochi KB attraversano molti segmenti
+    private final BackupCipher cipher = new BackupCipher(key(1), 1024);
+
+    @Test
+    void roundTripAcrossSegmentBoundaries() throws IOException {
+        for (int size : new int[]{0, 1, 1023, 1024, 1025, 4096, 10_000}) {
+            byte[] plain = random(size);
+            assertThat(decrypt(cipher, encrypt(plain))).as("%d byte", size).isEqualTo(plain);
+        }
+    }
+
+    @Test
+    void sameDataEncryptsDifferentlyEachTime() throws IOException {
+        byte[] plain = random(3000);
+        assertThat(encrypt(plain)).isNotEqualTo(encrypt(plain));
+    }
+
+    @Test
+    void tamperedSegmentIsRejected() throws IOException {
+        byte[] sealed = encrypt(random(5000));
+        sealed[sealed.length / 2] ^= 1;
+
+        assertThatThrownBy(() -> decrypt(cipher, sealed)).isInstanceOf(IOException.class).hasMessageContaining("danneggiato");
+    }
+
+    @Test
+    void truncatedFileIsRejectedEvenAtSegmentBoundary() throws IOException {
+        byte[] plain = random(5000);
+        byte[] sealed = encrypt(plain);
+        // Senza l'ultimo segmento (4 byte di lunghezza + 904 di dati + 16 di tag) i segmenti rimasti sono tutti validi
+        byte[] truncated = Arrays.copyOf(sealed, sealed.length - (4 + 904 + 16));
+
+        assertThatThrownBy(() -> decrypt(cipher, truncated)).isInstanceOf(IOException.class).hasMessageContaining("troncato");
+        assertThatThrownBy(() -> decrypt(cipher, Arrays.copyOf(sealed, sealed.length - 1))).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void trailingDataIsRejected() throws IOException {
+        byte[] sealed = encrypt(random(2000));
+        byte[] extended = Arrays.copyOf(sealed, sealed.length + 1);
+
+        assertThatThrownBy(() -> decrypt(cipher, extended)).isInstanceOf(IOException.class).hasMessageContaining("ultimo segmento");
+    }
+
+    @Test
+    void otherKeyCannotDecrypt() throws IOException {
+        byte[] sealed = encrypt(random(100));
+
+        assertThatThrownBy(() -> decrypt(new BackupCipher(key(2), 1024), sealed)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void keyMustBe256Bits() {
+        assertThatThrownBy(() -> new BackupCipher(new byte[16])).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private byte[] encrypt(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypted = cipher.encrypt(out)) {
+            // Scritture di dimensioni diverse, come quelle di deflate
+            for (int off = 0; off < plain.length; off += 777) {
+                encrypted.write(plain, off, Math.min(777, plain.length - off));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(BackupCipher cipher, byte[] sealed) throws IOException {
+        try (InputStream in = cipher.decrypt(new ByteArrayInputStream(sealed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
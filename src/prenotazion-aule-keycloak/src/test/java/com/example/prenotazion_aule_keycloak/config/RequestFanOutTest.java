@@ -0,0 +1,101 @@
+package com.example.prenotazion_aule_keycloak.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RequestFanOutTest {
+
+    private RequestFanOut fanOut;
+
+    @AfterEach
+    void tearDown() {
+        fanOut.shutdown();
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void disabledRunsEachReadOnTheRequestThreadWhenAsked() {
+        fanOut = new RequestFanOut(false, 8, false);
+        Thread caller = Thread.currentThread();
+        StringBuilder order = new StringBuilder();
+
+        Supplier<Thread> first = fanOut.fork(() -> { order.append("pdp "); return Thread.currentThread(); });
+        Supplier<Thread> second = fanOut.fork(() -> { order.append("db "); return Thread.currentThread(); });
+        assertThat(order).isEmpty();
+
+        // Stesso ordine del codice sequenziale: se la prima lettura fallisce la seconda non parte
+        assertThat(first.get()).isSameAs(caller);
+        assertThat(second.get()).isSameAs(caller);
+        assertThat(order).hasToString("pdp db ");
+    }
+
+    @Test
+    void enabledRunsReadsConcurrentlyWithTheRequestAttributes() throws Exception {
+        fanOut = new RequestFanOut(true, 8, false);
+        RequestAttributes attributes = new ServletRequestAttributes(new MockHttpServletRequest());
+        RequestContextHolder.setRequestAttributes(attributes);
+        CountDownLatch bothStarted = new CountDownLatch(2);
+
+        Supplier<RequestAttributes> first = fanOut.fork(() -> awaitBoth(bothStarted));
+        Supplier<RequestAttributes> second = fanOut.fork(() -> awaitBoth(bothStarted));
+
+        // In sequenza nessuna delle due letture terminerebbe: ognuna attende l'altra
+        assertThat(first.get()).isSameAs(attributes);
+        assertThat(second.get()).isSameAs(attributes);
+        assertThat(fanOut.stats().get("parallelReads")).isEqualTo(2L);
+    }
+
+    @Test
+    void saturatedFanOutFallsBackToTheRequestThread() throws Exception {
+        fanOut = new RequestFanOut(true, 1, false);
+        CountDownLatch release = new CountDownLatch(1);
+        Supplier<String> blocking = fanOut.fork(() -> {
+            await(release);
+            return "slow";
+        });
+
+        Supplier<Thread> overflow = fanOut.fork(Thread::currentThread);
+        assertThat(overflow.get()).isSameAs(Thread.currentThread());
+        assertThat(fanOut.stats().get("saturatedReads")).isEqualTo(1L);
+
+        release.countDown();
+        assertThat(blocking.get()).isEqualTo("slow");
+    }
+
+    @Test
+    void failuresAreRethrownUnwrapped() {
+        fanOut = new RequestFanOut(true, 8, false);
+        Supplier<Object> denied = fanOut.fork(() -> { throw new AccessDeniedException("Access Denied"); });
+
+        assertThatThrownBy(denied::get).isInstanceOf(AccessDeniedException.class);
+    }
+
+    private static RequestAttributes awaitBoth(CountDownLatch bothStarted) {
+        bothStarted.countDown();
+        await(bothStarted);
+        return RequestContextHolder.getRequestAttributes();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.prenotazion_aule_keycloak.resilience;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import jakarta.ws.rs.ClientErrorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeycloakCircuitBreakerTest {
+
+    // pdp-timeout 200ms, finestra di 4 chiamate, circuito aperto per 1 minuto
+    private final KeycloakCircuitBreaker breaker = new KeycloakCircuitBreaker(
+            Duration.ofMillis(200), Duration.ofMillis(200), 4, 8, 50f,
+            Duration.ofMillis(150), 4, 4, Duration.ofMinutes(1));
+
+    @AfterEach
+    void tearDown() throws Exception {
+        breaker.shutdown();
+    }
+
+    @Test
+    void slowKeycloakCallReturnsFallbackWithinDeadline() {
+        long start = System.nanoTime();
+        String result = breaker.call(KeycloakCircuitBreaker.PDP, () -> {
+            sleep(2_000);
+            return "GRANT";
+        }, error -> error instanceof TimeoutException ? "ERROR" : "UNEXPECTED");
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertThat(result).isEqualTo("ERROR");
+        assertThat(elapsedMs).isLessThan(1_000);
+        assertThat(breaker.stats().get("timeouts")).isEqualTo(1L);
+    }
+
+    @Test
+    void breakerOpensAfterFailuresAndStopsCallingKeycloak() {
+        AtomicInteger remoteCalls = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            breaker.call(KeycloakCircuitBreaker.PDP, () -> {
+                remoteCalls.incrementAndGet();
+                throw new IllegalStateException("HTTP 500");
+            }, error -> "ERROR");
+        }
+        assertThat(breaker.state(KeycloakCircuitBreaker.PDP)).isEqualTo(CircuitBreaker.State.OPEN);
+
+        // Con il circuito aperto il fallback arriva subito e Keycloak non viene più contattato
+        String result = breaker.call(KeycloakCircuitBreaker.PDP, () -> {
+            remoteCalls.incrementAndGet();
+            return "GRANT";
+        }, error -> error instanceof CallNotPermittedException ? "OPEN" : "UNEXPECTED");
+
+        assertThat(result).isEqualTo("OPEN");
+        assertThat(remoteCalls).hasValue(4);
+        // I due circuiti sono indipendenti: l'Admin API resta utilizzabile
+        assertThat(breaker.state(KeycloakCircuitBreaker.ADMIN)).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.call(KeycloakCircuitBreaker.ADMIN, () -> "ok", error -> "ERROR")).isEqualTo("ok");
+    }
+
+    @Test
+    void clientErrorsDoNotOpenTheBreaker() {
+        // Email duplicata: tante richieste sbagliate non devono bloccare l'Admin API per tutti
+        for (int i = 0; i < 8; i++) {
+            Object result = breaker.call(KeycloakCircuitBreaker.ADMIN, () -> {
+                throw new ClientErrorException(409);
+            }, error -> error);
+            assertThat(result).isInstanceOf(ClientErrorException.class);
+        }
+        assertThat(breaker.state(KeycloakCircuitBreaker.ADMIN)).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(KeycloakCircuitBreaker.isClientError(new IllegalStateException(new ClientErrorException(400)))).isTrue();
+        assertThat(KeycloakCircuitBreaker.isClientError(new IllegalStateException("HTTP 500"))).isFalse();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.prenotazion_aule_keycloak.resilience;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keycloak finto in locale (HttpServer del JDK) per i test che usano i client veri: configurazione UMA,
+ * endpoint dei token (uma-ticket e client_credentials) e Admin API. Stato HTTP e ritardo delle risposte
+ * si cambiano durante il test; la configurazione UMA e il token del service account rispondono sempre.
+ */
+public class KeycloakStub implements AutoCloseable {
+
+    public static final String REALM = "test";
+
+    static {
+        // Senza TCP_NODELAY ogni risposta arriva con ~40ms di ritardo (Nagle + ACK ritardato)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService threads = Executors.newFixedThreadPool(8);
+
+    private volatile int status = 200;
+    private volatile long delayMs;
+
+    public final AtomicInteger umaRequests = new AtomicInteger();
+    public final AtomicInteger adminRequests = new AtomicInteger();
+
+    public KeycloakStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(threads);
+        String realmUrl = realmUrl();
+        server.createContext("/realms/" + REALM + "/.well-known/uma2-configuration", exchange -> reply(exchange, 200,
+                "{\"issuer\":\"" + realmUrl + "\",\"token_endpoint\":\"" + realmUrl + "/protocol/openid-connect/token\","
+                        + "\"introspection_endpoint\":\"" + realmUrl + "/protocol/openid-connect/token/introspect\","
+                        + "\"resource_registration_endpoint\":\"" + realmUrl + "/authz/protection/resource_set\","
+                        + "\"permission_endpoint\":\"" + realmUrl + "/authz/protection/permission\","
+                        + "\"policy_endpoint\":\"" + realmUrl + "/authz/protection/uma-policy\"}"));
+        server.createContext("/realms/" + REALM + "/protocol/openid-connect/token", exchange -> {
+            String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (form.contains("grant_type=client_credentials")) {
+                // Token del service account dell'Admin API
+                reply(exchange, 200, "{\"access_token\":\"admin-token\",\"token_type\":\"Bearer\",\"expires_in\":300}");
+                return;
+            }
+            umaRequests.incrementAndGet();
+            scripted(exchange, "{\"access_token\":\"rpt\",\"token_type\":\"Bearer\",\"expires_in\":300,\"upgraded\":false}");
+        });
+        server.createContext("/admin/realms/" + REALM, exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            adminRequests.incrementAndGet();
+            scripted(exchange, null);
+        });
+        server.start();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String realmUrl() {
+        return baseUrl() + "/realms/" + REALM;
+    }
+
+    // Risposte successive di UMA e Admin API: stato HTTP (200 = esito positivo) e ritardo
+    public void respond(int status, long delayMs) {
+        this.status = status;
+        this.delayMs = delayMs;
+    }
+
+    private void scripted(HttpExchange exchange, String okBody) throws IOException {
+        long delay = delayMs;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int current = status;
+        if (current == 200) {
+            reply(exchange, okBody == null ? 204 : 200, okBody);
+        } else {
+            reply(exchange, current, "{\"error\":\"stub\",\"errorMessage\":\"HTTP " + current + "\"}");
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String json) throws IOException {
+        try (exchange) {
+            if (json == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (IOException e) {
+                // Il client ha già chiuso (deadline scaduta)
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        threads.shutdownNow();
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.prenotazion_aule_keycloak.security;
+
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakCircuitBreaker;
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakStub;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * KeycloakPdpService con AuthzClient e pool HTTP veri, contro {@link KeycloakStub}: fallback con
+ * Keycloak giù, esito per stato HTTP (403/4xx = DENY senza toccare il circuito, 5xx = errore),
+ * risposte lente tagliate dalla deadline del circuit breaker o dal timeout del socket.
+ */
+class KeycloakPdpServiceTest {
+
+    private KeycloakStub keycloak;
+    private KeycloakCircuitBreaker circuitBreaker;
+    private final MutableClock clock = new MutableClock();
+    private OAuth2AuthenticationToken authentication;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        keycloak = new KeycloakStub();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (circuitBreaker != null) {
+            circuitBreaker.shutdown();
+        }
+        keycloak.close();
+    }
+
+    @Test
+    void cachedModeKeepsUsingTheLastDecisionForTheWholeOutage() throws Exception {
+        KeycloakPdpService pdp = pdp("cached");
+        assertThat(pdp.check(authentication, "User Resource", "view")).isTrue();
+
+        // Il GRANT scade, Keycloak risponde 500
+        clock.advance(Duration.ofSeconds(61));
+        keycloak.respond(500, 0);
+        assertThat(pdp.check(authentication, "User Resource", "view")).isTrue();
+        // Secondo check subito dopo: ERROR in cache, ma la decisione resta quella dell'ultimo GRANT
+        assertThat(pdp.check(authentication, "User Resource", "view")).isTrue();
+        assertThat(keycloak.umaRequests).hasValue(2);
+        pdp.closeHttpClient();
+    }
+
+    @Test
+    void failClosedModeDeniesDuringTheOutage() throws Exception {
+        KeycloakPdpService pdp = pdp("fail-closed");
+        assertThat(pdp.check(authentication, "User Resource", "view")).isTrue();
+
+        clock.advance(Duration.ofSeconds(61));
+        keycloak.respond(500, 0);
+        assertThat(pdp.check(authentication, "User Resource", "view")).isFalse();
+        assertThat(pdp.check(authentication, "User Resource", "view")).isFalse();
+        pdp.closeHttpClient();
+    }
+
+    @Test
+    void clientErrorsDenyWithoutOpeningTheBreakerServerErrorsOpenIt() throws Exception {
+        KeycloakPdpService pdp = pdp("fail-closed");
+        keycloak.respond(403, 0);
+        assertThat(pdp.check(authentication, "User Resource", "delete")).isFalse();
+        // Token rifiutato (400): nega, ma Keycloak funziona; scope diversi = niente cache
+        keycloak.respond(400, 0);
+        for (int i = 0; i < 9; i++) {
+            assertThat(pdp.check(authentication, "User Resource", "scope-" + i)).isFalse();
+        }
+        assertThat(circuitBreaker.state(KeycloakCircuitBreaker.PDP)).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        // 10 errori 500 su 20 chiamate: il circuito si apre e Keycloak non viene più chiamato
+        keycloak.respond(500, 0);
+        for (int i = 10; i < 20; i++) {
+            assertThat(pdp.check(authentication, "User Resource", "scope-" + i)).isFalse();
+        }
+        assertThat(circuitBreaker.state(KeycloakCircuitBreaker.PDP)).isEqualTo(CircuitBreaker.State.OPEN);
+        int requests = keycloak.umaRequests.get();
+        assertThat(pdp.check(authentication, "User Resource", "scope-20")).isFalse();
+        assertThat(keycloak.umaRequests).hasValue(requests);
+        pdp.closeHttpClient();
+    }
+
+    @Test
+    void slowResponsesAreCutByTheBreakerDeadline() throws Exception {
+        KeycloakPdpService pdp = pdp("fail-closed", Duration.ofMillis(500), Duration.ofSeconds(10));
+        assertThat(pdp.check(authentication, "User Resource", "view")).isTrue();
+
+        keycloak.respond(200, 3_000);
+        long start = System.nanoTime();
+        assertThat(pdp.check(authentication, "User Resource", "edit")).isFalse();
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(2_000);
+        assertThat(circuitBreaker.stats().get("timeouts")).isEqualTo(1L);
+        pdp.closeHttpClient();
+    }
+
+    @Test
+    void slowResponsesAreCutByTheSocketTimeout() throws Exception {
+        KeycloakPdpService pdp = pdp("fail-closed", Duration.ofSeconds(10), Duration.ofMillis(300));
+        assertThat(pdp.check(authentication, "User Resource", "view")).isTrue();
+
+        keycloak.respond(200, 3_000);
+        long start = System.nanoTime();
+        assertThat(pdp.check(authentication, "User Resource", "edit")).isFalse();
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(2_000);
+        assertThat(circuitBreaker.stats().get("timeouts")).isEqualTo(0L);
+        pdp.closeHttpClient();
+    }
+
+    private KeycloakPdpService pdp(String fallbackMode) {
+        return pdp(fallbackMode, Duration.ofSeconds(2), Duration.ofSeconds(2));
+    }
+
+    // Circuito con finestra di 20 chiamate, aperto dal 50% di errori dopo almeno 10
+    private KeycloakPdpService pdp(String fallbackMode, Duration deadline, Duration readTimeout) {
+        circuitBreaker = new KeycloakCircuitBreaker(deadline, deadline, 4, 8, 50f,
+                Duration.ofSeconds(1), 20, 10, Duration.ofMinutes(1));
+        String realmUrl = keycloak.realmUrl();
+        ClientRegistration registration = ClientRegistration.withRegistrationId("keycloak")
+                .clientId("test-client")
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .authorizationUri(realmUrl + "/protocol/openid-connect/auth")
+                .tokenUri(realmUrl + "/protocol/openid-connect/token")
+                .build();
+        InMemoryOAuth2AuthorizedClientService clients = new InMemoryOAuth2AuthorizedClientService(
+                new InMemoryClientRegistrationRepository(registration));
+        DefaultOAuth2User user = new DefaultOAuth2User(AuthorityUtils.createAuthorityList("OIDC_USER"),
+                Map.of("preferred_username", "mario"), "preferred_username");
+        authentication = new OAuth2AuthenticationToken(user, user.getAuthorities(), "keycloak");
+        Instant now = clock.instant();
+        clients.saveAuthorizedClient(new OAuth2AuthorizedClient(registration, "mario",
+                new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "access-token", now, now.plus(Duration.ofHours(1)))),
+                authentication);
+
+        PdpDecisionCache cache = new PdpDecisionCache(100, Duration.ofSeconds(60), Duration.ofSeconds(5),
+                Duration.ofSeconds(2), clock);
+        KeycloakPdpService pdp = new KeycloakPdpService(clients, cache, new LocalPolicyEngine(null, null),
+                circuitBreaker, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(pdp, "authServerUrl", keycloak.baseUrl());
+        ReflectionTestUtils.setField(pdp, "realm", KeycloakStub.REALM);
+        ReflectionTestUtils.setField(pdp, "clientId", "test-client");
+        ReflectionTestUtils.setField(pdp, "clientSecret", "secret");
+        ReflectionTestUtils.setField(pdp, "poolSize", 4);
+        ReflectionTestUtils.setField(pdp, "connectTimeout", Duration.ofSeconds(1));
+        ReflectionTestUtils.setField(pdp, "readTimeout", readTimeout);
+        ReflectionTestUtils.setField(pdp, "fallbackMode", fallbackMode);
+        ReflectionTestUtils.setField(pdp, "maxStale", Duration.ofMinutes(5));
+        pdp.initHttpClient();
+        pdp.parsePreflightSpec();
+        return pdp;
+    }
+
+    static final class MutableClock extends Clock {
+        private volatile Instant now = Instant.now();
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
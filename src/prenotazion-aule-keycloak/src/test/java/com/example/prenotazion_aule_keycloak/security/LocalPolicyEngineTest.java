@@ -0,0 +1,118 @@
+package com.example.prenotazion_aule_keycloak.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.FileSystemResource;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.example.prenotazion_aule_keycloak.security.LocalPolicyEngine.Decision.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Motore locale sull'export del realm: per ogni (risorsa, scope) e per ogni profilo di ruoli la decisione
+ * deve coincidere con la tabella attesa, scritta a mano leggendo permission e policy dell'export.
+ * Non è un confronto con un Keycloak vero: se il realm cambia, la tabella va aggiornata insieme.
+ */
+class LocalPolicyEngineTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Profili di ruolo (realm roles) del realm prenotazioni-aule
+    private static final Map<String, Set<String>> PROFILES = Map.of(
+            "user", Set.of("USER"),
+            "admin", Set.of("ADMIN"),
+            "docente", Set.of("Docente"),
+            "user+admin", Set.of("USER", "ADMIN"),
+            "nessuno", Set.of());
+
+    // Decisioni attese per profilo, ricavate dalle permission dell'export.
+    // "Default Resource" è protetta solo da una policy js: il motore locale deve rimandare al server.
+    private static final Map<String, Map<String, LocalPolicyEngine.Decision>> EXPECTED = Map.of(
+            "User Resource#view", Map.of("user", GRANT, "admin", DENY, "docente", DENY, "user+admin", GRANT, "nessuno", DENY),
+            "User Resource#create", Map.of("user", GRANT, "admin", DENY, "docente", DENY, "user+admin", GRANT, "nessuno", DENY),
+            "User Resource#delete", Map.of("user", GRANT, "admin", DENY, "docente", DENY, "user+admin", GRANT, "nessuno", DENY),
+            "Admin Resource#view", Map.of("user", DENY, "admin", GRANT, "docente", GRANT, "user+admin", GRANT, "nessuno", DENY),
+            "res-prenotazione#delete", Map.of("user", DENY, "admin", GRANT, "docente", DENY, "user+admin", GRANT, "nessuno", DENY),
+            "Default Resource#null", Map.of("user", GRANT, "admin", GRANT, "docente", GRANT, "user+admin", GRANT, "nessuno", GRANT));
+
+    private LocalPolicyEngine engine;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = new LocalPolicyEngine(null, null);
+        engine.load(LocalPolicyEngine.readExport(
+                new FileSystemResource("../../config/keycloak/realm-export.json"), "prenotazioni-app"));
+    }
+
+    @Test
+    void localDecisionsMatchTheExpectedTableForEveryResourceAndScopeInExport() {
+        List<String[]> pairs = engine.resourceScopePairs();
+        assertEquals(EXPECTED.size(), pairs.size(), "Ogni coppia risorsa/scope dell'export deve avere una decisione attesa");
+
+        for (String[] pair : pairs) {
+            String key = pair[0] + "#" + pair[1];
+            Map<String, LocalPolicyEngine.Decision> expected = EXPECTED.get(key);
+            assertNotNull(expected, "Coppia non coperta dal test: " + key);
+
+            PROFILES.forEach((profile, roles) -> {
+                LocalPolicyEngine.Decision local = engine.evaluate(token(roles), pair[0], pair[1]);
+                if (local == UNKNOWN) {
+                    // Policy non valutabile in locale: in produzione decide il server
+                    return;
+                }
+                assertEquals(expected.get(profile), local, key + " per il profilo " + profile);
+            });
+        }
+    }
+
+    @Test
+    void jsPoliciesFallBackToRemote() {
+        assertEquals(UNKNOWN, engine.evaluate(token(Set.of("USER")), "Default Resource", null));
+    }
+
+    @Test
+    void unknownResourcesAndOpaqueTokensFallBackToRemote() {
+        assertEquals(UNKNOWN, engine.evaluate(token(Set.of("ADMIN")), "Risorsa Inesistente", "view"));
+        assertEquals(UNKNOWN, engine.evaluate("token-opaco", "User Resource", "view"));
+    }
+
+    @Test
+    void expiredOrNotYetValidTokensFallBackToRemote() {
+        long now = Instant.now().getEpochSecond();
+        assertEquals(GRANT, engine.evaluate(token(Set.of("USER"), now - 60, now + 300), "User Resource", "view"));
+        assertEquals(UNKNOWN, engine.evaluate(token(Set.of("USER"), now - 360, now - 60), "User Resource", "view"));
+        assertEquals(UNKNOWN, engine.evaluate(token(Set.of("USER"), now + 60, now + 360), "User Resource", "view"));
+        // Anche un DENY locale torna al server: il token scaduto lo rifiuta lui
+        assertEquals(UNKNOWN, engine.evaluate(token(Set.of("ADMIN"), now - 360, now - 60), "User Resource", "view"));
+    }
+
+    // Access token JWT minimale (firma irrilevante: il motore legge solo i claim)
+    private static String token(Set<String> realmRoles) {
+        return token(realmRoles, null, null);
+    }
+
+    private static String token(Set<String> realmRoles, Long nbf, Long exp) {
+        ObjectNode claims = MAPPER.createObjectNode();
+        if (nbf != null) {
+            claims.put("nbf", nbf);
+        }
+        if (exp != null) {
+            claims.put("exp", exp);
+        }
+        claims.put("sub", "00000000-0000-0000-0000-000000000001");
+        claims.put("azp", "prenotazioni-app");
+        claims.putObject("realm_access").putPOJO("roles", realmRoles);
+        Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+        return enc.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + enc.encodeToString(claims.toString().getBytes(StandardCharsets.UTF_8)) + ".firma";
+    }
+
+}
@@ -0,0 +1,526 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.model.Booking;
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.repository.ArchivedBookingRepository;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.example.prenotazion_aule_keycloak.repository.BookingSpecifications;
+import com.example.prenotazion_aule_keycloak.repository.BookingView;
+import com.example.prenotazion_aule_keycloak.repository.RoomRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+@DataJpaTest(properties = {
+        "spring.cloud.vault.enabled=false",
+        "spring.config.on-not-found=ignore",
+        "spring.jpa.database-platform=",
+        // Su H2 lo schema lo crea Hibernate: le migrazioni sono solo per PostgreSQL
+        "spring.flyway.enabled=false",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.show-sql=false",
+        "audit.file=target/audit/audit.log",
+        "spring.jpa.properties.hibernate.generate_statistics=true",
+        "booking.delete.chunk-size=2"
+})
+@Import({BookingService.class, AuditTrail.class, OccupancyIndex.class, SlotIndex.class, RoomCatalog.class, SeatBookingService.class,
+        BookingPartitionMaintenance.class, SeatAdmission.class, BookingMetrics.class, SimpleMeterRegistry.class, AvailabilityCalendar.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // ogni chiamata al service gira nella sua transazione
+class BookingServiceTest {
+
+    @Autowired
+    private BookingService bookingService;
+
+    @SpyBean
+    private BookingRepository bookingRepository;
+
+    @SpyBean
+    private OccupancyIndex occupancyIndex;
+
+    @SpyBean
+    private BookingPartitionMaintenance partitionMaintenance;
+
+    @Autowired
+    private RoomRepository roomRepository;
+
+    @Autowired
+    private RoomCatalog roomCatalog;
+
+    @Autowired
+    private SlotIndex slotIndex;
+
+    @Autowired
+    private AvailabilityCalendar availabilityCalendar;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ArchivedBookingRepository archivedBookingRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private Statistics statistics;
+    private List<Room> rooms;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        rooms = roomRepository.findAll();
+        occupancyIndex.warmUp();
+        slotIndex.warmUp();
+    }
+
+    @AfterEach
+    void tearDown() {
+        bookingRepository.deleteAllInBatch();
+        archivedBookingRepository.deleteAllInBatch();
+    }
+
+    @Test
+    void rejectsSecondBookingForSameRoomAndDate() {
+        Long roomId = rooms.get(0).getId();
+        LocalDate date = LocalDate.of(2030, 1, 15);
+
+        double precheck = conflicts("precheck");
+        long rejected = meterRegistry.get("booking.create").tags("kind", "full_day", "outcome", "conflict").timer().count();
+
+        bookingService.createBooking("mario", roomId, date);
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> bookingService.createBooking("luigi", roomId, date));
+
+        assertEquals("Aula già occupata!", e.getMessage());
+        assertEquals(1, bookingRepository.count());
+        assertEquals(precheck + 1, conflicts("precheck"));
+        assertEquals(rejected + 1, meterRegistry.get("booking.create").tags("kind", "full_day", "outcome", "conflict").timer().count());
+    }
+
+    @Test
+    void translatesUniqueConstraintViolationWhenFastPathIsBypassed() {
+        Long roomId = rooms.get(0).getId();
+        LocalDate date = LocalDate.of(2030, 1, 16);
+        bookingService.createBooking("mario", roomId, date);
+
+        // Simula la race: la seconda richiesta ha letto "libero" prima dell'INSERT della prima
+        doReturn(OccupancyIndex.Occupancy.UNKNOWN).when(occupancyIndex).lookup(any(), any());
+        doReturn(false).when(bookingRepository).existsOverlap(any(), any(), anyInt(), anyInt());
+        double constraint = conflicts("constraint");
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> bookingService.createBooking("luigi", roomId, date));
+        assertEquals("Aula già occupata!", e.getMessage());
+        assertEquals(1, bookingRepository.count());
+        assertEquals(constraint + 1, conflicts("constraint"));
+    }
+
+    private double conflicts(String stage) {
+        return meterRegistry.get("booking.conflicts").tag("stage", stage).counter().count();
+    }
+
+    @Test
+    void occupancyIndexFollowsCreateAndDeleteAndMatchesDatabase() {
+        Long roomId = rooms.get(1).getId();
+        LocalDate date = LocalDate.now().plusDays(3);
+
+        Long bookingId = bookingService.createBooking("mario", roomId, date).getId();
+        assertEquals(OccupancyIndex.Occupancy.BUSY, occupancyIndex.lookup(roomId, date));
+        assertFalse(bookingService.isAvailable(roomId, date));
+
+        bookingService.deleteBookingIfOwner(bookingId, "mario");
+        assertEquals(OccupancyIndex.Occupancy.FREE, occupancyIndex.lookup(roomId, date));
+        assertEquals(0, occupancyIndex.verifyAgainstDatabase());
+    }
+
+    @Test
+    void changesDuringIndexReloadAreNotLost() {
+        Long roomId = rooms.get(2).getId();
+        LocalDate date = LocalDate.now().plusDays(40);
+        TimeSlot slot = TimeSlot.of(LocalTime.of(9, 0), LocalTime.of(10, 0));
+        // L'evento di una prenotazione arriva mentre la lettura dal DB è in corso e non la vede
+        doAnswer(invocation -> {
+            occupancyIndex.markBusy(roomId, date);
+            return List.of();
+        }).when(bookingRepository).findAllRoomDays();
+        doAnswer(invocation -> {
+            slotIndex.onBookingChanged(BookingChangedEvent.created(1L, roomId, date, slot));
+            return List.of();
+        }).when(bookingRepository).findSlotsBetween(any(), any());
+
+        occupancyIndex.verifyAgainstDatabase();
+        slotIndex.rebuild();
+
+        assertEquals(OccupancyIndex.Occupancy.BUSY, occupancyIndex.lookup(roomId, date));
+        assertEquals(OccupancyIndex.Occupancy.BUSY, slotIndex.lookup(roomId, date, slot));
+    }
+
+    @Test
+    void accountErasureDeletesInChunksWithoutLoadingBookings() {
+        Long roomId = rooms.get(2).getId();
+        LocalDate first = LocalDate.now().plusDays(10);
+        for (int i = 0; i < 5; i++) {
+            bookingService.createBooking("mario", roomId, first.plusDays(i));
+        }
+        bookingService.createBooking("luigi", roomId, first.plusDays(5));
+
+        statistics.clear();
+        assertEquals(5, bookingService.deleteUserData("mario"));
+
+        assertEquals(1, bookingRepository.count());
+        assertEquals(0, statistics.getEntityStatistics(Booking.class.getName()).getLoadCount());
+        // Blocchi da 2: tre blocchi pieni o parziali e la lettura vuota finale
+        verify(bookingRepository, times(3)).deleteByIdIn(any());
+        assertEquals(OccupancyIndex.Occupancy.FREE, occupancyIndex.lookup(roomId, first));
+        assertEquals(0, occupancyIndex.verifyAgainstDatabase());
+    }
+
+    @Test
+    void purgeRemovesBookingsOfARoomBeforeADate() {
+        Room purged = rooms.get(3);
+        Room kept = rooms.get(4);
+        LocalDate cutoff = LocalDate.of(2031, 6, 1);
+        bookingService.createBooking("mario", purged.getId(), cutoff.minusDays(2));
+        bookingService.createBooking("luigi", purged.getId(), cutoff.minusDays(1));
+        bookingService.createBooking("mario", purged.getId(), cutoff);
+        bookingService.createBooking("mario", kept.getId(), cutoff.minusDays(1));
+
+        assertEquals(2, bookingService.purgeBookings(purged.getId(), cutoff));
+        assertEquals(2, bookingRepository.count());
+        assertFalse(bookingService.isAvailable(purged.getId(), cutoff));
+        assertTrue(bookingService.isAvailable(purged.getId(), cutoff.minusDays(1)));
+
+        // Senza aula: tutte le aule prima della data
+        assertEquals(2, bookingService.purgeBookings(null, cutoff.plusDays(1)));
+        assertEquals(0, bookingRepository.count());
+        assertThrows(IllegalArgumentException.class, () -> bookingService.purgeBookings(null, null));
+    }
+
+    @Test
+    void archivedBookingsAreListedAndErasedWithTheAccount() {
+        // Su PostgreSQL ci arrivano le partizioni dei mesi passati; qui righe inserite direttamente
+        Room room = rooms.get(0);
+        LocalDate month = LocalDate.of(2024, 3, 1);
+        for (int i = 0; i < 5; i++) {
+            jdbcTemplate.update("insert into bookings_archive (id, username, room_id, date, start_minute, end_minute, seat) " +
+                    "values (?, ?, ?, ?, 0, 1440, 0)", 1000 + i, i < 3 ? "mario" : "luigi", room.getId(), month.plusDays(i));
+        }
+        bookingService.createBooking("mario", room.getId(), LocalDate.now().plusDays(20));
+
+        BookingSearch search = BookingSearch.of(null, "mario", null, null, BookingSpecifications.SortKey.ID, true);
+        BookingPage archived = bookingService.findArchivedBookingsPage(search, null, 0, 2);
+        assertEquals(5, archived.recordsTotal());
+        assertEquals(3, archived.recordsFiltered());
+        assertEquals(List.of(1000L, 1001L), archived.rows().stream().map(BookingView::id).toList());
+        assertEquals(List.of(1002L), bookingService.findArchivedBookingsPage(search, archived.nextCursor(), 2, 2)
+                .rows().stream().map(BookingView::id).toList());
+        assertEquals(1, bookingService.findBookingsPage(search, null, 0, 10).recordsFiltered());
+
+        // Diritto all'oblio: anche lo storico
+        assertEquals(4, bookingService.deleteUserData("mario"));
+        assertEquals(2, bookingService.countArchivedBookings());
+
+        // Pulizia admin: l'archivio segue gli stessi criteri
+        assertEquals(1, bookingService.purgeBookings(room.getId(), month.plusDays(4)));
+        assertEquals(1, bookingService.countArchivedBookings());
+    }
+
+    @Test
+    void archivedMonthsCannotBeBookedAndStayOutOfTheIndexes() {
+        // Su PostgreSQL con retain-months=1: il mese scorso e i precedenti sono in bookings_archive
+        LocalDate firstHot = YearMonth.now().minusMonths(1).atDay(1);
+        doReturn(firstHot).when(partitionMaintenance).firstHotDate();
+        occupancyIndex.warmUp();
+        slotIndex.warmUp();
+        Long roomId = rooms.get(1).getId();
+        LocalDate archived = firstHot.minusDays(1);
+
+        assertEquals(OccupancyIndex.Occupancy.UNKNOWN, occupancyIndex.lookup(roomId, archived));
+        assertFalse(slotIndex.covers(archived));
+        assertTrue(slotIndex.covers(firstHot));
+        assertFalse(bookingService.isAvailable(roomId, archived));
+        assertThrows(IllegalArgumentException.class, () -> bookingService.createBooking("mario", roomId, archived));
+        assertThrows(IllegalArgumentException.class,
+                () -> bookingService.createBookings("mario", roomId, List.of(archived, firstHot), true));
+        assertEquals(0, bookingRepository.count());
+
+        bookingService.createBooking("mario", roomId, firstHot);
+        assertEquals(OccupancyIndex.Occupancy.BUSY, occupancyIndex.lookup(roomId, firstHot));
+    }
+
+    @Test
+    void createBookingCostStaysFlatAsTableGrows() {
+        LocalDate start = LocalDate.of(2030, 1, 1);
+        int perRoom = 400;
+        // Finestre di 10 giorni x 5 aule = 50 prenotazioni = un blocco della sequence (una nextval ciascuna)
+        int window = 10;
+
+        long firstWindowStatements = 0;
+        long lastWindowStatements = 0;
+        for (int day = 0; day < perRoom; day++) {
+            for (Room room : rooms) {
+                statistics.clear();
+                bookingService.createBooking("user-" + day, room.getId(), start.plusDays(day));
+
+                if (day >= window && day < 2 * window) firstWindowStatements += statistics.getPrepareStatementCount();
+                if (day >= perRoom - window) lastWindowStatements += statistics.getPrepareStatementCount();
+                // Nessuna prenotazione esistente deve essere caricata per il controllo conflitti
+                assertEquals(0, statistics.getEntityStatistics(Booking.class.getName()).getLoadCount());
+            }
+        }
+
+        assertEquals(perRoom * rooms.size(), bookingRepository.count());
+        assertEquals(firstWindowStatements, lastWindowStatements,
+                "Il numero di statement per createBooking non deve crescere con la tabella");
+        verify(bookingRepository, never()).findAll();
+    }
+
+    @Test
+    void keysetPagesCoverFilteredResultsOnceInOrder() {
+        LocalDate start = LocalDate.of(2031, 3, 1);
+        for (int day = 0; day < 12; day++) {
+            for (Room room : rooms) {
+                bookingService.createBooking(day % 2 == 0 ? "mario" : "luigi", room.getId(), start.plusDays(day));
+            }
+        }
+        BookingSearch search = BookingSearch.of(null, "mar", null, null,
+                BookingSpecifications.SortKey.DATE, false);
+
+        List<BookingView> offsetRows = bookingService.findBookingsPage(search, null, 0, 1000).rows();
+        assertEquals(6 * rooms.size(), offsetRows.size());
+
+        List<Long> keysetIds = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            statistics.clear();
+            BookingPage page = bookingService.findBookingsPage(search, cursor, 0, 4);
+            if (cursor != null) {
+                // Pagine successive: count totale, righe con l'aula in join e count filtrata; niente N+1
+                assertEquals(3, statistics.getPrepareStatementCount());
+            }
+            assertEquals(bookingRepository.count(), page.recordsTotal());
+            assertEquals(offsetRows.size(), page.recordsFiltered());
+            page.rows().forEach(b -> keysetIds.add(b.id()));
+            cursor = page.nextCursor();
+            pages++;
+        } while (cursor != null && pages < 100);
+
+        assertEquals(offsetRows.stream().map(BookingView::id).toList(), keysetIds);
+    }
+
+    @Test
+    void dashboardReadsUseConstantStatementsRegardlessOfRowCount() {
+        LocalDate start = LocalDate.of(2032, 1, 1);
+        BookingSearch all = BookingSearch.of(null, null, null, null, BookingSpecifications.SortKey.DATE, true);
+
+        long[] userStatements = new long[2];
+        long[] adminStatements = new long[2];
+        int[] sizes = {3, 40};
+        int created = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            for (; created < sizes[i]; created++) {
+                Room room = rooms.get(created % rooms.size());
+                bookingService.createBooking("mario", room.getId(), start.plusDays(created));
+            }
+
+            statistics.clear();
+            List<BookingView> mine = bookingService.getBookingsByUser("mario");
+            userStatements[i] = statistics.getPrepareStatementCount();
+            assertEquals(sizes[i], mine.size());
+            assertNotNull(mine.get(0).roomName());
+
+            statistics.clear();
+            BookingPage page = bookingService.findBookingsPage(all, null, 0, 2);
+            adminStatements[i] = statistics.getPrepareStatementCount();
+            assertEquals(sizes[i], page.recordsTotal());
+
+            // Proiezioni e join fetch: nessuna select separata per le aule
+            assertEquals(0, statistics.getEntityStatistics(Room.class.getName()).getFetchCount());
+        }
+
+        assertEquals(1, userStatements[0]);
+        assertEquals(userStatements[0], userStatements[1], "Dashboard utente: statement costanti");
+        assertEquals(adminStatements[0], adminStatements[1], "Tabella admin: statement costanti");
+    }
+
+    @Test
+    void roomCatalogServesFromMemoryAndReloadsAfterRoomWrite() {
+        roomCatalog.invalidate();
+        statistics.clear();
+        List<Room> first = bookingService.getAllRooms();
+        List<Room> second = bookingService.getAllRooms();
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertSame(first, second);
+
+        // findById dell'aula in createBooking arriva dalla cache di secondo livello
+        statistics.clear();
+        bookingService.createBooking("mario", rooms.get(0).getId(), LocalDate.of(2033, 1, 1));
+        assertTrue(statistics.getDomainDataRegionStatistics(Room.CACHE_REGION).getHitCount() > 0);
+        assertEquals(0, statistics.getEntityStatistics(Room.class.getName()).getLoadCount());
+
+        // Il commit di una scrittura su Room invalida lo snapshot
+        Room added = roomRepository.save(new Room("Aula 6 - Test", 10));
+        try {
+            assertEquals(first.size() + 1, bookingService.getAllRooms().size());
+        } finally {
+            roomRepository.delete(added);
+        }
+        assertEquals(first.size(), bookingService.getAllRooms().size());
+    }
+
+    @Test
+    void recurringBookingChecksConflictsOnceAndInsertsInBatches() {
+        Long roomId = rooms.get(1).getId();
+        List<LocalDate> semester = BookingService.recurringDates(LocalDate.now().plusDays(30), LocalDate.now().plusDays(180),
+                Set.of(DayOfWeek.MONDAY, DayOfWeek.WEDNESDAY, DayOfWeek.FRIDAY));
+
+        statistics.clear();
+        BulkBookingResult result = bookingService.createBookings("mario", roomId, semester, false);
+        long queries = statistics.getQueryExecutionCount();
+        long statements = statistics.getPrepareStatementCount();
+
+        assertEquals(semester, result.booked());
+        assertTrue(result.rejected().isEmpty());
+        assertEquals(semester.size(), bookingRepository.count());
+        // Una query per i conflitti, poche nextval della sequence e gli INSERT in batch
+        assertEquals(1, queries);
+        assertTrue(statements < 10, "statement preparati: " + statements);
+        verify(bookingRepository, never()).existsByRoomIdAndDate(any(), any());
+        assertEquals(OccupancyIndex.Occupancy.BUSY, occupancyIndex.lookup(roomId, semester.get(0)));
+    }
+
+    @Test
+    void bulkBookingIsAllOrNothingUnlessPartial() {
+        Long roomId = rooms.get(2).getId();
+        LocalDate taken = LocalDate.of(2035, 3, 8);
+        bookingService.createBooking("luigi", roomId, taken);
+        List<LocalDate> dates = List.of(LocalDate.of(2035, 3, 7), taken, LocalDate.of(2035, 3, 9));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> bookingService.createBookings("mario", roomId, dates, false));
+        assertTrue(e.getMessage().contains(taken.toString()));
+        assertEquals(1, bookingRepository.count());
+
+        BulkBookingResult result = bookingService.createBookings("mario", roomId, dates, true);
+        assertEquals(List.of(LocalDate.of(2035, 3, 7), LocalDate.of(2035, 3, 9)), result.booked());
+        assertEquals(Set.of(taken), result.rejected().keySet());
+        assertEquals(3, bookingRepository.count());
+    }
+
+    @Test
+    void timeSlotsRejectOverlapsAndFreeSlotSearchReturnsGaps() {
+        Room room = rooms.get(3);
+        LocalDate day = LocalDate.now().plusDays(10);
+        bookingService.createBooking("mario", room.getId(), day, slot("09:00", "11:00"));
+        Booking afternoon = bookingService.createBooking("mario", room.getId(), day, slot("14:00", "15:00"));
+
+        assertThrows(IllegalStateException.class,
+                () -> bookingService.createBooking("luigi", room.getId(), day, slot("10:00", "12:00")));
+        assertThrows(IllegalStateException.class, () -> bookingService.createBooking("luigi", room.getId(), day));
+        bookingService.createBooking("luigi", room.getId(), day, slot("11:00", "12:00"));
+
+        Map<Room, List<TimeSlot>> free = bookingService.findFreeSlots(day, 60);
+        assertEquals(List.of(slot("08:00", "09:00"), slot("12:00", "14:00"), slot("15:00", "20:00")),
+                free.entrySet().stream().filter(e -> e.getKey().getId().equals(room.getId()))
+                        .findFirst().orElseThrow().getValue());
+        assertEquals(List.of(slot("08:00", "20:00")),
+                free.entrySet().stream().filter(e -> !e.getKey().getId().equals(room.getId()))
+                        .findFirst().orElseThrow().getValue());
+
+        // Cancellare una fascia non libera il giorno finché ne restano altre
+        bookingService.deleteBooking(afternoon.getId());
+        assertEquals(OccupancyIndex.Occupancy.BUSY, occupancyIndex.lookup(room.getId(), day));
+        assertTrue(bookingService.isAvailable(room.getId(), day, slot("14:00", "15:00")));
+        assertFalse(bookingService.isAvailable(room.getId(), day));
+    }
+
+    @Test
+    void monthCalendarIsOneAggregateQueryWithStableEtag() throws Exception {
+        YearMonth month = YearMonth.of(2036, 2);
+        Room full = rooms.get(0);
+        Room partial = rooms.get(1);
+        bookingService.createBooking("mario", full.getId(), month.atDay(3));
+        bookingService.createBooking("mario", partial.getId(), month.atDay(3), slot("09:00", "11:00"));
+        bookingService.createBooking("luigi", partial.getId(), month.atDay(4), slot("08:00", "14:00"));
+        bookingService.createBooking("luigi", partial.getId(), month.atDay(4), slot("14:00", "20:00"));
+        bookingService.getAllRooms(); // catalogo già in memoria
+
+        statistics.clear();
+        AvailabilityCalendar.MonthGrid grid = availabilityCalendar.month(month, null);
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityStatistics(Booking.class.getName()).getLoadCount());
+
+        assertEquals(AvailabilityCalendar.FULL, grid.state(full.getId(), month.atDay(3)));
+        assertEquals(AvailabilityCalendar.PARTIAL, grid.state(partial.getId(), month.atDay(3)));
+        // Fasce che insieme coprono l'orario di apertura: giorno pieno
+        assertEquals(AvailabilityCalendar.FULL, grid.state(partial.getId(), month.atDay(4)));
+        assertEquals(AvailabilityCalendar.FREE, grid.state(full.getId(), month.atDay(4)));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        grid.writeJson(json);
+        assertTrue(json.toString(StandardCharsets.UTF_8).contains("\"states\":\"002" + "0".repeat(26) + "\""));
+        // Minuti prenotati per giorno (aule intere): la pagina ci applica le variazioni live
+        assertTrue(json.toString(StandardCharsets.UTF_8).contains("\"openMinutes\":720"));
+        assertTrue(json.toString(StandardCharsets.UTF_8).contains("\"minutes\":[0,0,120,720,"));
+
+        // Stessi dati, stesso ETag; una prenotazione in più lo cambia
+        assertEquals(grid.etag(), availabilityCalendar.month(month, null).etag());
+        bookingService.createBooking("mario", full.getId(), month.atDay(20));
+        assertNotEquals(grid.etag(), availabilityCalendar.month(month, null).etag());
+        assertEquals(1, availabilityCalendar.month(month, full.getId()).rows().size());
+    }
+
+    @Test
+    void bookingsOutsideOpeningHoursDoNotFillTheCalendarDay() {
+        YearMonth month = YearMonth.of(2036, 3);
+        Room room = rooms.get(0);
+        // 00:00-08:00 e 20:00-24:00: 12 ore prenotate, ma l'orario di apertura 08:00-20:00 è tutto libero
+        bookingService.createBooking("mario", room.getId(), month.atDay(5), slot("00:00", "08:00"));
+        bookingService.createBooking("luigi", room.getId(), month.atDay(5), new TimeSlot(1200, 1440));
+        // A cavallo dell'apertura: contano solo 08:00-09:00
+        bookingService.createBooking("mario", room.getId(), month.atDay(6), slot("06:00", "09:00"));
+
+        AvailabilityCalendar.MonthGrid grid = availabilityCalendar.month(month, room.getId());
+        assertEquals(AvailabilityCalendar.FREE, grid.state(room.getId(), month.atDay(5)));
+        assertEquals(0, grid.rows().get(0).minutes()[4]);
+        assertEquals(AvailabilityCalendar.PARTIAL, grid.state(room.getId(), month.atDay(6)));
+        assertEquals(60, grid.rows().get(0).minutes()[5]);
+    }
+
+    private static TimeSlot slot(String start, String end) {
+        return TimeSlot.of(LocalTime.parse(start), LocalTime.parse(end));
+    }
+}
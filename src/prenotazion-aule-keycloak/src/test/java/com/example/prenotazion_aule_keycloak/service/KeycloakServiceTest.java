@@ -0,0 +1,111 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakCircuitBreaker;
+import com.example.prenotazion_aule_keycloak.resilience.KeycloakStub;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.ws.rs.ClientErrorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * KeycloakService con client RESTEasy e TokenManager veri, contro {@link KeycloakStub}: un 4xx arriva
+ * al chiamante com'è e non conta per il circuito, un 5xx sì; le risposte lente sono tagliate dalla
+ * deadline del circuit breaker o dal timeout del socket.
+ */
+class KeycloakServiceTest {
+
+    private KeycloakStub keycloak;
+    private KeycloakCircuitBreaker circuitBreaker;
+    private KeycloakService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        keycloak = new KeycloakStub();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        service.shutdown();
+        circuitBreaker.shutdown();
+        keycloak.close();
+    }
+
+    @Test
+    void clientErrorsReachTheCallerWithoutOpeningTheBreaker() {
+        service = service(Duration.ofSeconds(2), Duration.ofSeconds(2));
+        service.deleteUserFromKeycloak("u1");
+        assertThat(keycloak.adminRequests).hasValue(1);
+
+        // Password fuori policy: errore di validazione, Keycloak funziona
+        keycloak.respond(400, 0);
+        for (int i = 0; i < 9; i++) {
+            assertThatThrownBy(() -> service.changePassword("u1", "x"))
+                    .isInstanceOf(ClientErrorException.class);
+        }
+        assertThat(circuitBreaker.state(KeycloakCircuitBreaker.ADMIN)).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        // 10 errori 500 su 20 chiamate: circuito aperto, le chiamate successive non arrivano a Keycloak
+        keycloak.respond(500, 0);
+        for (int i = 0; i < 10; i++) {
+            assertThatThrownBy(() -> service.deleteUserFromKeycloak("u1"))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("Keycloak non disponibile");
+        }
+        assertThat(circuitBreaker.state(KeycloakCircuitBreaker.ADMIN)).isEqualTo(CircuitBreaker.State.OPEN);
+        int requests = keycloak.adminRequests.get();
+        assertThatThrownBy(() -> service.deleteUserFromKeycloak("u1")).isInstanceOf(IllegalStateException.class);
+        assertThat(keycloak.adminRequests).hasValue(requests);
+    }
+
+    @Test
+    void slowResponsesAreCutByTheBreakerDeadline() {
+        service = service(Duration.ofMillis(500), Duration.ofSeconds(10));
+        service.deleteUserFromKeycloak("u1");
+
+        keycloak.respond(200, 3_000);
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> service.deleteUserFromKeycloak("u1"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Keycloak non disponibile");
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(2_000);
+        assertThat(circuitBreaker.stats().get("timeouts")).isEqualTo(1L);
+    }
+
+    @Test
+    void slowResponsesAreCutByTheSocketTimeout() {
+        service = service(Duration.ofSeconds(10), Duration.ofMillis(300));
+        service.deleteUserFromKeycloak("u1");
+
+        keycloak.respond(200, 3_000);
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> service.deleteUserFromKeycloak("u1"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Keycloak non disponibile");
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(2_000);
+        assertThat(circuitBreaker.stats().get("timeouts")).isEqualTo(0L);
+    }
+
+    // Circuito con finestra di 20 chiamate, aperto dal 50% di errori dopo almeno 10
+    private KeycloakService service(Duration deadline, Duration readTimeout) {
+        circuitBreaker = new KeycloakCircuitBreaker(deadline, deadline, 4, 8, 50f,
+                Duration.ofSeconds(1), 20, 10, Duration.ofMinutes(1));
+        KeycloakService keycloakService = new KeycloakService(circuitBreaker, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(keycloakService, "issuerUri", keycloak.realmUrl());
+        ReflectionTestUtils.setField(keycloakService, "clientId", "test-client");
+        ReflectionTestUtils.setField(keycloakService, "clientSecret", "secret");
+        ReflectionTestUtils.setField(keycloakService, "poolSize", 4);
+        ReflectionTestUtils.setField(keycloakService, "connectTimeout", Duration.ofSeconds(1));
+        ReflectionTestUtils.setField(keycloakService, "readTimeout", readTimeout);
+        ReflectionTestUtils.setField(keycloakService, "minTokenValidity", Duration.ofSeconds(30));
+        keycloakService.init();
+        return keycloakService;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import com.example.prenotazion_aule_keycloak.session.NearCacheInvalidation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Due nodi sullo stesso DB: le variazioni di uno arrivano alle strutture in memoria dell'altro
+ * dopo il flush del primo e il poll delle invalidazioni del secondo.
+ */
+class NodeStateRelayTest {
+
+    private final LocalDate date = LocalDate.now().plusDays(1);
+    private Node a;
+    private Node b;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:relay-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table near_cache_invalidation (" +
+                "id bigint generated by default as identity primary key, " +
+                "cache_name varchar(32) not null, " +
+                "cache_key varchar(255) not null, " +
+                "node_id varchar(64) not null, " +
+                "created_at timestamp not null)");
+        a = new Node(jdbcTemplate, 3);
+        b = new Node(jdbcTemplate, 3);
+    }
+
+    @Test
+    void bookingsMadeOnOneNodeReachTheOthers() {
+        BookingChangedEvent room = BookingChangedEvent.created(1L, 10L, date, new TimeSlot(540, 600));
+        BookingChangedEvent seat = BookingChangedEvent.seatDeleted(2L, 20L, date, 7);
+        a.relay.onBookingChanged(room);
+        a.relay.onBookingChanged(seat);
+        a.relay.flush();
+        b.invalidation.poll();
+
+        verify(b.occupancyIndex).onBookingChanged(room);
+        verify(b.slotIndex).onBookingChanged(room);
+        verify(b.broadcaster).onBookingChanged(room);
+        verify(b.occupancyIndex).onBookingChanged(seat);
+        verify(b.seatAdmission).changedElsewhere(20L, date, -1);
+        // Chi ha scritto ha già applicato le proprie variazioni
+        a.invalidation.poll();
+        verify(a.occupancyIndex, never()).onBookingChanged(any());
+    }
+
+    @Test
+    void bulkChangesBecomeASingleReload() {
+        for (long id = 1; id <= 5; id++) {
+            a.relay.onBookingChanged(BookingChangedEvent.deleted(id, 10L, date, TimeSlot.fullDay()));
+        }
+        a.relay.flush();
+        b.invalidation.poll();
+
+        verify(b.occupancyIndex, never()).onBookingChanged(any());
+        verify(b.seatAdmission).clear();
+        verify(b.occupancyIndex).verifyAgainstDatabase();
+        verify(b.slotIndex).rebuild();
+        verify(b.broadcaster).resync();
+    }
+
+    @Test
+    void roomChangesDropTheOtherCatalogs() {
+        when(a.roomCatalog.takeLocalChange()).thenReturn(true, false);
+        a.relay.flush();
+        a.relay.flush();
+        b.invalidation.poll();
+
+        verify(b.roomCatalog, times(1)).invalidateFromElsewhere();
+    }
+
+    private static final class Node {
+        final NearCacheInvalidation invalidation;
+        final OccupancyIndex occupancyIndex = mock(OccupancyIndex.class);
+        final SlotIndex slotIndex = mock(SlotIndex.class);
+        final SeatAdmission seatAdmission = mock(SeatAdmission.class);
+        final OccupancyBroadcaster broadcaster = mock(OccupancyBroadcaster.class);
+        final RoomCatalog roomCatalog = mock(RoomCatalog.class);
+        final NodeStateRelay relay;
+
+        Node(JdbcTemplate jdbcTemplate, int maxPending) {
+            invalidation = new NearCacheInvalidation(jdbcTemplate, Duration.ofMinutes(5));
+            invalidation.poll(); // primo poll: watermark
+            StaticListableBeanFactory beans = new StaticListableBeanFactory();
+            beans.addBean("invalidation", invalidation);
+            relay = new NodeStateRelay(beans.getBeanProvider(NearCacheInvalidation.class), occupancyIndex, slotIndex,
+                    seatAdmission, broadcaster, roomCatalog, maxPending);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.model.TimeSlot;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Broadcaster con un executor manuale: gli invii partono solo quando il test li esegue,
+ * così un client "lento" è semplicemente un client i cui invii non vengono eseguiti.
+ */
+class OccupancyBroadcasterTest {
+
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+    private final LocalDate date = LocalDate.now().plusDays(1);
+
+    private OccupancyBroadcaster broadcaster(int maxClients, int buffer) {
+        return new OccupancyBroadcaster(pending::add, maxClients, buffer, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    }
+
+    private void runPending() {
+        Runnable task;
+        while ((task = pending.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    void clientsReceiveOnlyTheRoomsTheySubscribedTo() {
+        OccupancyBroadcaster broadcaster = broadcaster(10, 16);
+        broadcaster.subscribe(Set.of(1L), Set.of());
+        broadcaster.subscribe(Set.of(), Set.of());
+
+        broadcaster.onBookingChanged(BookingChangedEvent.created(10L, 2L, date, TimeSlot.fullDay()));
+        runPending();
+        assertEquals(1L, broadcaster.stats().get("delivered"));
+
+        broadcaster.onBookingChanged(BookingChangedEvent.seatDeleted(11L, 1L, date, 3));
+        runPending();
+        assertEquals(3L, broadcaster.stats().get("delivered"));
+        assertEquals(2L, broadcaster.stats().get("events"));
+    }
+
+    @Test
+    void clientsReceiveOnlyTheMonthsTheySubscribedTo() {
+        OccupancyBroadcaster broadcaster = broadcaster(10, 16);
+        broadcaster.subscribe(Set.of(), Set.of(YearMonth.from(date)));
+        broadcaster.subscribe(Set.of(1L), Set.of(YearMonth.from(date).plusMonths(1)));
+
+        broadcaster.onBookingChanged(BookingChangedEvent.created(10L, 1L, date, TimeSlot.fullDay()));
+        runPending();
+        assertEquals(1L, broadcaster.stats().get("delivered"));
+
+        broadcaster.onBookingChanged(BookingChangedEvent.created(11L, 1L, date.plusMonths(1), TimeSlot.fullDay()));
+        broadcaster.onBookingChanged(BookingChangedEvent.created(12L, 2L, date.plusMonths(1), TimeSlot.fullDay()));
+        runPending();
+        assertEquals(2L, broadcaster.stats().get("delivered"));
+    }
+
+    @Test
+    void slowClientIsDroppedWithoutBlockingTheOthers() {
+        OccupancyBroadcaster broadcaster = broadcaster(10, 4);
+        broadcaster.subscribe(Set.of(), Set.of());
+        // Il primo client non viene mai servito: la sua coda (heartbeat iniziale + 3 eventi) si riempie
+        Runnable stuck = pending.poll();
+        assertNotNull(stuck);
+
+        for (long id = 1; id <= 3; id++) {
+            broadcaster.onBookingChanged(BookingChangedEvent.created(id, 1L, date, TimeSlot.fullDay()));
+        }
+        broadcaster.subscribe(Set.of(1L), Set.of());
+        broadcaster.onBookingChanged(BookingChangedEvent.created(4L, 1L, date, TimeSlot.fullDay()));
+
+        assertEquals(1, broadcaster.clientCount());
+        assertEquals(1L, broadcaster.stats().get("droppedSlowClients"));
+        runPending();
+        assertEquals(1L, broadcaster.stats().get("delivered"));
+    }
+
+    @Test
+    void stalledSendDoesNotStopTheOtherClients() throws Exception {
+        // Un solo thread di invio: il client fermo lo occupa tutto
+        ExecutorService pool = OccupancyBroadcaster.newSenderPool(1);
+        OccupancyBroadcaster broadcaster = new OccupancyBroadcaster(pool, 10, 16, Duration.ofMinutes(1), Duration.ofMillis(100));
+        BlockingEmitter stuck = new BlockingEmitter();
+        broadcaster.subscribe(stuck, Set.of(), Set.of());
+        assertTrue(stuck.sending.await(2, TimeUnit.SECONDS));
+        broadcaster.subscribe(Set.of(), Set.of());
+
+        broadcaster.onBookingChanged(BookingChangedEvent.created(1L, 1L, date, TimeSlot.fullDay()));
+        Thread.sleep(200);
+        assertEquals(0L, broadcaster.stats().get("delivered"));
+
+        // Invio oltre send-timeout: il client fermo esce, gli altri ricevono
+        broadcaster.dropStalledClients();
+        assertEquals(1, broadcaster.clientCount());
+        assertEquals(1L, broadcaster.stats().get("droppedStalledClients"));
+        awaitDelivered(broadcaster, 1L);
+
+        // L'invio bloccato torna: il pool riprende la sua dimensione e il servizio continua
+        stuck.release.countDown();
+        broadcaster.onBookingChanged(BookingChangedEvent.created(2L, 1L, date, TimeSlot.fullDay()));
+        awaitDelivered(broadcaster, 2L);
+        ThreadPoolExecutor threads = (ThreadPoolExecutor) pool;
+        for (int i = 0; i < 200 && threads.getCorePoolSize() != 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, threads.getCorePoolSize());
+        assertTrue(stuck.completed);
+        pool.shutdownNow();
+    }
+
+    @Test
+    void subscriptionsBeyondTheLimitAreRejected() {
+        OccupancyBroadcaster broadcaster = broadcaster(1, 4);
+        broadcaster.subscribe(Set.of(), Set.of());
+        assertThrows(IllegalStateException.class, () -> broadcaster.subscribe(Set.of(), Set.of()));
+        assertEquals(1L, broadcaster.stats().get("rejectedSubscriptions"));
+
+        broadcaster.heartbeat();
+        runPending();
+        assertEquals(1, broadcaster.clientCount());
+    }
+
+    private static void awaitDelivered(OccupancyBroadcaster broadcaster, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!Long.valueOf(expected).equals(broadcaster.stats().get("delivered")) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, broadcaster.stats().get("delivered"));
+    }
+
+    // Client che non legge: send() resta bloccato come su un socket con il buffer pieno
+    private static final class BlockingEmitter extends SseEmitter {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean completed;
+
+        @Override
+        public void complete() {
+            completed = true;
+            super.complete();
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+}
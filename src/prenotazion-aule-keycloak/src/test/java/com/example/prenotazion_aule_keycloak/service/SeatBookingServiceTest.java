@@ -0,0 +1,241 @@
+package com.example.prenotazion_aule_keycloak.service;
+
+import com.example.prenotazion_aule_keycloak.audit.AuditTrail;
+import com.example.prenotazion_aule_keycloak.model.Booking;
+import com.example.prenotazion_aule_keycloak.model.Room;
+import com.example.prenotazion_aule_keycloak.repository.BookingRepository;
+import com.example.prenotazion_aule_keycloak.repository.RoomRepository;
+import com.example.prenotazion_aule_keycloak.repository.SeatCounterRepository;
+import com.example.prenotazion_aule_keycloak.repository.WaitlistRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+
+@DataJpaTest(properties = {
+        "spring.cloud.vault.enabled=false",
+        "spring.config.on-not-found=ignore",
+        "spring.jpa.database-platform=",
+        // Su H2 lo schema lo crea Hibernate: le migrazioni sono solo per PostgreSQL
+        "spring.flyway.enabled=false",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.show-sql=false",
+        "audit.file=target/audit/audit.log",
+        "logging.level.com.example.prenotazion_aule_keycloak=WARN"
+})
+@Import({BookingService.class, AuditTrail.class, OccupancyIndex.class, SlotIndex.class, RoomCatalog.class, SeatBookingService.class,
+        BookingPartitionMaintenance.class, SeatAdmission.class, BookingMetrics.class, SimpleMeterRegistry.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // ogni chiamata al service gira nella sua transazione
+class SeatBookingServiceTest {
+
+    private static final int CAPACITY = 25;
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private BookingRepository bookingRepository;
+
+    @Autowired
+    private RoomRepository roomRepository;
+
+    @SpyBean
+    private SeatCounterRepository seatCounterRepository;
+
+    @Autowired
+    private WaitlistRepository waitlistRepository;
+
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    private Room room;
+    private final LocalDate date = LocalDate.now().plusDays(7);
+
+    @BeforeEach
+    void setUp() {
+        room = roomRepository.save(new Room("Aula Studio - Test", CAPACITY));
+        bookingService.setSeatBooking(room.getId(), true);
+        occupancyIndex.warmUp();
+    }
+
+    @AfterEach
+    void tearDown() {
+        waitlistRepository.deleteAllInBatch();
+        bookingRepository.deleteAllInBatch();
+        seatCounterRepository.deleteAllInBatch();
+        roomRepository.delete(room);
+    }
+
+    @Test
+    void hundredsOfConcurrentRequestsNeverOverbookARoom() throws Exception {
+        int threads = 300;
+        AtomicInteger full = new AtomicInteger();
+        List<Throwable> unexpected = Collections.synchronizedList(new ArrayList<>());
+
+        runConcurrently(threads, i -> {
+            try {
+                bookingService.createBooking("user-" + i, room.getId(), date);
+            } catch (RoomFullException e) {
+                full.incrementAndGet();
+            } catch (Throwable t) {
+                unexpected.add(t);
+            }
+        });
+
+        assertEquals(List.of(), unexpected);
+        assertEquals(threads - CAPACITY, full.get());
+        assertSeatsConsistent(CAPACITY);
+        // L'aula resta prenotabile a posti: l'indice di occupazione non la segna come occupata
+        assertNotEquals(OccupancyIndex.Occupancy.BUSY, occupancyIndex.lookup(room.getId(), date));
+    }
+
+    @Test
+    void concurrentCancellationsAndBookingsKeepCounterAndSeatsConsistent() throws Exception {
+        List<Booking> holders = new ArrayList<>();
+        for (int i = 0; i < CAPACITY; i++) {
+            holders.add(bookingService.createBooking("holder-" + i, room.getId(), date));
+        }
+
+        // Metà dei titolari cancella mentre 200 nuovi utenti provano a prenotare o a mettersi in attesa
+        int cancellations = CAPACITY / 2;
+        List<Throwable> unexpected = Collections.synchronizedList(new ArrayList<>());
+        runConcurrently(cancellations + 200, i -> {
+            try {
+                if (i < cancellations) {
+                    Booking b = holders.get(i);
+                    bookingService.deleteBookingIfOwner(b.getId(), b.getUsername());
+                } else {
+                    try {
+                        bookingService.createBooking("user-" + i, room.getId(), date);
+                    } catch (RoomFullException e) {
+                        bookingService.joinWaitlist("user-" + i, room.getId(), date);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // "Si è appena liberato un posto": unico esito previsto della race con le cancellazioni
+                if (!e.getMessage().startsWith("Si è appena liberato un posto")) {
+                    unexpected.add(e);
+                }
+            } catch (Throwable t) {
+                unexpected.add(t);
+            }
+        });
+
+        assertEquals(List.of(), unexpected);
+        assertSeatsConsistent(CAPACITY);
+    }
+
+    @Test
+    void freedSeatGoesToFirstInWaitlist() {
+        Room small = roomRepository.save(new Room("Aula Piccola - Test", 2));
+        try {
+            bookingService.setSeatBooking(small.getId(), true);
+            Booking mario = bookingService.createBooking("mario", small.getId(), date);
+            Booking luigi = bookingService.createBooking("luigi", small.getId(), date);
+            assertEquals(List.of(1, 2), List.of(mario.getSeat(), luigi.getSeat()));
+            IllegalStateException twice = assertThrows(IllegalStateException.class,
+                    () -> bookingService.createBooking("mario", small.getId(), date));
+            assertTrue(twice.getMessage().startsWith("Hai già un posto"));
+
+            assertThrows(RoomFullException.class, () -> bookingService.createBooking("peach", small.getId(), date));
+            assertEquals(1, bookingService.joinWaitlist("peach", small.getId(), date));
+            assertEquals(2, bookingService.joinWaitlist("toad", small.getId(), date));
+
+            // Il posto di mario passa a peach, toad avanza
+            bookingService.deleteBookingIfOwner(mario.getId(), "mario");
+            List<Booking> peach = bookingRepository.findByUsername("peach");
+            assertEquals(1, peach.size());
+            assertEquals(mario.getSeat(), peach.get(0).getSeat());
+            assertEquals(1, bookingService.getWaitlistByUser("toad").get(0).position());
+
+            // Cancellazione admin: promosso toad; poi lista vuota e il posto torna libero
+            bookingService.deleteBooking(peach.get(0).getId());
+            assertEquals(1, bookingRepository.findByUsername("toad").size());
+            bookingService.deleteBooking(luigi.getId());
+            assertEquals(1, seatCounterRepository.findTaken(small.getId(), date).orElseThrow());
+            bookingService.createBooking("yoshi", small.getId(), date);
+            assertEquals(2, seatCounterRepository.findTaken(small.getId(), date).orElseThrow());
+
+            // Con prenotazioni future l'aula non può cambiare modalità
+            assertThrows(IllegalStateException.class, () -> bookingService.setSeatBooking(small.getId(), false));
+        } finally {
+            waitlistRepository.deleteAllInBatch();
+            bookingRepository.deleteAllInBatch();
+            roomRepository.delete(small);
+        }
+    }
+
+    @Test
+    void waiterStaysQueuedWhenFreedSeatIsTakenElsewhere() {
+        Room single = roomRepository.save(new Room("Aula Singola - Test", 1));
+        try {
+            bookingService.setSeatBooking(single.getId(), true);
+            Booking mario = bookingService.createBooking("mario", single.getId(), date);
+            assertThrows(RoomFullException.class, () -> bookingService.createBooking("peach", single.getId(), date));
+            assertEquals(1, bookingService.joinWaitlist("peach", single.getId(), date));
+
+            // Un'altra istanza occupa il posto tra la release e la promozione
+            doReturn(0).when(seatCounterRepository).tryTake(eq(single.getId()), eq(date), anyInt());
+            bookingService.deleteBookingIfOwner(mario.getId(), "mario");
+
+            assertEquals(List.of(), bookingRepository.findByUsername("peach"));
+            assertEquals(1, bookingService.getWaitlistByUser("peach").get(0).position());
+        } finally {
+            waitlistRepository.deleteAllInBatch();
+            bookingRepository.deleteAllInBatch();
+            roomRepository.delete(single);
+        }
+    }
+
+    private void assertSeatsConsistent(int capacity) {
+        List<Integer> seats = bookingRepository.findSeats(room.getId(), date);
+        assertTrue(seats.size() <= capacity, "posti assegnati: " + seats.size());
+        assertEquals(seats.size(), seats.stream().distinct().count(), "numeri di posto duplicati");
+        assertTrue(seats.stream().allMatch(s -> s >= 1 && s <= capacity));
+        assertEquals(seats.size(), seatCounterRepository.findTaken(room.getId(), date).orElseThrow());
+    }
+
+    private static void runConcurrently(int tasks, IntConsumer task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(tasks);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<? extends Future<?>> futures = IntStream.range(0, tasks)
+                    .mapToObj(i -> pool.submit(() -> {
+                        start.await();
+                        task.accept(i);
+                        return null;
+                    }))
+                    .toList();
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.prenotazion_aule_keycloak.session;
+
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.session.MapSession;
+import org.springframework.session.jdbc.JdbcIndexedSessionRepository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Due nodi sullo stesso DB, con le richieste dello stesso utente che si alternano tra i nodi.
+ */
+class NearCacheSessionRepositoryTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private Node a;
+    private Node b;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:sessions-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        new SessionSchemaInitializer(dataSource, jdbcTemplate).apply();
+        a = new Node(dataSource);
+        b = new Node(dataSource);
+    }
+
+    @Test
+    void requestsAlternatingBetweenNodesSeeTheirOwnWrites() {
+        // Nodo A: prima richiesta, crea la sessione
+        NearCacheSessionRepository.CachedSession created = a.repository.createSession();
+        created.setAttribute("request", "saved");
+        a.repository.save(created);
+        String id = created.getId();
+
+        // Nodo B: legge la sessione e scrive (login)
+        NearCacheSessionRepository.CachedSession onB = b.repository.findById(id);
+        assertThat(onB.<String>getAttribute("request")).isEqualTo("saved");
+        onB.setAttribute("context", "alice");
+        onB.removeAttribute("request");
+        b.repository.save(onB);
+        String rotated = onB.getId();
+        assertThat(rotated).isNotEqualTo(id);
+
+        // Nodo A: il browser manda il nuovo cookie, la copia vecchia in cache non viene usata
+        NearCacheSessionRepository.CachedSession onA = a.repository.findById(rotated);
+        assertThat(onA.<String>getAttribute("context")).isEqualTo("alice");
+        assertThat(onA.<String>getAttribute("request")).isNull();
+
+        // L'id vecchio sparisce anche dalla near-cache di A dopo il poll delle invalidazioni
+        a.invalidation.poll();
+        assertThat(a.repository.findById(id)).isNull();
+    }
+
+    @Test
+    void readsAndTouchesStayInTheNearCache() {
+        NearCacheSessionRepository.CachedSession created = a.repository.createSession();
+        created.setAttribute("context", "alice");
+        a.repository.save(created);
+        String id = created.getId();
+        Instant persisted = lastAccess(id);
+
+        for (int i = 0; i < 5; i++) {
+            NearCacheSessionRepository.CachedSession session = a.repository.findById(id);
+            session.setLastAccessedTime(session.getLastAccessedTime().plusSeconds(1));
+            a.repository.save(session);
+            assertThat(session.getId()).isEqualTo(id);
+        }
+        assertThat(lastAccess(id)).isEqualTo(persisted);
+        assertThat(a.repository.stats().get("loads")).isEqualTo(0L);
+        assertThat(a.repository.stats().get("skippedTouches")).isEqualTo(5L);
+
+        // Oltre touch-interval l'accesso viene scritto, senza cambiare id
+        NearCacheSessionRepository.CachedSession late = a.repository.findById(id);
+        late.setLastAccessedTime(persisted.plus(Duration.ofMinutes(2)));
+        a.repository.save(late);
+        assertThat(late.getId()).isEqualTo(id);
+        assertThat(lastAccess(id)).isAfter(persisted);
+    }
+
+    @Test
+    void logoutOnOneNodeInvalidatesTheOther() {
+        NearCacheSessionRepository.CachedSession created = a.repository.createSession();
+        created.setAttribute("context", "alice");
+        a.repository.save(created);
+        String id = created.getId();
+        assertThat(b.repository.findById(id)).isNotNull();
+
+        a.repository.deleteById(id);
+        b.invalidation.poll();
+
+        assertThat(b.repository.findById(id)).isNull();
+    }
+
+    @Test
+    void sensitiveRequestsDoNotWaitForTheInvalidationPoll() throws Exception {
+        NearCacheSessionRepository.CachedSession created = a.repository.createSession();
+        created.setAttribute("context", "alice");
+        a.repository.save(created);
+        String id = created.getId();
+        assertThat(b.repository.findById(id)).isNotNull();
+
+        // Logout su A, B non ha ancora letto l'invalidazione: le letture restano sulla cache...
+        a.repository.deleteById(id);
+        assertThat(b.repository.findById(id)).isNotNull();
+
+        // ...le scritture e /admin rileggono dal DB
+        SessionRevocationFilter filter = new SessionRevocationFilter(b.repository);
+        List<Object> found = new ArrayList<>();
+        FilterChain lookup = (request, response) -> found.add(Optional.ofNullable(b.repository.findById(id)));
+        filter.doFilter(new MockHttpServletRequest("POST", "/user/book"), new MockHttpServletResponse(), lookup);
+        filter.doFilter(new MockHttpServletRequest("GET", "/admin/bookings/data"), new MockHttpServletResponse(), lookup);
+        assertThat(found).containsExactly(Optional.empty(), Optional.empty());
+        assertThat(SessionRevocationFilter.isSensitive(new MockHttpServletRequest("GET", "/user/calendar"))).isFalse();
+    }
+
+    @Test
+    void largeAttributesAreStoredCompressed() {
+        NearCacheSessionRepository.CachedSession created = a.repository.createSession();
+        created.setAttribute("tokens", "eyJhbGciOiJSUzI1NiJ9.".repeat(200));
+        a.repository.save(created);
+
+        byte[] stored = jdbcTemplate.queryForObject(
+                "select attribute_bytes from spring_session_attributes where attribute_name = 'tokens'", byte[].class);
+        assertThat(stored.length).isLessThan(1000);
+        assertThat(b.repository.findById(created.getId()).<String>getAttribute("tokens")).hasSize(21 * 200);
+    }
+
+    private Instant lastAccess(String id) {
+        Long millis = jdbcTemplate.queryForObject(
+                "select last_access_time from spring_session where session_id = ?", Long.class, id);
+        return Instant.ofEpochMilli(millis);
+    }
+
+    private static final class Node {
+
+        final NearCacheInvalidation invalidation;
+        final NearCacheSessionRepository repository;
+
+        Node(DriverManagerDataSource dataSource) throws Exception {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            SessionAttributeSerializer serializer = new SessionAttributeSerializer(512, Node.class.getClassLoader());
+            JdbcIndexedSessionRepository jdbc = new JdbcIndexedSessionRepository(jdbcTemplate,
+                    new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+            jdbc.setConversionService(serializer.conversionService());
+            invalidation = new NearCacheInvalidation(jdbcTemplate, Duration.ofMinutes(10));
+            invalidation.poll();
+            repository = new NearCacheSessionRepository(jdbc, new NearCache<String, MapSession>(Duration.ofMinutes(1), 100),
+                    invalidation, Duration.ofSeconds(60), serializer);
+        }
+    }
+}